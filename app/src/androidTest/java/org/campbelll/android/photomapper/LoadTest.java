@@ -0,0 +1,387 @@
+package org.campbelll.android.photomapper;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.campbelll.android.photomapper.db.PhotoDBHelper;
+import org.campbelll.android.photomapper.utility.ClusterEngine;
+import org.campbelll.android.photomapper.utility.Histogram;
+import org.campbelll.android.photomapper.utility.Perf;
+import org.campbelll.android.photomapper.utility.Photo;
+import org.campbelll.android.photomapper.utility.PhotoIndex;
+import org.campbelll.android.photomapper.utility.TimelineIndex;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
+
+/**
+ * Fills the photo database with a {@link SyntheticLibrary} and times the app's hot paths end to end, through the
+ * {@link PhotoProvider}: inserts, full and filtered queries, mapping cursors to {@link Photo}s and to a
+ * {@link PhotoIndex}, and the clustering done when the map's loader delivers photos. The heap taken by the mapped
+ * photos is measured too.
+ * <p>
+ * The library is filled to each size given as a comma separated list in the "load_rows" runner argument, which is
+ * only read from Jelly Bean MR2, e.g.
+ * <pre>
+ * adb shell am instrument -w -e class org.campbelll.android.photomapper.LoadTest -e load_rows 10000,100000,1000000 \
+ *     org.campbelll.android.photomapper.test/android.test.InstrumentationTestRunner</pre>
+ * The results of every size are written as JSON to load-test-&lt;time&gt;.json in the app's external files directory,
+ * so runs on different builds can be compared.
+ * <p>
+ * The test runs against the app's own database, which it empties before and after, as the provider's database and
+ * writer are process wide. So that a normal test run can't wipe a library, the test does nothing unless the
+ * "load_rows" argument is given.
+ *
+ * @author Campbell Lockley
+ */
+@LargeTest
+public class LoadTest extends InstrumentationTestCase {
+    /* Tag */
+    private static final String TAG = "LoadTest";
+
+    /* Constants */
+    private static final String ARG_ROWS = "load_rows";     // Runner argument listing the sizes to test
+    private static final long SEED = 448;                   // Seed of the generated library
+    private static final int INSERT_BATCH = 500;            // Photos per bulkInsert()
+    private static final int REPEATS = 5;                   // Times each query is timed
+    private static final int MAX_PHOTO_LIST = 200000;       // Most photos mapped to a list of Photos, to fit the heap
+    private static final int NEAREST = 20;                  // Photos found by the near query
+    private static final int PAGE_SIZE = 500;               // Photos in the first page of the map's loader
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    /* Bounding box of the busiest place, Christchurch, about the size of the map at city zoom */
+    private static final double SOUTH = -43.65, WEST = 172.45, NORTH = -43.40, EAST = 172.80;
+
+    /* Columns the map loads, as PhotoMapFragment asks for them */
+    private static final String[] MAP_PROJECTION = new String[] {
+            PhotoEntry._ID,
+            PhotoEntry.COL_GPS_LATITUDE,
+            PhotoEntry.COL_GPS_LONGITUDE,
+            PhotoEntry.COL_TAKEN_AT,
+            PhotoEntry.COL_MAKE,
+            PhotoEntry.COL_MODEL,
+            PhotoEntry.COL_STACK_COUNT
+    };
+
+    /* Columns read by PhotoDBHelper.getAllPhotos() */
+    private static final String[] PHOTO_PROJECTION = new String[] {
+            PhotoEntry._ID,
+            PhotoEntry.COL_URI,
+            PhotoEntry.COL_GPS_LATITUDE,
+            PhotoEntry.COL_GPS_LATITUDE_REF,
+            PhotoEntry.COL_GPS_LONGITUDE,
+            PhotoEntry.COL_GPS_LONGITUDE_REF,
+            PhotoEntry.COL_DATE,
+            PhotoEntry.COL_TIME,
+            PhotoEntry.COL_MAKE,
+            PhotoEntry.COL_MODEL
+    };
+
+    /* Members */
+    private Context context;
+    private ContentResolver resolver;
+    private int[] sizes;                                    // Library sizes to test, or null to skip the test
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        context = getInstrumentation().getTargetContext();
+        resolver = context.getContentResolver();
+        sizes = getRows();
+        if (sizes != null) resolver.delete(PhotoProvider.CONTENT_URI, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (sizes != null) resolver.delete(PhotoProvider.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testLoad() throws JSONException, IOException {
+        if (sizes == null) {
+            Log.i(TAG, "Skipped, as no \"" + ARG_ROWS + "\" argument was given");
+            return;
+        }
+
+        JSONObject report = new JSONObject();
+        report.put("time", System.currentTimeMillis());
+        report.put("manufacturer", Build.MANUFACTURER);
+        report.put("model", Build.MODEL);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        report.put("storage_profile", PhotoDBHelper.getStorageProfile(context).name);
+        report.put("seed", SEED);
+        report.put("max_heap_bytes", Runtime.getRuntime().maxMemory());
+
+        /* Each size adds to the photos of the last, as the generator carries on where it left off */
+        SyntheticLibrary library = new SyntheticLibrary(SEED);
+        JSONArray runs = new JSONArray();
+        for (int rows : sizes) {
+            Perf.reset();
+            JSONObject run = new JSONObject();
+            run.put("rows", rows);
+            run.put("insert", fill(library, rows));
+            run.put("queries", timeQueries());
+            run.put("mapping", timeMapping(rows));
+            run.put("clustering", timeClustering());
+            run.put("stages", Perf.toJson().getJSONObject("stages"));
+            runs.put(run);
+        }
+        report.put("runs", runs);
+
+        File file = write(report);
+        Log.i(TAG, "Wrote report to " + file);
+    }
+
+    /** Returns the library sizes to test, in increasing order, or null if none were given. */
+    private int[] getRows() {
+        String arg = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && getInstrumentation() instanceof InstrumentationTestRunner) {
+            Bundle arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+            if (arguments != null) arg = arguments.getString(ARG_ROWS);
+        }
+        if (arg == null) return null;
+
+        String[] sizes = arg.split(",");
+        int[] rows = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            rows[i] = Integer.parseInt(sizes[i].trim());
+            if (i > 0 && rows[i] <= rows[i - 1]) throw new IllegalArgumentException("Sizes must increase: " + arg);
+        }
+        return rows;
+    }
+
+    /** Inserts photos until the library has the given number, and returns the insert throughput. */
+    private JSONObject fill(SyntheticLibrary library, int rows) throws JSONException {
+        int start = library.getGenerated();
+        long generateNanos = 0, insertNanos = 0;
+        while (library.getGenerated() < rows) {
+            long t0 = System.nanoTime();
+            ContentValues[] values = library.next(Math.min(INSERT_BATCH, rows - library.getGenerated()));
+            long t1 = System.nanoTime();
+            assertEquals(values.length, resolver.bulkInsert(PhotoProvider.CONTENT_URI, values));
+            insertNanos += System.nanoTime() - t1;
+            generateNanos += t1 - t0;
+        }
+        assertEquals(rows, count(PhotoProvider.CONTENT_URI));
+
+        int inserted = rows - start;
+        JSONObject insert = new JSONObject();
+        insert.put("inserted", inserted);
+        insert.put("batch_size", INSERT_BATCH);
+        insert.put("insert_ms", insertNanos / NANOS_PER_MILLI);
+        insert.put("rows_per_s", (insertNanos == 0) ? 0 : inserted * 1e9 / insertNanos);
+        insert.put("generate_ms", generateNanos / NANOS_PER_MILLI);
+        insert.put("stacks", count(PhotoProvider.withStacks(PhotoProvider.CONTENT_URI)));
+        insert.put("db_bytes", databaseBytes());
+        return insert;
+    }
+
+    /** Times each of the queries the app makes, returning the times and rows of each. */
+    private JSONObject timeQueries() throws JSONException {
+        Uri bounds = PhotoProvider.buildBoundsUri(SOUTH, WEST, NORTH, EAST);
+        long yearStart = 1388534400000L, yearEnd = 1420070400000L;     // 2014, as EXIF times are treated as UTC
+
+        JSONObject queries = new JSONObject();
+        queries.put("full", timeQuery(PhotoProvider.CONTENT_URI, MAP_PROJECTION, PhotoEntry._ID));
+        queries.put("bounds", timeQuery(bounds, MAP_PROJECTION, PhotoEntry._ID));
+        queries.put("bounds_stacked", timeQuery(PhotoProvider.withStacks(bounds), MAP_PROJECTION, PhotoEntry._ID));
+        queries.put("bounds_first_page", timeQuery(PhotoProvider.withLimit(bounds, PAGE_SIZE), MAP_PROJECTION,
+                PhotoEntry._ID));
+        queries.put("bounds_time_range", timeQuery(PhotoProvider.withTimeRange(bounds, yearStart, yearEnd),
+                MAP_PROJECTION, PhotoEntry._ID));
+        queries.put("near", timeQuery(PhotoProvider.buildNearUri((SOUTH + NORTH) / 2, (WEST + EAST) / 2, NEAREST,
+                Double.POSITIVE_INFINITY), MAP_PROJECTION, null));
+        return queries;
+    }
+
+    /**
+     * Times a query, until every row has been read into the cursor's window. The first of the repeats is also timed on
+     * its own, as it is the only one which may read from disk rather than the page cache.
+     */
+    private JSONObject timeQuery(Uri uri, String[] projection, String sortOrder) throws JSONException {
+        Histogram times = new Histogram();
+        long first = 0;
+        int rows = 0;
+        for (int i = 0; i < REPEATS; i++) {
+            long start = System.nanoTime();
+            Cursor c = resolver.query(uri, projection, null, null, sortOrder);
+            try {
+                rows = c.getCount();
+                c.moveToLast();                         // Fills the last window
+            } finally {
+                c.close();
+            }
+            long nanos = System.nanoTime() - start;
+            if (i == 0) first = nanos;
+            times.record(nanos);
+        }
+
+        JSONObject query = toJson(times);
+        query.put("rows", rows);
+        query.put("first_ms", first / NANOS_PER_MILLI);
+        return query;
+    }
+
+    /**
+     * Times mapping every photo from a cursor to a {@link PhotoIndex}, as the map does, and to a list of
+     * {@link Photo}s, as the app used to, and measures the heap each takes.
+     */
+    private JSONObject timeMapping(int rows) throws JSONException {
+        JSONObject mapping = new JSONObject();
+
+        long before = usedHeap();
+        long start = System.nanoTime();
+        PhotoIndex index;
+        Cursor c = resolver.query(PhotoProvider.CONTENT_URI, MAP_PROJECTION, null, null, PhotoEntry._ID);
+        try {
+            index = PhotoDBHelper.getPhotoIndex(c);
+        } finally {
+            c.close();
+        }
+        long nanos = System.nanoTime() - start;
+        JSONObject indexJson = new JSONObject();
+        indexJson.put("ms", nanos / NANOS_PER_MILLI);
+        indexJson.put("heap_bytes", usedHeap() - before);
+        assertEquals(rows, index.size());
+        mapping.put("photo_index", indexJson);
+        index = null;                                   // Collected before the list is measured
+
+        /* Photos hold a string per column, so a million of them doesn't fit on most heaps */
+        if (rows > MAX_PHOTO_LIST) return mapping;
+        before = usedHeap();
+        start = System.nanoTime();
+        ArrayList<Photo> photos;
+        c = resolver.query(PhotoProvider.CONTENT_URI, PHOTO_PROJECTION, null, null, PhotoEntry._ID);
+        try {
+            photos = PhotoDBHelper.getAllPhotos(c);
+        } finally {
+            c.close();
+        }
+        nanos = System.nanoTime() - start;
+        JSONObject photosJson = new JSONObject();
+        photosJson.put("ms", nanos / NANOS_PER_MILLI);
+        photosJson.put("heap_bytes", usedHeap() - before);
+        assertEquals(rows, photos.size());
+        mapping.put("photo_list", photosJson);
+        return mapping;
+    }
+
+    /** Times building the timeline and clusters of the stacked photos, as the map does when its loader delivers. */
+    private JSONObject timeClustering() throws JSONException {
+        PhotoIndex index;
+        Cursor c = resolver.query(PhotoProvider.withStacks(PhotoProvider.CONTENT_URI), MAP_PROJECTION, null, null,
+                PhotoEntry._ID);
+        try {
+            index = PhotoDBHelper.getPhotoIndex(c);
+        } finally {
+            c.close();
+        }
+
+        int count = index.size();
+        long[] ids = new long[count];
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = index.getId(i);
+            latitudes[i] = index.getLatitude(i);
+            longitudes[i] = index.getLongitude(i);
+        }
+
+        long start = System.nanoTime();
+        new TimelineIndex(index);
+        long timelineNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        ClusterEngine engine = new ClusterEngine(ids, latitudes, longitudes, count);
+        long clusterNanos = System.nanoTime() - start;
+
+        Histogram times = new Histogram();
+        int clusters = 0;
+        for (int i = 0; i < REPEATS; i++) {
+            start = System.nanoTime();
+            clusters = engine.getClusters(ClusterEngine.MAX_ZOOM / 2, SOUTH, WEST, NORTH, EAST).size();
+            times.record(System.nanoTime() - start);
+        }
+
+        JSONObject clustering = new JSONObject();
+        clustering.put("photos", count);
+        clustering.put("timeline_ms", timelineNanos / NANOS_PER_MILLI);
+        clustering.put("cluster_build_ms", clusterNanos / NANOS_PER_MILLI);
+        JSONObject query = toJson(times);
+        query.put("clusters", clusters);
+        clustering.put("clusters_in_bounds", query);
+        return clustering;
+    }
+
+    /** Returns the number of rows a query returns. */
+    private int count(Uri uri) {
+        Cursor c = resolver.query(uri, new String[] { PhotoEntry._ID }, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /** Returns the size of the database's files, including its journal. */
+    private long databaseBytes() {
+        File db = context.getDatabasePath(PhotoDBHelper.DATABASE_NAME);
+        long bytes = db.length();
+        for (String suffix : new String[] { "-wal", "-journal" }) bytes += new File(db.getPath() + suffix).length();
+        return bytes;
+    }
+
+    /** Returns the heap in use once garbage has been collected. */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Returns a histogram's times in milliseconds. */
+    private static JSONObject toJson(Histogram times) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", times.getCount());
+        json.put("mean_ms", times.getMean() / NANOS_PER_MILLI);
+        json.put("p50_ms", times.getPercentile(50) / NANOS_PER_MILLI);
+        json.put("max_ms", times.getMax() / NANOS_PER_MILLI);
+        return json;
+    }
+
+    /** Writes the report to the external files directory, or the files directory if there's no external storage. */
+    private File write(JSONObject report) throws JSONException, IOException {
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) dir = context.getFilesDir();
+        File file = new File(dir, "load-test-" + report.getLong("time") + ".json");
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(report.toString(2));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,189 @@
+package org.campbelll.android.photomapper;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Loader;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+
+import org.campbelll.android.photomapper.utility.PhotoIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
+
+/**
+ * Loads photos with a {@link PagedPhotoLoader} from a stand-in for the {@link PhotoProvider}, and checks the last
+ * photos delivered are every photo in the bounding box, however the first page, which is read in distance order,
+ * overlaps the pages read in id order.
+ *
+ * @author Campbell Lockley
+ */
+public class PagedPhotoLoaderTest extends AndroidTestCase {
+    /* Constants */
+    private static final int PHOTOS = 1000;                 // Photos in the box, more than the loader's first page
+    private static final int OUTSIDE = 50;                  // Photos outside the box
+    private static final double STEP = 0.0009;              // Degrees between photos, so all of them fit in the box
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /* Bounding box, centred on the origin */
+    private static final double SOUTH = -1, WEST = -1, NORTH = 1, EAST = 1;
+
+    /* Columns the map loads */
+    private static final String[] PROJECTION = new String[] {
+            PhotoEntry._ID,
+            PhotoEntry.COL_GPS_LATITUDE,
+            PhotoEntry.COL_GPS_LONGITUDE,
+            PhotoEntry.COL_TAKEN_AT,
+            PhotoEntry.COL_MAKE,
+            PhotoEntry.COL_MODEL
+    };
+
+    /* Members */
+    private Context context;                                // Context whose resolver queries the stand-in provider
+    private Handler main;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        PhotoChangeLog.getInstance(getContext());           // So the process wide log uses the real resolver
+
+        final MockContentResolver resolver = new MockContentResolver();
+        PhotoStandIn provider = new PhotoStandIn();
+        provider.attachInfo(getContext(), null);
+        resolver.addProvider(PhotoProvider.AUTHORITY, provider);
+        context = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() { return resolver; }
+
+            @Override
+            public Context getApplicationContext() { return this; }
+        };
+        main = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Photo ids grow with distance from the centre, so the first page holds the lowest ids. Paging by id from the
+     * first page's last id would skip them, and the last delivery would drop them.
+     */
+    public void testLastDeliveryHoldsEveryPhotoInBox() throws InterruptedException {
+        Uri uri = PhotoProvider.buildBoundsUri(SOUTH, WEST, NORTH, EAST);
+        final PagedPhotoLoader loader = new PagedPhotoLoader(context, uri, PROJECTION, 0, 0, false);
+        final List<PhotoIndex> deliveries = Collections.synchronizedList(new ArrayList<PhotoIndex>());
+        final CountDownLatch done = new CountDownLatch(2);     // The first page, then everything
+        final Loader.OnLoadCompleteListener<PhotoIndex> listener = new Loader.OnLoadCompleteListener<PhotoIndex>() {
+            @Override
+            public void onLoadComplete(Loader<PhotoIndex> l, PhotoIndex data) {
+                deliveries.add(data);
+                done.countDown();
+            }
+        };
+
+        main.post(new Runnable() {
+            @Override
+            public void run() {
+                loader.registerListener(0, listener);
+                loader.startLoading();
+            }
+        });
+        try {
+            assertTrue("Timed out loading", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            main.post(new Runnable() {
+                @Override
+                public void run() {
+                    loader.reset();
+                    loader.unregisterListener(listener);
+                }
+            });
+        }
+
+        /* The first page is the photos nearest the centre */
+        PhotoIndex first = deliveries.get(0);
+        assertTrue(first.size() < PHOTOS);
+        for (int i = 0; i < first.size(); i++) assertTrue(first.getId(i) <= first.size());
+
+        /* The last delivery is every photo in the box, and nothing outside it */
+        PhotoIndex last = deliveries.get(deliveries.size() - 1);
+        assertEquals(PHOTOS, last.size());
+        for (long id = 1; id <= PHOTOS; id++) assertTrue("Photo " + id + " missing", last.indexOf(id) >= 0);
+    }
+
+    /** Returns the latitude of a photo: those in the box are north of the centre in id order, the rest further. */
+    private static double latitudeOf(long id) {
+        return (id <= PHOTOS) ? id * STEP : NORTH + id * STEP;
+    }
+
+    /**
+     * Stand-in for the {@link PhotoProvider} serving photos along the meridian. Queries are answered as the provider
+     * answers the loader's: a bounding box, then either photos nearest the centre or {@code _id > ?} in id order, up
+     * to the "limit" query parameter.
+     */
+    private static class PhotoStandIn extends ContentProvider {
+        @Override
+        public boolean onCreate() { return true; }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
+            double south = Double.parseDouble(uri.getQueryParameter(PhotoProvider.PARAM_SOUTH));
+            double north = Double.parseDouble(uri.getQueryParameter(PhotoProvider.PARAM_NORTH));
+            long after = (selection != null) ? Long.parseLong(selectionArgs[0]) : Long.MIN_VALUE;
+            String limit = uri.getQueryParameter(PhotoProvider.PARAM_LIMIT);
+
+            /* Photos in the box and after the given id */
+            List<Long> ids = new ArrayList<>();
+            for (long id = 1; id <= PHOTOS + OUTSIDE; id++) {
+                double latitude = latitudeOf(id);
+                if (latitude >= south && latitude <= north && id > after) ids.add(id);
+            }
+
+            /* In id order, or nearest the centre first */
+            if (!PhotoEntry._ID.equals(sortOrder)) {
+                Collections.sort(ids, new Comparator<Long>() {
+                    @Override
+                    public int compare(Long a, Long b) {
+                        return Double.compare(Math.abs(latitudeOf(a)), Math.abs(latitudeOf(b)));
+                    }
+                });
+            }
+            if (limit != null && ids.size() > Integer.parseInt(limit)) {
+                ids = ids.subList(0, Integer.parseInt(limit));
+            }
+
+            MatrixCursor c = new MatrixCursor(projection, ids.size());
+            for (long id : ids) c.addRow(new Object[] { id, latitudeOf(id), 0.0, id, "make", "model" });
+            return c;
+        }
+
+        @Override
+        public String getType(Uri uri) { return null; }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) { throw new UnsupportedOperationException(); }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+package org.campbelll.android.photomapper;
+
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import org.campbelll.android.photomapper.db.PhotoDBHelper;
+import org.campbelll.android.photomapper.utility.PerceptualHash;
+import org.campbelll.android.photomapper.utility.Photo;
+import org.campbelll.android.photomapper.utility.Thumbnailer;
+
+import java.io.ByteArrayOutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Deterministic generator of a realistic photo library, for load testing. The same seed always generates the same
+ * photos, in the same order.
+ * <p>
+ * Photos are clustered around {@link #PLACES}, picked with Zipf weights so a few places hold most of the library, and
+ * spread around each place's centre by a normal distribution. A few photos are taken away from every place. Photos
+ * are taken at random times of day between {@link #FIRST_YEAR} and {@link #LAST_YEAR}, with one of a range of
+ * {@link #CAMERAS}. Some photos start a burst of near-duplicates, taken seconds and metres apart with perceptual hashes
+ * a few bits apart, so the library has stacks too.
+ * <p>
+ * Thumbnails are real JPEGs of the size the importer makes, drawn from a pool of {@link #THUMBNAIL_POOL} images so
+ * that generating a million photos doesn't take a million compressions. The provider stores thumbnails by content, so
+ * the pool only takes {@link #THUMBNAIL_POOL} files. Perceptual hashes are random, other than within bursts, as
+ * photos which share a pooled thumbnail would otherwise all stack.
+ *
+ * @author Campbell Lockley
+ */
+public class SyntheticLibrary {
+    /* Constants */
+    private static final int THUMBNAIL_POOL = 64;           // Distinct thumbnails
+    private static final int THUMBNAIL_QUALITY = 50;        // JPEG quality, as the importer uses
+    private static final int FIRST_YEAR = 2008;             // Years photos are taken in
+    private static final int LAST_YEAR = 2015;
+    private static final double AWAY_FRACTION = 0.05;       // Photos taken away from every place
+    private static final double BURST_FRACTION = 0.02;      // Photos which start a burst
+    private static final int MAX_BURST = 6;                 // Largest burst, including its first photo
+    private static final double BURST_METRES = 10;          // Spread of a burst's photos
+    private static final int BURST_BITS = 3;                // Most bits a burst photo's hash differs in
+    private static final double METRES_PER_DEGREE = 111320;
+
+    /* Centres of places photos are taken around, as latitude, longitude and spread in km, busiest first */
+    private static final double[][] PLACES = {
+            { -43.5321, 172.6362, 8 },      // Christchurch
+            { -36.8485, 174.7633, 12 },     // Auckland
+            { -41.2865, 174.7762, 6 },      // Wellington
+            { -45.0312, 168.6626, 4 },      // Queenstown
+            { -45.8788, 170.5028, 5 },      // Dunedin
+            { -33.8688, 151.2093, 15 },     // Sydney
+            { 51.5074, -0.1278, 15 },       // London
+            { 48.8566, 2.3522, 10 },        // Paris
+            { 40.7128, -74.0060, 12 },      // New York
+            { 35.6762, 139.6503, 20 },      // Tokyo
+            { 37.7749, -122.4194, 10 },     // San Francisco
+            { 1.3521, 103.8198, 8 },        // Singapore
+            { 64.1466, -21.9426, 5 },       // Reykjavik
+            { -22.9068, -43.1729, 12 },     // Rio de Janeiro
+            { 21.3069, -157.8583, 6 },      // Honolulu
+            { -17.7134, 178.0650, 30 },     // Fiji, across the antimeridian
+    };
+
+    /* Makes and models of the cameras photos are taken with */
+    private static final String[][] CAMERAS = {
+            { "samsung", "SM-G920F" },
+            { "samsung", "GT-I9505" },
+            { "Apple", "iPhone 6" },
+            { "Apple", "iPhone 5s" },
+            { "LGE", "Nexus 5" },
+            { "motorola", "Nexus 6" },
+            { "HTC", "HTC One_M8" },
+            { "Sony", "D6603" },
+            { "Canon", "Canon EOS 600D" },
+            { "NIKON CORPORATION", "NIKON D7100" },
+    };
+
+    /* Members */
+    private final Random random;
+    private final double[] placeWeights;                    // Cumulative probability of each place
+    private final byte[][] thumbnails = new byte[THUMBNAIL_POOL][];
+    private final SimpleDateFormat dateFormat = utcFormat("yyyy:MM:dd");
+    private final SimpleDateFormat timeFormat = utcFormat("HH:mm:ss");
+    private final long firstTime;                           // Start of FIRST_YEAR
+    private final long timeSpan;                            // Millis from firstTime to the end of LAST_YEAR
+    private int generated = 0;                              // Photos generated so far
+    private int burstLeft = 0;                              // Photos left in the current burst
+    private Photo burst = null;                             // First photo of the current burst
+
+    /** Constructor. Generators with the same seed generate the same photos. */
+    public SyntheticLibrary(long seed) {
+        random = new Random(seed);
+
+        placeWeights = new double[PLACES.length];
+        double total = 0;
+        for (int i = 0; i < PLACES.length; i++) total += 1.0 / (i + 1);
+        double sum = 0;
+        for (int i = 0; i < PLACES.length; i++) placeWeights[i] = (sum += 1.0 / (i + 1) / total);
+
+        try {
+            firstTime = dateFormat.parse(FIRST_YEAR + ":01:01").getTime();
+            timeSpan = dateFormat.parse((LAST_YEAR + 1) + ":01:01").getTime() - firstTime;
+        } catch (ParseException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Returns the number of photos generated so far. */
+    public int getGenerated() { return generated; }
+
+    /** Generates the next photos, ready for {@link PhotoProvider#bulkInsert(android.net.Uri, ContentValues[])}. */
+    public ContentValues[] next(int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) values[i] = PhotoDBHelper.getContentValues(next());
+        return values;
+    }
+
+    /** Generates the next photo. */
+    public Photo next() {
+        Photo photo = (burstLeft > 0) ? nextInBurst() : nextAlone();
+        int i = generated++;
+        photo.uri = "file:///sdcard/DCIM/Synthetic/IMG_" + i + ".jpg";
+        photo.gps_latitude_ref = (photo.gps_latitude < 0) ? "S" : "N";
+        photo.gps_longitude_ref = (photo.gps_longitude < 0) ? "W" : "E";
+        Date takenAt = new Date(photo.taken_at);
+        photo.date = dateFormat.format(takenAt);
+        photo.time = timeFormat.format(takenAt);
+        photo.file_size = 1000000 + random.nextInt(5000000);
+        photo.file_modified = photo.taken_at;
+        photo.content_hash = String.format(Locale.US, "%016x%016x", random.nextLong(), random.nextLong());
+        return photo;
+    }
+
+    /** Generates a photo at a place, which may start a burst. */
+    private Photo nextAlone() {
+        Photo photo = new Photo();
+        if (random.nextDouble() < AWAY_FRACTION) {
+            photo.gps_latitude = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1)) * 0.9;
+            photo.gps_longitude = random.nextDouble() * 360 - 180;
+        } else {
+            double[] place = PLACES[pickPlace()];
+            double km = place[2];
+            photo.gps_latitude = place[0] + random.nextGaussian() * km * 1000 / METRES_PER_DEGREE;
+            photo.gps_longitude = wrapLongitude(place[1] + random.nextGaussian() * km * 1000 /
+                    (METRES_PER_DEGREE * Math.cos(Math.toRadians(place[0]))));
+        }
+
+        /* Whole seconds, as EXIF has no fractions */
+        photo.taken_at = firstTime + (long) (random.nextDouble() * timeSpan) / 1000 * 1000;
+        String[] camera = CAMERAS[random.nextInt(CAMERAS.length)];
+        photo.make = camera[0];
+        photo.model = camera[1];
+        photo.thumbnail = getThumbnail(random.nextInt(THUMBNAIL_POOL));
+        photo.perceptual_hash = random.nextLong() & ((1L << PerceptualHash.BITS) - 1);
+
+        if (random.nextDouble() < BURST_FRACTION) {
+            burst = photo;
+            burstLeft = 1 + random.nextInt(MAX_BURST - 1);
+        }
+        return photo;
+    }
+
+    /** Generates the next photo of a burst, seconds and metres from its first photo. */
+    private Photo nextInBurst() {
+        burstLeft--;
+        Photo photo = new Photo();
+        double metres = random.nextGaussian() * BURST_METRES;
+        photo.gps_latitude = burst.gps_latitude + metres / METRES_PER_DEGREE;
+        photo.gps_longitude = burst.gps_longitude;
+        photo.taken_at = burst.taken_at + 1000 * (1 + random.nextInt(5));
+        photo.make = burst.make;
+        photo.model = burst.model;
+        photo.thumbnail = burst.thumbnail;
+
+        long hash = burst.perceptual_hash;
+        for (int bits = random.nextInt(BURST_BITS + 1); bits > 0; bits--) {
+            hash ^= 1L << random.nextInt(PerceptualHash.BITS);
+        }
+        photo.perceptual_hash = hash;
+        return photo;
+    }
+
+    /** Returns the index of a place, picked by Zipf weights. */
+    private int pickPlace() {
+        double p = random.nextDouble();
+        for (int i = 0; i < placeWeights.length; i++) {
+            if (p < placeWeights[i]) return i;
+        }
+        return placeWeights.length - 1;
+    }
+
+    /** Returns a pooled thumbnail, drawing and compressing it the first time it is used. */
+    private byte[] getThumbnail(int i) {
+        if (thumbnails[i] != null) return thumbnails[i];
+
+        /* Sky over ground with a few shapes, seeded by the pool index so the pool is the same every run */
+        Random shapes = new Random(i);
+        int width = Thumbnailer.THUMBNAIL_WIDTH, height = Thumbnailer.THUMBNAIL_HEIGHT;
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        int horizon = height / 3 + shapes.nextInt(height / 3);
+        canvas.drawColor(Color.rgb(100 + shapes.nextInt(100), 150 + shapes.nextInt(80), 200 + shapes.nextInt(55)));
+        paint.setColor(Color.rgb(shapes.nextInt(120), 60 + shapes.nextInt(120), shapes.nextInt(80)));
+        canvas.drawRect(0, horizon, width, height, paint);
+        for (int j = 0; j < 8; j++) {
+            paint.setColor(Color.rgb(shapes.nextInt(256), shapes.nextInt(256), shapes.nextInt(256)));
+            canvas.drawCircle(shapes.nextInt(width), shapes.nextInt(height), 10 + shapes.nextInt(height / 4), paint);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+        bitmap.recycle();
+        return thumbnails[i] = out.toByteArray();
+    }
+
+    /** Wraps a longitude into [-180, 180]. */
+    private static double wrapLongitude(double longitude) {
+        if (longitude < -180) return longitude + 360;
+        if (longitude > 180) return longitude - 360;
+        return longitude;
+    }
+
+    /** Returns a date format which formats times treated as UTC, as EXIF times are. */
+    private static SimpleDateFormat utcFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+}
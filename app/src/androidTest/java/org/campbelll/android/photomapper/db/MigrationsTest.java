@@ -0,0 +1,312 @@
+package org.campbelll.android.photomapper.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import org.campbelll.android.photomapper.utility.ExifParser;
+import org.campbelll.android.photomapper.utility.GeoGrid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.ImportJobEntry;
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
+
+/**
+ * Upgrades databases built with the schema of every earlier version and checks they end up with the same schema as a
+ * new database, without losing photos.
+ */
+public class MigrationsTest extends AndroidTestCase {
+    /* Constants */
+    private static final String DB_NAME = "migrations_test.db";
+    private static final String NEW_DB_NAME = "migrations_test_new.db";
+    private static final int PHOTOS = 1200;             // Enough for several batches of each task
+    private static final int DUPLICATE_EVERY = 100;     // Photos imported twice before uris were unique
+
+    /* Members */
+    private ThumbnailStore store;
+    private PhotoStacks stacks;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        store = new ThumbnailStore(new File(getContext().getCacheDir(), "migrations_test_thumbnails"));
+        store.clear();
+        stacks = new PhotoStacks();
+        getContext().deleteDatabase(DB_NAME);
+        getContext().deleteDatabase(NEW_DB_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(DB_NAME);
+        getContext().deleteDatabase(NEW_DB_NAME);
+        store.clear();
+        super.tearDown();
+    }
+
+    public void testUpgradeFromEveryVersion() throws IOException {
+        for (int version = 1; version < PhotoDBHelper.DATABASE_VERSION; version++) {
+            createOldDatabase(version);
+            PhotoDBHelper helper = new PhotoDBHelper(getContext(), DB_NAME, StorageProfile.BALANCED);
+            try {
+                SQLiteDatabase db = helper.getWritableDatabase();
+                while (Migrations.runBatch(db, store, stacks)) { /* Until every task is done */ }
+                assertSchema("version " + version, db);
+                assertPhotos("version " + version, db, version);
+            } finally {
+                helper.close();
+            }
+            getContext().deleteDatabase(DB_NAME);
+            store.clear();
+        }
+    }
+
+    public void testTasksResumeAfterReopening() throws IOException {
+        createOldDatabase(1);
+        PhotoDBHelper helper = new PhotoDBHelper(getContext(), DB_NAME, StorageProfile.BALANCED);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertTrue(Migrations.runBatch(db, store, stacks));
+            assertTrue(Migrations.runBatch(db, store, stacks));
+        } finally {
+            helper.close();
+        }
+
+        helper = new PhotoDBHelper(getContext(), DB_NAME, StorageProfile.BALANCED);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            int batches = 0;
+            while (Migrations.runBatch(db, store, stacks)) batches++;
+            assertTrue(batches > 0);
+            assertSchema("reopened", db);
+            assertPhotos("reopened", db, 1);
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testNewDatabaseHasNoTasks() {
+        PhotoDBHelper helper = new PhotoDBHelper(getContext(), NEW_DB_NAME, StorageProfile.BALANCED);
+        try {
+            assertFalse(Migrations.runBatch(helper.getWritableDatabase(), store, stacks));
+        } finally {
+            helper.close();
+        }
+    }
+
+    /** Creates a database with the schema of an earlier version, filled as that version would have left it. */
+    private void createOldDatabase(int version) {
+        Context context = getContext();
+        File path = context.getDatabasePath(DB_NAME);
+        path.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        try {
+            StringBuilder create = new StringBuilder("CREATE TABLE photo (_id INTEGER PRIMARY KEY, uri TEXT,");
+            create.append(version < 3 ? " thumbnail BLOB," : " thumbnail_hash TEXT,");
+            create.append(" gps_latitude REAL, gps_latitude_ref TEXT, gps_longitude REAL, gps_longitude_ref TEXT,");
+            create.append(" date TEXT, time TEXT, make TEXT, model TEXT");
+            if (version >= 2) create.append(", grid_cell INTEGER");
+            if (version >= 5) create.append(", file_size INTEGER, file_modified INTEGER, content_hash TEXT");
+            if (version >= 6) create.append(", taken_at INTEGER");
+            db.execSQL(create.append(")").toString());
+
+            if (version >= 2) db.execSQL("CREATE INDEX photo_grid_cell_idx ON photo (grid_cell)");
+            if (version >= 4) {
+                db.execSQL("CREATE TABLE import_job (_id INTEGER PRIMARY KEY, source_uri TEXT NOT NULL UNIQUE," +
+                        " state INTEGER NOT NULL DEFAULT 0, attempts INTEGER NOT NULL DEFAULT 0," +
+                        " next_attempt_at INTEGER NOT NULL DEFAULT 0)");
+                db.execSQL("CREATE INDEX import_job_state_idx ON import_job (state, next_attempt_at)");
+            }
+            if (version >= 5) db.execSQL("CREATE UNIQUE INDEX photo_uri_idx ON photo (uri)");
+            if (version >= 6) db.execSQL("CREATE INDEX photo_taken_at_idx ON photo (taken_at)");
+            if (version >= 7) {
+                db.execSQL("CREATE TABLE migration_task (name TEXT PRIMARY KEY," +
+                        " last_id INTEGER NOT NULL DEFAULT -1)");
+            }
+
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < PHOTOS; i++) {
+                    insertPhoto(db, version, i);
+                    if (version < 5 && i % DUPLICATE_EVERY == 0) insertPhoto(db, version, i);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.setVersion(version);
+        } finally {
+            db.close();
+        }
+    }
+
+    /** Inserts photo i as a version would have. */
+    private static void insertPhoto(SQLiteDatabase db, int version, int i) {
+        List<String> columns = new ArrayList<>(Arrays.asList("uri", "gps_latitude", "gps_latitude_ref",
+                "gps_longitude", "gps_longitude_ref", "date", "time", "make", "model"));
+        List<Object> values = new ArrayList<Object>(Arrays.asList(uri(i), latitude(i), "S", longitude(i), "E",
+                date(i), "12:34:56", "Make", "Model"));
+        if (version < 3) {
+            columns.add("thumbnail");
+            values.add(thumbnail(i));
+        }
+        if (version >= 2) {
+            columns.add("grid_cell");
+            values.add(GeoGrid.cell(latitude(i), longitude(i)));
+        }
+        if (version >= 6) {
+            columns.add("taken_at");
+            values.add(ExifParser.toEpochMillis(date(i) + " 12:34:56"));
+        }
+
+        StringBuilder sql = new StringBuilder("INSERT INTO photo (").append(join(columns)).append(") VALUES (");
+        for (int j = 0; j < columns.size(); j++) sql.append(j > 0 ? ",?" : "?");
+        db.execSQL(sql.append(")").toString(), values.toArray());
+    }
+
+    /** Checks the upgraded database has the same tables, columns and indexes as a new one. */
+    private void assertSchema(String message, SQLiteDatabase db) {
+        PhotoDBHelper helper = new PhotoDBHelper(getContext(), NEW_DB_NAME, StorageProfile.BALANCED);
+        try {
+            SQLiteDatabase expected = helper.getWritableDatabase();
+            String objects = "SELECT type || ' ' || name || ' ' || tbl_name FROM sqlite_master" +
+                    " WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata' ORDER BY name";
+            assertEquals(message, strings(expected, objects), strings(db, objects));
+            for (String table : new String[] { PhotoEntry.TABLE_NAME, ImportJobEntry.TABLE_NAME,
+                    Migrations.TASK_TABLE }) {
+                assertEquals(message + " " + table, tableInfo(expected, table), tableInfo(db, table));
+                assertEquals(message + " " + table, indexInfo(expected, table), indexInfo(db, table));
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    /** Checks every photo was kept once, with the columns added since its version filled in. */
+    private void assertPhotos(String message, SQLiteDatabase db, int version) throws IOException {
+        assertEquals(message, PHOTOS, DatabaseUtils.queryNumEntries(db, PhotoEntry.TABLE_NAME));
+        assertEquals(message, 0, DatabaseUtils.queryNumEntries(db, Migrations.TASK_TABLE));
+
+        Cursor c = db.query(PhotoEntry.TABLE_NAME, new String[] { PhotoEntry.COL_URI, PhotoEntry.COL_GPS_LATITUDE,
+                PhotoEntry.COL_GPS_LONGITUDE, PhotoEntry.COL_GRID_CELL, PhotoEntry.COL_TAKEN_AT,
+                PhotoEntry.COL_THUMBNAIL_HASH }, null, null, null, null, PhotoEntry.COL_URI);
+        try {
+            while (c.moveToNext()) {
+                int i = Integer.parseInt(c.getString(0).replaceAll("\\D", ""));
+                assertEquals(message, latitude(i), c.getDouble(1), 0);
+                assertEquals(message, longitude(i), c.getDouble(2), 0);
+                assertEquals(message, GeoGrid.cell(latitude(i), longitude(i)), c.getInt(3));
+                assertEquals(message, ExifParser.toEpochMillis(date(i) + " 12:34:56"), c.getLong(4));
+                if (version < 3) {
+                    assertFalse(message, c.isNull(5));
+                    assertTrue(message, Arrays.equals(thumbnail(i), read(store.getFile(c.getString(5)))));
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String uri(int i) {
+        return "file:///sdcard/DCIM/Camera/IMG_" + i + ".jpg";
+    }
+
+    private static double latitude(int i) {
+        return -45 + (i % 90) * 0.1;
+    }
+
+    private static double longitude(int i) {
+        return 165 + (i / 90) * 0.1;
+    }
+
+    private static String date(int i) {
+        return String.format(Locale.US, "2015:%02d:%02d", i % 12 + 1, i % 28 + 1);
+    }
+
+    private static byte[] thumbnail(int i) {
+        byte[] thumbnail = new byte[64];
+        Arrays.fill(thumbnail, (byte) i);
+        thumbnail[0] = (byte) (i >> 8);
+        return thumbnail;
+    }
+
+    /** Returns the rows of a single column query, one per line. */
+    private static String strings(SQLiteDatabase db, String sql) {
+        StringBuilder result = new StringBuilder();
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            while (c.moveToNext()) result.append(c.getString(0)).append('\n');
+        } finally {
+            c.close();
+        }
+        return result.toString();
+    }
+
+    /** Returns the name, type, not null constraint, default and primary key of each of a table's columns. */
+    private static String tableInfo(SQLiteDatabase db, String table) {
+        StringBuilder result = new StringBuilder();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (c.moveToNext()) {
+                for (int i = 1; i < 6; i++) result.append(c.getString(i)).append(' ');
+                result.append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        return result.toString();
+    }
+
+    /** Returns the name, uniqueness and columns of each of a table's indexes, in name order. */
+    private static String indexInfo(SQLiteDatabase db, String table) {
+        List<String> indexes = new ArrayList<>();
+        Cursor c = db.rawQuery("PRAGMA index_list(" + table + ")", null);
+        try {
+            while (c.moveToNext()) {
+                String name = c.getString(c.getColumnIndexOrThrow("name"));
+                StringBuilder index = new StringBuilder(name).append(' ')
+                        .append(c.getString(c.getColumnIndexOrThrow("unique")));
+                Cursor columns = db.rawQuery("PRAGMA index_info(" + name + ")", null);
+                try {
+                    while (columns.moveToNext()) index.append(' ').append(columns.getString(2));
+                } finally {
+                    columns.close();
+                }
+                indexes.add(index.toString());
+            }
+        } finally {
+            c.close();
+        }
+        Collections.sort(indexes);
+        return indexes.toString();
+    }
+
+    private static String join(List<String> strings) {
+        StringBuilder result = new StringBuilder();
+        for (String s : strings) result.append(result.length() > 0 ? "," : "").append(s);
+        return result.toString();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) read += in.read(bytes, read, bytes.length - read);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+}
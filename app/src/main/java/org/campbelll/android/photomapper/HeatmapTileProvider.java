@@ -0,0 +1,629 @@
+package org.campbelll.android.photomapper;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+
+import org.campbelll.android.photomapper.utility.DensityGrid;
+import org.campbelll.android.photomapper.utility.Perf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
+
+/**
+ * {@link TileProvider} which draws a heatmap of the density of every photo in {@link PhotoProvider}.
+ * <p>
+ * The locations of all photos are read on a background thread into a {@link DensityGrid}, which counts the photos in
+ * each small bin of each tile at every zoom level. Tiles are drawn from their bins on the map's tile threads, with the
+ * counts shaded on a log scale against the level's reference count, and kept as PNGs in a memory cache backed by a
+ * size bounded disk cache in the app's cache directory, so panning back over a tile or re-opening the app doesn't draw
+ * it again.
+ * <p>
+ * When the photo data changes, only the locations of the photos the {@link PhotoChangeLog} lists as changed are
+ * re-read, or of every photo if it can't list them. They are diffed against the previous locations by id and just the
+ * photos which were inserted, deleted or moved are applied to the grid. Only the cached tiles which contain those
+ * photos are invalidated, unless a level's reference count changed, in which case the whole level is.
+ * Cached tiles are also named by a hash of their bins, so a tile cached before the photos changed while the app wasn't
+ * running is never used.
+ *
+ * @author Campbell Lockley
+ */
+public class HeatmapTileProvider implements TileProvider {
+    /* Tag */
+    private static final String TAG = "HeatmapTileProvider";
+
+    /* Constants */
+    private static final String DIRECTORY_NAME = "heatmap";             // Disk cache directory in app cache dir
+    private static final String EXTENSION = ".png";                     // Extension of cached tile files
+    private static final int MEMORY_CACHE_BYTES = 4 * 1024 * 1024;      // Max size of tiles cached in memory
+    private static final long DISK_CACHE_BYTES = 32 * 1024 * 1024;      // Max size of tiles cached on disk
+    private static final double DISK_TRIM_FRACTION = 0.75;              // Fraction of max size trimmed down to
+    private static final int MAX_QUERY_IDS = 500;                       // Ids per query of changed photos
+
+    /* Columns needed to build the grid */
+    private static final String[] PROJECTION = new String[] {
+            PhotoEntry._ID,
+            PhotoEntry.COL_GPS_LATITUDE,
+            PhotoEntry.COL_GPS_LONGITUDE
+    };
+
+    /* Colours of intensities from 0 to 255, from transparent through blue, green and yellow to red */
+    private static final int[] PALETTE = buildPalette();
+
+    /** Called on the UI thread when tiles have changed and should be fetched again. */
+    public interface Listener {
+        void onTilesChanged();
+    }
+
+    /** A tile cached in memory, with the hash of the bins it was drawn from. */
+    private static class CachedTile {
+        final long hash;
+        final byte[] png;
+
+        CachedTile(long hash, byte[] png) {
+            this.hash = hash;
+            this.png = png;
+        }
+    }
+
+    /* Members */
+    private final ContentResolver resolver;
+    private final PhotoChangeLog changes;
+    private final File directory;                       // Disk cache directory
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Long, CachedTile> memoryCache;
+    private final HashMap<Long, File> diskFiles = new HashMap<>();  // Cached tile files by tile id, guarded by itself
+    private long diskBytes = 0;                         // Size of cached tile files, guarded by diskFiles
+    private HandlerThread thread = null;                // Thread reading photo locations
+    private Handler handler = null;                     // Handler of thread
+    private ContentObserver observer = null;            // Re-reads locations when the photos change
+    private volatile DensityGrid grid = null;           // Density of photos, or null until first read
+    private long[] ids = new long[0];                   // Ids of the photos in grid, ascending
+    private double[] latitudes = new double[0];         // Latitudes of the photos in grid
+    private double[] longitudes = new double[0];        // Longitudes of the photos in grid
+    private long sequence = 0;                          // Change log sequence number when the photos were read
+
+    /**
+     * Constructor. The provider draws no tiles until {@link #start()} has been called and the photos have been read.
+     *
+     * @param context Context.
+     * @param listener Listener told when tiles change, including once the photos have first been read.
+     */
+    public HeatmapTileProvider(Context context, Listener listener) {
+        resolver = context.getApplicationContext().getContentResolver();
+        changes = PhotoChangeLog.getInstance(context);
+        directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+        this.listener = listener;
+        memoryCache = new LruCache<Long, CachedTile>(MEMORY_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Long tileId, CachedTile tile) {
+                return tile.png.length;
+            }
+        };
+    }
+
+    /** Reads the photos in the background and starts following changes to them. */
+    public void start() {
+        if (thread != null) return;
+        thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        final Handler threadHandler = new Handler(thread.getLooper());
+        handler = threadHandler;
+        observer = new ContentObserver(threadHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                threadHandler.removeCallbacks(reload);  // Changes which arrive together are read once
+                threadHandler.post(reload);
+            }
+        };
+        /* Only the collection notification, which PhotoChangeLog sends once per burst of writes, not one per photo */
+        resolver.registerContentObserver(PhotoProvider.CONTENT_URI, false, observer);
+        handler.post(new Runnable() {
+            @Override
+            public void run() { indexDiskCache(); }
+        });
+        handler.post(reload);
+    }
+
+    /** Stops following changes to the photos. Tiles already cached are kept. */
+    public void stop() {
+        if (thread == null) return;
+        resolver.unregisterContentObserver(observer);
+        thread.quit();
+        thread = null;
+        handler = null;
+        observer = null;
+    }
+
+    /**
+     * Returns the heatmap tile at a position, drawing it if it isn't cached. Called by the map on its tile threads.
+     *
+     * @return Tile, or {@link #NO_TILE} if there are no photos in it or they haven't been read yet.
+     */
+    @Override
+    public Tile getTile(int x, int y, int zoom) {
+        DensityGrid grid = this.grid;
+        if (grid == null) return NO_TILE;
+
+        int[] bins = new int[DensityGrid.BINS * DensityGrid.BINS];
+        if (grid.getBins(zoom, x, y, bins) == 0) return NO_TILE;
+        int reference = grid.getReference(zoom);
+
+        /* Tiles above the grid's finest level are cheap to draw and too many to cache */
+        if (zoom > DensityGrid.MAX_ZOOM) return toTile(draw(bins, reference));
+
+        long hash = hash(bins, reference);
+        long tileId = DensityGrid.getTileId(zoom, x, y);
+        CachedTile cached = memoryCache.get(tileId);
+        if (cached != null && cached.hash == hash) return toTile(cached.png);
+
+        byte[] png = readDiskCache(tileId, hash);
+        if (png == null) {
+            png = draw(bins, reference);
+            writeDiskCache(tileId, hash, png);
+        }
+        memoryCache.put(tileId, new CachedTile(hash, png));
+        return toTile(png);
+    }
+
+    /** Re-reads the photo locations and applies the changes to the grid. */
+    private final Runnable reload = new Runnable() {
+        @Override
+        public void run() {
+            long start = Perf.begin(Perf.HEATMAP_BUILD);
+            try {
+                if (readLocations()) mainHandler.post(notifyListener);
+            } finally {
+                Perf.end(Perf.HEATMAP_BUILD, start);
+            }
+        }
+    };
+
+    /** Tells the listener the tiles have changed. */
+    private final Runnable notifyListener = new Runnable() {
+        @Override
+        public void run() {
+            if (listener != null) listener.onTilesChanged();
+        }
+    };
+
+    /**
+     * Reads the locations of the photos changed since they were last read and applies the changes to the grid,
+     * invalidating the cached tiles they touch. Every photo is read the first time, or if the changes aren't known.
+     * Runs on the provider's thread.
+     *
+     * @return True if the grid changed.
+     */
+    private boolean readLocations() {
+        long now = changes.getSequence();
+        long[] changedIds = (grid != null) ? changes.getChangedSince(sequence) : null;
+        return (changedIds != null) ? readChanges(changedIds, now) : readAll(now);
+    }
+
+    /**
+     * Reads the locations of all photos and applies any changes to the grid.
+     *
+     * @param now Change log sequence number before the photos are read.
+     * @return True if the grid changed.
+     */
+    private boolean readAll(long now) {
+        Cursor c = resolver.query(PhotoProvider.CONTENT_URI, PROJECTION, null, null, PhotoEntry._ID);
+        if (c == null) return false;
+        sequence = now;
+
+        long[] newIds;
+        double[] newLatitudes, newLongitudes;
+        try {
+            int count = c.getCount();
+            newIds = new long[count];
+            newLatitudes = new double[count];
+            newLongitudes = new double[count];
+            for (int i = 0; c.moveToNext(); i++) {
+                newIds[i] = c.getLong(0);
+                newLatitudes[i] = c.getDouble(1);
+                newLongitudes[i] = c.getDouble(2);
+            }
+        } finally {
+            c.close();
+        }
+
+        DensityGrid old = grid;
+        if (old == null) {
+            grid = new DensityGrid(newLatitudes, newLongitudes, newIds.length);
+            Log.d(TAG, "Built heatmap of " + newIds.length + " photos");
+        } else {
+            /* Diff the old and new locations by id. Moved photos are removed then added */
+            int maxChanges = ids.length + newIds.length;
+            double[] removedLatitudes = new double[maxChanges], removedLongitudes = new double[maxChanges];
+            double[] addedLatitudes = new double[maxChanges], addedLongitudes = new double[maxChanges];
+            int removed = 0, added = 0, i = 0, j = 0;
+            while (i < ids.length || j < newIds.length) {
+                boolean remove = j == newIds.length || (i < ids.length && ids[i] < newIds[j]);
+                boolean add = i == ids.length || (j < newIds.length && newIds[j] < ids[i]);
+                if (!remove && !add) {
+                    boolean moved = latitudes[i] != newLatitudes[j] || longitudes[i] != newLongitudes[j];
+                    remove = add = moved;
+                    if (!moved) { i++; j++; }
+                }
+                if (remove) {
+                    removedLatitudes[removed] = latitudes[i];
+                    removedLongitudes[removed++] = longitudes[i++];
+                }
+                if (add) {
+                    addedLatitudes[added] = newLatitudes[j];
+                    addedLongitudes[added++] = newLongitudes[j++];
+                }
+            }
+            if (removed == 0 && added == 0) return false;
+            updateGrid(removedLatitudes, removedLongitudes, removed, addedLatitudes, addedLongitudes, added);
+        }
+
+        ids = newIds;
+        latitudes = newLatitudes;
+        longitudes = newLongitudes;
+        return true;
+    }
+
+    /**
+     * Reads the locations of the changed photos, merges them into the locations already read, and applies the photos
+     * which were inserted, deleted or moved to the grid.
+     *
+     * @param changedIds Ascending ids of the changed photos.
+     * @param now Change log sequence number before the photos are read.
+     * @return True if the grid changed.
+     */
+    private boolean readChanges(long[] changedIds, long now) {
+
+        /* Current locations of the changed photos which haven't been deleted, in id order */
+        long[] readIds = new long[changedIds.length];
+        double[] readLatitudes = new double[changedIds.length], readLongitudes = new double[changedIds.length];
+        int read = 0;
+        for (int start = 0; start < changedIds.length; start += MAX_QUERY_IDS) {
+            int end = Math.min(start + MAX_QUERY_IDS, changedIds.length);
+            StringBuilder selection = new StringBuilder(PhotoEntry._ID).append(" IN (");
+            for (int i = start; i < end; i++) selection.append(i > start ? "," : "").append(changedIds[i]);
+            Cursor c = resolver.query(PhotoProvider.CONTENT_URI, PROJECTION, selection.append(')').toString(), null,
+                    PhotoEntry._ID);
+            if (c == null) return false;
+            try {
+                while (c.moveToNext()) {
+                    readIds[read] = c.getLong(0);
+                    readLatitudes[read] = c.getDouble(1);
+                    readLongitudes[read++] = c.getDouble(2);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        sequence = now;
+        if (changedIds.length == 0) return false;
+
+        /* Merge them into the old locations by id. Moved photos are removed then added */
+        int maxCount = ids.length + read;
+        long[] newIds = new long[maxCount];
+        double[] newLatitudes = new double[maxCount], newLongitudes = new double[maxCount];
+        double[] removedLatitudes = new double[changedIds.length], removedLongitudes = new double[changedIds.length];
+        double[] addedLatitudes = new double[read], addedLongitudes = new double[read];
+        int count = 0, removed = 0, added = 0, i = 0, j = 0;
+        while (i < ids.length || j < read) {
+            if (j == read || (i < ids.length && ids[i] < readIds[j])) {
+                /* Unchanged, or deleted */
+                if (Arrays.binarySearch(changedIds, ids[i]) >= 0) {
+                    removedLatitudes[removed] = latitudes[i];
+                    removedLongitudes[removed++] = longitudes[i++];
+                    continue;
+                }
+                newIds[count] = ids[i];
+                newLatitudes[count] = latitudes[i];
+                newLongitudes[count++] = longitudes[i++];
+                continue;
+            }
+
+            if (i == ids.length || readIds[j] < ids[i]) {
+                /* Inserted */
+                addedLatitudes[added] = readLatitudes[j];
+                addedLongitudes[added++] = readLongitudes[j];
+            } else {
+                /* Changed, and maybe moved */
+                if (latitudes[i] != readLatitudes[j] || longitudes[i] != readLongitudes[j]) {
+                    removedLatitudes[removed] = latitudes[i];
+                    removedLongitudes[removed++] = longitudes[i];
+                    addedLatitudes[added] = readLatitudes[j];
+                    addedLongitudes[added++] = readLongitudes[j];
+                }
+                i++;
+            }
+            newIds[count] = readIds[j];
+            newLatitudes[count] = readLatitudes[j];
+            newLongitudes[count++] = readLongitudes[j++];
+        }
+        if (removed == 0 && added == 0) return false;
+        updateGrid(removedLatitudes, removedLongitudes, removed, addedLatitudes, addedLongitudes, added);
+
+        ids = Arrays.copyOf(newIds, count);
+        latitudes = Arrays.copyOf(newLatitudes, count);
+        longitudes = Arrays.copyOf(newLongitudes, count);
+        return true;
+    }
+
+    /** Removes and adds photos to the grid, invalidating the cached tiles they touch. */
+    private void updateGrid(double[] removedLatitudes, double[] removedLongitudes, int removed,
+                            double[] addedLatitudes, double[] addedLongitudes, int added) {
+        DensityGrid old = grid;
+        DensityGrid updated = old.update(removedLatitudes, removedLongitudes, removed, addedLatitudes,
+                addedLongitudes, added);
+        invalidate(old, updated, removedLatitudes, removedLongitudes, removed, addedLatitudes, addedLongitudes,
+                added);
+        grid = updated;
+        Log.d(TAG, "Updated heatmap, " + removed + " photos removed and " + added + " added");
+    }
+
+    /**
+     * Drops the cached tiles containing the removed and added photos, and every cached tile of any level whose
+     * reference count changed between grids.
+     */
+    private void invalidate(DensityGrid old, DensityGrid updated, double[] removedLatitudes,
+                            double[] removedLongitudes, int removed, double[] addedLatitudes, double[] addedLongitudes,
+                            int added) {
+        HashSet<Integer> levels = new HashSet<>();
+        for (int zoom = DensityGrid.MIN_ZOOM; zoom <= DensityGrid.MAX_ZOOM; zoom++) {
+            if (old.getReference(zoom) != updated.getReference(zoom)) levels.add(zoom);
+        }
+
+        HashSet<Long> tiles = new HashSet<>();
+        addTiles(tiles, removedLatitudes, removedLongitudes, removed, levels);
+        addTiles(tiles, addedLatitudes, addedLongitudes, added, levels);
+        if (!levels.isEmpty()) {
+            for (Long tileId : memoryCache.snapshot().keySet()) {
+                if (levels.contains(DensityGrid.getTileZoom(tileId))) tiles.add(tileId);
+            }
+            synchronized (diskFiles) {
+                for (Long tileId : diskFiles.keySet()) {
+                    if (levels.contains(DensityGrid.getTileZoom(tileId))) tiles.add(tileId);
+                }
+            }
+        }
+
+        for (Long tileId : tiles) {
+            memoryCache.remove(tileId);
+            synchronized (diskFiles) {
+                deleteDiskFile(tileId);
+            }
+        }
+    }
+
+    /** Adds the ids of the tiles containing the given photos at every zoom level not in skipLevels. */
+    private static void addTiles(HashSet<Long> tiles, double[] latitudes, double[] longitudes, int count,
+                                 HashSet<Integer> skipLevels) {
+        for (int i = 0; i < count; i++) {
+            for (int zoom = DensityGrid.MIN_ZOOM; zoom <= DensityGrid.MAX_ZOOM; zoom++) {
+                if (!skipLevels.contains(zoom)) tiles.add(DensityGrid.getTileId(zoom, latitudes[i], longitudes[i]));
+            }
+        }
+    }
+
+    /** Indexes the tiles already in the disk cache. Runs on the provider's thread. */
+    private void indexDiskCache() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        synchronized (diskFiles) {
+            for (File file : files) {
+                String[] parts = file.getName().replace(EXTENSION, "").split("_");
+                try {
+                    if (parts.length != 4) throw new NumberFormatException(file.getName());
+                    long tileId = DensityGrid.getTileId(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                            Integer.parseInt(parts[2]));
+                    if (diskFiles.containsKey(tileId)) throw new NumberFormatException("Stale " + file.getName());
+                    diskFiles.put(tileId, file);
+                    diskBytes += file.length();
+                } catch (NumberFormatException e) {
+                    if (!file.delete()) Log.w(TAG, "Couldn't delete " + file);   // Not a current tile, e.g. a temp file
+                }
+            }
+        }
+    }
+
+    /** Returns a cached tile's PNG, or null if it isn't on disk or was drawn from different bins. */
+    private byte[] readDiskCache(long tileId, long hash) {
+        File file = getFile(tileId, hash);
+        synchronized (diskFiles) {
+            if (!file.equals(diskFiles.get(tileId))) return null;
+        }
+
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] png = new byte[(int) file.length()];
+                int read = 0, n;
+                while (read < png.length && (n = in.read(png, read, png.length - read)) > 0) read += n;
+                if (read != png.length) throw new IOException("Short read of " + file);
+                return png;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read " + file, e);
+            return null;
+        }
+    }
+
+    /** Writes a tile to the disk cache, replacing any older version of it, and trims the cache if it is too big. */
+    private void writeDiskCache(long tileId, long hash, byte[] png) {
+        File file = getFile(tileId, hash);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Can't create " + directory);
+            }
+
+            /* Write to a temporary file then rename, so a cached file is always complete */
+            File tmp = File.createTempFile(file.getName(), null, directory);
+            try {
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    out.write(png);
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(file)) throw new IOException("Can't rename " + tmp + " to " + file);
+            } finally {
+                if (tmp.exists() && !tmp.delete()) Log.w(TAG, "Couldn't delete " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't cache tile " + file.getName(), e);
+            return;
+        }
+
+        synchronized (diskFiles) {
+            if (file.equals(diskFiles.get(tileId))) return;     // Drawn by another thread at the same time
+            deleteDiskFile(tileId);
+            diskFiles.put(tileId, file);
+            diskBytes += png.length;
+            if (diskBytes > DISK_CACHE_BYTES) trimDiskCache();
+        }
+    }
+
+    /** Deletes the least recently written tiles until the disk cache is back under its trimmed size. */
+    private void trimDiskCache() {
+        ArrayList<Map.Entry<Long, File>> entries = new ArrayList<>(diskFiles.entrySet());
+        final HashMap<File, Long> modified = new HashMap<>(entries.size() * 2);
+        for (Map.Entry<Long, File> entry : entries) modified.put(entry.getValue(), entry.getValue().lastModified());
+        Collections.sort(entries, new Comparator<Map.Entry<Long, File>>() {
+            @Override
+            public int compare(Map.Entry<Long, File> a, Map.Entry<Long, File> b) {
+                long ma = modified.get(a.getValue()), mb = modified.get(b.getValue());
+                return (ma < mb) ? -1 : (ma > mb) ? 1 : 0;
+            }
+        });
+
+        Iterator<Map.Entry<Long, File>> it = entries.iterator();
+        while (diskBytes > DISK_CACHE_BYTES * DISK_TRIM_FRACTION && it.hasNext()) deleteDiskFile(it.next().getKey());
+        Log.d(TAG, "Trimmed heatmap disk cache to " + diskBytes + " bytes");
+    }
+
+    /** Deletes a tile's file from the disk cache, if it has one. Must hold the diskFiles lock. */
+    private void deleteDiskFile(long tileId) {
+        File file = diskFiles.remove(tileId);
+        if (file == null) return;
+        diskBytes -= file.length();
+        if (!file.delete()) Log.w(TAG, "Couldn't delete " + file);
+    }
+
+    /** Returns the disk cache file of a tile drawn from bins with the given hash. */
+    private File getFile(long tileId, long hash) {
+        return new File(directory, String.format(Locale.US, "%d_%d_%d_%016x%s", DensityGrid.getTileZoom(tileId),
+                DensityGrid.getTileX(tileId), DensityGrid.getTileY(tileId), hash, EXTENSION));
+    }
+
+    /**
+     * Draws a tile as a PNG. Each pixel's intensity is interpolated between the centres of the bins around it, so the
+     * bins blend into each other.
+     */
+    static byte[] draw(int[] bins, int reference) {
+        long start = Perf.begin(Perf.HEATMAP_TILE);
+        try {
+            int n = DensityGrid.BINS, size = DensityGrid.TILE_PIXELS;
+            float[] intensities = new float[bins.length];
+            double scale = Math.log1p(reference);
+            for (int i = 0; i < bins.length; i++) intensities[i] = (float) (Math.log1p(bins[i]) / scale);
+
+            int[] pixels = new int[size * size];
+            for (int py = 0; py < size; py++) {
+                float fy = Math.max(0, Math.min(n - 1, (py + 0.5f) / DensityGrid.BIN_PIXELS - 0.5f));
+                int y0 = Math.min(n - 2, (int) fy);
+                float ty = fy - y0;
+                for (int px = 0; px < size; px++) {
+                    float fx = Math.max(0, Math.min(n - 1, (px + 0.5f) / DensityGrid.BIN_PIXELS - 0.5f));
+                    int x0 = Math.min(n - 2, (int) fx);
+                    float tx = fx - x0;
+                    int i = y0 * n + x0;
+                    float top = intensities[i] + (intensities[i + 1] - intensities[i]) * tx;
+                    float bottom = intensities[i + n] + (intensities[i + n + 1] - intensities[i + n]) * tx;
+                    float intensity = top + (bottom - top) * ty;
+                    pixels[py * size + px] = PALETTE[Math.max(0, Math.min(255, (int) (intensity * 255)))];
+                }
+            }
+
+            Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            bitmap.setPixels(pixels, 0, size, 0, 0, size, size);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            bitmap.recycle();
+            return out.toByteArray();
+        } finally {
+            Perf.end(Perf.HEATMAP_TILE, start);
+        }
+    }
+
+    /** Wraps a PNG in a tile. */
+    private static Tile toTile(byte[] png) {
+        return new Tile(DensityGrid.TILE_PIXELS, DensityGrid.TILE_PIXELS, png);
+    }
+
+    /** Returns a 64 bit FNV-1a hash of a tile's bins and reference count, which determine how it is drawn. */
+    static long hash(int[] bins, int reference) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ reference) * 0x100000001b3L;
+        for (int i = 0; i < bins.length; i++) {
+            if (bins[i] == 0) continue;
+            hash = (hash ^ i) * 0x100000001b3L;
+            hash = (hash ^ bins[i]) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** Returns the colours of intensities 0 to 255. Low intensities fade out to transparent. */
+    private static int[] buildPalette() {
+        int[][] stops = {                           // Alpha, red, green, blue
+                { 0, 0, 0, 255 },
+                { 160, 0, 0, 255 },
+                { 180, 0, 255, 255 },
+                { 200, 0, 255, 0 },
+                { 220, 255, 255, 0 },
+                { 240, 255, 0, 0 }
+        };
+        int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) {
+            float position = i * (stops.length - 1) / 255f;
+            int stop = Math.min(stops.length - 2, (int) position);
+            float t = position - stop;
+            int[] a = stops[stop], b = stops[stop + 1];
+            palette[i] = Color.argb(mix(a[0], b[0], t), mix(a[1], b[1], t), mix(a[2], b[2], t), mix(a[3], b[3], t));
+        }
+        palette[0] = Color.TRANSPARENT;
+        return palette;
+    }
+
+    /** Interpolates between two colour components. */
+    private static int mix(int a, int b, float t) {
+        return Math.round(a + (b - a) * t);
+    }
+
+}
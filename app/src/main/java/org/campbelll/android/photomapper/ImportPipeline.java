@@ -0,0 +1,432 @@
+package org.campbelll.android.photomapper;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import org.campbelll.android.photomapper.db.PhotoDBHelper;
+import org.campbelll.android.photomapper.utility.ExifExtractor;
+import org.campbelll.android.photomapper.utility.Fingerprint;
+import org.campbelll.android.photomapper.utility.Perf;
+import org.campbelll.android.photomapper.utility.Photo;
+import org.campbelll.android.photomapper.utility.Thumbnailer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
+
+/**
+ * Imports batches of shared images into {@link PhotoProvider} off the UI thread.
+ * <p>
+ * Images flow through three stages connected by bounded queues:
+ * <ol>
+ *     <li>EXIF extraction, run in parallel on one thread per core,</li>
+ *     <li>thumbnailing, and hashing the thumbnail to find near-duplicates, run in parallel on one thread per core,</li>
+ *     <li>a single writer which inserts photos in batches with {@link ContentResolver#bulkInsert(Uri, ContentValues[])}.</li>
+ * </ol>
+ * As the queues are bounded, at most a fixed number of photos (and therefore thumbnails) are in flight at any time
+ * regardless of how many images are being imported. Images are decoded subsampled, and at most {@link #MAX_DECODES}
+ * at once however many thumbnailing threads there are, so decoded bitmaps take a fixed amount of memory too.
+ * <p>
+ * The outcome of each image is reported to the {@link Listener}, which tells images which can't be imported, e.g.
+ * because they have no GPS data, apart from images which failed with an I/O error and may import if tried again.
+ * Images which can't be thumbnailed, e.g. because they can't be decoded, are reported as failed without being
+ * written.
+ * <p>
+ * Images which have already been imported are checked against the {@link Fingerprint} stored with them before any
+ * work is done. If the file hasn't changed its EXIF header isn't parsed and no thumbnail is made. Changed files are
+ * re-imported over their existing row.
+ *
+ * @author Campbell Lockley
+ */
+public class ImportPipeline {
+    /* Tag */
+    private static final String TAG = "ImportPipeline";
+
+    /* Constants */
+    private static final int NUM_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int QUEUE_CAPACITY = 2 * NUM_THREADS;  // Photos waiting between stages
+    private static final int MAX_DECODES = Math.min(NUM_THREADS, 2);   // Images being decoded at once
+    private static final int BATCH_SIZE = 32;                   // Max photos per bulkInsert()
+    private static final long BATCH_WAIT_MS = 250;              // Max time a photo waits for its batch to fill
+
+    /* Outcomes of an image */
+    public static final int OUTCOME_IMPORTED = 0;   // Photo was added to the database
+    public static final int OUTCOME_SKIPPED = 1;    // Image can't be imported, e.g. it has no GPS data
+    public static final int OUTCOME_FAILED = 2;     // Image couldn't be read or written, but may import if retried
+    public static final int OUTCOME_UNCHANGED = 3;  // Image was already imported and its file hasn't changed
+
+    /* Perf counters of each outcome */
+    private static final String[] COUNTERS = { Perf.IMPORTED, Perf.IMPORT_SKIPPED, Perf.IMPORT_FAILED,
+            Perf.IMPORT_UNCHANGED };
+
+    /* Columns of an imported photo used to tell whether its file has changed */
+    private static final String[] STORED_PROJECTION = new String[] {
+            PhotoEntry._ID,
+            PhotoEntry.COL_GPS_LATITUDE,
+            PhotoEntry.COL_GPS_LONGITUDE,
+            PhotoEntry.COL_FILE_SIZE,
+            PhotoEntry.COL_FILE_MODIFIED,
+            PhotoEntry.COL_CONTENT_HASH
+    };
+
+    /* Marks the end of a stage's output */
+    private static final Item END = new Item(null);
+
+    /** Callbacks for the progress of an import. These are run by the pipeline's handler, by default on the UI thread. */
+    public interface Listener {
+        /** Called each time an image has been processed, whether or not it was imported. */
+        void onProgress(int done, int total);
+
+        /**
+         * Called with the outcome of each image.
+         *
+         * @param imageUri Image which has been processed.
+         * @param outcome One of {@link #OUTCOME_IMPORTED}, {@link #OUTCOME_SKIPPED}, {@link #OUTCOME_FAILED} or
+         *                {@link #OUTCOME_UNCHANGED}.
+         * @param photo Details of the image, or null if it was skipped or failed before they were read. For unchanged
+         *              images only the id and location are set.
+         */
+        void onOutcome(Uri imageUri, int outcome, Photo photo);
+
+        /** Called once all images have been processed. */
+        void onFinished(int imported, int failed);
+    }
+
+    /** An image moving through the pipeline. */
+    private static class Item {
+        final Uri imageUri;
+        final long startedAt = System.nanoTime();   // Time the image entered the pipeline
+        Photo photo;
+        int outcome = OUTCOME_SKIPPED;
+
+        Item(Uri imageUri) { this.imageUri = imageUri; }
+    }
+
+    /* Members */
+    private final ContentResolver resolver;
+    private final Handler handler;                  // Handler listener callbacks are run on
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger imported = new AtomicInteger();
+    private ExecutorService executor = null;
+
+    /** Constructor. Listener callbacks are run on the UI thread. */
+    public ImportPipeline(Context context) {
+        this(context, new Handler(Looper.getMainLooper()));
+    }
+
+    /** Constructor. Listener callbacks are run by the given handler. */
+    public ImportPipeline(Context context, Handler handler) {
+        resolver = context.getApplicationContext().getContentResolver();
+        this.handler = handler;
+    }
+
+    /**
+     * Starts importing images. Returns immediately.
+     *
+     * @param imageUris content// type URIs of the images to import.
+     * @param listener Listener to notify of progress, or null.
+     */
+    public synchronized void start(List<Uri> imageUris, final Listener listener) {
+        if (executor != null) throw new IllegalStateException("Pipeline already started");
+
+        final int total = imageUris.size();
+        final BlockingQueue<Item> input = new ArrayBlockingQueue<>(total + 1);
+        final BlockingQueue<Item> extracted = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final BlockingQueue<Item> thumbnailed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final AtomicInteger extractors = new AtomicInteger(NUM_THREADS);
+        final AtomicInteger thumbnailers = new AtomicInteger(NUM_THREADS);
+        final Semaphore decodes = new Semaphore(MAX_DECODES);
+
+        for (Uri uri : imageUris) input.add(new Item(uri));
+        input.add(END);
+
+        Log.d(TAG, "Importing " + total + " images on " + NUM_THREADS + " threads");
+
+        executor = Executors.newFixedThreadPool(2 * NUM_THREADS + 1);
+
+        /* Stage 1: EXIF extraction */
+        for (int i = 0; i < NUM_THREADS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Item item;
+                        while (!cancelled.get() && (item = input.poll()) != null && item != END) {
+                            Photo photo = extract(item);
+                            if (photo != null) {
+                                item.photo = photo;
+                                extracted.put(item);
+                            } else {
+                                progress(item, total, listener);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        /* Last extractor out tells each thumbnailer there's nothing more coming */
+                        if (extractors.decrementAndGet() == 0) {
+                            for (int j = 0; j < NUM_THREADS; j++) putEnd(extracted);
+                        }
+                    }
+                }
+            });
+        }
+
+        /* Stage 2: Thumbnailing */
+        for (int i = 0; i < NUM_THREADS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Item item;
+                        while ((item = extracted.take()) != END) {
+                            if (cancelled.get()) continue;  // Drain without doing any work
+                            try {
+                                decodes.acquire();
+                                try {
+                                    item.photo.thumbnail = Thumbnailer.create(resolver, item.imageUri, item.photo);
+                                } finally {
+                                    decodes.release();
+                                }
+                                item.photo.perceptual_hash = Thumbnailer.perceptualHash(item.photo.thumbnail);
+                            } catch (IOException e) {
+                                Log.e(TAG, "couldn't get thumbnail of " + item.imageUri.toString(), e);
+                                item.outcome = OUTCOME_FAILED;
+                                progress(item, total, listener);
+                                continue;
+                            } catch (RuntimeException e) {
+                                /* Don't let one bad image stop this thread, or the extractors would block forever */
+                                Log.e(TAG, "Failed to thumbnail " + item.imageUri.toString(), e);
+                                item.outcome = OUTCOME_FAILED;
+                                progress(item, total, listener);
+                                continue;
+                            }
+                            thumbnailed.put(item);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        if (thumbnailers.decrementAndGet() == 0) putEnd(thumbnailed);
+                    }
+                }
+            });
+        }
+
+        /* Stage 3: Batched writer */
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<Item> batch = new ArrayList<>(BATCH_SIZE);
+                try {
+                    Item item;
+                    while ((item = thumbnailed.take()) != END) {
+                        batch.add(item);
+
+                        /* Keep filling the batch while photos are arriving */
+                        while (batch.size() < BATCH_SIZE) {
+                            item = thumbnailed.poll(BATCH_WAIT_MS, TimeUnit.MILLISECONDS);
+                            if (item == null) break;
+                            if (item == END) { thumbnailed.put(END); break; }
+                            batch.add(item);
+                        }
+
+                        write(batch, total, listener);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    write(batch, total, listener);
+                    finish(total, listener);
+                }
+            }
+        });
+
+        executor.shutdown();
+    }
+
+    /** Stops the import. Photos which have already been written are kept. */
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    /**
+     * Returns the photo's EXIF details, or null if it couldn't be read, it has no GPS data or it is unchanged since it
+     * was last imported. Sets the item's outcome to failed if the image couldn't be read, or to unchanged.
+     */
+    private Photo extract(Item item) {
+        try {
+            String path = getPath(resolver, item.imageUri);
+            if (path == null) {
+                Log.e(TAG, "No file for " + item.imageUri.toString());
+                item.outcome = OUTCOME_FAILED;
+                return null;
+            }
+            String uri = Uri.parse(path).toString();
+            File file = new File(path);
+
+            /* Skip files which haven't changed since they were imported */
+            Cursor c = resolver.query(PhotoProvider.CONTENT_URI, STORED_PROJECTION, PhotoEntry.COL_URI + "=?",
+                    new String[] { uri }, null);
+            Fingerprint fingerprint;
+            try {
+                if (c != null && c.moveToFirst()) {
+                    Photo stored = new Photo();
+                    stored.id = c.getLong(0);
+                    stored.gps_latitude = c.getDouble(1);
+                    stored.gps_longitude = c.getDouble(2);
+
+                    Fingerprint known = new Fingerprint(c.getLong(3), c.getLong(4), c.getString(5));
+                    if (!c.isNull(3) && !c.isNull(4) && known.sameStat(file.length(), file.lastModified())) {
+                        item.outcome = OUTCOME_UNCHANGED;
+                        item.photo = stored;
+                        return null;
+                    }
+
+                    fingerprint = Fingerprint.of(file);
+                    if (fingerprint.hash.equals(known.hash)) {
+                        touch(stored.id, fingerprint);
+                        item.outcome = OUTCOME_UNCHANGED;
+                        item.photo = stored;
+                        return null;
+                    }
+                } else {
+                    fingerprint = Fingerprint.of(file);
+                }
+            } finally {
+                if (c != null) c.close();
+            }
+
+            Photo photo;
+            long start = Perf.begin(Perf.EXIF_READ);
+            try {
+                photo = ExifExtractor.extract(Uri.parse(path));
+            } finally {
+                Perf.end(Perf.EXIF_READ, start);
+            }
+            if (photo != null) {
+                photo.file_size = fingerprint.size;
+                photo.file_modified = fingerprint.modified;
+                photo.content_hash = fingerprint.hash;
+            }
+            return photo;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open file " + item.imageUri.toString(), e);
+            item.outcome = OUTCOME_FAILED;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to extract EXIF data from " + item.imageUri.toString(), e);
+        }
+        return null;
+    }
+
+    /** Records the new size and modified time of a photo whose file has been touched but not changed. */
+    private void touch(long id, Fingerprint fingerprint) {
+        ContentValues cv = new ContentValues();
+        cv.put(PhotoEntry.COL_FILE_SIZE, fingerprint.size);
+        cv.put(PhotoEntry.COL_FILE_MODIFIED, fingerprint.modified);
+        resolver.update(PhotoProvider.CONTENT_URI, cv, PhotoEntry._ID + "=?", new String[] { Long.toString(id) });
+    }
+
+    /** Inserts and empties the batch. If the insert fails, the whole batch is reported as failed. */
+    private void write(ArrayList<Item> batch, int total, Listener listener) {
+        if (batch.isEmpty()) return;
+        if (!cancelled.get()) {
+            ContentValues[] values = new ContentValues[batch.size()];
+            for (int i = 0; i < values.length; i++) values[i] = PhotoDBHelper.getContentValues(batch.get(i).photo);
+
+            int outcome;
+            try {
+                imported.addAndGet(resolver.bulkInsert(PhotoProvider.CONTENT_URI, values));
+                outcome = OUTCOME_IMPORTED;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to insert " + values.length + " photos", e);
+                outcome = OUTCOME_FAILED;
+            }
+            long now = System.nanoTime();
+            for (Item item : batch) {
+                item.outcome = outcome;
+                if (outcome == OUTCOME_IMPORTED) Perf.record(Perf.IMPORT, now - item.startedAt);
+            }
+        }
+        for (Item item : batch) progress(item, total, listener);
+        batch.clear();
+    }
+
+    /** Posts progress and the item's outcome to the listener. Outcomes aren't reported once cancelled. */
+    private void progress(final Item item, final int total, final Listener listener) {
+        final int count = done.incrementAndGet();
+        Perf.count(COUNTERS[item.outcome]);
+        if (listener == null) return;
+        final boolean report = !cancelled.get();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (report) listener.onOutcome(item.imageUri, item.outcome, item.photo);
+                listener.onProgress(count, total);
+            }
+        });
+    }
+
+    /** Posts completion to the listener. */
+    private void finish(final int total, final Listener listener) {
+        final int count = imported.get();
+        Log.d(TAG, "Imported " + count + " of " + total + " images");
+        if (listener == null) return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() { listener.onFinished(count, total - count); }
+        });
+    }
+
+    /** Puts the end marker on a queue, retrying if interrupted. */
+    private static void putEnd(BlockingQueue<Item> queue) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(END);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Uses the {@link MediaStore} to get the file path of a photo from its content// type URI.
+     *
+     * @param resolver Resolver to query the {@link MediaStore} with.
+     * @param imageUri content// type URI for an image.
+     * @return File system path for the image, or null if it couldn't be found.
+     */
+    public static String getPath(ContentResolver resolver, Uri imageUri) {
+        String[] projection = { MediaStore.Images.Media.DATA };
+        Cursor c = resolver.query(imageUri, projection, null, null, null);
+        if (c == null) return null;
+        try {
+            int dataCol = c.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
+            return c.moveToFirst() ? c.getString(dataCol) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+}
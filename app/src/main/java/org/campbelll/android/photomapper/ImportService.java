@@ -0,0 +1,242 @@
+package org.campbelll.android.photomapper;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import org.campbelll.android.photomapper.db.ImportQueue;
+import org.campbelll.android.photomapper.utility.Photo;
+import org.campbelll.android.photomapper.utility.Thumbnailer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.ImportJobEntry;
+
+/**
+ * Background service which imports the images in the {@link ImportQueue}.
+ * <p>
+ * Images are added to the queue with {@link #enqueue(Context, ArrayList)}, which returns immediately. The service
+ * claims jobs from the queue in batches and runs each batch through an {@link ImportPipeline}, recording the outcome of
+ * every image in the queue as it finishes. Images which fail with an I/O error are retried later with exponential
+ * backoff, using an alarm to restart the service when the next retry is due.
+ * <p>
+ * As the queue is kept in the photo database, an import interrupted by the process dying is resumed the next time the
+ * service starts, either when the system redelivers its last intent or when the app calls {@link #resume(Context)}.
+ * <p>
+ * Progress is broadcast locally with {@link #ACTION_PROGRESS}, and {@link #ACTION_FINISHED} is broadcast once the queue
+ * has been emptied.
+ *
+ * @author Campbell Lockley
+ */
+public class ImportService extends Service {
+    /* Tag */
+    private static final String TAG = "ImportService";
+
+    /* Intent actions */
+    public static final String ACTION_ENQUEUE = "org.campbelll.android.photomapper.action.IMPORT_ENQUEUE";
+    public static final String ACTION_RESUME = "org.campbelll.android.photomapper.action.IMPORT_RESUME";
+
+    /* Local broadcasts */
+    public static final String ACTION_PROGRESS = "org.campbelll.android.photomapper.action.IMPORT_PROGRESS";
+    public static final String ACTION_FINISHED = "org.campbelll.android.photomapper.action.IMPORT_FINISHED";
+
+    /* Intent extras */
+    public static final String EXTRA_URIS = "uris";             // Images to enqueue
+    public static final String EXTRA_DONE = "done";             // Jobs finished so far
+    public static final String EXTRA_TOTAL = "total";           // Jobs in the queue
+    public static final String EXTRA_IMPORTED = "imported";     // Photos imported
+    public static final String EXTRA_SKIPPED = "skipped";       // Images without GPS data
+    public static final String EXTRA_FAILED = "failed";         // Images which couldn't be read
+
+    /* Constants */
+    private static final int CLAIM_SIZE = 64;                   // Jobs run through each pipeline
+    private static final long PROGRESS_INTERVAL_MS = 250;       // Min time between progress broadcasts
+
+    /* Members */
+    private HandlerThread thread = null;            // Thread the queue is managed on
+    private Handler handler = null;                 // Handler of thread
+    private ImportQueue queue = null;
+    private ImportPipeline pipeline = null;         // Pipeline running the claimed jobs, or null if idle
+    private volatile int lastStartId = 0;           // Id of the most recent start request
+    private long lastProgressAt = 0;                // Time of last progress broadcast
+
+    /**
+     * Adds images to the import queue and starts the service if it isn't already running.
+     *
+     * @param context Context to start the service from.
+     * @param imageUris content// type URIs of the images to import.
+     */
+    public static void enqueue(Context context, ArrayList<Uri> imageUris) {
+        Intent intent = new Intent(context, ImportService.class);
+        intent.setAction(ACTION_ENQUEUE);
+        intent.putParcelableArrayListExtra(EXTRA_URIS, imageUris);
+        context.startService(intent);
+    }
+
+    /** Starts the service to carry on with any jobs left in the import queue. */
+    public static void resume(Context context) {
+        Intent intent = new Intent(context, ImportService.class);
+        intent.setAction(ACTION_RESUME);
+        context.startService(intent);
+    }
+
+    /** Starts the queue thread. Any jobs which were running when the service last stopped are put back to pending. */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        queue = ImportQueue.getInstance(this);
+        thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() { queue.resetRunning(); }
+        });
+    }
+
+    /** Enqueues any images in the intent and starts working through the queue. */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        lastStartId = startId;
+        final ArrayList<Uri> imageUris = (intent != null && ACTION_ENQUEUE.equals(intent.getAction()))
+                ? intent.<Uri>getParcelableArrayListExtra(EXTRA_URIS) : null;
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (imageUris != null) Log.d(TAG, "Enqueued " + queue.enqueue(imageUris) + " images");
+                runNextBatch();
+            }
+        });
+
+        return START_REDELIVER_INTENT;
+    }
+
+    /** Stops the running pipeline. Its jobs are picked up again next time the service starts. */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (pipeline != null) pipeline.cancel();
+        thread.quit();
+    }
+
+    /** Not bound. Returns null. */
+    @Override
+    public IBinder onBind(Intent intent) { return null; }
+
+    /**
+     * Claims the next batch of jobs and starts a pipeline for them. If no jobs are due, either schedules the service to
+     * restart when the next retry is due or, if the queue is empty, announces that the import has finished. Either way
+     * the service then stops. Run on the queue thread.
+     */
+    private void runNextBatch() {
+        if (pipeline != null) return;   // Already busy, this is picked up when the batch finishes
+
+        long now = System.currentTimeMillis();
+        List<ImportQueue.Job> jobs = queue.claim(CLAIM_SIZE, now);
+
+        if (jobs.isEmpty()) {
+            long next = queue.getNextAttemptAt();
+            if (next >= 0) {
+                Log.d(TAG, "Waiting " + (next - now) + "ms for next retry");
+                scheduleResume(next);
+            } else {
+                finish();
+            }
+            stopSelf(lastStartId);  // Doesn't stop if another start request has arrived since
+            return;
+        }
+
+        final HashMap<Uri, ImportQueue.Job> uri_to_job = new HashMap<>(jobs.size() * 2);
+        ArrayList<Uri> imageUris = new ArrayList<>(jobs.size());
+        for (ImportQueue.Job job : jobs) {
+            uri_to_job.put(job.uri, job);
+            imageUris.add(job.uri);
+        }
+
+        pipeline = new ImportPipeline(this, handler);
+        pipeline.start(imageUris, new ImportPipeline.Listener() {
+            @Override
+            public void onProgress(int done, int total) {}
+
+            @Override
+            public void onOutcome(Uri imageUri, int outcome, Photo photo) {
+                ImportQueue.Job job = uri_to_job.get(imageUri);
+                switch (outcome) {
+                    case ImportPipeline.OUTCOME_IMPORTED:
+                    case ImportPipeline.OUTCOME_UNCHANGED:
+                        queue.complete(job, ImportJobEntry.STATE_DONE);
+                        break;
+                    case ImportPipeline.OUTCOME_SKIPPED:
+                        queue.complete(job, ImportJobEntry.STATE_SKIPPED);
+                        break;
+                    default:
+                        if (!queue.retry(job, System.currentTimeMillis())) Log.e(TAG, "Giving up on " + imageUri);
+                        break;
+                }
+                broadcastProgress(false);
+            }
+
+            @Override
+            public void onFinished(int imported, int failed) {
+                pipeline = null;
+                broadcastProgress(true);
+                runNextBatch();
+            }
+        });
+    }
+
+    /** Broadcasts the progress of the queue, at most every {@link #PROGRESS_INTERVAL_MS} unless forced. */
+    private void broadcastProgress(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - lastProgressAt < PROGRESS_INTERVAL_MS) return;
+        lastProgressAt = now;
+
+        int total = queue.size();
+        int remaining = queue.count(ImportJobEntry.STATE_PENDING) + queue.count(ImportJobEntry.STATE_RUNNING);
+        Intent intent = new Intent(ACTION_PROGRESS);
+        intent.putExtra(EXTRA_DONE, total - remaining);
+        intent.putExtra(EXTRA_TOTAL, total);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    }
+
+    /**
+     * Broadcasts the results of the import and removes the finished jobs from the queue. The thumbnailer's pooled
+     * bitmaps are released, as no pipeline is running.
+     */
+    private void finish() {
+        Thumbnailer.releasePool();
+        int imported = queue.count(ImportJobEntry.STATE_DONE);
+        int skipped = queue.count(ImportJobEntry.STATE_SKIPPED);
+        int failed = queue.count(ImportJobEntry.STATE_FAILED);
+        queue.purgeFinished();
+        if (imported + skipped + failed == 0) return;   // Nothing was imported, e.g. just resumed an empty queue
+
+        Log.d(TAG, "Finished: " + imported + " imported, " + skipped + " skipped, " + failed + " failed");
+
+        Intent intent = new Intent(ACTION_FINISHED);
+        intent.putExtra(EXTRA_IMPORTED, imported);
+        intent.putExtra(EXTRA_SKIPPED, skipped);
+        intent.putExtra(EXTRA_FAILED, failed);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    }
+
+    /** Schedules the service to resume the queue at the given time. */
+    private void scheduleResume(long at) {
+        Intent intent = new Intent(this, ImportService.class);
+        intent.setAction(ACTION_RESUME);
+        PendingIntent pi = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        ((AlarmManager) getSystemService(Context.ALARM_SERVICE)).set(AlarmManager.RTC, at, pi);
+    }
+
+}
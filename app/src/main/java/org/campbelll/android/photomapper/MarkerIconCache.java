@@ -0,0 +1,201 @@
+package org.campbelll.android.photomapper;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+
+import org.campbelll.android.photomapper.utility.Perf;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Count bounded LRU cache of marker icons showing photo thumbnails, keyed by photo id.
+ * <p>
+ * Icons are {@link #ICON_PIXELS} pixel squares with a white border, rendered from the thumbnails in a
+ * {@link ThumbnailCache} on a background thread. Markers are drawn with the default pin until their photo's icon is
+ * ready, and icons are only made for the photos asked for with {@link #request(List, List)}, i.e. those shown in the
+ * visible region, so panning over thousands of photos only renders the icons actually seen. The {@link Listener} is
+ * told when each icon is ready, so the marker can be given it.
+ * <p>
+ * The icon of a photo which stands for a stack of near-duplicates has a badge in its corner showing the number of
+ * photos in the stack. Icons are cached with the stack count they were drawn with, and are re-rendered if the count
+ * changes.
+ * <p>
+ * Each marker needs a {@link BitmapDescriptor} of its own, as markers can't be drawn from part of a shared bitmap, so
+ * the cache holds at most {@link #MAX_ICONS} descriptors. Icons are opaque, so they are rendered as RGB_565, which
+ * takes 8KiB per icon.
+ * <p>
+ * Must only be used from the UI thread.
+ *
+ * @author Campbell Lockley
+ */
+public class MarkerIconCache {
+    /* Constants */
+    public static final int ICON_PIXELS = 64;       // Width and height of icons
+    private static final int BORDER_PIXELS = 3;     // Width of the white border around the thumbnail
+    private static final int BADGE_PIXELS = 24;     // Diameter of the stack count badge
+    private static final int MAX_BADGE_COUNT = 99;  // Larger stack counts are shown as "99+"
+    private static final int MAX_ICONS = 256;       // Icons cached
+    private static final int MAX_MISSING = 256;     // Photos remembered as having no thumbnail
+
+    /** Called on the UI thread when an icon asked for has been rendered. */
+    public interface Listener {
+        /** Called with the icon of a photo asked for with {@link #request(List, List)}. */
+        void onIconReady(long id, BitmapDescriptor icon);
+    }
+
+    /* Members */
+    private final ThumbnailCache thumbnails;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "MarkerIcons");
+        }
+    });
+    private final LruCache<Long, Icon> icons = new LruCache<>(MAX_ICONS);
+    private final LruCache<Long, Boolean> missing = new LruCache<>(MAX_MISSING);   // Photos without thumbnails
+    private final HashSet<Long> loading = new HashSet<>();      // Photos whose icons are being made
+    private HashMap<Long, Integer> wanted = new HashMap<>();    // Stack counts of photos asked for by the last request
+
+    /** A rendered icon and the stack count drawn on it. */
+    private static class Icon {
+        final BitmapDescriptor descriptor;
+        final int stackCount;
+
+        Icon(BitmapDescriptor descriptor, int stackCount) {
+            this.descriptor = descriptor;
+            this.stackCount = stackCount;
+        }
+    }
+
+    /** Constructor. Thumbnails are loaded through the given cache. */
+    public MarkerIconCache(ThumbnailCache thumbnails, Listener listener) {
+        this.thumbnails = thumbnails;
+        this.listener = listener;
+    }
+
+    /** Returns the icon of a photo with a stack count, or null if it hasn't been rendered with that count. */
+    public BitmapDescriptor get(long id, int stackCount) {
+        Icon icon = icons.get(id);
+        return (icon == null || icon.stackCount != stackCount) ? null : icon.descriptor;
+    }
+
+    /**
+     * Renders the icons of the given photos in the background, in order, if they aren't already cached. Photos asked
+     * for by earlier requests which aren't asked for again are skipped if their icons haven't been started yet.
+     *
+     * @param ids Ids of the photos.
+     * @param stackCounts Number of photos in each photo's stack, 1 if it isn't stacked.
+     */
+    public void request(List<Long> ids, List<Integer> stackCounts) {
+        wanted = new HashMap<>(ids.size() * 2);
+        for (int i = 0; i < ids.size(); i++) wanted.put(ids.get(i), stackCounts.get(i));
+        for (int i = 0; i < ids.size(); i++) {
+            final Long id = ids.get(i);
+            if (get(id, stackCounts.get(i)) != null || missing.get(id) != null || !loading.add(id)) continue;
+
+            thumbnails.load(id, new ThumbnailCache.Callback() {
+                @Override
+                public void onThumbnailLoaded(long id, Bitmap thumbnail) {
+                    if (thumbnail == null) missing.put(id, true);
+                    Integer stackCount = wanted.get(id);
+                    if (thumbnail == null || stackCount == null || executor.isShutdown()) {
+                        loading.remove(id);
+                        return;
+                    }
+                    render(id, thumbnail, stackCount);
+                }
+            });
+        }
+    }
+
+    /** Stops rendering icons. The cache can't render icons afterwards. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** Renders a photo's icon in the background, then caches it and tells the listener. */
+    private void render(final long id, final Bitmap thumbnail, final int stackCount) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap;
+                long start = Perf.begin(Perf.MARKER_ICON);
+                try {
+                    bitmap = drawIcon(thumbnail, stackCount);
+                } finally {
+                    Perf.end(Perf.MARKER_ICON, start);
+                }
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        loading.remove(id);
+                        BitmapDescriptor icon = BitmapDescriptorFactory.fromBitmap(bitmap);
+                        icons.put(id, new Icon(icon, stackCount));
+                        listener.onIconReady(id, icon);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Draws the middle square of a thumbnail, scaled to fit inside a white border, with a badge in the top right corner
+     * if the photo stands for a stack.
+     */
+    private static Bitmap drawIcon(Bitmap thumbnail, int stackCount) {
+        Bitmap icon = Bitmap.createBitmap(ICON_PIXELS, ICON_PIXELS, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(icon);
+        canvas.drawColor(Color.WHITE);
+
+        int width = thumbnail.getWidth(), height = thumbnail.getHeight();
+        int side = Math.min(width, height);
+        Rect src = new Rect((width - side) / 2, (height - side) / 2, (width + side) / 2, (height + side) / 2);
+        Rect dst = new Rect(BORDER_PIXELS, BORDER_PIXELS, ICON_PIXELS - BORDER_PIXELS, ICON_PIXELS - BORDER_PIXELS);
+        canvas.drawBitmap(thumbnail, src, dst, new Paint(Paint.FILTER_BITMAP_FLAG));
+        if (stackCount > 1) drawBadge(canvas, stackCount);
+        return icon;
+    }
+
+    /** Draws a stack's photo count in a circle in the top right corner of an icon. */
+    private static void drawBadge(Canvas canvas, int stackCount) {
+        float radius = BADGE_PIXELS / 2f;
+        float cx = ICON_PIXELS - radius, cy = radius;
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.WHITE);
+        canvas.drawCircle(cx, cy, radius, paint);
+        paint.setColor(Color.rgb(33, 150, 243));
+        canvas.drawCircle(cx, cy, radius - 2, paint);
+
+        String label = (stackCount > MAX_BADGE_COUNT) ? MAX_BADGE_COUNT + "+" : Integer.toString(stackCount);
+        paint.setColor(Color.WHITE);
+        paint.setTextAlign(Paint.Align.CENTER);
+        paint.setTextSize(label.length() > 2 ? radius * 0.8f : radius);
+        paint.setFakeBoldText(true);
+        canvas.drawText(label, cx, cy - (paint.descent() + paint.ascent()) / 2, paint);
+    }
+
+}
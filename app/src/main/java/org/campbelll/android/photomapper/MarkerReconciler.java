@@ -0,0 +1,213 @@
+package org.campbelll.android.photomapper;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import org.campbelll.android.photomapper.utility.ClusterEngine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the markers on a {@link GoogleMap} in step with a set of {@link ClusterEngine.Cluster}s without clearing the
+ * map.
+ * <p>
+ * Markers are keyed by {@link ClusterEngine.Cluster#key}, i.e. by photo id for lone photos. Each call to
+ * {@link #reconcile(List)} diffs the new clusters against the markers already on the map and only removes, moves,
+ * re-labels or adds the markers which differ. The changes are applied a few at a time per frame so large changes don't
+ * stall the UI thread. A call made while changes are still being applied replaces the outstanding changes.
+ * <p>
+ * Must only be used from the UI thread.
+ *
+ * @author Campbell Lockley
+ */
+public class MarkerReconciler {
+    /* Constants */
+    private static final int OPS_PER_FRAME = 64;    // Max marker changes applied per frame
+    private static final long FRAME_MS = 16;        // Delay between batches of changes
+
+    /** Provides marker icons for clusters. */
+    public interface IconFactory {
+        /** Returns the icon for a cluster, or null for the default marker. Icons are centred on the position. */
+        BitmapDescriptor getIcon(ClusterEngine.Cluster cluster);
+    }
+
+    /** A marker on the map and the state it was last drawn with. */
+    private static class Entry {
+        Marker marker;
+        double latitude, longitude;
+        int count;
+    }
+
+    /* Members */
+    private final GoogleMap map;
+    private final IconFactory iconFactory;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final HashMap<Long, Entry> entries = new HashMap<>();           // Markers on map, by key
+    private final HashMap<String, Long> marker_to_key = new HashMap<>();    // Keys of markers on map, by marker id
+    private final ArrayList<Runnable> pending = new ArrayList<>();          // Changes yet to be applied
+    private int next = 0;                                                   // Index of next change to apply
+
+    /** Applies the next batch of pending changes. */
+    private final Runnable applyBatch = new Runnable() {
+        @Override
+        public void run() {
+            int end = Math.min(pending.size(), next + OPS_PER_FRAME);
+            while (next < end) pending.get(next++).run();
+            if (next < pending.size()) handler.postDelayed(this, FRAME_MS);
+            else clearPending();
+        }
+    };
+
+    /** Constructor. */
+    public MarkerReconciler(GoogleMap map, IconFactory iconFactory) {
+        this.map = map;
+        this.iconFactory = iconFactory;
+    }
+
+    /**
+     * Updates the map so it shows exactly the given clusters.
+     *
+     * @param clusters Clusters to show.
+     */
+    public void reconcile(List<ClusterEngine.Cluster> clusters) {
+        clearPending();
+
+        /* Adds and updates */
+        HashMap<Long, ClusterEngine.Cluster> wanted = new HashMap<>(clusters.size() * 2);
+        ArrayList<Runnable> adds = new ArrayList<>();
+        for (final ClusterEngine.Cluster cluster : clusters) {
+            wanted.put(cluster.key, cluster);
+            final Entry entry = entries.get(cluster.key);
+            if (entry == null) {
+                adds.add(new Runnable() {
+                    @Override
+                    public void run() { add(cluster); }
+                });
+            } else if (entry.latitude != cluster.getLatitude() || entry.longitude != cluster.getLongitude()
+                    || entry.count != cluster.count) {
+                pending.add(new Runnable() {
+                    @Override
+                    public void run() { update(entry, cluster); }
+                });
+            }
+        }
+
+        /* Removes go first so stale markers disappear before new ones appear */
+        ArrayList<Runnable> removes = new ArrayList<>();
+        for (Map.Entry<Long, Entry> e : entries.entrySet()) {
+            if (wanted.containsKey(e.getKey())) continue;
+            final long key = e.getKey();
+            removes.add(new Runnable() {
+                @Override
+                public void run() { remove(key); }
+            });
+        }
+
+        pending.addAll(0, removes);
+        pending.addAll(adds);
+        if (!pending.isEmpty()) applyBatch.run();
+    }
+
+    /** Returns the key of a marker on the map, or null if it isn't one of ours. */
+    public Long getKey(Marker marker) {
+        return marker_to_key.get(marker.getId());
+    }
+
+    /**
+     * Changes the icon of a marker for a lone photo, e.g. once its thumbnail icon is ready. Does nothing if the marker
+     * isn't on the map or has since become a cluster.
+     */
+    public void setIcon(long key, BitmapDescriptor icon) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.count != 1) return;
+        setIcon(entry.marker, icon);
+    }
+
+    /** Returns the marker for a key, or null if it isn't on the map. */
+    public Marker getMarker(long key) {
+        Entry entry = entries.get(key);
+        return (entry == null) ? null : entry.marker;
+    }
+
+    /** Removes all markers and drops any pending changes. */
+    public void clear() {
+        clearPending();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            it.next().marker.remove();
+            it.remove();
+        }
+        marker_to_key.clear();
+    }
+
+    /** Drops pending changes. */
+    private void clearPending() {
+        handler.removeCallbacks(applyBatch);
+        pending.clear();
+        next = 0;
+    }
+
+    /** Adds a marker for a cluster. */
+    private void add(ClusterEngine.Cluster cluster) {
+        MarkerOptions options = new MarkerOptions()
+                .position(new LatLng(cluster.getLatitude(), cluster.getLongitude()));
+        BitmapDescriptor icon = (iconFactory == null) ? null : iconFactory.getIcon(cluster);
+        if (icon != null) options.icon(icon).anchor(0.5f, 0.5f);
+        else options.icon(BitmapDescriptorFactory.defaultMarker()).anchor(0.5f, 1f);
+
+        Entry entry = new Entry();
+        entry.marker = map.addMarker(options);
+        entry.latitude = cluster.getLatitude();
+        entry.longitude = cluster.getLongitude();
+        entry.count = cluster.count;
+        entries.put(cluster.key, entry);
+        marker_to_key.put(entry.marker.getId(), cluster.key);
+    }
+
+    /** Moves and/or re-labels a marker. */
+    private void update(Entry entry, ClusterEngine.Cluster cluster) {
+        if (entry.latitude != cluster.getLatitude() || entry.longitude != cluster.getLongitude()) {
+            entry.marker.setPosition(new LatLng(cluster.getLatitude(), cluster.getLongitude()));
+            entry.latitude = cluster.getLatitude();
+            entry.longitude = cluster.getLongitude();
+        }
+        if (entry.count != cluster.count && iconFactory != null) {
+            setIcon(entry.marker, iconFactory.getIcon(cluster));
+            entry.count = cluster.count;
+        }
+    }
+
+    /**
+     * Sets a marker's icon, anchoring icons at their centre and the default marker, used if there is no icon, at its
+     * tip. The map doesn't accept a null icon.
+     */
+    private static void setIcon(Marker marker, BitmapDescriptor icon) {
+        if (icon != null) {
+            marker.setIcon(icon);
+            marker.setAnchor(0.5f, 0.5f);
+        } else {
+            marker.setIcon(BitmapDescriptorFactory.defaultMarker());
+            marker.setAnchor(0.5f, 1f);
+        }
+    }
+
+    /** Removes a marker. */
+    private void remove(long key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) return;
+        marker_to_key.remove(entry.marker.getId());
+        entry.marker.remove();
+    }
+
+}
@@ -0,0 +1,323 @@
+package org.campbelll.android.photomapper;
+
+import android.content.Context;
+import android.content.Loader;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.campbelll.android.photomapper.db.PhotoDBHelper;
+import org.campbelll.android.photomapper.db.PointSnapshot;
+import org.campbelll.android.photomapper.utility.Perf;
+import org.campbelll.android.photomapper.utility.PhotoIndex;
+
+import java.util.Locale;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
+
+/**
+ * Loader which reads the photos of a query a page at a time and delivers a growing {@link PhotoIndex} as the pages
+ * arrive, so the map can start drawing before the whole query has been read.
+ * <p>
+ * The first page holds the {@link #FIRST_PAGE_SIZE} photos nearest a centre point, e.g. the centre of the map, so the
+ * markers the user is looking at are drawn first. The rest of the query is then read in pages of {@link #PAGE_SIZE}
+ * photos using keyset pagination, i.e. {@code _id > (last id read) ORDER BY _id LIMIT n}, which uses the primary key
+ * and so costs the same however far into the query the page is. Only one page's cursor is open at a time, so memory
+ * is bounded by the compact index rather than by the size of the query.
+ * <p>
+ * Before the database is touched, the photos in the query's bounding box are read from the memory mapped
+ * {@link PointSnapshot} and delivered, so on a cold start the map is drawn without waiting for SQLite. The snapshot
+ * doesn't hold makes or models and may be slightly behind the database, so the pages are then read as usual, starting
+ * with all photos in id order as the nearest ones are already shown. The snapshot's photos are kept in each delivery
+ * until the last, which holds exactly the photos in the database.
+ * <p>
+ * Each delivery is a new index of every photo read so far. Deliveries after the first are throttled to one per
+ * {@link #DELIVER_INTERVAL_MS}, as each causes the photos to be re-clustered.
+ * <p>
+ * Like a {@link android.content.CursorLoader}, the loader reloads when the photo data changes, but only re-reads the
+ * photos the {@link PhotoChangeLog} lists as changed since the last load, replacing them in the last result. It only
+ * observes the notifications for the whole collection, which the change log sends once per burst of writes, so a bulk
+ * import causes a few small reads rather than a reload per photo. If the changes aren't known, everything is reloaded.
+ *
+ * @author Campbell Lockley
+ */
+public class PagedPhotoLoader extends Loader<PhotoIndex> {
+    /* Tag */
+    private static final String TAG = "PagedPhotoLoader";
+
+    /* Constants */
+    public static final int FIRST_PAGE_SIZE = 256;          // Photos nearest the centre, read first
+    public static final int PAGE_SIZE = 2000;               // Photos read per page after the first
+    private static final long DELIVER_INTERVAL_MS = 300;    // Min time between deliveries after the first
+    private static final int MAX_QUERY_IDS = 500;           // Ids per query of changed photos
+
+    /* Members */
+    private final Uri uri;                              // Query uri, i.e. all photos or a bounding box
+    private final String[] projection;                  // Columns needed by PhotoDBHelper.getPhotoIndex()
+    private final double centreLatitude;                // Latitude of point the first page is nearest to
+    private final double centreLongitude;               // Longitude of point the first page is nearest to
+    private final Handler handler = new Handler(Looper.getMainLooper());   // Delivers results on the main thread
+    private final PhotoChangeLog changes;
+    private final boolean useSnapshot;                  // Photos are shown from the PointSnapshot before they're read
+    private volatile int generation = 0;                // Incremented to cancel the running load
+    private boolean observing = false;                  // Observer is registered
+    private PhotoIndex result = null;                   // Photos read so far by the last load
+    private boolean complete = false;                   // Last load read every page
+    private long sequence = 0;                          // Change log sequence number the last load started at
+
+    /* Refreshes the photos when they change, unless a load is running, which catches up when it completes */
+    private final ContentObserver observer = new ContentObserver(handler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (isStarted() && complete) refresh();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param context Context.
+     * @param uri Query uri, i.e. {@link PhotoProvider#CONTENT_URI} or a bounding box uri.
+     * @param projection Columns to query, which must include those needed by
+     *                   {@link PhotoDBHelper#getPhotoIndex(Cursor)}.
+     * @param centreLatitude Latitude of the point the first page is nearest to.
+     * @param centreLongitude Longitude of the point the first page is nearest to.
+     */
+    public PagedPhotoLoader(Context context, Uri uri, String[] projection, double centreLatitude,
+                            double centreLongitude) {
+        this(context, uri, projection, centreLatitude, centreLongitude, true);
+    }
+
+    /** Constructor, optionally without showing the {@link PointSnapshot}'s photos first, e.g. for tests. */
+    PagedPhotoLoader(Context context, Uri uri, String[] projection, double centreLatitude, double centreLongitude,
+                     boolean useSnapshot) {
+        super(context);
+        this.uri = uri;
+        this.projection = projection;
+        this.centreLatitude = centreLatitude;
+        this.centreLongitude = centreLongitude;
+        this.useSnapshot = useSnapshot;
+        changes = PhotoChangeLog.getInstance(context);
+    }
+
+    /** Delivers any photos already read, and loads them if they haven't all been read or have since changed. */
+    @Override
+    protected void onStartLoading() {
+        if (!observing) {
+            getContext().getContentResolver().registerContentObserver(PhotoProvider.CONTENT_URI, false, observer);
+            observing = true;
+        }
+        if (result != null) deliverResult(result);
+        if (!complete) {
+            forceLoad();
+        } else if (sequence != changes.getSequence()) {
+            refresh();
+        }
+    }
+
+    /** Stops reading pages. Loading starts again from the first page when the loader is next started. */
+    @Override
+    protected void onStopLoading() {
+        cancel();
+    }
+
+    /** Stops reading pages, forgets the photos read and stops observing the photo data. */
+    @Override
+    protected void onReset() {
+        cancel();
+        result = null;
+        complete = false;
+        if (observing) {
+            getContext().getContentResolver().unregisterContentObserver(observer);
+            observing = false;
+        }
+    }
+
+    /** Starts reading from the first page, cancelling any load already running. */
+    @Override
+    protected void onForceLoad() {
+        cancel();
+        complete = false;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new PageReader(generation, changes.getSequence(), null, null));
+    }
+
+    /** Re-reads the photos changed since the last load completed, or everything if the changes aren't known. */
+    private void refresh() {
+        long now = changes.getSequence();
+        long[] changedIds = changes.getChangedSince(sequence);
+        if (changedIds == null) {
+            forceLoad();
+        } else if (changedIds.length == 0) {
+            sequence = now;
+        } else {
+            cancel();
+            complete = false;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new PageReader(generation, now, result, changedIds));
+        }
+    }
+
+    /** Cancels the running load, if any. Pages already queued for delivery are dropped. */
+    private void cancel() {
+        generation++;
+    }
+
+    /**
+     * Delivers photos read by a load, on the main thread, unless the load has since been cancelled. Once the last
+     * photos have been delivered, any changes made while the load was running are read.
+     */
+    private void post(final int loadGeneration, final long loadSequence, final PhotoIndex index, final boolean last) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (loadGeneration != generation || isReset()) return;
+                result = index;
+                complete = last;
+                sequence = loadSequence;
+                if (!isStarted()) return;
+                deliverResult(index);
+                if (last && sequence != changes.getSequence()) refresh();
+            }
+        });
+    }
+
+    /** Returns an ORDER BY clause which sorts photos by their distance from the centre, good enough for ordering. */
+    private String distanceOrder() {
+        String dLat = String.format(Locale.US, "(%s - %f)", PhotoEntry.COL_GPS_LATITUDE, centreLatitude);
+        String dLng = String.format(Locale.US, "(%s - %f)", PhotoEntry.COL_GPS_LONGITUDE, centreLongitude);
+        return dLat + " * " + dLat + " + " + dLng + " * " + dLng;
+    }
+
+    /**
+     * Reads the pages of a load in the background, posting the photos read so far as it goes, or for a refresh, reads
+     * the changed photos and posts them in place of those in the last result.
+     */
+    private class PageReader implements Runnable {
+        private final int loadGeneration;
+        private final long loadSequence;                // Change log sequence number when the load started
+        private final PhotoIndex base;                  // Photos to refresh, or null to read everything
+        private final long[] changedIds;                // Ascending ids of photos to refresh
+        private long lastId = -1;                       // Id of the last photo read
+
+        PageReader(int loadGeneration, long loadSequence, PhotoIndex base, long[] changedIds) {
+            this.loadGeneration = loadGeneration;
+            this.loadSequence = loadSequence;
+            this.base = base;
+            this.changedIds = changedIds;
+        }
+
+        @Override
+        public void run() {
+            if (base != null) {
+                readChanges();
+                return;
+            }
+
+            long startedAt = SystemClock.uptimeMillis();
+            int count;
+
+            /* Photos from the snapshot if there is one, otherwise those nearest the centre, first */
+            PhotoIndex shown = useSnapshot ? readSnapshot() : null;
+            if (shown != null) {
+                if (!isCurrent()) return;
+                post(loadGeneration, loadSequence, shown, false);
+            } else {
+                PhotoIndex.Builder first = new PhotoIndex.Builder(FIRST_PAGE_SIZE);
+                count = read(PhotoProvider.withLimit(uri, FIRST_PAGE_SIZE), null, null, distanceOrder(), first);
+                shown = first.build();
+                if (!isCurrent()) return;
+                post(loadGeneration, loadSequence, shown, count < FIRST_PAGE_SIZE);
+                if (count < FIRST_PAGE_SIZE) return;    // That was all of them
+            }
+            long deliveredAt = SystemClock.uptimeMillis();
+
+            /* Then everything, in id order. Photos already shown are read again, but the union keeps the new copy */
+            PhotoIndex.Builder all = new PhotoIndex.Builder(PAGE_SIZE);
+            Uri pageUri = PhotoProvider.withLimit(uri, PAGE_SIZE);
+            lastId = -1;                                // The first page was in distance order, so start again
+            do {
+                if (!isCurrent()) return;
+                count = read(pageUri, PhotoEntry._ID + " > ?", new String[] { Long.toString(lastId) },
+                        PhotoEntry._ID, all);
+
+                long now = SystemClock.uptimeMillis();
+                if (count == PAGE_SIZE && now - deliveredAt >= DELIVER_INTERVAL_MS) {
+                    post(loadGeneration, loadSequence, PhotoIndex.union(all.build(), shown), false);
+                    deliveredAt = now;
+                }
+            } while (count == PAGE_SIZE);
+
+            PhotoIndex index = all.build();
+            Log.d(TAG, "Loaded " + index.size() + " photos in " + (SystemClock.uptimeMillis() - startedAt) + "ms");
+            post(loadGeneration, loadSequence, index, true);
+        }
+
+        /** Reads the changed photos which are still in the query and replaces the changed photos of base with them. */
+        private void readChanges() {
+            PhotoIndex.Builder builder = new PhotoIndex.Builder(changedIds.length);
+            for (int start = 0; start < changedIds.length; start += MAX_QUERY_IDS) {
+                if (!isCurrent()) return;
+                int end = Math.min(start + MAX_QUERY_IDS, changedIds.length);
+                StringBuilder selection = new StringBuilder(PhotoEntry._ID).append(" IN (");
+                for (int i = start; i < end; i++) selection.append(i > start ? "," : "").append(changedIds[i]);
+                read(uri, selection.append(')').toString(), null, PhotoEntry._ID, builder);
+            }
+
+            PhotoIndex changed = builder.build();
+            PhotoIndex index = PhotoIndex.union(changed, PhotoIndex.difference(base, changedIds));
+            Log.d(TAG, "Refreshed " + changedIds.length + " changed photos, " + changed.size() + " still shown");
+            post(loadGeneration, loadSequence, index, true);
+        }
+
+        /** Returns the snapshot's photos within the query's bounding box, or null if there's no snapshot. */
+        private PhotoIndex readSnapshot() {
+            long start = Perf.begin(Perf.SNAPSHOT_READ);
+            try {
+                PointSnapshot snapshot = PointSnapshot.getInstance(getContext());
+                String south = uri.getQueryParameter(PhotoProvider.PARAM_SOUTH);
+                if (south == null) return snapshot.read();
+                return snapshot.read(Double.parseDouble(south),
+                        Double.parseDouble(uri.getQueryParameter(PhotoProvider.PARAM_WEST)),
+                        Double.parseDouble(uri.getQueryParameter(PhotoProvider.PARAM_NORTH)),
+                        Double.parseDouble(uri.getQueryParameter(PhotoProvider.PARAM_EAST)));
+            } finally {
+                Perf.end(Perf.SNAPSHOT_READ, start);
+            }
+        }
+
+        /** Runs a query and adds its photos to builder, closing its cursor. Returns the number of photos read. */
+        private int read(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
+                         PhotoIndex.Builder builder) {
+            Cursor c;
+            int count;
+            long start = Perf.begin(Perf.LOADER_QUERY);
+            try {
+                c = getContext().getContentResolver().query(queryUri, projection, selection, selectionArgs, sortOrder);
+                count = (c != null) ? c.getCount() : 0;     // Runs the query and fills the cursor's window
+            } finally {
+                Perf.end(Perf.LOADER_QUERY, start);
+            }
+            if (c == null) return 0;
+            Perf.count(Perf.LOADER_PAGES);
+
+            start = Perf.begin(Perf.CURSOR_MAPPING);
+            try {
+                lastId = PhotoDBHelper.addToIndex(c, builder);
+                return count;
+            } finally {
+                c.close();
+                Perf.end(Perf.CURSOR_MAPPING, start);
+            }
+        }
+
+        /** Returns true if this load hasn't been cancelled. */
+        private boolean isCurrent() {
+            return loadGeneration == generation;
+        }
+    }
+
+}
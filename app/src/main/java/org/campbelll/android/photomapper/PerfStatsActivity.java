@@ -0,0 +1,138 @@
+package org.campbelll.android.photomapper;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import org.campbelll.android.photomapper.db.PhotoDBHelper;
+import org.campbelll.android.photomapper.db.StorageProfile;
+import org.campbelll.android.photomapper.utility.Perf;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Debug screen which shows the latencies and counts recorded by {@link Perf}, e.g. the p50 and p99 times to import a
+ * photo or to show a shared photo's marker.
+ * <p>
+ * The stats can be exported, along with the database's storage profile, as a JSON file to the app's external files
+ * directory, which is then offered to be shared, so runs on different devices and profiles can be compared. They can
+ * also be reset, e.g. before importing a test set of images. The storage profile can be chosen here too, and is used
+ * from the next time the app starts.
+ *
+ * @author Campbell Lockley
+ */
+public class PerfStatsActivity extends Activity {
+    /* Tag */
+    private static final String TAG = "PerfStatsActivity";
+
+    /* Members */
+    private TextView statsView = null;      // Shows the stats table
+
+    /** Sets up the user interface. */
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_perf_stats);
+        statsView = (TextView) findViewById(R.id.perf_stats_text);
+
+        findViewById(R.id.perf_stats_export).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) { export(); }
+        });
+        findViewById(R.id.perf_stats_reset).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Perf.reset();
+                showStats();
+            }
+        });
+        findViewById(R.id.perf_stats_profile).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) { chooseProfile(); }
+        });
+    }
+
+    /** Shows the latest stats whenever the screen is returned to. */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showStats();
+    }
+
+    /** Shows the stats recorded so far. */
+    private void showStats() {
+        statsView.setText(Perf.toText());
+    }
+
+    /** Lets the user choose the database's storage profile, which takes effect the next time the app starts. */
+    private void chooseProfile() {
+        final StorageProfile[] profiles = StorageProfile.getProfiles();
+        StorageProfile current = PhotoDBHelper.getStorageProfile(this);
+        String[] names = new String[profiles.length];
+        int checked = -1;
+        for (int i = 0; i < profiles.length; i++) {
+            names[i] = profiles[i].name;
+            if (profiles[i] == current) checked = i;
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.perf_stats_profile)
+                .setSingleChoiceItems(names, checked, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        PhotoDBHelper.setStorageProfile(PerfStatsActivity.this, profiles[which]);
+                        dialog.dismiss();
+                        Toast.makeText(PerfStatsActivity.this, getString(R.string.perf_stats_profile_msg,
+                                profiles[which].name), Toast.LENGTH_LONG).show();
+                    }
+                })
+                .show();
+    }
+
+    /** Writes the stats to a JSON file and offers to share it. */
+    private void export() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            Toast.makeText(this, R.string.perf_stats_export_failed_msg, Toast.LENGTH_LONG).show();
+            return;
+        }
+        File file = new File(dir, "perf-stats-" + System.currentTimeMillis() + ".json");
+
+        try {
+            JSONObject stats = Perf.toJson();
+            stats.put("storage_profile", PhotoDBHelper.getStorageProfile(this).name);
+            String json = stats.toString(2);
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                out.write(json);
+            } finally {
+                out.close();
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Couldn't write " + file, e);
+            Toast.makeText(this, R.string.perf_stats_export_failed_msg, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        Toast.makeText(this, getString(R.string.perf_stats_exported_msg, file.getPath()), Toast.LENGTH_LONG).show();
+
+        Intent share = new Intent(Intent.ACTION_SEND);
+        share.setType("application/json");
+        share.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+        startActivity(Intent.createChooser(share, getString(R.string.perf_stats_export)));
+    }
+
+}
@@ -0,0 +1,142 @@
+package org.campbelll.android.photomapper;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log of the ids of the photos written by {@link PhotoProvider}, which coalesces the writes' change notifications.
+ * <p>
+ * Each changed id is given the next sequence number. Observers are notified once the writes have been quiet for
+ * {@link #QUIET_MS}, or at most {@link #MAX_DELAY_MS} after the first unnotified write, so a bulk import of thousands
+ * of photos causes a handful of notifications rather than one per photo. A notification is sent for the uri of each
+ * changed photo, i.e. "photos/#", unless there are more than {@link #MAX_ROW_NOTIFICATIONS}, followed by one for
+ * {@link PhotoProvider#CONTENT_URI}. Observers of the whole collection should therefore register without
+ * notifications for descendants.
+ * <p>
+ * An observer remembers the sequence number from {@link #getSequence()} before it reads the photos, and when notified
+ * asks for the ids changed since with {@link #getChangedSince(long)}, so it only needs to re-read those photos. The
+ * last {@link #CAPACITY} ids are kept. Changes to unknown photos, e.g. deleting all photos, can't be listed, so
+ * observers whose sequence number is before one of these, or before the oldest id kept, must re-read everything.
+ *
+ * @author Campbell Lockley
+ */
+public class PhotoChangeLog {
+    /* Constants */
+    static final long QUIET_MS = 100;                   // Time without writes before observers are notified
+    static final long MAX_DELAY_MS = 1000;              // Max time from a write to observers being notified
+    static final int MAX_ROW_NOTIFICATIONS = 64;        // Max photo uris notified at once
+    static final int CAPACITY = 16384;                  // Changed ids kept
+
+    /** Singleton. */
+    private static PhotoChangeLog singleton = null;
+
+    /* Members */
+    private final ContentResolver resolver;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final long[] ids = new long[CAPACITY];      // Ring of changed ids, guarded by this
+    private long sequence = 0;                          // Sequence number of the last change, guarded by this
+    private long unknownAt = 0;                         // Sequence number of the last unlisted change
+    private long notifiedAt = 0;                        // Sequence number of the last change notified
+    private long firstChangeAt = 0;                     // Uptime of the first change not yet notified
+    private long lastChangeAt = 0;                      // Uptime of the last change
+    private boolean scheduled = false;                  // A notification is scheduled
+
+    /** Constructor. */
+    private PhotoChangeLog(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Safely returns PhotoChangeLog instance.
+     *
+     * @param context Context of PhotoChangeLog.
+     * @return Instance of PhotoChangeLog.
+     */
+    synchronized public static PhotoChangeLog getInstance(Context context) {
+        if (singleton == null) singleton = new PhotoChangeLog(context.getApplicationContext().getContentResolver());
+        return singleton;
+    }
+
+    /** Records that photos have been inserted, changed or deleted. Must be called after the write has committed. */
+    public synchronized void photosChanged(long[] changed) {
+        if (changed.length == 0) return;
+        for (long id : changed) ids[(int) (++sequence % CAPACITY)] = id;
+        schedule();
+    }
+
+    /** Records that photos which can't be listed have changed, e.g. all photos have been deleted. */
+    public synchronized void allChanged() {
+        unknownAt = ++sequence;
+        schedule();
+    }
+
+    /** Returns the sequence number of the last change. */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the ids of the photos changed since a sequence number.
+     *
+     * @param since Sequence number from {@link #getSequence()}.
+     * @return Distinct changed ids in ascending order, or null if they aren't known, in which case any photo may have
+     *         changed.
+     */
+    public synchronized long[] getChangedSince(long since) {
+        if (since < unknownAt || sequence - since > CAPACITY) return null;
+
+        long[] changed = new long[(int) (sequence - since)];
+        for (int i = 0; i < changed.length; i++) changed[i] = ids[(int) ((since + 1 + i) % CAPACITY)];
+        Arrays.sort(changed);
+
+        int distinct = 0;
+        for (int i = 0; i < changed.length; i++) {
+            if (i == 0 || changed[i] != changed[i - 1]) changed[distinct++] = changed[i];
+        }
+        return Arrays.copyOf(changed, distinct);
+    }
+
+    /** Notes the time of a change and schedules a notification, unless one is already scheduled. Must hold the lock. */
+    private void schedule() {
+        lastChangeAt = SystemClock.uptimeMillis();
+        if (scheduled) return;
+        scheduled = true;
+        firstChangeAt = lastChangeAt;
+        executor.schedule(notifier, QUIET_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Notifies observers once writes have been quiet for long enough, otherwise checks again later. */
+    private final Runnable notifier = new Runnable() {
+        @Override
+        public void run() {
+            long[] changed;
+            synchronized (PhotoChangeLog.this) {
+                long now = SystemClock.uptimeMillis();
+                long wait = Math.min(lastChangeAt + QUIET_MS, firstChangeAt + MAX_DELAY_MS) - now;
+                if (wait > 0) {
+                    executor.schedule(this, wait, TimeUnit.MILLISECONDS);
+                    return;
+                }
+
+                changed = (sequence - notifiedAt <= MAX_ROW_NOTIFICATIONS) ? getChangedSince(notifiedAt) : null;
+                notifiedAt = sequence;
+                scheduled = false;
+            }
+
+            if (changed != null) {
+                for (long id : changed) {
+                    resolver.notifyChange(ContentUris.withAppendedId(PhotoProvider.CONTENT_URI, id), null, false);
+                }
+            }
+            resolver.notifyChange(PhotoProvider.CONTENT_URI, null, false);
+        }
+    };
+
+}
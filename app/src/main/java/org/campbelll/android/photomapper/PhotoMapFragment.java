@@ -1,28 +1,50 @@
 package org.campbelll.android.photomapper;
 
 import android.app.LoaderManager;
-import android.content.CursorLoader;
+import android.content.ContentResolver;
 import android.content.Loader;
 import android.database.Cursor;
-import android.graphics.BitmapFactory;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
+import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.MapFragment;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
-import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.TileOverlay;
+import com.google.android.gms.maps.model.TileOverlayOptions;
 
-import org.campbelll.android.photomapper.db.PhotoDBHelper;
-import org.campbelll.android.photomapper.utility.Photo;
+import org.campbelll.android.photomapper.utility.ClusterEngine;
+import org.campbelll.android.photomapper.utility.Perf;
+import org.campbelll.android.photomapper.utility.PhotoIndex;
+import org.campbelll.android.photomapper.utility.TimelineIndex;
 
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
 
@@ -30,42 +52,118 @@ import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
  * Manages a {@link GoogleMap} view which automatically plots photos obtained from an underlying database whenever the
  * data in the database changes.
  * <p>
- * The data set is managed by {@link PhotoProvider}. {@link #onCreateLoader(int, Bundle)} sets up a database cursor
- * loader which automatically calls {@link #onLoadFinished(Loader, Cursor)} when the data set changes.
+ * The data set is managed by {@link PhotoProvider}. {@link #onCreateLoader(int, Bundle)} sets up a
+ * {@link PagedPhotoLoader} which automatically calls {@link #onLoadFinished(Loader, PhotoIndex)} when the data set
+ * changes.
+ * <p>
+ * Only photos in (and around) the visible part of the map are loaded. When the camera stops moving outside of the area
+ * which has already been loaded, the loader is restarted with a bounding box query for the new visible region. The
+ * loader reads the query a page at a time, starting with the photos nearest the centre of the map, and delivers the
+ * photos read so far after each page, so markers appear progressively rather than after the whole query.
+ * <p>
+ * Loaded photos are held in a compact {@link PhotoIndex} and clustered by a
+ * {@link ClusterEngine}, built on a background thread whenever the data changes. Only the clusters for the current zoom
+ * level and visible region are drawn, each as a single marker showing its photo count. Tapping a cluster zooms in on
+ * it.
+ * <p>
+ * Markers are never cleared in bulk. A {@link MarkerReconciler} diffs each new set of clusters against the markers on
+ * the map, keyed by photo id, and only changes the markers which differ.
+ * <p>
+ * Thumbnails shown in info windows come from a {@link ThumbnailCache}, which prefetches the thumbnails of the photos
+ * nearest the centre of the map whenever the shown clusters change. Lone photos' markers show their thumbnail, from a
+ * {@link MarkerIconCache}. Icons are only made for the {@link #ICON_COUNT} lone photos nearest the centre of the
+ * visible region, in the background, and each marker shows the default pin until its icon is ready.
+ * <p>
+ * Stacks of near-duplicate photos, e.g. burst shots, are loaded as one photo, their original, with a stacked query,
+ * see {@link PhotoProvider#withStacks(Uri)}. Clusters count stacks rather than photos, and a lone stack's marker icon
+ * and info window show how many photos it holds.
+ * <p>
+ * The timeline sliders below the map limit the shown photos to those taken within a range of the loaded photos' times.
+ * A {@link TimelineIndex} of the loaded photos sorted by time is built alongside the clusters, so dragging a slider
+ * re-clusters just the photos in range without going back to the database.
+ * <p>
+ * Long pressing the map finds the {@link #NEAREST_COUNT} photos nearest the pressed point with a near query, see
+ * {@link PhotoProvider#buildNearUri(double, double, int, double)}, and moves the camera to show them, selecting the
+ * nearest.
+ * <p>
+ * In heatmap mode the markers and timeline are hidden and the density of the whole library is drawn instead, by a
+ * {@link HeatmapTileProvider} tile overlay.
  *
  * @author Campbell Lockley
  */
-public class PhotoMapFragment extends MapFragment implements LoaderManager.LoaderCallbacks<Cursor>,
-        GoogleMap.InfoWindowAdapter, GoogleMap.OnMarkerClickListener, GoogleMap.OnMapClickListener {
+public class PhotoMapFragment extends MapFragment implements LoaderManager.LoaderCallbacks<PhotoIndex>,
+        GoogleMap.InfoWindowAdapter, GoogleMap.OnMarkerClickListener, GoogleMap.OnMapClickListener,
+        GoogleMap.OnMapLongClickListener, GoogleMap.OnCameraChangeListener, SeekBar.OnSeekBarChangeListener {
     /* Tag */
     private static final String TAG = "PhotoMapFragment";
 
-    /* Columns we require from db - i.e. all of them */
+    /* Columns we require from db to build the photo index. Thumbnails are opened when needed */
     private static final String[] PHOTO_PROJECTION = new String[] {
             PhotoEntry._ID,
-            PhotoEntry.COL_URI,
-            PhotoEntry.COL_THUMBNAIL,
             PhotoEntry.COL_GPS_LATITUDE,
-            PhotoEntry.COL_GPS_LATITUDE_REF,
             PhotoEntry.COL_GPS_LONGITUDE,
-            PhotoEntry.COL_GPS_LONGITUDE_REF,
-            PhotoEntry.COL_DATE,
-            PhotoEntry.COL_TIME,
+            PhotoEntry.COL_TAKEN_AT,
             PhotoEntry.COL_MAKE,
-            PhotoEntry.COL_MODEL
+            PhotoEntry.COL_MODEL,
+            PhotoEntry.COL_STACK_COUNT
     };
 
+    /* Columns of the photos nearest a long press */
+    private static final String[] NEAR_PROJECTION = new String[] {
+            PhotoEntry._ID,
+            PhotoEntry.COL_GPS_LATITUDE,
+            PhotoEntry.COL_GPS_LONGITUDE,
+            PhotoProvider.COL_DISTANCE
+    };
+
+    /* Loader args */
+    private static final String ARG_SOUTH = "south";
+    private static final String ARG_WEST = "west";
+    private static final String ARG_NORTH = "north";
+    private static final String ARG_EAST = "east";
+    private static final String ARG_CENTRE_LATITUDE = "centre_latitude";
+    private static final String ARG_CENTRE_LONGITUDE = "centre_longitude";
+
     /* Constants */
     private static final float START_ZOOM = 13;     // Initial GoogleMap zoom level
+    private static final double BOUNDS_PADDING = 0.5;   // Fraction of visible region loaded beyond each edge
+    private static final int CLUSTER_ICON_DP = 40;      // Diameter of cluster markers
+    private static final int CLUSTER_PADDING_DP = 48;   // Padding around a cluster's photos when zooming in on it
+    private static final int PREFETCH_COUNT = 16;       // Thumbnails prefetched around centre of map
+    private static final int ICON_COUNT = 64;           // Thumbnail marker icons made around centre of map
+    private static final int TIMELINE_STEPS = 1000;     // Steps along the timeline sliders
+    private static final double AWAIT_TOLERANCE = 1e-6; // Degrees a shown cluster may be from an awaited photo
+    private static final int NEAREST_COUNT = 20;        // Photos found by a long press
 
     /* Members */
     private GoogleMap map = null;                       // GoogleMap instance
-    private ArrayList<Photo> photos;                    // List of photos
-    private HashMap<String, Photo> marker_to_photo;     // Hashmap of Google Maps markers and matching photos
-    private HashMap<String, Marker> photo_to_marker;    // Hashmap of photo URIs and matching markers
-    private String selected = null;                     // Currently selected photo
+    private PhotoIndex index = PhotoIndex.EMPTY;        // Loaded photos
+    private HashMap<Long, ClusterEngine.Cluster> key_to_cluster;    // Hashmap of shown clusters by marker key
+    private MarkerReconciler reconciler = null;         // Keeps markers on the map in step with key_to_cluster
+    private HashMap<Integer, BitmapDescriptor> cluster_icons = new HashMap<>();     // Cluster icons by label
+    private ClusterEngine clusterEngine = null;         // Clusters of the loaded photos
+    private TimelineIndex timeline = null;              // Loaded photos sorted by time
+    private BuildClustersTask buildTask = null;         // Task building clusterEngine and timeline
+    private ThumbnailCache thumbnailCache = null;       // Decoded thumbnails for info windows
+    private MarkerIconCache markerIcons = null;         // Thumbnail icons of lone photos' markers
+    private Long selected = null;                       // Id of currently selected photo
     private View customInfoWindow;                      // View used by getWindowInfo() to generate custom info windows
     private LatLng startLatLng = null;                  // Position to start map at
+    private Bundle loadedBounds = null;                 // Bounding box currently loaded, as loader args
+    private SeekBar fromBar = null;                     // Timeline slider for start of time range
+    private SeekBar toBar = null;                       // Timeline slider for end of time range
+    private TextView timelineLabel = null;              // Shows the time range
+    private int fromProgress = 0;                       // Start of time range, in steps along the timeline
+    private int toProgress = TIMELINE_STEPS;            // End of time range, in steps along the timeline
+    private LatLng awaited = null;                      // Position of shared photo whose marker hasn't been shown
+    private long awaitedSince = 0;                      // Time the awaited photo was shared, in elapsedRealtime()
+    private NearestPhotosTask nearestTask = null;       // Task finding the photos nearest a long press
+    private boolean heatmapEnabled = false;             // Showing the heatmap instead of markers
+    private HeatmapTileProvider heatmapProvider = null; // Draws the heatmap tiles, while heatmap is shown
+    private TileOverlay heatmapOverlay = null;          // Heatmap tiles on the map, while heatmap is shown
+    private final SimpleDateFormat dateFormat = utcFormat("yyyy:MM:dd");    // Formats info window dates
+    private final SimpleDateFormat timeFormat = utcFormat("HH:mm:ss");      // Formats info window times
+    private final SimpleDateFormat labelFormat = utcFormat("yyyy-MM-dd");   // Formats timeline label dates
 
     /** Constructor */
     public PhotoMapFragment() {
@@ -81,11 +179,27 @@ public class PhotoMapFragment extends MapFragment implements LoaderManager.Loade
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setRetainInstance(true);    // Don't kill map fragment on rotate
+        thumbnailCache = new ThumbnailCache(getActivity());
+        markerIcons = new MarkerIconCache(thumbnailCache, new MarkerIconCache.Listener() {
+            @Override
+            public void onIconReady(long id, BitmapDescriptor icon) {
+                if (reconciler != null) reconciler.setIcon(id, icon);
+            }
+        });
 
         /* On first create, start us at user's location */
         startLatLng = ((PhotoMapperActivity)getActivity()).getUserLatLng();
     }
 
+    /** Stops loading thumbnails and heatmap data. */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        thumbnailCache.shutdown();
+        markerIcons.shutdown();
+        if (heatmapProvider != null) heatmapProvider.stop();
+    }
+
     /**
      * Sets up the {@link GoogleMap} view and the cursor loader which is providing it the photo data.
      *
@@ -98,8 +212,21 @@ public class PhotoMapFragment extends MapFragment implements LoaderManager.Loade
         /* Set up info window view */
         customInfoWindow = getActivity().getLayoutInflater().inflate(R.layout.photo_info_window, null);
 
-        /* Set up cursor loader */
-        getActivity().getLoaderManager().initLoader(0, null, this);
+        /* Set up timeline. The fragment is retained, so restore the range from before any rotation */
+        fromBar = (SeekBar) getActivity().findViewById(R.id.timeline_from);
+        toBar = (SeekBar) getActivity().findViewById(R.id.timeline_to);
+        timelineLabel = (TextView) getActivity().findViewById(R.id.timeline_label);
+        fromBar.setMax(TIMELINE_STEPS);
+        toBar.setMax(TIMELINE_STEPS);
+        fromBar.setProgress(fromProgress);
+        toBar.setProgress(toProgress);
+        fromBar.setOnSeekBarChangeListener(this);
+        toBar.setOnSeekBarChangeListener(this);
+        updateTimelineLabel();
+        getActivity().findViewById(R.id.timeline).setVisibility(heatmapEnabled ? View.GONE : View.VISIBLE);
+
+        /* Re-connect to cursor loader. It is first started once the map knows its visible region */
+        if (loadedBounds != null) getActivity().getLoaderManager().initLoader(0, loadedBounds, this);
 
         /* Set up map */
         if (map == null) map = getMap();
@@ -111,13 +238,27 @@ public class PhotoMapFragment extends MapFragment implements LoaderManager.Loade
         /* Use our custom info window */
         map.setInfoWindowAdapter(this);
 
+        /* Markers are managed by the reconciler. Lone photos show their thumbnail, or the default marker until then */
+        reconciler = new MarkerReconciler(map, new MarkerReconciler.IconFactory() {
+            @Override
+            public BitmapDescriptor getIcon(ClusterEngine.Cluster cluster) {
+                if (cluster.count > 1) return getClusterIcon(cluster.count);
+                return markerIcons.get(cluster.photoId, getStackCount(cluster.photoId));
+            }
+        });
+
         /* Use our custom listeners */
         map.setOnMarkerClickListener(this);
         map.setOnMapClickListener(this);
+        map.setOnMapLongClickListener(this);
+        map.setOnCameraChangeListener(this);
 
         /* Set up map options */
         map.setMyLocationEnabled(true);
 
+        /* The map is kept across rotations, but the overlay's provider isn't */
+        if (heatmapEnabled && heatmapOverlay == null) showHeatmap();
+
         /* Centre map over shared image or over current location, depending on if app started by share intent */
         if (startLatLng != null) {
             map.moveCamera(CameraUpdateFactory.newLatLngZoom(startLatLng, START_ZOOM));
@@ -128,97 +269,569 @@ public class PhotoMapFragment extends MapFragment implements LoaderManager.Loade
     /**
      * Updates the {@link GoogleMap}'s camera to centre around the given position.
      * <p>
-     * Must be called before {@link #onActivityCreated(Bundle)}, i.e. in the activity's onCreate() method.
+     * If the map hasn't been set up yet, it starts at this position instead of the user's location.
      *
      * @param latlng Position to move camera to.
      */
     protected void updateCamera(LatLng latlng) {
         Log.d(TAG, "updateCamera() called");
-        startLatLng = latlng;
+        if (map != null) map.animateCamera(CameraUpdateFactory.newLatLngZoom(latlng, START_ZOOM));
+        else startLatLng = latlng;
+    }
+
+    /** Returns true if the heatmap is shown instead of markers. */
+    protected boolean isHeatmapEnabled() {
+        return heatmapEnabled;
+    }
+
+    /**
+     * Switches between showing the heatmap of the whole library and showing markers for the photos in view. The
+     * timeline only filters markers, so it is hidden while the heatmap is shown.
+     */
+    protected void setHeatmapEnabled(boolean enabled) {
+        if (enabled == heatmapEnabled) return;
+        heatmapEnabled = enabled;
+        getActivity().findViewById(R.id.timeline).setVisibility(enabled ? View.GONE : View.VISIBLE);
+
+        if (enabled) {
+            if (reconciler != null) reconciler.clear();
+            if (map != null) showHeatmap();
+        } else {
+            if (heatmapOverlay != null) heatmapOverlay.remove();
+            heatmapOverlay = null;
+            if (heatmapProvider != null) heatmapProvider.stop();
+            heatmapProvider = null;
+            showClusters();
+        }
+    }
+
+    /** Adds the heatmap overlay to the map. Its tiles are fetched again whenever the photos change. */
+    private void showHeatmap() {
+        heatmapProvider = new HeatmapTileProvider(getActivity(), new HeatmapTileProvider.Listener() {
+            @Override
+            public void onTilesChanged() {
+                if (heatmapOverlay != null) heatmapOverlay.clearTileCache();
+            }
+        });
+        heatmapOverlay = map.addTileOverlay(new TileOverlayOptions().tileProvider(heatmapProvider));
+        heatmapProvider.start();
+    }
+
+    /**
+     * Records the time until a marker is shown at the given position in {@link Perf#SHARE_TO_MARKER}. Used to measure
+     * the time from an image being shared to its marker appearing.
+     *
+     * @param latlng Position of the shared photo.
+     * @param sharedAt Time the photo was shared, in {@link SystemClock#elapsedRealtime()}.
+     */
+    protected void awaitMarker(LatLng latlng, long sharedAt) {
+        awaited = latlng;
+        awaitedSince = sharedAt;
+        showClusters();
+    }
+
+    /**
+     * Draws the clusters for the new camera position, then loads photos in the new visible region if it isn't inside
+     * the region which has already been loaded.
+     */
+    @Override
+    public void onCameraChange(CameraPosition position) {
+        showClusters();
+
+        LatLngBounds visible = map.getProjection().getVisibleRegion().latLngBounds;
+        if (loadedBounds != null && containsBounds(loadedBounds, visible)) return;
+
+        /* Pad the region so small pans don't need a re-query */
+        double south = visible.southwest.latitude, north = visible.northeast.latitude;
+        double west = visible.southwest.longitude, east = visible.northeast.longitude;
+        double latPad = (north - south) * BOUNDS_PADDING;
+        double lngSpan = (west <= east) ? east - west : east + 360 - west;
+        double lngPad = lngSpan * BOUNDS_PADDING;
+
+        Bundle args = new Bundle();
+        args.putDouble(ARG_SOUTH, Math.max(-90, south - latPad));
+        args.putDouble(ARG_NORTH, Math.min(90, north + latPad));
+        if (lngSpan + 2 * lngPad >= 360) {
+            args.putDouble(ARG_WEST, -180);
+            args.putDouble(ARG_EAST, 180);
+        } else {
+            args.putDouble(ARG_WEST, wrapLongitude(west - lngPad));
+            args.putDouble(ARG_EAST, wrapLongitude(east + lngPad));
+        }
+        args.putDouble(ARG_CENTRE_LATITUDE, position.target.latitude);
+        args.putDouble(ARG_CENTRE_LONGITUDE, position.target.longitude);
+
+        Log.d(TAG, "Loading photos in bounds " + args);
+        loadedBounds = args;
+        getActivity().getLoaderManager().restartLoader(0, args, this);
     }
 
-    /** Creates cursor loader for automatic database queries. */
+    /** Returns true if the loader bounds contain the visible bounds. */
+    private static boolean containsBounds(Bundle outer, LatLngBounds inner) {
+        return outer.getDouble(ARG_SOUTH) <= inner.southwest.latitude
+                && outer.getDouble(ARG_NORTH) >= inner.northeast.latitude
+                && containsLongitude(outer, inner.southwest.longitude)
+                && containsLongitude(outer, inner.northeast.longitude);
+    }
+
+    /** Returns true if the loader bounds contain the longitude. */
+    private static boolean containsLongitude(Bundle bounds, double longitude) {
+        double west = bounds.getDouble(ARG_WEST), east = bounds.getDouble(ARG_EAST);
+        if (west <= east) return west <= longitude && longitude <= east;
+        return longitude >= west || longitude <= east;     // Crosses antimeridian
+    }
+
+    /** Wraps a longitude into [-180, 180]. */
+    private static double wrapLongitude(double longitude) {
+        if (longitude < -180) return longitude + 360;
+        if (longitude > 180) return longitude - 360;
+        return longitude;
+    }
+
+    /**
+     * Creates paged loader for automatic database queries of the photos within the bounds given by args, nearest the
+     * centre first.
+     */
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return new CursorLoader(getActivity(), PhotoProvider.CONTENT_URI, PHOTO_PROJECTION, "", null, "");
+    public Loader<PhotoIndex> onCreateLoader(int id, Bundle args) {
+        Uri uri = PhotoProvider.withStacks(PhotoProvider.buildBoundsUri(args.getDouble(ARG_SOUTH),
+                args.getDouble(ARG_WEST), args.getDouble(ARG_NORTH), args.getDouble(ARG_EAST)));
+        return new PagedPhotoLoader(getActivity(), uri, PHOTO_PROJECTION, args.getDouble(ARG_CENTRE_LATITUDE),
+                args.getDouble(ARG_CENTRE_LONGITUDE));
     }
 
-    /** Callback which populates the  {@link GoogleMap} with photos when data set changes. */
+    /**
+     * Callback which clusters the photos when data set changes, or when the loader has read another page. The clusters
+     * are drawn once they have been built.
+     */
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        /* Get all photos from the database */
-        photos = PhotoDBHelper.getAllPhotos(cursor);
-
-        Log.d(TAG, "Loading " + ((photos == null) ? 0 : photos.size()) + " photos");
-
-        /* Clear the map */
-        map.clear();
-        marker_to_photo = new HashMap<>();
-        photo_to_marker = new HashMap<>();
-
-        /* Add all photos to the map */
-        if (photos != null) {
-            for (Photo photo : photos) {
-                Log.d(TAG, "Photo: " + photo.uri + " Lat: " + photo.gps_latitude + " Long: " + photo.gps_longitude);
-                Marker mark = map.addMarker(
-                        new MarkerOptions().position(new LatLng(photo.gps_latitude, photo.gps_longitude)));
-                marker_to_photo.put(mark.getId(), photo);
-                photo_to_marker.put(photo.uri, mark);
-            }
+    public void onLoadFinished(Loader<PhotoIndex> loader, PhotoIndex photos) {
+        index = photos;
+
+        Log.d(TAG, "Loading " + index.size() + " photos");
+
+        /* Re-cluster in the background */
+        if (buildTask != null) buildTask.cancel(false);
+        buildTask = new BuildClustersTask(index);
+        buildTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onLoaderReset(Loader<PhotoIndex> loader) {
+        Log.d(TAG, TAG+".onLoaderReset()");
+        if (buildTask != null) buildTask.cancel(false);
+        buildTask = null;
+        index = PhotoIndex.EMPTY;
+        clusterEngine = null;
+        timeline = null;
+        key_to_cluster = null;
+        if (reconciler != null) reconciler.clear();
+    }
+
+    /** Updates the {@link GoogleMap} to show the clusters for the current zoom level and visible region. */
+    private void showClusters() {
+        if (map == null || reconciler == null || clusterEngine == null || heatmapEnabled) return;
+
+        LatLngBounds visible = map.getProjection().getVisibleRegion().latLngBounds;
+        int zoom = (int) map.getCameraPosition().zoom;
+        List<ClusterEngine.Cluster> clusters;
+        if (isTimelineFiltered() && timeline != null) {
+            clusters = timeline.getClusters(getFromTime(), getToTime(), zoom, visible.southwest.latitude,
+                    visible.southwest.longitude, visible.northeast.latitude, visible.northeast.longitude);
+        } else {
+            clusters = clusterEngine.getClusters(zoom, visible.southwest.latitude, visible.southwest.longitude,
+                    visible.northeast.latitude, visible.northeast.longitude);
+        }
+
+        key_to_cluster = new HashMap<>(clusters.size() * 2);
+        for (ClusterEngine.Cluster cluster : clusters) key_to_cluster.put(cluster.key, cluster);
+        long start = Perf.begin(Perf.MARKER_BUILD);
+        try {
+            reconciler.reconcile(clusters);
+        } finally {
+            Perf.end(Perf.MARKER_BUILD, start);
         }
+        loadThumbnails(clusters);
+        if (awaited != null) checkAwaitedMarker(clusters);
 
-        /* Re-select selected marker */
-        if (selected != null) {
+        /* Re-select selected marker, if it's still shown */
+        Marker mark = (selected == null) ? null : reconciler.getMarker(selected);
+        if (mark != null && !mark.isInfoWindowShown()) {
             Log.d(TAG, "re-selecting marker");
-            photo_to_marker.get(selected).showInfoWindow();
+            mark.showInfoWindow();
         }
     }
 
-    /** {@inheritDoc} */
+    /** Records the time since the awaited photo was shared if one of the shown clusters contains it. */
+    private void checkAwaitedMarker(List<ClusterEngine.Cluster> clusters) {
+        for (ClusterEngine.Cluster cluster : clusters) {
+            if (awaited.latitude >= cluster.south - AWAIT_TOLERANCE
+                    && awaited.latitude <= cluster.north + AWAIT_TOLERANCE
+                    && awaited.longitude >= cluster.west - AWAIT_TOLERANCE
+                    && awaited.longitude <= cluster.east + AWAIT_TOLERANCE) {
+                Perf.record(Perf.SHARE_TO_MARKER, (SystemClock.elapsedRealtime() - awaitedSince) * 1000000L);
+                awaited = null;
+                return;
+            }
+        }
+    }
+
+    /** Keeps the timeline range the right way round and re-draws the clusters as a slider is dragged. */
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        Log.d(TAG, TAG+".onLoaderReset()");
-        photos = null;
-        marker_to_photo = null;
-        photo_to_marker = null;
-        map.clear();
+    public void onProgressChanged(SeekBar bar, int progress, boolean fromUser) {
+        if (!fromUser) return;  // Set by us
+        if (bar == fromBar) {
+            fromProgress = progress;
+            if (toProgress < fromProgress) {
+                toProgress = fromProgress;
+                toBar.setProgress(toProgress);
+            }
+        } else {
+            toProgress = progress;
+            if (fromProgress > toProgress) {
+                fromProgress = toProgress;
+                fromBar.setProgress(fromProgress);
+            }
+        }
+
+        updateTimelineLabel();
+        showClusters();
+    }
+
+    /** Not implemented. */
+    @Override
+    public void onStartTrackingTouch(SeekBar bar) {}
+
+    /** Not implemented. */
+    @Override
+    public void onStopTrackingTouch(SeekBar bar) {}
+
+    /** Returns true if the timeline sliders exclude any part of the loaded photos' time range. */
+    private boolean isTimelineFiltered() {
+        return fromProgress > 0 || toProgress < TIMELINE_STEPS;
+    }
+
+    /** Returns the start of the time range, in epoch millis. The timeline spans the loaded photos' times. */
+    private long getFromTime() {
+        return timeline.getMinTime() + (timeline.getMaxTime() - timeline.getMinTime()) * fromProgress / TIMELINE_STEPS;
+    }
+
+    /** Returns the end of the time range, in epoch millis. */
+    private long getToTime() {
+        return timeline.getMinTime() + (timeline.getMaxTime() - timeline.getMinTime()) * toProgress / TIMELINE_STEPS;
+    }
+
+    /** Shows the time range and the number of loaded photos within it. */
+    private void updateTimelineLabel() {
+        if (timelineLabel == null) return;
+        if (!isTimelineFiltered() || timeline == null || timeline.size() == 0) {
+            timelineLabel.setText(R.string.timeline_all_msg);
+            return;
+        }
+
+        long from = getFromTime(), to = getToTime();
+        timelineLabel.setText(getString(R.string.timeline_range_msg, labelFormat.format(new Date(from)),
+                labelFormat.format(new Date(to)), timeline.count(from, to)));
+    }
+
+    /**
+     * Asks for the marker icons of the lone photos nearest the centre of the map, and prefetches the thumbnails of the
+     * nearest few for their info windows.
+     */
+    private void loadThumbnails(List<ClusterEngine.Cluster> clusters) {
+        final LatLng centre = map.getCameraPosition().target;
+        ArrayList<ClusterEngine.Cluster> singles = new ArrayList<>();
+        for (ClusterEngine.Cluster cluster : clusters) {
+            if (cluster.count == 1) singles.add(cluster);
+        }
+
+        Collections.sort(singles, new Comparator<ClusterEngine.Cluster>() {
+            @Override
+            public int compare(ClusterEngine.Cluster a, ClusterEngine.Cluster b) {
+                double da = distanceSq(centre, a), db = distanceSq(centre, b);
+                return (da < db) ? -1 : (da > db) ? 1 : 0;
+            }
+        });
+
+        ArrayList<Long> ids = new ArrayList<>(ICON_COUNT);
+        ArrayList<Integer> stackCounts = new ArrayList<>(ICON_COUNT);
+        for (int i = 0; i < singles.size() && i < ICON_COUNT; i++) {
+            long id = singles.get(i).photoId;
+            ids.add(id);
+            stackCounts.add(getStackCount(id));
+        }
+        markerIcons.request(ids, stackCounts);
+        thumbnailCache.prefetch(ids.subList(0, Math.min(ids.size(), PREFETCH_COUNT)));
+    }
+
+    /** Returns the number of photos in a loaded photo's stack, or 1 if it isn't loaded. */
+    private int getStackCount(long id) {
+        int i = index.indexOf(id);
+        return (i < 0) ? 1 : index.getStackCount(i);
+    }
+
+    /** Returns squared distance in degrees between a point and a cluster, good enough for ordering nearby points. */
+    private static double distanceSq(LatLng point, ClusterEngine.Cluster cluster) {
+        double dLat = cluster.getLatitude() - point.latitude;
+        double dLng = cluster.getLongitude() - point.longitude;
+        return dLat * dLat + dLng * dLng;
+    }
+
+    /**
+     * Returns the icon for a cluster of the given size. Large counts share icons, e.g. "100+", so at most a few hundred
+     * icons are ever created.
+     */
+    private BitmapDescriptor getClusterIcon(int count) {
+        int label = (count < 100) ? count : (count < 1000) ? (count / 100) * 100 : (count / 1000) * 1000;
+        BitmapDescriptor icon = cluster_icons.get(label);
+        if (icon != null) return icon;
+
+        float density = getResources().getDisplayMetrics().density;
+        int size = (int) (CLUSTER_ICON_DP * density);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.argb(220, 33, 150, 243));
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+
+        paint.setColor(Color.WHITE);
+        paint.setTextSize(size / 3f);
+        paint.setTextAlign(Paint.Align.CENTER);
+        String text = (label == count) ? Integer.toString(count) : label + "+";
+        canvas.drawText(text, size / 2f, size / 2f + size / 9f, paint);
+
+        icon = BitmapDescriptorFactory.fromBitmap(bitmap);
+        cluster_icons.put(label, icon);
+        return icon;
+    }
+
+    /**
+     * Builds a {@link ClusterEngine} and {@link TimelineIndex} over the loaded photos in the background, then draws
+     * their clusters.
+     */
+    private class BuildClustersTask extends AsyncTask<Void, Void, ClusterEngine> {
+        private final PhotoIndex photos;
+        private TimelineIndex timelineIndex = null;
+
+        BuildClustersTask(PhotoIndex index) {
+            photos = index;
+        }
+
+        /** Copies the photos' coordinates out of the index, which is immutable, and builds the clusters from them. */
+        @Override
+        protected ClusterEngine doInBackground(Void... params) {
+            long start = Perf.begin(Perf.CLUSTER_BUILD);
+            try {
+                int count = photos.size();
+                long[] ids = new long[count];
+                double[] latitudes = new double[count];
+                double[] longitudes = new double[count];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = photos.getId(i);
+                    latitudes[i] = photos.getLatitude(i);
+                    longitudes[i] = photos.getLongitude(i);
+                }
+
+                /* A newer delivery has replaced these photos, so don't build what won't be shown */
+                if (isCancelled()) return null;
+                timelineIndex = new TimelineIndex(photos);
+                if (isCancelled()) return null;
+                return new ClusterEngine(ids, latitudes, longitudes, count);
+            } finally {
+                Perf.end(Perf.CLUSTER_BUILD, start);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(ClusterEngine engine) {
+            if (buildTask != this) return;
+            buildTask = null;
+            clusterEngine = engine;
+            timeline = timelineIndex;
+            updateTimelineLabel();
+            showClusters();
+        }
     }
 
     /** Not implemented. Returns null. */
     @Override
     public View getInfoWindow(Marker marker) { return null; }
 
-    /** Used to implement custom marker info window. Displays photo and its details. */
+    /**
+     * Used to implement custom marker info window. Displays photo and its details.
+     * <p>
+     * If the photo's thumbnail isn't cached yet it is loaded in the background, and the info window is redrawn once it
+     * arrives.
+     */
     @Override
-    public View getInfoContents(Marker marker) {
+    public View getInfoContents(final Marker marker) {
+        long start = Perf.begin(Perf.INFO_WINDOW);
+        try {
+            return fillInfoWindow(marker);
+        } finally {
+            Perf.end(Perf.INFO_WINDOW, start);
+        }
+    }
+
+    /** Fills in the info window view with the details of the photo shown by a marker. Returns null for clusters. */
+    private View fillInfoWindow(final Marker marker) {
         ImageView photoView     = (ImageView) customInfoWindow.findViewById(R.id.info_window_photo);
         TextView dateView       = (TextView) customInfoWindow.findViewById(R.id.info_window_date);
         TextView timeView       = (TextView) customInfoWindow.findViewById(R.id.info_window_time);
         TextView makeView       = (TextView) customInfoWindow.findViewById(R.id.info_window_make);
         TextView modelView      = (TextView) customInfoWindow.findViewById(R.id.info_window_model);
+        TextView stackView      = (TextView) customInfoWindow.findViewById(R.id.info_window_stack);
 
-        /* Get selected photo's details */
-        Photo photo = marker_to_photo.get(marker.getId());
+        /* Get selected photo's position in the index */
+        int i = getPhotoIndex(marker);
+        if (i < 0) return null;
+        long id = index.getId(i);
+        long takenAt = index.getTakenAt(i);
+        boolean known = (takenAt != PhotoIndex.UNKNOWN_TIME);
 
         /* Update infoWindow with this photo's details */
-        photoView.setImageBitmap(BitmapFactory.decodeByteArray(photo.thumbnail, 0, photo.thumbnail.length));
-        dateView.setText("Date: " + photo.date);
-        timeView.setText("Time: " + photo.time);
-        makeView.setText("Make: " + photo.make);
-        modelView.setText("Model: " + photo.model);
+        Bitmap thumbnail = thumbnailCache.get(id);
+        photoView.setImageBitmap(thumbnail);
+        if (thumbnail == null) {
+            thumbnailCache.load(id, new ThumbnailCache.Callback() {
+                @Override
+                public void onThumbnailLoaded(long id, Bitmap thumbnail) {
+                    if (thumbnail != null && marker.isInfoWindowShown()) marker.showInfoWindow();
+                }
+            });
+        }
+        dateView.setText("Date: " + (known ? dateFormat.format(new Date(takenAt)) : null));
+        timeView.setText("Time: " + (known ? timeFormat.format(new Date(takenAt)) : null));
+        makeView.setText("Make: " + index.getMake(i));
+        modelView.setText("Model: " + index.getModel(i));
+        int stackCount = index.getStackCount(i);
+        stackView.setVisibility((stackCount > 1) ? View.VISIBLE : View.GONE);
+        if (stackCount > 1) stackView.setText(getString(R.string.stack_msg, stackCount));
 
         return customInfoWindow;    // Return updated view
     }
 
-    /** Captures selected marker to retain selection on device rotation. */
+    /** Zooms in on clusters, or captures selected marker to retain selection on device rotation. */
     @Override
     public boolean onMarkerClick(Marker marker) {
-        selected = marker_to_photo.get(marker.getId()).uri;
+        Long key = reconciler.getKey(marker);
+        ClusterEngine.Cluster cluster = (key == null) ? null : key_to_cluster.get(key);
+        if (cluster != null && cluster.count > 1) {
+            expandCluster(cluster);
+            return true;    // Consume event, i.e. don't show an info window
+        }
+
+        selected = key;
         return false;
     }
 
+    /** Returns the index position of the photo shown by a marker, or -1 if the marker is a cluster. */
+    private int getPhotoIndex(Marker marker) {
+        Long key = reconciler.getKey(marker);
+        return (key == null || key < 0) ? -1 : index.indexOf(key);
+    }
+
+    /** Returns a date format which formats the EXIF times held in the {@link PhotoIndex}. */
+    private static SimpleDateFormat utcFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    /** Moves the camera so the cluster's photos fill the map, or zooms in on it if they all share a location. */
+    private void expandCluster(ClusterEngine.Cluster cluster) {
+        LatLng centre = new LatLng(cluster.getLatitude(), cluster.getLongitude());
+        if (cluster.south == cluster.north && cluster.west == cluster.east) {
+            map.animateCamera(CameraUpdateFactory.newLatLngZoom(centre, map.getCameraPosition().zoom + 2));
+        } else {
+            LatLngBounds bounds = new LatLngBounds(new LatLng(cluster.south, cluster.west),
+                    new LatLng(cluster.north, cluster.east));
+            int padding = (int) (CLUSTER_PADDING_DP * getResources().getDisplayMetrics().density);
+            map.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds, padding));
+        }
+    }
+
     /** Invalidates selected marker. */
     @Override
     public void onMapClick(LatLng point) { selected = null; }
 
+    /** Finds the photos nearest the pressed point and shows them. */
+    @Override
+    public void onMapLongClick(LatLng point) {
+        if (nearestTask != null) nearestTask.cancel(false);
+        nearestTask = new NearestPhotosTask(point);
+        nearestTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Queries the photos nearest a point in the background, then moves the camera so they and the point fill the map
+     * and selects the nearest photo, whose info window is shown once its marker is drawn.
+     */
+    private class NearestPhotosTask extends AsyncTask<Void, Void, Cursor> {
+        private final LatLng point;
+        private final ContentResolver resolver;     // Application's, as the fragment may be detached by the query
+
+        NearestPhotosTask(LatLng point) {
+            this.point = point;
+            resolver = getActivity().getApplicationContext().getContentResolver();
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            Uri uri = PhotoProvider.withStacks(PhotoProvider.buildNearUri(point.latitude, point.longitude,
+                    NEAREST_COUNT, Double.POSITIVE_INFINITY));
+            Cursor c = resolver.query(uri, NEAR_PROJECTION, null, null, null);
+            if (c != null) c.getCount();    // Fills the cursor's window off the UI thread
+            return c;
+        }
+
+        @Override
+        protected void onCancelled(Cursor c) {
+            if (c != null) c.close();
+        }
+
+        @Override
+        protected void onPostExecute(Cursor c) {
+            if (nearestTask != this) {
+                if (c != null) c.close();
+                return;
+            }
+            nearestTask = null;
+            if (c == null) return;
+
+            try {
+                if (!c.moveToFirst() || map == null || getActivity() == null) {
+                    if (getActivity() != null) {
+                        Toast.makeText(getActivity(), R.string.nearest_none_msg, Toast.LENGTH_SHORT).show();
+                    }
+                    return;
+                }
+
+                long nearest = c.getLong(0);
+                LatLngBounds.Builder bounds = LatLngBounds.builder().include(point);
+                double furthest = 0;
+                do {
+                    bounds.include(new LatLng(c.getDouble(1), c.getDouble(2)));
+                    furthest = c.getDouble(3);
+                } while (c.moveToNext());
+
+                selected = nearest;     // Shown by showClusters() once its marker is drawn
+                int padding = (int) (CLUSTER_PADDING_DP * getResources().getDisplayMetrics().density);
+                map.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds.build(), padding));
+                Toast.makeText(getActivity(), getString(R.string.nearest_found_msg, c.getCount(),
+                        formatDistance(furthest)), Toast.LENGTH_SHORT).show();
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    /** Formats a distance in metres for display, e.g. "850 m" or "12.3 km". */
+    private static String formatDistance(double metres) {
+        if (metres < 1000) return String.format(Locale.US, "%.0f m", metres);
+        return String.format(Locale.US, "%.1f km", metres / 1000);
+    }
+
 }
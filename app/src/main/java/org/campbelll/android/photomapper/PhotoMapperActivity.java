@@ -2,33 +2,39 @@ package org.campbelll.android.photomapper;
 
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
-import android.content.ContentValues;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
-import android.graphics.Bitmap;
 import android.location.Criteria;
 import android.location.Location;
 import android.location.LocationManager;
 import android.net.Uri;
-import android.provider.MediaStore;
 import android.support.v4.app.FragmentActivity;
+import android.support.v4.content.LocalBroadcastManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.util.Log;
-import android.widget.ImageView;
+import android.os.SystemClock;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.Toast;
 
 import com.google.android.gms.maps.model.LatLng;
 
-import org.campbelll.android.photomapper.db.PhotoDBHelper;
-import org.campbelll.android.photomapper.utility.ExifExtractor;
-import org.campbelll.android.photomapper.utility.Photo;
+import org.campbelll.android.photomapper.db.ImportQueue;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.ImportJobEntry;
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
 
 /**
  * This app accepts share intents containing singular images, extracts GPS (and other) data from the image's EXIF
- * header, and plots the images on a {@link com.google.android.gms.maps.GoogleMap GoogleMap}.
+ * header, and plots the images on a {@link com.google.android.gms.maps.GoogleMap GoogleMap}. Shared images, singular or
+ * multiple, are only queued here. They are imported in the background by the {@link ImportService}, so the app starts
+ * immediately however slow the import is.
  * <p>
  * This app uses an underlying database to store the shared image's EXIF data, as well as a compressed thumbnail of the
  * image. If a user selects a marker on the GoogleMap the thumbnail of the image and the image's details are displayed
@@ -41,9 +47,13 @@ public class PhotoMapperActivity extends FragmentActivity {
     private static final String TAG = "PhotoMapperActivity";
     private static final String MAP_FRAGMENT_TAG = "PhotoMapFragment";
 
+    /* Saved state */
+    private static final String STATE_SHARED_URI = "sharedUri";
+    private static final String STATE_SHARED_AT = "sharedAt";
+
     /* Members */
-    private boolean shareReceived = false;  // Indicates app started by share intent
-    private LatLng sharedLoc = null;        // Lat and long of image which has just been shared
+    private Uri sharedUri = null;           // Image shared to start the app, until it has been imported
+    private long sharedAt = 0;              // Time of the share intent, in SystemClock.elapsedRealtime()
 
     /* Fragments */
     private PhotoMapFragment photoMapFragment = null;
@@ -57,6 +67,13 @@ public class PhotoMapperActivity extends FragmentActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        if (savedInstanceState != null) {
+            sharedUri = savedInstanceState.getParcelable(STATE_SHARED_URI);
+            sharedAt = savedInstanceState.getLong(STATE_SHARED_AT);
+        } else {
+            ImportService.resume(this);     // Carry on with any import that was interrupted
+        }
+
         /* Get launching intent */
         Intent intent = getIntent();
         String action = intent.getAction();
@@ -65,6 +82,8 @@ public class PhotoMapperActivity extends FragmentActivity {
         /* Parse intent type */
         if (Intent.ACTION_SEND.equals(action) && type != null) {
             handleShareIntent(intent);  // Handle share intent and then launch app
+        } else if (Intent.ACTION_SEND_MULTIPLE.equals(action) && type != null) {
+            handleShareMultipleIntent(intent);
         } else {
             handleMainIntent();         // Launch app normally
         }
@@ -93,77 +112,182 @@ public class PhotoMapperActivity extends FragmentActivity {
             ft.commit();
             fragmentManager.executePendingTransactions();
         }
-
-        /* If started from a share intent, centre map over shared image */
-        if (shareReceived) {
-            shareReceived = false;
-            photoMapFragment.updateCamera(sharedLoc);
-        }
     }
 
     /**
      * Perform image share intent handling.
      * <p>
-     * If image contained in the share intent contains valid EXIF GPS data, add image to the photo database and
-     * continue launching app as normal. If Image doesn't have valid GPS data, display an error screen.
+     * The image is added to the {@link ImportQueue} in the background and the {@link ImportService} started, and the
+     * app continues launching as normal. Once the image has been imported the map is centred over it, or if it doesn't
+     * contain valid GPS data an error is shown.
      *
      * @param intent Image share intent being handled.
      */
     private void handleShareIntent(Intent intent) {
-        /* Extract image URI from intent and get file system path for image */
         Uri imageUri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
-        String path = getPath(imageUri);
-        Log.d(TAG, "getPath(): " + path);
 
-        /* Try and get EXIF data */
-        Photo photo = null;
-        try { photo = ExifExtractor.extract(Uri.parse(path)); }
-        catch (IOException e) { Log.e(TAG, "Failed to open file "+path, e); }
-        Log.d(TAG, "Exif data " + ((photo == null) ? "WASN'T" : "WAS") + " present");
-
-        if (photo != null) {
-            /* Get thumbnail of image */
-            try {
-                Bitmap bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), imageUri);
-                Bitmap thumbnail = bitmap.createScaledBitmap(bitmap, 512, 384, false);
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                thumbnail.compress(Bitmap.CompressFormat.JPEG, 50, bout);   // Do a bit of compression on thumbnail
-                photo.thumbnail = bout.toByteArray();
-            } catch (IOException e) { Log.e(TAG, "couldn't get thumbnail of " + imageUri.toString(), e); }
-
-            /* Add photo to db if it contains valid GPS EXIF data */
-            ContentValues cv = PhotoDBHelper.getContentValues(photo);
-            getContentResolver().insert(PhotoProvider.CONTENT_URI, cv);
-
-            /* We will centre the map over the shared image */
-            shareReceived = true;
-            sharedLoc = new LatLng(photo.gps_latitude, photo.gps_longitude);
-
-            /* Clear intent so it isn't processed again, e.g on screen rotate */
-            intent.setAction("");
-
-            /* Continue launching app as normal */
-            handleMainIntent();
-        } else {
-            /* If no exif data, display error */
-            setContentView(R.layout.error_no_exif_data);
-            ImageView imageView = (ImageView)findViewById(R.id.error_no_exif_data_image);
-            imageView.setImageURI(imageUri);
+        if (imageUri != null) {
+            sharedUri = imageUri;
+            sharedAt = SystemClock.elapsedRealtime();
+            new ShareTask(imageUri, true).execute();
         }
+
+        /* Clear intent so it isn't processed again, e.g on screen rotate */
+        intent.setAction("");
+
+        /* Continue launching app as normal */
+        handleMainIntent();
     }
 
     /**
-     * Uses the {@link MediaStore} to get the file path of a photo from its content// type URI.
+     * Perform multiple image share intent handling.
+     * <p>
+     * The images are handed to the {@link ImportService} to be imported in the background, and the app continues
+     * launching as normal. Photos are plotted on the map as they are added to the photo database.
      *
-     * @param imageUri content// type URI for an image.
-     * @return File system URI for the image.
+     * @param intent Multiple image share intent being handled.
+     */
+    private void handleShareMultipleIntent(Intent intent) {
+        ArrayList<Uri> imageUris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+
+        if (imageUris != null && !imageUris.isEmpty()) ImportService.enqueue(this, imageUris);
+
+        /* Clear intent so it isn't processed again, e.g on screen rotate */
+        intent.setAction("");
+
+        /* Continue launching app as normal */
+        handleMainIntent();
+    }
+
+    /**
+     * Listens for imports finishing, and checks whether the shared image has been imported, as the import may have
+     * finished while the app was paused.
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        LocalBroadcastManager.getInstance(this).registerReceiver(importReceiver,
+                new IntentFilter(ImportService.ACTION_FINISHED));
+        if (sharedUri != null) new ShareTask(sharedUri, false).execute();
+    }
+
+    /** Stops listening for imports finishing. */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(importReceiver);
+    }
+
+    /** Saves the shared image we're waiting to be imported, if any. */
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_SHARED_URI, sharedUri);
+        outState.putLong(STATE_SHARED_AT, sharedAt);
+    }
+
+    /**
+     * Shows the results of an import. If the app was started by a share intent, checks whether the shared image was
+     * imported instead.
+     */
+    private final BroadcastReceiver importReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (sharedUri != null) {
+                new ShareTask(sharedUri, false).execute();
+                return;
+            }
+
+            int imported = intent.getIntExtra(ImportService.EXTRA_IMPORTED, 0);
+            int total = imported + intent.getIntExtra(ImportService.EXTRA_SKIPPED, 0)
+                    + intent.getIntExtra(ImportService.EXTRA_FAILED, 0);
+            String msg = getString(R.string.import_finished_msg, imported, total);
+            Toast.makeText(PhotoMapperActivity.this, msg, Toast.LENGTH_LONG).show();
+        }
+    };
+
+    /**
+     * Looks up the shared image in the {@link ImportQueue}, and once its job has finished, in the photo database. The
+     * map is then centred over the photo or, if it wasn't imported, an error is shown. Optionally queues the image and
+     * starts the {@link ImportService} first.
+     * <p>
+     * Tasks run one at a time, in the order they're executed, so a check never runs before the image has been queued.
      */
-    private String getPath(Uri imageUri) {
-        String[] projection = { MediaStore.Images.Media.DATA };
-        Cursor c = getContentResolver().query(imageUri, projection, null, null, null);
-        int dataCol = c.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-        c.moveToFirst();
-        return c.getString(dataCol);
+    private class ShareTask extends AsyncTask<Void, Void, LatLng> {
+        private final Uri imageUri;
+        private final boolean enqueue;          // Queue the image before checking it
+        private boolean pending = false;        // Image is still waiting to be imported, or retried
+
+        ShareTask(Uri imageUri, boolean enqueue) {
+            this.imageUri = imageUri;
+            this.enqueue = enqueue;
+        }
+
+        /** Returns the location of the shared photo, or null if it is pending or wasn't imported. */
+        @Override
+        protected LatLng doInBackground(Void... params) {
+            ImportQueue queue = ImportQueue.getInstance(PhotoMapperActivity.this);
+            if (enqueue) {
+                queue.enqueue(Collections.singletonList(imageUri));
+                ImportService.resume(PhotoMapperActivity.this);
+            }
+            int state = queue.getState(imageUri);
+            if (state == ImportJobEntry.STATE_PENDING || state == ImportJobEntry.STATE_RUNNING) {
+                pending = true;
+                return null;
+            }
+
+            Cursor c = getContentResolver().query(PhotoProvider.CONTENT_URI,
+                    new String[] { PhotoEntry.COL_GPS_LATITUDE, PhotoEntry.COL_GPS_LONGITUDE },
+                    PhotoEntry.COL_URI + "=?", new String[] { imageUri.toString() }, null);
+            if (c == null) return null;
+            try {
+                return c.moveToFirst() ? new LatLng(c.getDouble(0), c.getDouble(1)) : null;
+            } finally {
+                c.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(LatLng latlng) {
+            if (pending || !imageUri.equals(sharedUri)) return;
+            sharedUri = null;
+
+            if (latlng == null) {
+                Toast.makeText(PhotoMapperActivity.this, R.string.error_no_exif_data_msg, Toast.LENGTH_LONG).show();
+            } else if (photoMapFragment != null) {
+                photoMapFragment.updateCamera(latlng);
+                photoMapFragment.awaitMarker(latlng, sharedAt);
+            }
+        }
+    }
+
+    /** Adds the options menu. */
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_photo_mapper, menu);
+        return true;
+    }
+
+    /** Ticks the heatmap item if the heatmap is shown. */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_heatmap).setChecked(photoMapFragment != null && photoMapFragment.isHeatmapEnabled());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    /** Toggles the heatmap or opens the performance stats screen. */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_heatmap) {
+            if (photoMapFragment != null) photoMapFragment.setHeatmapEnabled(!item.isChecked());
+            item.setChecked(!item.isChecked());
+            return true;
+        } else if (item.getItemId() == R.id.action_perf_stats) {
+            startActivity(new Intent(this, PerfStatsActivity.class));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
     }
 
     /**
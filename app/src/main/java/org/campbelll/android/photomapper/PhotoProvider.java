@@ -1,14 +1,42 @@
 package org.campbelll.android.photomapper;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
+import org.campbelll.android.photomapper.db.Migrations;
 import org.campbelll.android.photomapper.db.PhotoDBHelper;
+import org.campbelll.android.photomapper.db.PhotoWriter;
+import org.campbelll.android.photomapper.db.PointSnapshot;
+import org.campbelll.android.photomapper.db.ThumbnailStore;
+import org.campbelll.android.photomapper.utility.GeoGrid;
+import org.campbelll.android.photomapper.utility.KdTree;
+import org.campbelll.android.photomapper.utility.NearTree;
+import org.campbelll.android.photomapper.utility.Perf;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
 import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
 
@@ -16,7 +44,50 @@ import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
  * This is the content provider for org.campbelll.android.photomapper.PhotoProvider.
  * <p>
  * Responds to queries for all photos via "content://org.campbelll.android.photomapper.PhotoProvider/photos" to return
- * all photos in the underlying photo database, and responds to inserts to add photos to the underlying database.
+ * all photos in the underlying photo database, and responds to inserts to add photos to the underlying database. A
+ * single photo can be queried, updated or deleted via its uri, "photos/#", see {@link #getPhotoUri(long)}. Queries
+ * only read the columns of their projection, which may only name columns of {@link PhotoEntry}.
+ * <p>
+ * Photos within a bounding box can be queried via
+ * "content://org.campbelll.android.photomapper.PhotoProvider/photos/bbox?south=..&west=..&north=..&east=..", see
+ * {@link #buildBoundsUri(double, double, double, double)}. These queries use the spatial index on
+ * {@link PhotoEntry#COL_GRID_CELL}, so their cost depends on the number of photos in the box rather than in the
+ * database.
+ * <p>
+ * The photos nearest a point, or within a distance of it, can be queried via
+ * "content://org.campbelll.android.photomapper.PhotoProvider/photos/near?lat=..&lng=..&k=..&radius=..", see
+ * {@link #buildNearUri(double, double, int, double)}. These are answered from an in-memory {@link NearTree} of every
+ * photo's location and return great circle distances in {@link #COL_DISTANCE}.
+ * <p>
+ * Either kind of query can be limited to photos taken within a time range with the "from" and "to" query parameters,
+ * see {@link #withTimeRange(Uri, long, long)}. These use the index on {@link PhotoEntry#COL_TAKEN_AT}. The number of
+ * rows returned can be capped with the "limit" query parameter, see {@link #withLimit(Uri, int)}, which together with
+ * a selection on {@link PhotoEntry#_ID} lets large results be read a page at a time. Rows can also be skipped with the
+ * "offset" query parameter, see {@link #withLimit(Uri, int, int)}.
+ * <p>
+ * Near-duplicate photos, e.g. burst shots, are grouped into stacks as they are inserted, see
+ * {@link org.campbelll.android.photomapper.db.PhotoStacks}. Any query can be limited to one photo per stack, each
+ * with the number of photos in its stack in {@link PhotoEntry#COL_STACK_COUNT}, with the "stacked" query parameter,
+ * see {@link #withStacks(Uri)}.
+ * <p>
+ * Thumbnails are kept out of the database in a {@link ThumbnailStore}. They are streamed via
+ * "content://org.campbelll.android.photomapper.PhotoProvider/photos/#/thumbnail", see {@link #getThumbnailUri(long)}
+ * and {@link #openFile(Uri, String)}. A write's thumbnails are stored before it is made, and a thumbnail is deleted
+ * once no photo uses it, which is checked on the {@link PhotoWriter}'s thread, so no other write can start using it
+ * before it is deleted.
+ * <p>
+ * Each file is only stored once, as {@link PhotoEntry#COL_URI} is unique. Inserting a photo whose uri is already stored
+ * updates the existing row in place, keeping its id, rather than adding a duplicate. Rows can also be updated with
+ * {@link #update(Uri, ContentValues, String, String[])}, which only changes the columns given.
+ * <p>
+ * Batches of photos can be added in a single transaction with {@link #bulkInsert(Uri, ContentValues[])} or
+ * {@link #applyBatch(ArrayList)}. Every write is made on the {@link PhotoWriter}'s thread, and with write-ahead
+ * logging, see {@link org.campbelll.android.photomapper.db.StorageProfile}, queries don't wait for its transactions.
+ * <p>
+ * Observers aren't notified directly. The ids of the photos written are recorded in the {@link PhotoChangeLog}, which
+ * notifies observers of the changed photos' uris and the collection uri once writes pause, so a burst of writes causes
+ * one notification rather than one per write. Observers can then re-read only the changed photos. The ids are also
+ * passed on to the {@link PointSnapshot}, which keeps its copy of the photos' locations up to date in the background.
  *
  * @author Campbell Lockley
  */
@@ -26,86 +97,1009 @@ public class PhotoProvider extends ContentProvider {
 
     /* Uri match types. */
     private static final int ALL = 0;
+    private static final int BBOX = 1;
+    private static final int THUMBNAIL = 2;
+    private static final int ROW = 3;
+    private static final int NEAR = 4;
 
     /* Content provider uri */
     public static final String AUTHORITY = "org.campbelll.android.photomapper.PhotoProvider";
     public static final Uri CONTENT_URI = Uri.parse("content://"+AUTHORITY+"/photos");
+    public static final Uri BBOX_URI = Uri.withAppendedPath(CONTENT_URI, "bbox");
+    public static final Uri NEAR_URI = Uri.withAppendedPath(CONTENT_URI, "near");
+
+    /* Bounding box query parameters, in degrees */
+    public static final String PARAM_SOUTH = "south";
+    public static final String PARAM_WEST = "west";
+    public static final String PARAM_NORTH = "north";
+    public static final String PARAM_EAST = "east";
+
+    /* Near query parameters. The point is in degrees and the radius in metres */
+    public static final String PARAM_LATITUDE = "lat";
+    public static final String PARAM_LONGITUDE = "lng";
+    public static final String PARAM_COUNT = "k";
+    public static final String PARAM_RADIUS = "radius";
+
+    /** Column of near query results holding each photo's great circle distance from the point, in metres. */
+    public static final String COL_DISTANCE = "distance";
+
+    /* Time range query parameters, in epoch millis, inclusive */
+    public static final String PARAM_FROM = "from";
+    public static final String PARAM_TO = "to";
+
+    /* Set to "true" to return only the original of each stack of near-duplicates */
+    public static final String PARAM_STACKED = "stacked";
+
+    /* Maximum number of rows to return, and number of rows to skip first */
+    public static final String PARAM_LIMIT = "limit";
+    public static final String PARAM_OFFSET = "offset";
+
+    /* MIME types */
+    public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.org.campbelll.photo";
+    public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.org.campbelll.photo";
+    public static final String THUMBNAIL_TYPE = "image/jpeg";
+
+    /* Columns which can be queried. Null projections return all of them */
+    private static final String[] COLUMNS = new String[] {
+            PhotoEntry._ID,
+            PhotoEntry.COL_URI,
+            PhotoEntry.COL_THUMBNAIL_HASH,
+            PhotoEntry.COL_GPS_LATITUDE,
+            PhotoEntry.COL_GPS_LATITUDE_REF,
+            PhotoEntry.COL_GPS_LONGITUDE,
+            PhotoEntry.COL_GPS_LONGITUDE_REF,
+            PhotoEntry.COL_DATE,
+            PhotoEntry.COL_TIME,
+            PhotoEntry.COL_MAKE,
+            PhotoEntry.COL_MODEL,
+            PhotoEntry.COL_GRID_CELL,
+            PhotoEntry.COL_FILE_SIZE,
+            PhotoEntry.COL_FILE_MODIFIED,
+            PhotoEntry.COL_CONTENT_HASH,
+            PhotoEntry.COL_TAKEN_AT,
+            PhotoEntry.COL_PERCEPTUAL_HASH,
+            PhotoEntry.COL_DUPLICATE_OF,
+            PhotoEntry.COL_STACK_COUNT
+    };
+
+    /* Columns which can be queried, mapped to themselves */
+    private static final HashMap<String, String> PROJECTION_MAP = new HashMap<>();
+    static {
+        for (String column : COLUMNS) {
+            PROJECTION_MAP.put(column, column);
+        }
+    }
+
+    /* Columns which are kept by the writer's stacks of near-duplicates, so can't be updated */
+    private static final String[] STACK_COLUMNS = new String[] {
+            PhotoEntry.COL_PERCEPTUAL_HASH,
+            PhotoEntry.COL_DUPLICATE_OF,
+            PhotoEntry.COL_STACK_COUNT
+    };
+
+    /* Columns which only record the state of a photo's file. Changing only these doesn't notify observers */
+    private static final String[] FINGERPRINT_COLUMNS = new String[] {
+            PhotoEntry.COL_FILE_SIZE,
+            PhotoEntry.COL_FILE_MODIFIED,
+            PhotoEntry.COL_CONTENT_HASH
+    };
+
+    /* Where clause of stacked queries, which only return the original of each stack */
+    private static final String STACKED = PhotoEntry.COL_DUPLICATE_OF + " IS NULL";
+
+    /* Bounding boxes spanning more grid rows than this are filtered by coordinates alone */
+    private static final int MAX_GRID_ROWS = 64;
+
+    /* Ids per query of the photos found by a near query */
+    private static final int MAX_QUERY_IDS = 500;
+
+    /* Factor a near query's search grows by when its filter leaves fewer photos than asked for */
+    private static final int NEAR_GROWTH = 4;
+
+    /* Photos changed since the near tree was built before it is rebuilt rather than updated */
+    private static final int MAX_NEAR_CHANGES = 512;
+
+    /* Pause between batches of the tasks left by a database upgrade, so imports and deletes aren't held up */
+    private static final long MIGRATION_PAUSE_MS = 50;
 
     /* Uri matcher */
     private UriMatcher uriMatcher = null;
 
+    /* Set while applyBatch() is running on a thread so that per-operation changes are recorded once for the batch */
+    private final ThreadLocal<Boolean> inBatch = new ThreadLocal<>();
+
+    /* Thumbnails the batch applyBatch() is running on a thread may leave unused, checked once the batch has ended */
+    private final ThreadLocal<ArrayList<String>> batchThumbnails = new ThreadLocal<>();
+
+    /* Writes not yet made which use each thumbnail stored for them, so it isn't deleted, guarded by itself */
+    private final HashMap<String, Integer> pendingThumbnails = new HashMap<>();
+
+    /* Locations of every photo for near queries, and the change log sequence number they are at, guarded by nearLock */
+    private final Object nearLock = new Object();
+    private NearTree nearTree = null;
+    private long nearTreeSequence = 0;
+
     /** Sets up the {@link UriMatcher}. Returns true if an instance of {@link PhotoDBHelper} exists. */
     @Override
     public boolean onCreate() {
         /* Setup uri matcher to match our content provider */
         uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         uriMatcher.addURI(AUTHORITY, "photos", ALL);
+        uriMatcher.addURI(AUTHORITY, "photos/bbox", BBOX);
+        uriMatcher.addURI(AUTHORITY, "photos/near", NEAR);
+        uriMatcher.addURI(AUTHORITY, "photos/#", ROW);
+        uriMatcher.addURI(AUTHORITY, "photos/#/thumbnail", THUMBNAIL);
 
         /* Check if PhotoDBHelper exists */
         boolean result = (PhotoDBHelper.getInstance(getContext()) != null);
 
+        if (result) runMigrationTasks();
         return result;
     }
 
+    /**
+     * Runs the tasks left by a database upgrade, see {@link Migrations}, a batch at a time on the writer thread. The
+     * database is opened, and so upgraded, by the first batch, off the main thread. Observers are told the photos have
+     * changed once the tasks are done, as photos may have been filled in, stacked or, if they were duplicates, deleted.
+     */
+    private void runMigrationTasks() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                final ThumbnailStore store = ThumbnailStore.getInstance(getContext());
+                final PhotoWriter writer = PhotoWriter.getInstance(getContext());
+                PhotoWriter.Task<Boolean, RuntimeException> batch = new PhotoWriter.Task<Boolean, RuntimeException>() {
+                    @Override
+                    public Boolean run(SQLiteDatabase db) {
+                        return Migrations.runBatch(db, store, writer.getStacks());
+                    }
+                };
+
+                int batches = 0;
+                try {
+                    while (writer.execute(batch)) {
+                        batches++;
+                        SystemClock.sleep(MIGRATION_PAUSE_MS);
+                    }
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Migration task failed, it will be run again next time", e);
+                }
+                if (batches > 0) {
+                    Log.d(TAG, "Ran " + batches + " batches of migration tasks");
+                    allPhotosChanged();
+                }
+            }
+        }, "Migrations").start();
+    }
+
     /**
      * Handles queries.
      * <p>
-     * Only responds to requests for all photos, i.e. the request
+     * Responds to requests for all photos, i.e. the request
      * "content://org.campbelll.android.photomapper.PhotoProvider/photos" will return a cursor containing all data for
-     * every photo in the database.
-     *
+     * every photo in the database, to requests for a single photo, i.e. "photos/#", to bounding box requests built
+     * by {@link #buildBoundsUri(double, double, double, double)} and to requests for the photos nearest a point built
+     * by {@link #buildNearUri(double, double, int, double)}.
+     * <p>
+     * Only the columns asked for are read. Projections may only name columns of {@link PhotoEntry}, and selections are
+     * checked to be a single expression, so callers can't read other tables. Values should be passed as selection
+     * arguments rather than in the selection itself: SQLite keeps the statements it has compiled for each distinct
+     * query, so a query which is run again with different arguments isn't compiled again. For the same reason the
+     * provider binds the bounds and time ranges of its own clauses.
      *
-     * @param uri Should be "content://org.campbelll.android.photomapper.PhotoProvider/photos" to get all photos,
-     *            otherwise will return null.
-     * @param projection This is ignored.
-     * @param selection This is ignored.
-     * @param selectionArgs This is ignored.
-     * @param sortOrder This is ignored.
-     * @return Cursor containing all data for all photos or null for any request other than for all photos.
+     * @param uri Should be "content://org.campbelll.android.photomapper.PhotoProvider/photos" to get all photos, a
+     *            photo's uri, a bounding box uri or a near uri, otherwise will return null. All but near uris may have
+     *            a limit and offset, see {@link #withLimit(Uri, int, int)}.
+     * @param projection Columns to return, or null for all columns.
+     * @param selection Selection, which for bounding box requests is applied within the box.
+     * @param selectionArgs Arguments of selection.
+     * @param sortOrder Sort order, or null. Near requests are always sorted nearest first.
+     * @return Cursor containing data for the requested photos or null for any other request.
      */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         switch (uriMatcher.match(uri)) {
             case ALL:
-                return getPhotos();
+                return getPhotos(uri, projection, selection, selectionArgs, sortOrder);
+            case ROW:
+                return getPhotos(uri, projection, DatabaseUtils.concatenateWhere(PhotoEntry._ID + "=?", selection),
+                        DatabaseUtils.appendSelectionArgs(new String[] { uri.getLastPathSegment() }, selectionArgs),
+                        sortOrder);
+            case BBOX:
+                return getPhotosInBounds(uri, projection, selection, selectionArgs, sortOrder);
+            case NEAR:
+                return getPhotosNear(uri, projection, selection, selectionArgs);
             default:
                 return null;
         }
     }
 
-    /** Utility method returns cursor with data for all photos. */
-    private Cursor getPhotos() {
-        String cmd = "SELECT "+PhotoEntry._ID+",* FROM "+PhotoEntry.TABLE_NAME;
-        Cursor cursor = PhotoDBHelper.getInstance(getContext()).getReadableDatabase().rawQuery(cmd, null);
+    /** Returns the uri of a photo. */
+    public static Uri getPhotoUri(long id) {
+        return ContentUris.withAppendedId(CONTENT_URI, id);
+    }
+
+    /**
+     * Builds a uri which queries for all photos within a bounding box.
+     * <p>
+     * Boxes crossing the antimeridian have {@code west > east}.
+     *
+     * @return Bounding box query uri.
+     */
+    public static Uri buildBoundsUri(double south, double west, double north, double east) {
+        return BBOX_URI.buildUpon()
+                .appendQueryParameter(PARAM_SOUTH, Double.toString(south))
+                .appendQueryParameter(PARAM_WEST, Double.toString(west))
+                .appendQueryParameter(PARAM_NORTH, Double.toString(north))
+                .appendQueryParameter(PARAM_EAST, Double.toString(east))
+                .build();
+    }
+
+    /**
+     * Utility method returns cursor with data for all photos inside the bounding box given by the uri's query
+     * parameters.
+     * <p>
+     * The box is first narrowed to the grid cells it covers, one index range per grid row, and then filtered exactly by
+     * coordinates. Very tall boxes, i.e. when zoomed right out, skip the grid as most photos will be inside them
+     * anyway.
+     */
+    private Cursor getPhotosInBounds(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                     String sortOrder) {
+        double south, west, north, east;
+        try {
+            south = Double.parseDouble(uri.getQueryParameter(PARAM_SOUTH));
+            west = Double.parseDouble(uri.getQueryParameter(PARAM_WEST));
+            north = Double.parseDouble(uri.getQueryParameter(PARAM_NORTH));
+            east = Double.parseDouble(uri.getQueryParameter(PARAM_EAST));
+        } catch (NullPointerException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid bounding box: " + uri, e);
+        }
+
+        StringBuilder where = new StringBuilder();
+
+        ArrayList<String> args = new ArrayList<>();
+
+        /* Narrow to grid cells using the spatial index. Bound, so boxes covering as many grid rows share a statement */
+        if (GeoGrid.rowSpan(south, north) <= MAX_GRID_ROWS) {
+            int[] ranges = GeoGrid.ranges(south, west, north, east);
+            where.append('(');
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (i > 0) where.append(" OR ");
+                where.append(PhotoEntry.COL_GRID_CELL).append(" BETWEEN ? AND ?");
+                args.add(Integer.toString(ranges[i]));
+                args.add(Integer.toString(ranges[i + 1]));
+            }
+            where.append(") AND ");
+        }
+
+        /* Filter exactly by coordinates */
+        where.append(PhotoEntry.COL_GPS_LATITUDE).append(" BETWEEN ? AND ? AND ");
+        if (west <= east) where.append(PhotoEntry.COL_GPS_LONGITUDE).append(" BETWEEN ? AND ?");
+        else where.append('(').append(PhotoEntry.COL_GPS_LONGITUDE).append(" >= ? OR ")
+                .append(PhotoEntry.COL_GPS_LONGITUDE).append(" <= ?)");
+        args.add(Double.toString(south));
+        args.add(Double.toString(north));
+        args.add(Double.toString(west));
+        args.add(Double.toString(east));
+
+        String timeRange = getTimeRange(uri, args);
+        if (timeRange != null) where.append(" AND ").append(timeRange);
+        if (isStacked(uri)) where.append(" AND ").append(STACKED);
+        if (selection != null) {
+            where.append(" AND (").append(selection).append(')');
+            if (selectionArgs != null) Collections.addAll(args, selectionArgs);
+        }
+
+        return queryPhotos(uri, projection, where.toString(), args.toArray(new String[args.size()]), sortOrder);
+    }
+
+    /**
+     * Builds a uri which queries for the photos nearest a point, nearest first. Each row has the photo's distance from
+     * the point in {@link #COL_DISTANCE}, which may be asked for in the projection.
+     *
+     * @param latitude Latitude of point in degrees.
+     * @param longitude Longitude of point in degrees.
+     * @param count Maximum number of photos, or {@link Integer#MAX_VALUE} for all those within the radius.
+     * @param radius Maximum distance from the point in metres, or {@link Double#POSITIVE_INFINITY} for no limit.
+     * @return Near query uri.
+     */
+    public static Uri buildNearUri(double latitude, double longitude, int count, double radius) {
+        Uri.Builder builder = NEAR_URI.buildUpon()
+                .appendQueryParameter(PARAM_LATITUDE, Double.toString(latitude))
+                .appendQueryParameter(PARAM_LONGITUDE, Double.toString(longitude));
+        if (count != Integer.MAX_VALUE) builder.appendQueryParameter(PARAM_COUNT, Integer.toString(count));
+        if (radius != Double.POSITIVE_INFINITY) builder.appendQueryParameter(PARAM_RADIUS, Double.toString(radius));
+        return builder.build();
+    }
+
+    /**
+     * Utility method returns cursor with data for the photos nearest the point given by the uri's query parameters,
+     * nearest first, with their distances from it.
+     * <p>
+     * The photos are found in a {@link NearTree} of every photo's location, see {@link #getNearTree()}, which takes
+     * well under a millisecond even for a large library, and then only their rows are read, by id. The selection, time
+     * range and stacked filter are applied to the photos found, so if they filter out some of the nearest photos the
+     * search is repeated for more photos until the uri's count are left or no more photos are in range.
+     */
+    private Cursor getPhotosNear(Uri uri, String[] projection, String selection, String[] selectionArgs) {
+        double latitude, longitude, radius;
+        int count;
+        try {
+            latitude = Double.parseDouble(uri.getQueryParameter(PARAM_LATITUDE));
+            longitude = Double.parseDouble(uri.getQueryParameter(PARAM_LONGITUDE));
+            String k = uri.getQueryParameter(PARAM_COUNT);
+            String metres = uri.getQueryParameter(PARAM_RADIUS);
+            if (k == null && metres == null) throw new NumberFormatException("Neither count nor radius given");
+            count = (k == null) ? Integer.MAX_VALUE : Integer.parseInt(k);
+            radius = (metres == null) ? Double.POSITIVE_INFINITY : Double.parseDouble(metres);
+            if (count < 0 || !(radius >= 0)) throw new NumberFormatException("Negative count or radius");
+        } catch (NullPointerException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid near query: " + uri, e);
+        }
+
+        /* Read the other columns asked for, and the id to match rows to the photos found */
+        String[] columns = projection;
+        if (columns == null) {
+            columns = Arrays.copyOf(COLUMNS, COLUMNS.length + 1);
+            columns[COLUMNS.length] = COL_DISTANCE;
+        }
+        ArrayList<String> read = new ArrayList<>(columns.length + 1);
+        for (String column : columns) {
+            if (!column.equals(COL_DISTANCE)) read.add(column);
+        }
+        read.add(PhotoEntry._ID);
+        String[] readProjection = read.toArray(new String[read.size()]);
+
+        ArrayList<String> filterArgs = new ArrayList<>();
+        String filter = getTimeRange(uri, filterArgs);
+        if (isStacked(uri)) filter = DatabaseUtils.concatenateWhere(filter, STACKED);
+        if (selection != null) {
+            filter = DatabaseUtils.concatenateWhere(filter, selection);
+            if (selectionArgs != null) Collections.addAll(filterArgs, selectionArgs);
+        }
+
+        /* Filtered out photos take places among the nearest, so search further until enough are left */
+        NearTree tree = getNearTree();
+        KdTree.Result near;
+        HashMap<Long, Object[]> rows;
+        int searched = count;
+        while (true) {
+            long start = Perf.begin(Perf.NEAR_QUERY);
+            try {
+                near = tree.search(latitude, longitude, searched, radius);
+            } finally {
+                Perf.end(Perf.NEAR_QUERY, start);
+            }
+            rows = readRows(near, readProjection, filter, filterArgs.toArray(new String[filterArgs.size()]));
+            if (rows.size() >= count || near.count < searched || searched >= tree.size()) break;
+            searched = (int) Math.min(searched * (long) NEAR_GROWTH, tree.size());
+        }
+
+        /* Rows in order of distance, up to the count */
+        MatrixCursor cursor = new MatrixCursor(columns, Math.min(rows.size(), count));
+        for (int i = 0; i < near.count && cursor.getCount() < count; i++) {
+            Object[] row = rows.get(near.ids[i]);
+            if (row == null) continue;     // Filtered out, or deleted since the tree was built
+            Object[] values = new Object[columns.length];
+            for (int j = 0, k = 0; j < columns.length; j++) {
+                values[j] = columns[j].equals(COL_DISTANCE) ? near.distances[i] : row[k++];
+            }
+            cursor.addRow(values);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        return cursor;
+    }
+
+    /**
+     * Reads the rows of the photos found by a near query which match a filter, by id.
+     *
+     * @param projection Columns to read, the last of which must be the id.
+     * @return Columns other than the id of each photo read, by id.
+     */
+    private HashMap<Long, Object[]> readRows(KdTree.Result near, String[] projection, String filter,
+                                             String[] filterArgs) {
+        HashMap<Long, Object[]> rows = new HashMap<>(near.count * 2);
+        for (int first = 0; first < near.count; first += MAX_QUERY_IDS) {
+            int end = Math.min(first + MAX_QUERY_IDS, near.count);
+            StringBuilder where = new StringBuilder(PhotoEntry._ID).append(" IN (");
+            for (int i = first; i < end; i++) where.append(i > first ? "," : "").append(near.ids[i]);
+            where.append(')');
+
+            Cursor c = queryPhotos(CONTENT_URI, projection, DatabaseUtils.concatenateWhere(where.toString(), filter),
+                    filterArgs, null);
+            try {
+                int idCol = projection.length - 1;
+                while (c.moveToNext()) {
+                    Object[] row = new Object[idCol];
+                    for (int i = 0; i < idCol; i++) row[i] = getValue(c, i);
+                    rows.put(c.getLong(idCol), row);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return rows;
+    }
+
+    /** Returns the value of a column of a cursor's current row, as the type it is stored as. */
+    private static Object getValue(Cursor c, int column) {
+        switch (c.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return c.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return c.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return c.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return c.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the tree of every photo's location used by near queries. Building it reads every photo's location, so it
+     * is only built when a near query needs it. After that, only the locations of the photos the {@link PhotoChangeLog}
+     * records as changed are read, and the tree is updated with them, unless so many have changed, or the changes
+     * aren't known, that rebuilding it is cheaper.
+     */
+    private NearTree getNearTree() {
+        synchronized (nearLock) {
+            PhotoChangeLog log = PhotoChangeLog.getInstance(getContext());
+            long sequence = log.getSequence();
+            if (nearTree != null && nearTreeSequence == sequence) return nearTree;
+
+            long[] changed = (nearTree == null) ? null : log.getChangedSince(nearTreeSequence);
+            if (changed != null && nearTree.getChangeCount() + changed.length <= MAX_NEAR_CHANGES) {
+                nearTree = updateNearTree(nearTree, changed);
+            } else {
+                nearTree = buildNearTree();
+            }
+            nearTreeSequence = sequence;
+            return nearTree;
+        }
+    }
+
+    /** Reads every photo's location into a new tree for near queries. */
+    private NearTree buildNearTree() {
+        long start = Perf.begin(Perf.NEAR_TREE_BUILD);
+        Cursor c = PhotoDBHelper.getInstance(getContext()).getReadableDatabase().query(PhotoEntry.TABLE_NAME,
+                new String[] { PhotoEntry._ID, PhotoEntry.COL_GPS_LATITUDE, PhotoEntry.COL_GPS_LONGITUDE },
+                PhotoEntry.COL_GPS_LATITUDE + " IS NOT NULL AND " + PhotoEntry.COL_GPS_LONGITUDE + " IS NOT NULL",
+                null, null, null, null);
+        try {
+            int count = c.getCount();
+            long[] ids = new long[count];
+            double[] latitudes = new double[count];
+            double[] longitudes = new double[count];
+            for (int i = 0; i < count && c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+                latitudes[i] = c.getDouble(1);
+                longitudes[i] = c.getDouble(2);
+            }
+            return new NearTree(ids, latitudes, longitudes, count);
+        } finally {
+            c.close();
+            Perf.end(Perf.NEAR_TREE_BUILD, start);
+        }
+    }
+
+    /** Reads the locations of changed photos, by id, and returns the tree updated with them. */
+    private NearTree updateNearTree(NearTree tree, long[] changed) {
+        double[] latitudes = new double[changed.length];
+        double[] longitudes = new double[changed.length];
+        Arrays.fill(latitudes, Double.NaN);     // Deleted, unless read below
+        Arrays.fill(longitudes, Double.NaN);
+
+        SQLiteDatabase db = PhotoDBHelper.getInstance(getContext()).getReadableDatabase();
+        for (int first = 0; first < changed.length; first += MAX_QUERY_IDS) {
+            int end = Math.min(first + MAX_QUERY_IDS, changed.length);
+            StringBuilder where = new StringBuilder(PhotoEntry._ID).append(" IN (");
+            for (int i = first; i < end; i++) where.append(i > first ? "," : "").append(changed[i]);
+            where.append(')');
+
+            Cursor c = db.query(PhotoEntry.TABLE_NAME,
+                    new String[] { PhotoEntry._ID, PhotoEntry.COL_GPS_LATITUDE, PhotoEntry.COL_GPS_LONGITUDE },
+                    where.toString(), null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    if (c.isNull(1) || c.isNull(2)) continue;
+                    int i = Arrays.binarySearch(changed, first, end, c.getLong(0));
+                    latitudes[i] = c.getDouble(1);
+                    longitudes[i] = c.getDouble(2);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return tree.update(changed, latitudes, longitudes, changed.length);
+    }
+
+    /**
+     * Utility method returns cursor with data for all photos matching the selection and the uri's time range, up to the
+     * uri's limit.
+     */
+    private Cursor getPhotos(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        ArrayList<String> timeArgs = new ArrayList<>(2);
+        String timeRange = getTimeRange(uri, timeArgs);
+        if (timeRange != null) {
+            selection = DatabaseUtils.concatenateWhere(selection, timeRange);
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    timeArgs.toArray(new String[timeArgs.size()]));
+        }
+        if (isStacked(uri)) selection = DatabaseUtils.concatenateWhere(selection, STACKED);
+
+        return queryPhotos(uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Utility method runs a query of the photo table with the uri's limit and offset. The cursor is notified of changes
+     * to any photo, which {@link PhotoChangeLog} coalesces.
+     */
+    private Cursor queryPhotos(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                               String sortOrder) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(PhotoEntry.TABLE_NAME);
+        builder.setProjectionMap(PROJECTION_MAP);
+        builder.setStrict(true);
+        Cursor cursor = builder.query(PhotoDBHelper.getInstance(getContext()).getReadableDatabase(), projection,
+                selection, selectionArgs, null, null, sortOrder, getLimit(uri));
         cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
         return cursor;
     }
 
-    /** Returns null always. */
+    /**
+     * Caps the number of rows a query uri returns.
+     *
+     * @param uri Query uri, i.e. {@link #CONTENT_URI} or a bounding box uri.
+     * @param limit Maximum number of rows.
+     * @return Limited query uri.
+     */
+    public static Uri withLimit(Uri uri, int limit) {
+        return uri.buildUpon().appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+    }
+
+    /**
+     * Caps the number of rows a query uri returns, after skipping some. Paging by offset costs more the further into
+     * the query the page is, so paging by a selection on {@link PhotoEntry#_ID} is better where the order allows it.
+     *
+     * @param uri Query uri, i.e. {@link #CONTENT_URI} or a bounding box uri.
+     * @param limit Maximum number of rows.
+     * @param offset Number of rows to skip.
+     * @return Limited query uri.
+     */
+    public static Uri withLimit(Uri uri, int limit, int offset) {
+        return withLimit(uri, limit).buildUpon().appendQueryParameter(PARAM_OFFSET, Integer.toString(offset)).build();
+    }
+
+    /** Returns the uri's limit and offset as a LIMIT clause, or null if it has neither. */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(PARAM_LIMIT);
+        String offset = uri.getQueryParameter(PARAM_OFFSET);
+        if (limit == null && offset == null) return null;
+        try {
+            int rows = (limit == null) ? Integer.MAX_VALUE : Integer.parseInt(limit);
+            int skipped = (offset == null) ? 0 : Integer.parseInt(offset);
+            if (rows < 0 || skipped < 0) throw new NumberFormatException("Negative limit or offset");
+            return (skipped == 0) ? Integer.toString(rows) : skipped + "," + rows;     // i.e. OFFSET skipped LIMIT rows
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit: " + uri, e);
+        }
+    }
+
+    /**
+     * Limits a query uri to photos taken within a time range. Photos with no known time are left out.
+     *
+     * @param uri Query uri, i.e. {@link #CONTENT_URI} or a bounding box uri.
+     * @param from Start of range in epoch millis, inclusive.
+     * @param to End of range in epoch millis, inclusive.
+     * @return Time range query uri.
+     */
+    public static Uri withTimeRange(Uri uri, long from, long to) {
+        return uri.buildUpon()
+                .appendQueryParameter(PARAM_FROM, Long.toString(from))
+                .appendQueryParameter(PARAM_TO, Long.toString(to))
+                .build();
+    }
+
+    /**
+     * Returns the where clause for the uri's time range, adding its arguments to args, or null if the uri has no time
+     * range. Either end of the range may be left off.
+     */
+    private static String getTimeRange(Uri uri, List<String> args) {
+        String from = uri.getQueryParameter(PARAM_FROM);
+        String to = uri.getQueryParameter(PARAM_TO);
+        if (from == null && to == null) return null;
+
+        StringBuilder where = new StringBuilder();
+        try {
+            if (from != null) {
+                args.add(Long.toString(Long.parseLong(from)));
+                where.append(PhotoEntry.COL_TAKEN_AT).append(" >= ?");
+            }
+            if (to != null) {
+                args.add(Long.toString(Long.parseLong(to)));
+                if (from != null) where.append(" AND ");
+                where.append(PhotoEntry.COL_TAKEN_AT).append(" <= ?");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid time range: " + uri, e);
+        }
+        return where.toString();
+    }
+
+    /**
+     * Limits a query uri to the original of each stack of near-duplicates, so a stack is returned as one photo. The
+     * number of photos in each photo's stack can be read from {@link PhotoEntry#COL_STACK_COUNT}.
+     *
+     * @param uri Query uri, i.e. {@link #CONTENT_URI}, a bounding box uri or a near uri.
+     * @return Stacked query uri.
+     */
+    public static Uri withStacks(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(PARAM_STACKED, Boolean.toString(true)).build();
+    }
+
+    /** Returns true if the uri only asks for the original of each stack. */
+    private static boolean isStacked(Uri uri) {
+        return Boolean.parseBoolean(uri.getQueryParameter(PARAM_STACKED));
+    }
+
+    /** Returns the uri of a photo's thumbnail, which can be opened with {@link #openFile(Uri, String)}. */
+    public static Uri getThumbnailUri(long id) {
+        return Uri.withAppendedPath(getPhotoUri(id), "thumbnail");
+    }
+
+    /**
+     * Opens a photo's thumbnail for reading.
+     *
+     * @param uri Thumbnail uri, see {@link #getThumbnailUri(long)}.
+     * @param mode Only "r" is supported.
+     * @return Read only descriptor of the thumbnail's JPEG file.
+     * @throws FileNotFoundException if the uri isn't a thumbnail uri or the photo has no thumbnail.
+     */
     @Override
-    public String getType(Uri uri) { return null; }
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (uriMatcher.match(uri) != THUMBNAIL) throw new FileNotFoundException("Unsupported uri: " + uri);
+        if (!"r".equals(mode)) throw new FileNotFoundException("Thumbnails are read only: " + uri);
+
+        String id = uri.getPathSegments().get(1);
+        Cursor c = PhotoDBHelper.getInstance(getContext()).getReadableDatabase().query(PhotoEntry.TABLE_NAME,
+                new String[] { PhotoEntry.COL_THUMBNAIL_HASH }, PhotoEntry._ID + "=?", new String[] { id },
+                null, null, null);
+        String hash;
+        try {
+            hash = c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+        if (hash == null) throw new FileNotFoundException("No thumbnail for photo " + id);
 
-    /** Handles inserts. */
+        File file = ThumbnailStore.getInstance(getContext()).getFile(hash);
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /** Returns the MIME type of a uri, or null if it isn't one of the provider's. */
+    @Override
+    public String getType(Uri uri) {
+        switch (uriMatcher.match(uri)) {
+            case ALL:
+            case BBOX:
+            case NEAR:
+                return CONTENT_TYPE;
+            case ROW:
+                return CONTENT_ITEM_TYPE;
+            case THUMBNAIL:
+                return THUMBNAIL_TYPE;
+            default:
+                return null;
+        }
+    }
+
+    /** Handles inserts. If a photo with the same uri is already stored, it is updated instead. */
     @Override
-    public Uri insert(Uri uri, ContentValues values) {
-        SQLiteDatabase db = PhotoDBHelper.getInstance(getContext()).getWritableDatabase();
+    public Uri insert(Uri uri, final ContentValues values) {
+        final PhotoWriter writer = PhotoWriter.getInstance(getContext());
+        final ArrayList<String> replaced = new ArrayList<>(1);
+        final ArrayList<Long> changed = new ArrayList<>(1);
+        ArrayList<String> stored = new ArrayList<>(1);
+        prepare(values, stored);
 
-        long id = db.insert(PhotoEntry.TABLE_NAME, null, values);
-        getContext().getContentResolver().notifyChange(uri, null);
+        long id;
+        boolean written = false;
+        long start = Perf.begin(Perf.PROVIDER_INSERT);
+        try {
+            id = writer.execute(new PhotoWriter.Task<Long, RuntimeException>() {
+                @Override
+                public Long run(SQLiteDatabase db) {
+                    long id = writer.upsert(db, values, replaced, changed);
+                    deleteUnusedThumbnails(db, replaced);
+                    return id;
+                }
+            });
+            written = true;
+        } finally {
+            Perf.end(Perf.PROVIDER_INSERT, start);
+            releaseThumbnails(stored, written);
+        }
+        if (id != -1) changed.add(id);
+        if (!changed.isEmpty()) photosChanged(toArray(changed));
 
-        return ContentUris.withAppendedId(CONTENT_URI, id);
+        return getPhotoUri(id);
     }
 
-    /** Handles deletes. Only handles deleting all photos. */
+    /**
+     * Handles bulk inserts.
+     * <p>
+     * All rows are inserted in a single transaction. Photos which are already stored are updated instead. Thumbnails
+     * are stored before the transaction begins, so it only holds the database for the inserts themselves, and are
+     * deleted again if it fails. The originals of the stacks new photos join are recorded as changed along with the
+     * photos, as their stack counts change.
+     *
+     * @param uri Should be "content://org.campbelll.android.photomapper.PhotoProvider/photos".
+     * @param values Rows to insert.
+     * @return Number of rows inserted.
+     */
+    @Override
+    public int bulkInsert(Uri uri, final ContentValues[] values) {
+        if (uriMatcher.match(uri) != ALL) return 0;
+
+        final PhotoWriter writer = PhotoWriter.getInstance(getContext());
+        final ArrayList<String> replaced = new ArrayList<>();
+        final ArrayList<Long> changed = new ArrayList<>(values.length);
+        ArrayList<String> stored = new ArrayList<>(values.length);
+        for (ContentValues cv : values) prepare(cv, stored);
+
+        int numRows;
+        boolean written = false;
+        long start = Perf.begin(Perf.PROVIDER_INSERT);
+        try {
+            numRows = writer.execute(new PhotoWriter.Task<Integer, RuntimeException>() {
+                @Override
+                public Integer run(SQLiteDatabase db) {
+                    int count = 0;
+                    try {
+                        db.beginTransaction();
+                        for (ContentValues cv : values) {
+                            long id = writer.upsert(db, cv, replaced, changed);
+                            if (id == -1) continue;
+                            changed.add(id);
+                            count++;
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    deleteUnusedThumbnails(db, replaced);
+                    return count;
+                }
+            });
+            written = true;
+        } finally {
+            Perf.end(Perf.PROVIDER_INSERT, start);
+            releaseThumbnails(stored, written);
+        }
+
+        if (!changed.isEmpty()) photosChanged(toArray(changed));
+
+        return numRows;
+    }
+
+    /**
+     * Applies a batch of operations in a single transaction. As the operations may select photos in any way, the
+     * whole batch is recorded as a change to all photos once it has been committed. Thumbnails the operations leave
+     * unused are only deleted once the transaction has ended, as until then it may be rolled back.
+     *
+     * @param operations Operations to apply.
+     * @return Results of each operation.
+     * @throws OperationApplicationException if any operation fails, in which case none are applied.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        ContentProviderResult[] results = PhotoWriter.getInstance(getContext()).execute(
+                new PhotoWriter.Task<ContentProviderResult[], OperationApplicationException>() {
+                    @Override
+                    public ContentProviderResult[] run(SQLiteDatabase db) throws OperationApplicationException {
+                        ArrayList<String> thumbnails = new ArrayList<>();
+                        try {
+                            inBatch.set(Boolean.TRUE);
+                            batchThumbnails.set(thumbnails);
+                            db.beginTransaction();
+                            ContentProviderResult[] results = PhotoProvider.super.applyBatch(operations);
+                            db.setTransactionSuccessful();
+                            return results;
+                        } finally {
+                            db.endTransaction();
+                            inBatch.remove();
+                            batchThumbnails.remove();
+                            deleteUnusedThumbnails(db, thumbnails);     // Whether or not the batch was committed
+                        }
+                    }
+                });
+
+        allPhotosChanged();
+
+        return results;
+    }
+
+    /**
+     * Fills in the grid cell and stores the thumbnail of a photo being inserted, before it is written. The hash of a
+     * stored thumbnail is added to the list, which must be passed to {@link #releaseThumbnails(List, boolean)} once the
+     * write has been made.
+     */
+    private void prepare(ContentValues values, List<String> stored) {
+        addGridCell(values);
+        storeThumbnail(values, stored);
+    }
+
+    /**
+     * Deletes thumbnails which are no longer used by any photo, unless a write which hasn't been made yet will use
+     * them. Must be run by a {@link PhotoWriter} task after the transaction has committed, so that no other write can
+     * start using a thumbnail between it being counted and deleted. Inside {@link #applyBatch(ArrayList)} the
+     * thumbnails are checked once the batch ends instead.
+     */
+    private void deleteUnusedThumbnails(SQLiteDatabase db, List<String> hashes) {
+        ArrayList<String> batch = batchThumbnails.get();
+        if (batch != null) {
+            batch.addAll(hashes);
+            return;
+        }
+
+        ThumbnailStore store = ThumbnailStore.getInstance(getContext());
+        for (String hash : hashes) {
+            long uses = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + PhotoEntry.TABLE_NAME +
+                    " WHERE " + PhotoEntry.COL_THUMBNAIL_HASH + "=?", new String[] { hash });
+            if (uses > 0) continue;
+            synchronized (pendingThumbnails) {
+                if (!pendingThumbnails.containsKey(hash)) store.delete(hash);
+            }
+        }
+    }
+
+    /**
+     * Releases the thumbnails stored for a write once it has been made, or has failed. The thumbnails of a failed
+     * write are deleted unless another photo uses them, as nothing else would.
+     *
+     * @param stored Hashes of the thumbnails stored for the write.
+     * @param written True if the write succeeded.
+     */
+    private void releaseThumbnails(final List<String> stored, boolean written) {
+        if (stored.isEmpty()) return;
+        synchronized (pendingThumbnails) {
+            for (String hash : stored) {
+                int writes = pendingThumbnails.get(hash) - 1;
+                if (writes == 0) pendingThumbnails.remove(hash);
+                else pendingThumbnails.put(hash, writes);
+            }
+        }
+
+        /* Inside a batch, the write can still be rolled back */
+        if (written && batchThumbnails.get() == null) return;
+        try {
+            PhotoWriter.getInstance(getContext()).execute(new PhotoWriter.Task<Void, RuntimeException>() {
+                @Override
+                public Void run(SQLiteDatabase db) {
+                    deleteUnusedThumbnails(db, stored);
+                    return null;
+                }
+            });
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Couldn't delete the thumbnails of a failed write", e);
+        }
+    }
+
+    /** Fills in the grid cell of a photo being inserted, if the caller hasn't already. */
+    private static void addGridCell(ContentValues values) {
+        if (values.containsKey(PhotoEntry.COL_GRID_CELL)) return;
+        Double lat = values.getAsDouble(PhotoEntry.COL_GPS_LATITUDE);
+        Double lng = values.getAsDouble(PhotoEntry.COL_GPS_LONGITUDE);
+        if (lat != null && lng != null) values.put(PhotoEntry.COL_GRID_CELL, GeoGrid.cell(lat, lng));
+    }
+
+    /**
+     * Moves the thumbnail bytes of a photo being written into the {@link ThumbnailStore}, replacing them with their
+     * hash, which is added to the list of thumbnails stored for the write. The thumbnail is kept until the write has
+     * been made. If the thumbnail can't be stored the photo is written without one.
+     */
+    private void storeThumbnail(ContentValues values, List<String> stored) {
+        if (!values.containsKey(PhotoEntry.COL_THUMBNAIL)) return;
+        byte[] thumbnail = values.getAsByteArray(PhotoEntry.COL_THUMBNAIL);
+        values.remove(PhotoEntry.COL_THUMBNAIL);
+        if (thumbnail == null) return;
+
+        ThumbnailStore store = ThumbnailStore.getInstance(getContext());
+        try {
+            String hash = store.put(thumbnail);
+            synchronized (pendingThumbnails) {
+                /* An identical thumbnail may have been deleted as unused since it was found to be stored */
+                if (!store.getFile(hash).exists()) store.put(thumbnail);
+                Integer writes = pendingThumbnails.get(hash);
+                pendingThumbnails.put(hash, (writes == null) ? 1 : writes + 1);
+            }
+            stored.add(hash);
+            values.put(PhotoEntry.COL_THUMBNAIL_HASH, hash);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't store thumbnail", e);
+        }
+    }
+
+    /** Returns a list of ids as an array. */
+    private static long[] toArray(List<Long> ids) {
+        long[] array = new long[ids.size()];
+        for (int i = 0; i < array.length; i++) array[i] = ids.get(i);
+        return array;
+    }
+
+    /** Records that photos have been written, unless we're inside {@link #applyBatch(ArrayList)}. */
+    private void photosChanged(long[] ids) {
+        if (inBatch.get() != null) return;
+        PointSnapshot.getInstance(getContext()).photosChanged(ids);
+        PhotoChangeLog.getInstance(getContext()).photosChanged(ids);
+    }
+
+    /** Records a write to photos which can't be listed, unless we're inside {@link #applyBatch(ArrayList)}. */
+    private void allPhotosChanged() {
+        if (inBatch.get() != null) return;
+        PointSnapshot.getInstance(getContext()).requestRewrite();
+        PhotoChangeLog.getInstance(getContext()).allChanged();
+    }
+
+    /** Handles deletes. Only handles deleting all photos, or a single photo by its uri. */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         int numRows = 0;
-        SQLiteDatabase db = PhotoDBHelper.getInstance(getContext()).getWritableDatabase();
 
         switch (uriMatcher.match(uri)) {
             case ALL:
-                numRows = db.delete(PhotoEntry.TABLE_NAME, null, null);     // delete all rows
-                getContext().getContentResolver().notifyChange(uri, null);
+                numRows = PhotoWriter.getInstance(getContext()).execute(
+                        new PhotoWriter.Task<Integer, RuntimeException>() {
+                            @Override
+                            public Integer run(SQLiteDatabase db) {
+                                PhotoWriter.getInstance(getContext()).getStacks().clear();
+                                int count = db.delete(PhotoEntry.TABLE_NAME, null, null);    // delete all rows
+                                synchronized (pendingThumbnails) {
+                                    ThumbnailStore.getInstance(getContext()).clear(pendingThumbnails.keySet());
+                                }
+                                return count;
+                            }
+                        });
+                allPhotosChanged();
+                break;
+            case ROW:
+                final long id = ContentUris.parseId(uri);
+                final ArrayList<String> hashes = new ArrayList<>(1);
+                final ArrayList<Long> changed = new ArrayList<>(2);
+                final PhotoWriter writer = PhotoWriter.getInstance(getContext());
+                numRows = writer.execute(new PhotoWriter.Task<Integer, RuntimeException>() {
+                    @Override
+                    public Integer run(SQLiteDatabase db) {
+                        Cursor c = db.query(PhotoEntry.TABLE_NAME, new String[] { PhotoEntry.COL_THUMBNAIL_HASH },
+                                PhotoEntry._ID + "=" + id, null, null, null, null);
+                        try {
+                            if (c.moveToFirst() && !c.isNull(0)) hashes.add(c.getString(0));
+                        } finally {
+                            c.close();
+                        }
+
+                        /* Take the photo out of its stack in the same transaction, so stack counts stay right */
+                        int count;
+                        try {
+                            db.beginTransaction();
+                            writer.getStacks().remove(db, id, changed);
+                            count = db.delete(PhotoEntry.TABLE_NAME, PhotoEntry._ID + "=" + id, null);
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                        deleteUnusedThumbnails(db, hashes);
+                        return count;
+                    }
+                });
+                if (numRows > 0) {
+                    changed.add(id);
+                    photosChanged(toArray(changed));
+                }
                 break;
             default:
                 break;
@@ -114,8 +1108,113 @@ public class PhotoProvider extends ContentProvider {
         return numRows;
     }
 
-    /** Updating is not supported. Returns 0 always. */
+    /**
+     * Handles updates of the photos matching a selection. Only the columns given are changed.
+     * <p>
+     * Latitude and longitude must be updated together, so that the photo's grid cell can be kept up to date. The
+     * perceptual hash and stack columns are kept by the {@link PhotoWriter}'s stacks, so can't be updated. Thumbnail
+     * bytes are moved into the {@link ThumbnailStore} as for inserts, and the thumbnails they replace are deleted once
+     * no photo uses them. The ids of the photos selected are read in the same transaction as the update, so the
+     * changes can be recorded per photo. Updates which only change a photo's file fingerprint aren't recorded, as they
+     * don't change anything shown.
+     *
+     * @param uri Should be "content://org.campbelll.android.photomapper.PhotoProvider/photos", or a photo's uri.
+     * @param values Columns to change.
+     * @param selection Selection of photos to update, or null for all photos, or the photo of the uri.
+     * @param selectionArgs Arguments of selection.
+     * @return Number of rows updated.
+     */
     @Override
-    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) { return 0; }
+    public int update(Uri uri, final ContentValues values, String selection, String[] selectionArgs) {
+        switch (uriMatcher.match(uri)) {
+            case ALL:
+                break;
+            case ROW:
+                selection = DatabaseUtils.concatenateWhere(PhotoEntry._ID + "=?", selection);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] { uri.getLastPathSegment() },
+                        selectionArgs);
+                break;
+            default:
+                return 0;
+        }
+        if (values.containsKey(PhotoEntry.COL_GPS_LATITUDE) != values.containsKey(PhotoEntry.COL_GPS_LONGITUDE)) {
+            throw new IllegalArgumentException("Latitude and longitude must be updated together");
+        }
+        for (String column : STACK_COLUMNS) {
+            if (values.containsKey(column)) throw new IllegalArgumentException("Can't update stack column " + column);
+        }
+
+        ArrayList<String> stored = new ArrayList<>(1);
+        addGridCell(values);
+        storeThumbnail(values, stored);
+        if (values.size() == 0) return 0;
+
+        final String where = selection;
+        final String[] whereArgs = selectionArgs;
+        long[] ids = null;
+        try {
+            ids = PhotoWriter.getInstance(getContext()).execute(new PhotoWriter.Task<long[], RuntimeException>() {
+                @Override
+                public long[] run(SQLiteDatabase db) {
+                    long[] ids;
+                    List<String> replaced = Collections.emptyList();
+                    try {
+                        db.beginTransaction();
+                        ids = queryIds(db, where, whereArgs);
+                        if (ids.length > 0 && values.containsKey(PhotoEntry.COL_THUMBNAIL_HASH)) {
+                            replaced = queryThumbnailHashes(db, where, whereArgs);
+                        }
+                        if (ids.length > 0) db.update(PhotoEntry.TABLE_NAME, values, where, whereArgs);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    deleteUnusedThumbnails(db, replaced);
+                    return ids;
+                }
+            });
+        } finally {
+            releaseThumbnails(stored, ids != null && ids.length > 0);
+        }
+        if (ids.length > 0 && !onlyFingerprint(values)) photosChanged(ids);
+
+        return ids.length;
+    }
+
+    /** Returns the ids of the photos matching a selection. */
+    private static long[] queryIds(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor c = db.query(PhotoEntry.TABLE_NAME, new String[] { PhotoEntry._ID }, selection, selectionArgs, null,
+                null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) ids[i] = c.getLong(0);
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /** Returns the distinct thumbnail hashes of the photos matching a selection. */
+    private static List<String> queryThumbnailHashes(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor c = db.query(true, PhotoEntry.TABLE_NAME, new String[] { PhotoEntry.COL_THUMBNAIL_HASH },
+                DatabaseUtils.concatenateWhere(PhotoEntry.COL_THUMBNAIL_HASH + " IS NOT NULL", selection),
+                selectionArgs, null, null, null, null);
+        try {
+            ArrayList<String> hashes = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) hashes.add(c.getString(0));
+            return hashes;
+        } finally {
+            c.close();
+        }
+    }
+
+    /** Returns true if the values only contain file fingerprint columns. */
+    private static boolean onlyFingerprint(ContentValues values) {
+        int count = 0;
+        for (String column : FINGERPRINT_COLUMNS) {
+            if (values.containsKey(column)) count++;
+        }
+        return count == values.size();
+    }
 
 }
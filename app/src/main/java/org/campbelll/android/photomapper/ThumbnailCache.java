@@ -0,0 +1,151 @@
+package org.campbelll.android.photomapper;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.campbelll.android.photomapper.utility.Perf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Size bounded LRU cache of decoded photo thumbnails, keyed by photo id.
+ * <p>
+ * Thumbnails are decoded from {@link PhotoProvider#getThumbnailUri(long)} on a background executor, either on demand
+ * via {@link #load(long, Callback)} or ahead of time via {@link #prefetch(List)}, so that drawing an info window is
+ * normally just a cache lookup.
+ * <p>
+ * Must only be used from the UI thread.
+ *
+ * @author Campbell Lockley
+ */
+public class ThumbnailCache {
+    /* Tag */
+    private static final String TAG = "ThumbnailCache";
+
+    /* Constants */
+    private static final int MEMORY_FRACTION = 8;   // Cache may use 1/MEMORY_FRACTION of max heap
+    private static final int NUM_THREADS = 2;       // Threads decoding thumbnails
+
+    /** Called on the UI thread when a thumbnail has been loaded. */
+    public interface Callback {
+        /** Called with the decoded thumbnail, or null if the photo has no thumbnail. */
+        void onThumbnailLoaded(long id, Bitmap thumbnail);
+    }
+
+    /* Members */
+    private final ContentResolver resolver;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    private final HashMap<Long, ArrayList<Callback>> loading = new HashMap<>();    // Callbacks of ids being decoded
+    private final LruCache<Long, Bitmap> cache;
+
+    /** Constructor. */
+    public ThumbnailCache(Context context) {
+        resolver = context.getApplicationContext().getContentResolver();
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+        cache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long id, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /** Returns the cached thumbnail of a photo, or null if it isn't cached. */
+    public Bitmap get(long id) {
+        Bitmap cached = cache.get(id);
+        Perf.count(cached != null ? Perf.THUMBNAIL_HITS : Perf.THUMBNAIL_MISSES);
+        return cached;
+    }
+
+    /**
+     * Loads a thumbnail in the background, calling back once it has been cached. Calls back immediately if it is
+     * already cached.
+     *
+     * @param id Photo id.
+     * @param callback Callback, or null to only cache the thumbnail.
+     */
+    public void load(final long id, final Callback callback) {
+        Bitmap cached = cache.get(id);
+        if (cached != null) {
+            if (callback != null) callback.onThumbnailLoaded(id, cached);
+            return;
+        }
+
+        /* Join a decode which is already under way */
+        ArrayList<Callback> callbacks = loading.get(id);
+        if (callbacks != null) {
+            if (callback != null) callbacks.add(callback);
+            return;
+        }
+
+        callbacks = new ArrayList<>(1);
+        if (callback != null) callbacks.add(callback);
+        loading.put(id, callbacks);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = decode(id);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (bitmap != null) cache.put(id, bitmap);
+                        for (Callback cb : loading.remove(id)) cb.onThumbnailLoaded(id, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    /** Loads the thumbnails of the given photos in the background, in order, if they aren't already cached. */
+    public void prefetch(List<Long> ids) {
+        for (Long id : ids) {
+            if (cache.get(id) == null) load(id, null);
+        }
+    }
+
+    /** Drops a photo's thumbnail from the cache. */
+    public void remove(long id) {
+        cache.remove(id);
+    }
+
+    /** Empties the cache. */
+    public void clear() {
+        cache.evictAll();
+    }
+
+    /** Stops background decoding. The cache can't load thumbnails afterwards. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** Decodes a photo's thumbnail. Returns null if it has none. */
+    private Bitmap decode(long id) {
+        try {
+            InputStream in = resolver.openInputStream(PhotoProvider.getThumbnailUri(id));
+            if (in == null) return null;
+            try {
+                return BitmapFactory.decodeStream(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "No thumbnail for photo " + id);
+            return null;
+        }
+    }
+
+}
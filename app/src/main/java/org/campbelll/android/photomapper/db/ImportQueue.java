@@ -0,0 +1,228 @@
+package org.campbelll.android.photomapper.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.ImportJobEntry;
+
+/**
+ * Durable queue of images waiting to be imported, kept in the {@link ImportJobEntry} table of the photo database.
+ * <p>
+ * Jobs move from pending to running when they are claimed, and from running to done, skipped or failed as they finish.
+ * Jobs which fail with an I/O error go back to pending with an exponentially increasing delay before they can be
+ * claimed again, until they have been tried {@link #MAX_ATTEMPTS} times. Because a job's state is committed as soon as
+ * it changes, the queue can be picked up where it left off if the process dies, by putting the jobs which were running
+ * back to pending with {@link #resetRunning()}.
+ *
+ * @see PhotoDBHelper
+ * @author Campbell Lockley
+ */
+public class ImportQueue {
+    /** Number of times a job is attempted before it is marked as failed. */
+    public static final int MAX_ATTEMPTS = 5;
+    /** Delay before a job's first retry. Each retry after that waits twice as long as the last. */
+    public static final long BASE_BACKOFF_MS = 30 * 1000;
+    /** Longest delay between retries. */
+    public static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+    /** Singleton. */
+    private static ImportQueue singleton = null;
+
+    /** A claimed import job. */
+    public static class Job {
+        public final long id;           // Row id of job
+        public final Uri uri;           // content// type URI of image to import
+        public final int attempts;      // Number of previous attempts
+
+        Job(long id, Uri uri, int attempts) {
+            this.id = id;
+            this.uri = uri;
+            this.attempts = attempts;
+        }
+    }
+
+    /* Members */
+    private final PhotoDBHelper helper;
+
+    /** Constructor. */
+    public ImportQueue(PhotoDBHelper helper) {
+        this.helper = helper;
+    }
+
+    /**
+     * Safely returns ImportQueue instance.
+     *
+     * @param context Context of ImportQueue.
+     * @return Instance of ImportQueue.
+     */
+    synchronized public static ImportQueue getInstance(Context context) {
+        if (singleton == null) singleton = new ImportQueue(PhotoDBHelper.getInstance(context));
+        return singleton;
+    }
+
+    /**
+     * Adds images to the queue. Images which are already queued are ignored.
+     *
+     * @return Number of jobs added.
+     */
+    public int enqueue(List<Uri> uris) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + ImportJobEntry.TABLE_NAME +
+                " (" + ImportJobEntry.COL_SOURCE_URI + ") VALUES (?)");
+        int added = 0;
+
+        try {
+            db.beginTransaction();
+            for (Uri uri : uris) {
+                insert.bindString(1, uri.toString());
+                if (insert.executeInsert() != -1) added++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+
+        return added;
+    }
+
+    /** Puts jobs which were running back to pending, e.g. after the process running them died. */
+    public void resetRunning() {
+        ContentValues cv = new ContentValues();
+        cv.put(ImportJobEntry.COL_STATE, ImportJobEntry.STATE_PENDING);
+        helper.getWritableDatabase().update(ImportJobEntry.TABLE_NAME, cv,
+                ImportJobEntry.COL_STATE + "=" + ImportJobEntry.STATE_RUNNING, null);
+    }
+
+    /**
+     * Claims pending jobs which are due, in the order they were queued, marking them as running.
+     *
+     * @param max Maximum number of jobs to claim.
+     * @param now Current time in epoch millis.
+     * @return Claimed jobs, which may be empty.
+     */
+    public List<Job> claim(int max, long now) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        ArrayList<Job> jobs = new ArrayList<>();
+
+        try {
+            db.beginTransaction();
+            Cursor c = db.query(ImportJobEntry.TABLE_NAME,
+                    new String[] { ImportJobEntry._ID, ImportJobEntry.COL_SOURCE_URI, ImportJobEntry.COL_ATTEMPTS },
+                    ImportJobEntry.COL_STATE + "=" + ImportJobEntry.STATE_PENDING + " AND " +
+                            ImportJobEntry.COL_NEXT_ATTEMPT_AT + "<=?",
+                    new String[] { Long.toString(now) }, null, null, ImportJobEntry._ID, Integer.toString(max));
+            try {
+                while (c.moveToNext()) jobs.add(new Job(c.getLong(0), Uri.parse(c.getString(1)), c.getInt(2)));
+            } finally {
+                c.close();
+            }
+
+            for (Job job : jobs) setState(db, job.id, ImportJobEntry.STATE_RUNNING);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Marks a job as finished.
+     *
+     * @param state One of {@link ImportJobEntry#STATE_DONE} or {@link ImportJobEntry#STATE_SKIPPED}.
+     */
+    public void complete(Job job, int state) {
+        setState(helper.getWritableDatabase(), job.id, state);
+    }
+
+    /**
+     * Puts a job back to pending, to be retried after a backoff delay, or marks it as failed if it has been tried too
+     * many times.
+     *
+     * @param now Current time in epoch millis.
+     * @return True if the job will be retried.
+     */
+    public boolean retry(Job job, long now) {
+        int attempts = job.attempts + 1;
+        boolean retry = attempts < MAX_ATTEMPTS;
+
+        ContentValues cv = new ContentValues();
+        cv.put(ImportJobEntry.COL_ATTEMPTS, attempts);
+        cv.put(ImportJobEntry.COL_STATE, retry ? ImportJobEntry.STATE_PENDING : ImportJobEntry.STATE_FAILED);
+        if (retry) cv.put(ImportJobEntry.COL_NEXT_ATTEMPT_AT, now + getBackoff(attempts));
+        helper.getWritableDatabase().update(ImportJobEntry.TABLE_NAME, cv, ImportJobEntry._ID + "=" + job.id, null);
+
+        return retry;
+    }
+
+    /** Returns the delay before the next attempt of a job which has failed the given number of times. */
+    static long getBackoff(int attempts) {
+        long backoff = BASE_BACKOFF_MS;
+        for (int i = 1; i < attempts && backoff < MAX_BACKOFF_MS; i++) backoff *= 2;
+        return Math.min(backoff, MAX_BACKOFF_MS);
+    }
+
+    /** Returns the time in epoch millis the next pending job is due, or -1 if no jobs are pending. */
+    public long getNextAttemptAt() {
+        Cursor c = helper.getReadableDatabase().rawQuery("SELECT MIN(" + ImportJobEntry.COL_NEXT_ATTEMPT_AT + ")" +
+                " FROM " + ImportJobEntry.TABLE_NAME +
+                " WHERE " + ImportJobEntry.COL_STATE + "=" + ImportJobEntry.STATE_PENDING, null);
+        try {
+            return (c.moveToFirst() && !c.isNull(0)) ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the state of the job importing an image.
+     *
+     * @return State of the image's job, or -1 if the image isn't queued, e.g. because its job has finished and been
+     *         removed.
+     */
+    public int getState(Uri uri) {
+        Cursor c = helper.getReadableDatabase().query(ImportJobEntry.TABLE_NAME,
+                new String[] { ImportJobEntry.COL_STATE }, ImportJobEntry.COL_SOURCE_URI + "=?",
+                new String[] { uri.toString() }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /** Returns the number of jobs in the given state. */
+    public int count(int state) {
+        return (int) DatabaseUtils.longForQuery(helper.getReadableDatabase(), "SELECT COUNT(*) FROM " +
+                ImportJobEntry.TABLE_NAME + " WHERE " + ImportJobEntry.COL_STATE + "=" + state, null);
+    }
+
+    /** Returns the number of jobs in the queue, in any state. */
+    public int size() {
+        return (int) DatabaseUtils.queryNumEntries(helper.getReadableDatabase(), ImportJobEntry.TABLE_NAME);
+    }
+
+    /** Removes jobs which have finished, i.e. are done, skipped or failed. */
+    public void purgeFinished() {
+        helper.getWritableDatabase().delete(ImportJobEntry.TABLE_NAME,
+                ImportJobEntry.COL_STATE + " IN (" + ImportJobEntry.STATE_DONE + "," + ImportJobEntry.STATE_SKIPPED +
+                        "," + ImportJobEntry.STATE_FAILED + ")", null);
+    }
+
+    /** Sets the state of a job. */
+    private static void setState(SQLiteDatabase db, long id, int state) {
+        ContentValues cv = new ContentValues();
+        cv.put(ImportJobEntry.COL_STATE, state);
+        db.update(ImportJobEntry.TABLE_NAME, cv, ImportJobEntry._ID + "=" + id, null);
+    }
+
+}
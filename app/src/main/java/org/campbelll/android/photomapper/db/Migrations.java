@@ -0,0 +1,416 @@
+package org.campbelll.android.photomapper.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.campbelll.android.photomapper.utility.ExifParser;
+import org.campbelll.android.photomapper.utility.GeoGrid;
+import org.campbelll.android.photomapper.utility.Thumbnailer;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.ImportJobEntry;
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
+
+/**
+ * Ordered migrations of the photo database from any earlier version to {@link PhotoDBHelper#DATABASE_VERSION}, which
+ * keep the photos already imported.
+ * <p>
+ * Each version has a {@link Step} which changes the schema in place. The steps run in order within the transaction
+ * {@link PhotoDBHelper#onUpgrade(SQLiteDatabase, int, int)} runs in, so an upgrade either completes or leaves the
+ * database as it was. Steps only make changes whose cost doesn't grow with the number of photos, e.g. adding a column,
+ * or which SQLite makes in a single pass, e.g. copying a table to drop a column. Work which does grow, i.e. filling in
+ * derived columns, moving thumbnails out of the database and building indexes, is recorded as a task in
+ * {@link #TASK_TABLE} and done afterwards a batch at a time by
+ * {@link #runBatch(SQLiteDatabase, ThumbnailStore, PhotoStacks)},
+ * which {@link org.campbelll.android.photomapper.PhotoProvider} runs in the background, so upgrading doesn't hold up
+ * startup. Each batch is a transaction which also records the last id the task reached, so a task carries on where it
+ * left off if the app is stopped.
+ * <p>
+ * Until its task has finished, a photo may be missing from queries on the column being filled in, e.g. bounding box
+ * queries before its grid cell is known, but it isn't lost. Downgrades can't be migrated, so they still start again
+ * with an empty database.
+ *
+ * @see PhotoDBHelper
+ * @author Campbell Lockley
+ */
+public final class Migrations {
+    /** Tag */
+    private static final String TAG = "Migrations";
+
+    /* Tables */
+    static final String TASK_TABLE = "migration_task";      // Tasks left to do, by name
+    static final String LEGACY_PHOTO_TABLE = "photo_v2";    // Photo table from before version 3, holding thumbnails
+
+    /* Columns of task table */
+    private static final String COL_NAME = "name";
+    private static final String COL_LAST_ID = "last_id";    // Id of last photo the task reached
+
+    /** Command used to create the task table with. */
+    static final String CREATE_TASKS =
+            "CREATE TABLE IF NOT EXISTS " + TASK_TABLE + " (" +
+                    COL_NAME +      " TEXT PRIMARY KEY," +
+                    COL_LAST_ID +   " INTEGER NOT NULL DEFAULT -1" +
+                    " )";
+
+    /** Command used to create the photo table of version 3 with, when it was rewritten without thumbnail bytes. */
+    private static final String CREATE_ENTRIES_V3 =
+            "CREATE TABLE " + PhotoEntry.TABLE_NAME + " (" +
+                    PhotoEntry._ID +                    " INTEGER PRIMARY KEY," +
+                    PhotoEntry.COL_URI +                " TEXT," +
+                    PhotoEntry.COL_THUMBNAIL_HASH +     " TEXT," +
+                    PhotoEntry.COL_GPS_LATITUDE +       " REAL," +
+                    PhotoEntry.COL_GPS_LATITUDE_REF +   " TEXT," +
+                    PhotoEntry.COL_GPS_LONGITUDE +      " REAL," +
+                    PhotoEntry.COL_GPS_LONGITUDE_REF +  " TEXT," +
+                    PhotoEntry.COL_DATE +               " TEXT," +
+                    PhotoEntry.COL_TIME +               " TEXT," +
+                    PhotoEntry.COL_MAKE +               " TEXT," +
+                    PhotoEntry.COL_MODEL +              " TEXT," +
+                    PhotoEntry.COL_GRID_CELL +          " INTEGER" +
+                    " )";
+
+    /** Columns kept when the photo table was rewritten for version 3. */
+    private static final String COLUMNS_V3 = PhotoEntry._ID + "," + PhotoEntry.COL_URI + "," +
+            PhotoEntry.COL_GPS_LATITUDE + "," + PhotoEntry.COL_GPS_LATITUDE_REF + "," +
+            PhotoEntry.COL_GPS_LONGITUDE + "," + PhotoEntry.COL_GPS_LONGITUDE_REF + "," +
+            PhotoEntry.COL_DATE + "," + PhotoEntry.COL_TIME + "," + PhotoEntry.COL_MAKE + "," +
+            PhotoEntry.COL_MODEL + "," + PhotoEntry.COL_GRID_CELL;
+
+    /* Tasks, in the order they are run. Unique uris come first, as imports look photos up by uri */
+    static final String TASK_URI_INDEX = "uri_index";
+    static final String TASK_GRID_CELL = "grid_cell";
+    static final String TASK_GRID_CELL_INDEX = "grid_cell_index";
+    static final String TASK_TAKEN_AT = "taken_at";
+    static final String TASK_TAKEN_AT_INDEX = "taken_at_index";
+    static final String TASK_THUMBNAILS = "thumbnails";
+    static final String TASK_STACK_INDEX = "stack_index";
+    static final String TASK_PERCEPTUAL_HASH = "perceptual_hash";
+    private static final String[] TASKS = { TASK_URI_INDEX, TASK_GRID_CELL, TASK_GRID_CELL_INDEX, TASK_TAKEN_AT,
+            TASK_TAKEN_AT_INDEX, TASK_THUMBNAILS, TASK_STACK_INDEX, TASK_PERCEPTUAL_HASH };
+
+    /* Constants */
+    private static final int BATCH_SIZE = 500;              // Photos per batch of a task
+    private static final int THUMBNAIL_BATCH_SIZE = 20;     // Thumbnails per batch, as each is written or decoded
+    private static final long DONE = Long.MIN_VALUE;        // Returned by a batch which finished its task
+
+    /** Schema change made when upgrading to a version. */
+    private abstract static class Step {
+        final int version;
+
+        Step(int version) {
+            this.version = version;
+        }
+
+        /** Changes the schema of a database at the previous version. */
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    /** Steps, in version order. */
+    private static final Step[] STEPS = {
+            /* Spatial index */
+            new Step(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    addColumn(db, PhotoEntry.COL_GRID_CELL, "INTEGER");
+                    addTask(db, TASK_GRID_CELL);
+                    addTask(db, TASK_GRID_CELL_INDEX);
+                }
+            },
+            /* Thumbnails moved to files. The old table, copied to drop the column, is kept until they have been */
+            new Step(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("DROP INDEX IF EXISTS " + PhotoEntry.INDEX_GRID_CELL);
+                    db.execSQL("ALTER TABLE " + PhotoEntry.TABLE_NAME + " RENAME TO " + LEGACY_PHOTO_TABLE);
+                    db.execSQL(CREATE_ENTRIES_V3);
+                    db.execSQL("INSERT INTO " + PhotoEntry.TABLE_NAME + " (" + COLUMNS_V3 + ") SELECT " + COLUMNS_V3 +
+                            " FROM " + LEGACY_PHOTO_TABLE);
+                    addTask(db, TASK_GRID_CELL_INDEX);
+                    addTask(db, TASK_THUMBNAILS);
+                }
+            },
+            /* Import queue, which starts empty */
+            new Step(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(PhotoDBHelper.CREATE_JOBS);
+                    db.execSQL(PhotoDBHelper.CREATE_JOB_STATE_INDEX);
+                }
+            },
+            /* File fingerprints and unique uris */
+            new Step(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    addColumn(db, PhotoEntry.COL_FILE_SIZE, "INTEGER");
+                    addColumn(db, PhotoEntry.COL_FILE_MODIFIED, "INTEGER");
+                    addColumn(db, PhotoEntry.COL_CONTENT_HASH, "TEXT");
+                    addTask(db, TASK_URI_INDEX);
+                }
+            },
+            /* Epoch times */
+            new Step(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    addColumn(db, PhotoEntry.COL_TAKEN_AT, "INTEGER");
+                    addTask(db, TASK_TAKEN_AT);
+                    addTask(db, TASK_TAKEN_AT_INDEX);
+                }
+            },
+            /* Migration tasks */
+            new Step(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(CREATE_TASKS);
+                }
+            },
+            /* Stacks of near-duplicates. Every photo starts alone in its stack until its hash is filled in */
+            new Step(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    addColumn(db, PhotoEntry.COL_PERCEPTUAL_HASH, "INTEGER");
+                    addColumn(db, PhotoEntry.COL_DUPLICATE_OF, "INTEGER");
+                    addColumn(db, PhotoEntry.COL_STACK_COUNT, "INTEGER NOT NULL DEFAULT 1");
+                    addTask(db, TASK_STACK_INDEX);
+                    addTask(db, TASK_PERCEPTUAL_HASH);
+                }
+            }
+    };
+
+    /** Not instantiable. */
+    private Migrations() {}
+
+    /**
+     * Upgrades the schema of a database. Must be called within a transaction, as it is by
+     * {@link PhotoDBHelper#onUpgrade(SQLiteDatabase, int, int)}.
+     *
+     * @param db Database to upgrade.
+     * @param oldVersion Version of the database.
+     * @param newVersion Version to upgrade to.
+     */
+    static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL(CREATE_TASKS);                           // Steps before version 7 record tasks too
+        for (Step step : STEPS) {
+            if (step.version > oldVersion && step.version <= newVersion) {
+                Log.d(TAG, "Upgrading database to version " + step.version);
+                step.migrate(db);
+            }
+        }
+    }
+
+    /**
+     * Runs the next batch of the first task left by an upgrade, in a transaction.
+     *
+     * @param db Writable photo database.
+     * @param store Store thumbnails are moved to.
+     * @param stacks Stacks photos are put into once their hashes are filled in, i.e. those of the {@link PhotoWriter}.
+     * @return True if a batch was run, false if there are no tasks left.
+     */
+    public static boolean runBatch(SQLiteDatabase db, ThumbnailStore store, PhotoStacks stacks) {
+        HashMap<String, Long> pending = new HashMap<>();
+        Cursor c = db.query(TASK_TABLE, new String[] { COL_NAME, COL_LAST_ID }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) pending.put(c.getString(0), c.getLong(1));
+        } finally {
+            c.close();
+        }
+
+        for (String task : TASKS) {
+            Long lastId = pending.get(task);
+            if (lastId == null) continue;
+
+            try {
+                db.beginTransaction();
+                long reached = runTask(db, store, stacks, task, lastId);
+                if (reached == DONE) {
+                    db.delete(TASK_TABLE, COL_NAME + "=?", new String[] { task });
+                    Log.d(TAG, "Finished migration task " + task);
+                } else {
+                    db.execSQL("UPDATE " + TASK_TABLE + " SET " + COL_LAST_ID + "=? WHERE " + COL_NAME + "=?",
+                            new Object[] { reached, task });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs one batch of a task.
+     *
+     * @param lastId Id of the last photo the task reached, or -1 if it hasn't started.
+     * @return Id of the last photo the batch reached, or {@link #DONE} if the task is finished.
+     */
+    private static long runTask(SQLiteDatabase db, ThumbnailStore store, PhotoStacks stacks, String task,
+                                long lastId) {
+        switch (task) {
+            case TASK_URI_INDEX:
+                /* Earlier versions allowed a file to be imported more than once. Keep the latest import */
+                db.execSQL("DELETE FROM " + PhotoEntry.TABLE_NAME + " WHERE " + PhotoEntry.COL_URI + " IS NOT NULL" +
+                        " AND " + PhotoEntry._ID + " NOT IN (SELECT MAX(" + PhotoEntry._ID + ") FROM " +
+                        PhotoEntry.TABLE_NAME + " WHERE " + PhotoEntry.COL_URI + " IS NOT NULL GROUP BY " +
+                        PhotoEntry.COL_URI + ")");
+                db.execSQL(PhotoDBHelper.CREATE_URI_INDEX);
+                return DONE;
+            case TASK_GRID_CELL:
+                return fillGridCells(db, lastId);
+            case TASK_GRID_CELL_INDEX:
+                db.execSQL(PhotoDBHelper.CREATE_GRID_CELL_INDEX);
+                return DONE;
+            case TASK_TAKEN_AT:
+                return fillTakenAt(db, lastId);
+            case TASK_TAKEN_AT_INDEX:
+                db.execSQL(PhotoDBHelper.CREATE_TAKEN_AT_INDEX);
+                return DONE;
+            case TASK_THUMBNAILS:
+                return moveThumbnails(db, store, lastId);
+            case TASK_STACK_INDEX:
+                db.execSQL(PhotoDBHelper.CREATE_STACK_INDEX);
+                return DONE;
+            case TASK_PERCEPTUAL_HASH:
+                return fillPerceptualHashes(db, store, stacks, lastId);
+            default:
+                Log.w(TAG, "Unknown migration task " + task);
+                return DONE;
+        }
+    }
+
+    /** Fills in the grid cells of a batch of photos. */
+    private static long fillGridCells(SQLiteDatabase db, long lastId) {
+        Cursor c = db.query(PhotoEntry.TABLE_NAME,
+                new String[] { PhotoEntry._ID, PhotoEntry.COL_GPS_LATITUDE, PhotoEntry.COL_GPS_LONGITUDE },
+                PhotoEntry._ID + " > ? AND " + PhotoEntry.COL_GRID_CELL + " IS NULL AND " +
+                        PhotoEntry.COL_GPS_LATITUDE + " IS NOT NULL AND " +
+                        PhotoEntry.COL_GPS_LONGITUDE + " IS NOT NULL",
+                new String[] { Long.toString(lastId) }, null, null, PhotoEntry._ID, Integer.toString(BATCH_SIZE));
+        SQLiteStatement update = db.compileStatement("UPDATE " + PhotoEntry.TABLE_NAME + " SET " +
+                PhotoEntry.COL_GRID_CELL + "=? WHERE " + PhotoEntry._ID + "=?");
+        try {
+            int count = c.getCount();
+            while (c.moveToNext()) {
+                lastId = c.getLong(0);
+                update.bindLong(1, GeoGrid.cell(c.getDouble(1), c.getDouble(2)));
+                update.bindLong(2, lastId);
+                update.executeUpdateDelete();
+            }
+            return (count < BATCH_SIZE) ? DONE : lastId;
+        } finally {
+            c.close();
+            update.close();
+        }
+    }
+
+    /** Fills in the epoch times of a batch of photos from their EXIF dates and times. */
+    private static long fillTakenAt(SQLiteDatabase db, long lastId) {
+        Cursor c = db.query(PhotoEntry.TABLE_NAME,
+                new String[] { PhotoEntry._ID, PhotoEntry.COL_DATE, PhotoEntry.COL_TIME },
+                PhotoEntry._ID + " > ? AND " + PhotoEntry.COL_TAKEN_AT + " IS NULL AND " +
+                        PhotoEntry.COL_DATE + " IS NOT NULL",
+                new String[] { Long.toString(lastId) }, null, null, PhotoEntry._ID, Integer.toString(BATCH_SIZE));
+        SQLiteStatement update = db.compileStatement("UPDATE " + PhotoEntry.TABLE_NAME + " SET " +
+                PhotoEntry.COL_TAKEN_AT + "=? WHERE " + PhotoEntry._ID + "=?");
+        try {
+            int count = c.getCount();
+            while (c.moveToNext()) {
+                lastId = c.getLong(0);
+                String datetime = c.isNull(2) ? c.getString(1) : c.getString(1) + " " + c.getString(2);
+                long takenAt = ExifParser.toEpochMillis(datetime);
+                if (takenAt == ExifParser.UNKNOWN_TIME) continue;     // Left unknown, as a new import would
+                update.bindLong(1, takenAt);
+                update.bindLong(2, lastId);
+                update.executeUpdateDelete();
+            }
+            return (count < BATCH_SIZE) ? DONE : lastId;
+        } finally {
+            c.close();
+            update.close();
+        }
+    }
+
+    /**
+     * Moves a batch of thumbnails from the photo table of before version 3 to the {@link ThumbnailStore}. The old
+     * table is dropped once they all have been.
+     */
+    private static long moveThumbnails(SQLiteDatabase db, ThumbnailStore store, long lastId) {
+        Cursor c = db.query(LEGACY_PHOTO_TABLE, new String[] { PhotoEntry._ID, PhotoEntry.COL_THUMBNAIL },
+                PhotoEntry._ID + " > ? AND " + PhotoEntry.COL_THUMBNAIL + " IS NOT NULL",
+                new String[] { Long.toString(lastId) }, null, null, PhotoEntry._ID,
+                Integer.toString(THUMBNAIL_BATCH_SIZE));
+        SQLiteStatement update = db.compileStatement("UPDATE " + PhotoEntry.TABLE_NAME + " SET " +
+                PhotoEntry.COL_THUMBNAIL_HASH + "=? WHERE " + PhotoEntry._ID + "=? AND " +
+                PhotoEntry.COL_THUMBNAIL_HASH + " IS NULL");    // Unless it has been imported again since
+        int count;
+        try {
+            count = c.getCount();
+            while (c.moveToNext()) {
+                lastId = c.getLong(0);
+                try {
+                    update.bindString(1, store.put(c.getBlob(1)));
+                    update.bindLong(2, lastId);
+                    update.executeUpdateDelete();
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't move thumbnail of photo " + lastId, e);   // Photo is kept without one
+                }
+            }
+        } finally {
+            c.close();
+            update.close();
+        }
+
+        if (count == THUMBNAIL_BATCH_SIZE) return lastId;
+        db.execSQL("DROP TABLE IF EXISTS " + LEGACY_PHOTO_TABLE);
+        return DONE;
+    }
+
+    /**
+     * Fills in the perceptual hashes of a batch of photos from their thumbnails, and puts each into the stack of the
+     * near-duplicate it matches, if any. Photos are done in id order, i.e. the order they were imported, so each
+     * stack's original is the photo an import would have made it.
+     */
+    private static long fillPerceptualHashes(SQLiteDatabase db, ThumbnailStore store, PhotoStacks stacks,
+                                             long lastId) {
+        Cursor c = db.query(PhotoEntry.TABLE_NAME, new String[] { PhotoEntry._ID, PhotoEntry.COL_THUMBNAIL_HASH,
+                        PhotoEntry.COL_GPS_LATITUDE, PhotoEntry.COL_GPS_LONGITUDE },
+                PhotoEntry._ID + " > ? AND " + PhotoEntry.COL_PERCEPTUAL_HASH + " IS NULL AND " +
+                        PhotoEntry.COL_THUMBNAIL_HASH + " IS NOT NULL",
+                new String[] { Long.toString(lastId) }, null, null, PhotoEntry._ID,
+                Integer.toString(THUMBNAIL_BATCH_SIZE));
+        try {
+            int count = c.getCount();
+            while (c.moveToNext()) {
+                lastId = c.getLong(0);
+                Long hash;
+                try {
+                    hash = Thumbnailer.perceptualHash(store.getFile(c.getString(1)));
+                } catch (IOException e) {
+                    Log.w(TAG, "Couldn't read thumbnail of photo " + lastId, e);
+                    continue;                               // Left alone in its stack
+                }
+                if (hash == null) continue;
+                Double latitude = c.isNull(2) ? null : c.getDouble(2);
+                Double longitude = c.isNull(3) ? null : c.getDouble(3);
+                stacks.stack(db, lastId, hash, latitude, longitude);
+            }
+            return (count < THUMBNAIL_BATCH_SIZE) ? DONE : lastId;
+        } finally {
+            c.close();
+        }
+    }
+
+    /** Adds a column to the photo table. It is added last, so columns end up in the same order as a new table's. */
+    private static void addColumn(SQLiteDatabase db, String column, String type) {
+        db.execSQL("ALTER TABLE " + PhotoEntry.TABLE_NAME + " ADD COLUMN " + column + " " + type);
+    }
+
+    /** Records a task to be run after the upgrade, starting from the first photo. */
+    private static void addTask(SQLiteDatabase db, String task) {
+        db.execSQL("INSERT OR REPLACE INTO " + TASK_TABLE + " (" + COL_NAME + ") VALUES (?)", new Object[] { task });
+    }
+
+}
@@ -17,7 +17,7 @@ public final class PhotoContract {
     public static final class PhotoEntry implements BaseColumns {
         public static final String TABLE_NAME               = "photo";
         public static final String COL_URI                  = "uri";
-        public static final String COL_THUMBNAIL            = "thumbnail";
+        public static final String COL_THUMBNAIL_HASH       = "thumbnail_hash";
         public static final String COL_GPS_LATITUDE         = "gps_latitude";
         public static final String COL_GPS_LATITUDE_REF     = "gps_latitude_ref";
         public static final String COL_GPS_LONGITUDE        = "gps_longitude";
@@ -26,5 +26,50 @@ public final class PhotoContract {
         public static final String COL_TIME                 = "time";
         public static final String COL_MAKE                 = "make";
         public static final String COL_MODEL                = "model";
+        public static final String COL_GRID_CELL            = "grid_cell";
+        public static final String COL_FILE_SIZE            = "file_size";
+        public static final String COL_FILE_MODIFIED        = "file_modified";
+        public static final String COL_CONTENT_HASH         = "content_hash";
+        public static final String COL_TAKEN_AT             = "taken_at";
+        public static final String COL_PERCEPTUAL_HASH      = "perceptual_hash";
+        public static final String COL_DUPLICATE_OF         = "duplicate_of";
+        public static final String COL_STACK_COUNT          = "stack_count";
+
+        /** Index on {@link #COL_GRID_CELL} used for bounding box queries. */
+        public static final String INDEX_GRID_CELL          = "photo_grid_cell_idx";
+        /** Index on {@link #COL_TAKEN_AT} used for time range queries. */
+        public static final String INDEX_TAKEN_AT           = "photo_taken_at_idx";
+        /** Unique index on {@link #COL_URI}, so each file is only stored once. */
+        public static final String INDEX_URI                = "photo_uri_idx";
+        /**
+         * Index on {@link #COL_DUPLICATE_OF} and {@link #COL_PERCEPTUAL_HASH}, used to find a stack's photos and to
+         * read the hashes of the photos which start stacks, see {@link PhotoStacks}.
+         */
+        public static final String INDEX_STACK              = "photo_stack_idx";
+
+        /**
+         * Key of thumbnail bytes in the values passed to inserts. This isn't a column: the thumbnail is moved into the
+         * {@link ThumbnailStore} and its hash is stored in {@link #COL_THUMBNAIL_HASH} instead.
+         */
+        public static final String COL_THUMBNAIL            = "thumbnail";
+    }
+
+    /** Defines table contents for import job table, i.e. the queue of images waiting to be imported. */
+    public static final class ImportJobEntry implements BaseColumns {
+        public static final String TABLE_NAME               = "import_job";
+        public static final String COL_SOURCE_URI           = "source_uri";
+        public static final String COL_STATE                = "state";
+        public static final String COL_ATTEMPTS             = "attempts";
+        public static final String COL_NEXT_ATTEMPT_AT      = "next_attempt_at";
+
+        /** Index on {@link #COL_STATE} and {@link #COL_NEXT_ATTEMPT_AT} used to claim jobs which are due. */
+        public static final String INDEX_STATE              = "import_job_state_idx";
+
+        /* Job states */
+        public static final int STATE_PENDING               = 0;    // Waiting to be imported, or retried
+        public static final int STATE_RUNNING               = 1;    // Claimed by the import service
+        public static final int STATE_DONE                  = 2;    // Imported
+        public static final int STATE_SKIPPED               = 3;    // Not importable, e.g. no GPS data
+        public static final int STATE_FAILED                = 4;    // Gave up after too many attempts
     }
 }
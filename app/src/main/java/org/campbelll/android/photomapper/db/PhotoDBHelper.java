@@ -1,26 +1,37 @@
 package org.campbelll.android.photomapper.db;
 
 import android.content.ContentValues;
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Build;
 import android.util.Log;
 
 import org.campbelll.android.photomapper.PhotoProvider;
 import org.campbelll.android.photomapper.utility.Photo;
+import org.campbelll.android.photomapper.utility.PhotoIndex;
 
 import java.util.ArrayList;
 
+import static org.campbelll.android.photomapper.db.PhotoContract.ImportJobEntry;
 import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
 
 /**
  * Database helper class for the photo database.
  * <p>
  * This class is used to create and delete the database, as well as providing utility methods to extract {@link Photo}s
- * from the database cursors returned by {@link PhotoProvider} and converting {@link Photo}s to {@link ContentValues}
- * for {@link PhotoProvider#insert(Uri, ContentValues)} calls.
+ * or a {@link PhotoIndex} from the database cursors returned by {@link PhotoProvider} and converting {@link Photo}s to
+ * {@link ContentValues} for {@link PhotoProvider#insert(Uri, ContentValues)} calls.
+ * <p>
+ * Each time the database is opened it is configured with the chosen {@link StorageProfile}, which by default turns on
+ * write-ahead logging so the map's queries don't wait for imports. Writes to the photo table are made by the
+ * {@link PhotoWriter}'s thread.
+ * <p>
+ * Older databases are upgraded in place by {@link Migrations}, so photos aren't lost when the schema changes.
  *
  * @see PhotoContract
  * @author Campbell Lockley
@@ -30,16 +41,24 @@ public class PhotoDBHelper extends SQLiteOpenHelper {
     private static final String TAG = "PhotoDBHelper";
 
     /** Current database version. */
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 8;
     /** Database name. */
     public static final String DATABASE_NAME = "photos.db";
 
+    /** Name of preferences file holding the storage profile. */
+    private static final String PREFS_NAME = "storage";
+    /** Key of the storage profile's name. */
+    private static final String KEY_PROFILE = "profile";
+
+    /** Compiled statements kept per connection, so each distinct query the provider runs is only compiled once. */
+    private static final int MAX_SQL_CACHE_SIZE = 100;
+
     /** Command used to create photo table with. This must match {@link PhotoEntry} and should match {@link Photo}. */
     private static final String CREATE_ENTRIES =
             "CREATE TABLE " + PhotoEntry.TABLE_NAME + " (" +
                     PhotoEntry._ID +                    " INTEGER PRIMARY KEY," +
                     PhotoEntry.COL_URI +                " TEXT," +
-                    PhotoEntry.COL_THUMBNAIL +          " BLOB," +
+                    PhotoEntry.COL_THUMBNAIL_HASH +     " TEXT," +
                     PhotoEntry.COL_GPS_LATITUDE +       " REAL," +
                     PhotoEntry.COL_GPS_LATITUDE_REF +   " TEXT," +
                     PhotoEntry.COL_GPS_LONGITUDE +      " REAL," +
@@ -47,18 +66,85 @@ public class PhotoDBHelper extends SQLiteOpenHelper {
                     PhotoEntry.COL_DATE +               " TEXT," +
                     PhotoEntry.COL_TIME +               " TEXT," +
                     PhotoEntry.COL_MAKE +               " TEXT," +
-                    PhotoEntry.COL_MODEL +              " TEXT" +
+                    PhotoEntry.COL_MODEL +              " TEXT," +
+                    PhotoEntry.COL_GRID_CELL +          " INTEGER," +
+                    PhotoEntry.COL_FILE_SIZE +          " INTEGER," +
+                    PhotoEntry.COL_FILE_MODIFIED +      " INTEGER," +
+                    PhotoEntry.COL_CONTENT_HASH +       " TEXT," +
+                    PhotoEntry.COL_TAKEN_AT +           " INTEGER," +
+                    PhotoEntry.COL_PERCEPTUAL_HASH +    " INTEGER," +
+                    PhotoEntry.COL_DUPLICATE_OF +       " INTEGER," +
+                    PhotoEntry.COL_STACK_COUNT +        " INTEGER NOT NULL DEFAULT 1" +
                     " )";
 
+    /** Command used to create the spatial index on the photo table with. */
+    static final String CREATE_GRID_CELL_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + PhotoEntry.INDEX_GRID_CELL + " ON " + PhotoEntry.TABLE_NAME +
+                    " (" + PhotoEntry.COL_GRID_CELL + ")";
+
+    /** Command used to create the index used by time range queries with. */
+    static final String CREATE_TAKEN_AT_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + PhotoEntry.INDEX_TAKEN_AT + " ON " + PhotoEntry.TABLE_NAME +
+                    " (" + PhotoEntry.COL_TAKEN_AT + ")";
+
+    /** Command used to create the unique index on photo uris with. */
+    static final String CREATE_URI_INDEX =
+            "CREATE UNIQUE INDEX IF NOT EXISTS " + PhotoEntry.INDEX_URI + " ON " + PhotoEntry.TABLE_NAME +
+                    " (" + PhotoEntry.COL_URI + ")";
+
+    /** Command used to create the index on stacks of near-duplicate photos with, see {@link PhotoStacks}. */
+    static final String CREATE_STACK_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + PhotoEntry.INDEX_STACK + " ON " + PhotoEntry.TABLE_NAME +
+                    " (" + PhotoEntry.COL_DUPLICATE_OF + ", " + PhotoEntry.COL_PERCEPTUAL_HASH + ")";
+
+    /** Command used to create import job table with. This must match {@link ImportJobEntry}. */
+    static final String CREATE_JOBS =
+            "CREATE TABLE " + ImportJobEntry.TABLE_NAME + " (" +
+                    ImportJobEntry._ID +                    " INTEGER PRIMARY KEY," +
+                    ImportJobEntry.COL_SOURCE_URI +         " TEXT NOT NULL UNIQUE," +
+                    ImportJobEntry.COL_STATE +              " INTEGER NOT NULL DEFAULT " +
+                                                            ImportJobEntry.STATE_PENDING + "," +
+                    ImportJobEntry.COL_ATTEMPTS +           " INTEGER NOT NULL DEFAULT 0," +
+                    ImportJobEntry.COL_NEXT_ATTEMPT_AT +    " INTEGER NOT NULL DEFAULT 0" +
+                    " )";
+
+    /** Command used to create the index used to claim due import jobs with. */
+    static final String CREATE_JOB_STATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + ImportJobEntry.INDEX_STATE + " ON " + ImportJobEntry.TABLE_NAME +
+                    " (" + ImportJobEntry.COL_STATE + ", " + ImportJobEntry.COL_NEXT_ATTEMPT_AT + ")";
+
     /** Command used to delete photo table with */
     private static final String DELETE_ENTRIES = "DROP TABLE IF EXISTS " + PhotoEntry.TABLE_NAME;
 
+    /** Command used to delete import job table with */
+    private static final String DELETE_JOBS = "DROP TABLE IF EXISTS " + ImportJobEntry.TABLE_NAME;
+
+    /** Command used to delete migration task table with */
+    private static final String DELETE_TASKS = "DROP TABLE IF EXISTS " + Migrations.TASK_TABLE;
+
+    /** Command used to delete photo table of before version 3 with, if it hasn't been migrated yet */
+    private static final String DELETE_LEGACY_ENTRIES = "DROP TABLE IF EXISTS " + Migrations.LEGACY_PHOTO_TABLE;
+
     /** Singleton to synchronize database access. */
     private static PhotoDBHelper singleton = null;
 
-    /** Constructor. */
+    /** Settings the database is opened with. */
+    private final StorageProfile profile;
+
+    /** Constructor. The database is opened with the default {@link StorageProfile}. */
     public PhotoDBHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, StorageProfile.BALANCED);
+    }
+
+    /** Constructor. */
+    public PhotoDBHelper(Context context, StorageProfile profile) {
+        this(context, DATABASE_NAME, profile);
+    }
+
+    /** Constructor for a database with another name, e.g. for tests. */
+    public PhotoDBHelper(Context context, String name, StorageProfile profile) {
+        super(context, name, null, DATABASE_VERSION);
+        this.profile = profile;
     }
 
     /**
@@ -68,28 +154,90 @@ public class PhotoDBHelper extends SQLiteOpenHelper {
      * @return Instance of PhotoDBHelper.
      */
     synchronized public static PhotoDBHelper getInstance(Context context) {
-        if (singleton == null) singleton = new PhotoDBHelper(context.getApplicationContext());
+        if (singleton == null) {
+            singleton = new PhotoDBHelper(context.getApplicationContext(), getStorageProfile(context));
+        }
         return singleton;
     }
 
-    /** Creates the database table. */
+    /** Returns the chosen storage profile. */
+    public static StorageProfile getStorageProfile(Context context) {
+        return StorageProfile.forName(getPreferences(context).getString(KEY_PROFILE, null));
+    }
+
+    /** Chooses the storage profile the database is opened with. Takes effect the next time the app is started. */
+    public static void setStorageProfile(Context context, StorageProfile profile) {
+        getPreferences(context).edit().putString(KEY_PROFILE, profile.name).apply();
+    }
+
+    /** Returns the preferences holding the storage profile. */
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Configures the database with the storage profile. This is done on open rather than configure, which isn't
+     * available before Jelly Bean. The journal mode can't be changed on a read only database.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        db.setMaxSqlCacheSize(MAX_SQL_CACHE_SIZE);
+        if (db.isReadOnly()) return;
+
+        if (profile.write_ahead_log) {
+            if (!db.enableWriteAheadLogging()) Log.w(TAG, "Couldn't enable write-ahead logging");
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            disableWriteAheadLogging(db);
+        }
+        db.execSQL("PRAGMA synchronous=" + profile.synchronous);
+        if (profile.cache_kb > 0) db.execSQL("PRAGMA cache_size=" + profile.cache_kb * 1024L / db.getPageSize());
+        Log.d(TAG, "Opened database with storage profile " + profile);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void disableWriteAheadLogging(SQLiteDatabase db) {
+        db.disableWriteAheadLogging();
+    }
+
+    /** Creates the database tables. */
     @Override
     public void onCreate(SQLiteDatabase db) {
         try {
             db.beginTransaction();
             db.execSQL(CREATE_ENTRIES);
+            db.execSQL(CREATE_GRID_CELL_INDEX);
+            db.execSQL(CREATE_URI_INDEX);
+            db.execSQL(CREATE_TAKEN_AT_INDEX);
+            db.execSQL(CREATE_STACK_INDEX);
+            db.execSQL(CREATE_JOBS);
+            db.execSQL(CREATE_JOB_STATE_INDEX);
+            db.execSQL(Migrations.CREATE_TASKS);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
     }
 
-    /** This database doesn't upgrade. Photo table is dropped. */
+    /**
+     * Upgrades the database in place, keeping its photos, see {@link Migrations}. Work which depends on the number of
+     * photos is left for {@link Migrations#runBatch(SQLiteDatabase, ThumbnailStore, PhotoStacks)}. Runs within a
+     * transaction.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Migrations.upgrade(db, oldVersion, newVersion);
+    }
+
+    /** This database doesn't downgrade. All tables are dropped. */
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         try {
             db.beginTransaction();
             db.execSQL(DELETE_ENTRIES);
+            db.execSQL(DELETE_JOBS);
+            db.execSQL(DELETE_TASKS);
+            db.execSQL(DELETE_LEGACY_ENTRIES);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
@@ -97,30 +245,36 @@ public class PhotoDBHelper extends SQLiteOpenHelper {
         onCreate(db);
     }
 
-    /** This database doesn't downgrade. Photo table is dropped. */
-    @Override
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
-    }
-
     /** Utility method to extract all photos from db cursor. */
     public static ArrayList<Photo> getAllPhotos(Cursor c) {
         if (c.moveToFirst() == false) return null;
 
-        ArrayList<Photo> photos = new ArrayList<>();
+        ArrayList<Photo> photos = new ArrayList<>(c.getCount());
+
+        /* Look up columns once, not per row */
+        int idCol               = c.getColumnIndexOrThrow(PhotoEntry._ID);
+        int uriCol              = c.getColumnIndexOrThrow(PhotoEntry.COL_URI);
+        int latitudeCol         = c.getColumnIndexOrThrow(PhotoEntry.COL_GPS_LATITUDE);
+        int latitudeRefCol      = c.getColumnIndexOrThrow(PhotoEntry.COL_GPS_LATITUDE_REF);
+        int longitudeCol        = c.getColumnIndexOrThrow(PhotoEntry.COL_GPS_LONGITUDE);
+        int longitudeRefCol     = c.getColumnIndexOrThrow(PhotoEntry.COL_GPS_LONGITUDE_REF);
+        int dateCol             = c.getColumnIndexOrThrow(PhotoEntry.COL_DATE);
+        int timeCol             = c.getColumnIndexOrThrow(PhotoEntry.COL_TIME);
+        int makeCol             = c.getColumnIndexOrThrow(PhotoEntry.COL_MAKE);
+        int modelCol            = c.getColumnIndexOrThrow(PhotoEntry.COL_MODEL);
 
         do {
             Photo photo = new Photo();
-            photo.uri               = c.getString(c.getColumnIndexOrThrow(PhotoEntry.COL_URI));
-            photo.thumbnail         = c.getBlob(c.getColumnIndexOrThrow(PhotoEntry.COL_THUMBNAIL));
-            photo.gps_latitude      = c.getDouble(c.getColumnIndexOrThrow(PhotoEntry.COL_GPS_LATITUDE));
-            photo.gps_latitude_ref  = c.getString(c.getColumnIndexOrThrow(PhotoEntry.COL_GPS_LATITUDE_REF));
-            photo.gps_longitude     = c.getDouble(c.getColumnIndexOrThrow(PhotoEntry.COL_GPS_LONGITUDE));
-            photo.gps_longitude_ref = c.getString(c.getColumnIndexOrThrow(PhotoEntry.COL_GPS_LONGITUDE_REF));
-            photo.date              = c.getString(c.getColumnIndexOrThrow(PhotoEntry.COL_DATE));
-            photo.time              = c.getString(c.getColumnIndexOrThrow(PhotoEntry.COL_TIME));
-            photo.make              = c.getString(c.getColumnIndexOrThrow(PhotoEntry.COL_MAKE));
-            photo.model             = c.getString(c.getColumnIndexOrThrow(PhotoEntry.COL_MODEL));
+            photo.id                = c.getLong(idCol);
+            photo.uri               = c.getString(uriCol);
+            photo.gps_latitude      = c.getDouble(latitudeCol);
+            photo.gps_latitude_ref  = c.getString(latitudeRefCol);
+            photo.gps_longitude     = c.getDouble(longitudeCol);
+            photo.gps_longitude_ref = c.getString(longitudeRefCol);
+            photo.date              = c.getString(dateCol);
+            photo.time              = c.getString(timeCol);
+            photo.make              = c.getString(makeCol);
+            photo.model             = c.getString(modelCol);
             photos.add(photo);
         } while (c.moveToNext() != false);
 
@@ -129,7 +283,55 @@ public class PhotoDBHelper extends SQLiteOpenHelper {
         return photos;
     }
 
-    /** Utility method to convert a {@link Photo} so that {@link PhotoProvider} can handle it. */
+    /**
+     * Utility method to build a {@link PhotoIndex} from a db cursor in a single pass. The cursor should be sorted by
+     * {@link PhotoEntry#_ID} and must have the id, coordinate, time taken, make and model columns. It may also have
+     * the {@link PhotoEntry#COL_STACK_COUNT} column, otherwise each photo is taken to be alone in its stack.
+     */
+    public static PhotoIndex getPhotoIndex(Cursor c) {
+        if (c == null || c.getCount() == 0) return PhotoIndex.EMPTY;
+
+        PhotoIndex.Builder builder = new PhotoIndex.Builder(c.getCount());
+        addToIndex(c, builder);
+        PhotoIndex index = builder.build();
+        Log.d(TAG, index.size() + " photos indexed from db");
+
+        return index;
+    }
+
+    /**
+     * Utility method to add every photo in a db cursor to a {@link PhotoIndex.Builder}, e.g. one page of a paged query.
+     * The cursor must have the same columns as for {@link #getPhotoIndex(Cursor)}.
+     *
+     * @return Id of the last photo in the cursor, or -1 if it is empty.
+     */
+    public static long addToIndex(Cursor c, PhotoIndex.Builder builder) {
+        if (c == null || c.moveToFirst() == false) return -1;
+
+        /* Look up columns once, not per row */
+        int idCol               = c.getColumnIndexOrThrow(PhotoEntry._ID);
+        int latitudeCol         = c.getColumnIndexOrThrow(PhotoEntry.COL_GPS_LATITUDE);
+        int longitudeCol        = c.getColumnIndexOrThrow(PhotoEntry.COL_GPS_LONGITUDE);
+        int takenAtCol          = c.getColumnIndexOrThrow(PhotoEntry.COL_TAKEN_AT);
+        int makeCol             = c.getColumnIndexOrThrow(PhotoEntry.COL_MAKE);
+        int modelCol            = c.getColumnIndexOrThrow(PhotoEntry.COL_MODEL);
+        int stackCountCol       = c.getColumnIndex(PhotoEntry.COL_STACK_COUNT);
+
+        long id;
+        do {
+            id = c.getLong(idCol);
+            builder.add(id, c.getDouble(latitudeCol), c.getDouble(longitudeCol),
+                    c.isNull(takenAtCol) ? PhotoIndex.UNKNOWN_TIME : c.getLong(takenAtCol),
+                    c.getString(makeCol), c.getString(modelCol), (stackCountCol < 0) ? 1 : c.getInt(stackCountCol));
+        } while (c.moveToNext() != false);
+
+        return id;
+    }
+
+    /**
+     * Utility method to convert a {@link Photo} so that {@link PhotoProvider} can handle it. The thumbnail is passed as
+     * raw bytes, which the provider moves into the {@link ThumbnailStore}.
+     */
     public static ContentValues getContentValues(Photo photo) {
         ContentValues cv = new ContentValues();
 
@@ -138,11 +340,16 @@ public class PhotoDBHelper extends SQLiteOpenHelper {
         cv.put(PhotoEntry.COL_GPS_LATITUDE, photo.gps_latitude);
         cv.put(PhotoEntry.COL_GPS_LATITUDE_REF, photo.gps_latitude_ref);
         cv.put(PhotoEntry.COL_GPS_LONGITUDE, photo.gps_longitude);
-        cv.put(PhotoEntry.COL_GPS_LATITUDE_REF, photo.gps_latitude_ref);
+        cv.put(PhotoEntry.COL_GPS_LONGITUDE_REF, photo.gps_longitude_ref);
         cv.put(PhotoEntry.COL_DATE, photo.date);
         cv.put(PhotoEntry.COL_TIME, photo.time);
+        cv.put(PhotoEntry.COL_TAKEN_AT, photo.taken_at);
         cv.put(PhotoEntry.COL_MAKE, photo.make);
         cv.put(PhotoEntry.COL_MODEL, photo.model);
+        cv.put(PhotoEntry.COL_FILE_SIZE, photo.file_size);
+        cv.put(PhotoEntry.COL_FILE_MODIFIED, photo.file_modified);
+        cv.put(PhotoEntry.COL_CONTENT_HASH, photo.content_hash);
+        cv.put(PhotoEntry.COL_PERCEPTUAL_HASH, photo.perceptual_hash);
 
         return cv;
     }
@@ -0,0 +1,210 @@
+package org.campbelll.android.photomapper.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.campbelll.android.photomapper.utility.BkTree;
+import org.campbelll.android.photomapper.utility.KdTree;
+import org.campbelll.android.photomapper.utility.PerceptualHash;
+import org.campbelll.android.photomapper.utility.Perf;
+
+import java.util.List;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
+
+/**
+ * Groups near-duplicate photos, e.g. burst shots and re-shared copies of the same picture, into stacks as they are
+ * written, so the map can show each stack as one marker.
+ * <p>
+ * A photo is a near-duplicate of another if their {@link PerceptualHash}es differ in at most
+ * {@link #MAX_HASH_DISTANCE} bits and they were taken within {@link #MAX_METRES} of each other. Each stack has one
+ * original, the first of its photos to be written, whose {@link PhotoEntry#COL_STACK_COUNT} is the number of photos in
+ * the stack. The others record the original's id in {@link PhotoEntry#COL_DUPLICATE_OF}. When an original is deleted
+ * the next photo of its stack takes its place.
+ * <p>
+ * Originals are found in a {@link BkTree} of their hashes, so finding a new photo's original takes about log n hash
+ * comparisons for n originals rather than one per photo. The tree is read from the database, using the index on
+ * {@link PhotoEntry#INDEX_STACK}, the first time it is needed, and is then kept up to date by each write made through
+ * this class. Stacks are only formed as photos are inserted or their hashes are first filled in, so changing a photo's
+ * location later doesn't move it between stacks.
+ * <p>
+ * Must only be used on the writer thread, see {@link PhotoWriter}.
+ *
+ * @author Campbell Lockley
+ */
+public class PhotoStacks {
+    /** Tag */
+    private static final String TAG = "PhotoStacks";
+
+    /* Constants */
+    public static final int MAX_HASH_DISTANCE = 10;         // Bits near-duplicates' hashes may differ in
+    public static final double MAX_METRES = 50;             // Distance near-duplicates may be taken apart
+
+    /* Members */
+    private BkTree tree = null;                             // Hashes of originals, once read
+    private SQLiteDatabase treeDb = null;                   // Database the tree was read from
+
+    /**
+     * Returns the original of the stack a photo about to be inserted belongs in, i.e. the original with the nearest
+     * hash within {@link #MAX_HASH_DISTANCE} bits which was taken within {@link #MAX_METRES}, or -1 if it should start
+     * a stack of its own.
+     */
+    public long findOriginal(SQLiteDatabase db, long hash, double latitude, double longitude) {
+        BkTree.Result candidates;
+        long start = Perf.begin(Perf.STACK_LOOKUP);
+        try {
+            candidates = getTree(db).search(hash, MAX_HASH_DISTANCE);
+        } finally {
+            Perf.end(Perf.STACK_LOOKUP, start);
+        }
+
+        /* Nearest hash first, so the first close enough is the best match */
+        for (int i = 0; i < candidates.count; i++) {
+            Cursor c = db.query(PhotoEntry.TABLE_NAME,
+                    new String[] { PhotoEntry.COL_GPS_LATITUDE, PhotoEntry.COL_GPS_LONGITUDE },
+                    PhotoEntry._ID + "=" + candidates.ids[i], null, null, null, null);
+            try {
+                if (c.moveToFirst() && !c.isNull(0) && !c.isNull(1)
+                        && KdTree.distance(latitude, longitude, c.getDouble(0), c.getDouble(1)) <= MAX_METRES) {
+                    return candidates.ids[i];
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records a photo which has just been inserted.
+     *
+     * @param id Id of the photo.
+     * @param hash Hash of the photo.
+     * @param original Original the photo was inserted as a duplicate of, or -1 if it starts a stack of its own.
+     */
+    public void added(SQLiteDatabase db, long id, long hash, long original) {
+        if (original == -1) {
+            if (isTreeOf(db)) tree.add(hash, id);
+        } else {
+            db.execSQL("UPDATE " + PhotoEntry.TABLE_NAME + " SET " + PhotoEntry.COL_STACK_COUNT + "=" +
+                    PhotoEntry.COL_STACK_COUNT + "+1 WHERE " + PhotoEntry._ID + "=" + original);
+        }
+    }
+
+    /**
+     * Fills in the hash of a photo which is already stored, e.g. one imported before hashes were, and puts it into the
+     * stack it belongs in.
+     *
+     * @param latitude Latitude of the photo, or null if it has no location, in which case it starts a stack of its own.
+     * @param longitude Longitude of the photo, or null.
+     * @return Original the photo is now a duplicate of, or -1 if it starts a stack of its own.
+     */
+    long stack(SQLiteDatabase db, long id, long hash, Double latitude, Double longitude) {
+        long original = (latitude == null || longitude == null) ? -1 : findOriginal(db, hash, latitude, longitude);
+        db.execSQL("UPDATE " + PhotoEntry.TABLE_NAME + " SET " + PhotoEntry.COL_PERCEPTUAL_HASH + "=?," +
+                PhotoEntry.COL_DUPLICATE_OF + "=? WHERE " + PhotoEntry._ID + "=?",
+                new Object[] { hash, (original == -1) ? null : original, id });
+        added(db, id, hash, original);
+        return original;
+    }
+
+    /**
+     * Records that a stored photo's hash has changed, e.g. its file was re-imported. The photo stays in its stack.
+     *
+     * @param oldHash Previous hash of the photo, or null if it had none.
+     * @param isOriginal True if the photo is the original of its stack.
+     */
+    public void rehashed(SQLiteDatabase db, long id, Long oldHash, long hash, boolean isOriginal) {
+        if (!isOriginal || !isTreeOf(db)) return;
+        if (oldHash != null) tree.remove(oldHash, id);
+        tree.add(hash, id);
+    }
+
+    /**
+     * Takes a photo out of its stack before it is deleted. If it is a stack's original, the next photo of the stack
+     * takes its place. Must be called in the same transaction as the delete.
+     *
+     * @param changed Ids of the other photos shown differently, i.e. the photo's original or the photo taking its
+     *                place, are added to this.
+     */
+    public void remove(SQLiteDatabase db, long id, List<Long> changed) {
+        Long hash, original;
+        int stackCount;
+        Cursor c = db.query(PhotoEntry.TABLE_NAME, new String[] { PhotoEntry.COL_PERCEPTUAL_HASH,
+                PhotoEntry.COL_DUPLICATE_OF, PhotoEntry.COL_STACK_COUNT }, PhotoEntry._ID + "=" + id,
+                null, null, null, null);
+        try {
+            if (!c.moveToFirst()) return;
+            hash = c.isNull(0) ? null : c.getLong(0);
+            original = c.isNull(1) ? null : c.getLong(1);
+            stackCount = c.getInt(2);
+        } finally {
+            c.close();
+        }
+
+        if (original != null) {
+            db.execSQL("UPDATE " + PhotoEntry.TABLE_NAME + " SET " + PhotoEntry.COL_STACK_COUNT + "=" +
+                    PhotoEntry.COL_STACK_COUNT + "-1 WHERE " + PhotoEntry._ID + "=" + original);
+            changed.add(original);
+            return;
+        }
+
+        if (hash != null && isTreeOf(db)) tree.remove(hash, id);
+        if (stackCount <= 1) return;
+
+        /* The next photo of the stack becomes its original */
+        long next;
+        Long nextHash;
+        c = db.query(PhotoEntry.TABLE_NAME, new String[] { PhotoEntry._ID, PhotoEntry.COL_PERCEPTUAL_HASH },
+                PhotoEntry.COL_DUPLICATE_OF + "=" + id, null, null, null, PhotoEntry._ID, "1");
+        try {
+            if (!c.moveToFirst()) {
+                Log.w(TAG, "Stack of photo " + id + " has no other photos");
+                return;
+            }
+            next = c.getLong(0);
+            nextHash = c.isNull(1) ? null : c.getLong(1);
+        } finally {
+            c.close();
+        }
+        db.execSQL("UPDATE " + PhotoEntry.TABLE_NAME + " SET " + PhotoEntry.COL_DUPLICATE_OF + "=NULL," +
+                PhotoEntry.COL_STACK_COUNT + "=" + (stackCount - 1) + " WHERE " + PhotoEntry._ID + "=" + next);
+        db.execSQL("UPDATE " + PhotoEntry.TABLE_NAME + " SET " + PhotoEntry.COL_DUPLICATE_OF + "=" + next +
+                " WHERE " + PhotoEntry.COL_DUPLICATE_OF + "=" + id);
+        if (nextHash != null && isTreeOf(db)) tree.add(nextHash, next);
+        changed.add(next);
+    }
+
+    /** Forgets every stack, e.g. once every photo has been deleted. */
+    public void clear() {
+        tree = null;
+        treeDb = null;
+    }
+
+    /** Returns true if the tree has been read from a database, so writes to it must be made to the tree too. */
+    private boolean isTreeOf(SQLiteDatabase db) {
+        return tree != null && treeDb == db;
+    }
+
+    /** Returns the tree of originals' hashes, reading it from a database if it hasn't been already. */
+    private BkTree getTree(SQLiteDatabase db) {
+        if (isTreeOf(db)) return tree;
+
+        BkTree originals = new BkTree();
+        Cursor c = db.query(PhotoEntry.TABLE_NAME, new String[] { PhotoEntry._ID, PhotoEntry.COL_PERCEPTUAL_HASH },
+                PhotoEntry.COL_DUPLICATE_OF + " IS NULL AND " + PhotoEntry.COL_PERCEPTUAL_HASH + " IS NOT NULL",
+                null, null, null, null);
+        try {
+            while (c.moveToNext()) originals.add(c.getLong(1), c.getLong(0));
+        } finally {
+            c.close();
+        }
+        Log.d(TAG, "Read hashes of " + originals.size() + " stacks");
+
+        tree = originals;
+        treeDb = db;
+        return tree;
+    }
+
+}
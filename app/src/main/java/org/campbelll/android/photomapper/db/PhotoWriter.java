@@ -0,0 +1,302 @@
+package org.campbelll.android.photomapper.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
+
+/**
+ * Dedicated thread which makes every write to the photo table.
+ * <p>
+ * Writes are run as {@link Task}s by {@link #execute(Task)}, which blocks the caller until the task has run on the
+ * writer thread, so writes never contend with each other for the database and the statements the writer compiles can
+ * be kept and reused, as a statement must only be used by one thread. Tasks run by a task, e.g. inserts made by a
+ * batch of operations, run straight away on the writer thread.
+ * <p>
+ * Photos are inserted with {@link #upsert(SQLiteDatabase, ContentValues, List, List)}, which binds the values to
+ * compiled insert and update statements rather than building and compiling the SQL for every row, as
+ * {@link SQLiteDatabase#insert(String, String, ContentValues)} does. A statement is compiled for each set of columns
+ * written, which for imports is always the same set.
+ * <p>
+ * Inserted photos with a perceptual hash and a location are put into a stack of near-duplicates by the writer's
+ * {@link PhotoStacks}, see {@link #getStacks()}. The stacks are read again if a task fails, as its transaction will
+ * have been rolled back.
+ *
+ * @author Campbell Lockley
+ */
+public class PhotoWriter {
+    /** Tag */
+    private static final String TAG = "PhotoWriter";
+
+    /* Constants */
+    private static final int MAX_STATEMENTS = 16;           // Compiled insert and update statements kept
+
+    /** Singleton. */
+    private static PhotoWriter singleton = null;
+
+    /* Members */
+    private final PhotoDBHelper dbHelper;
+    private final ExecutorService executor;
+    private volatile Thread thread = null;                  // Writer thread, once started
+    /* Used on the writer thread only */
+    private final PhotoStacks stacks = new PhotoStacks();   // Stacks of near-duplicate photos
+    private SQLiteDatabase statementsDb = null;             // Database the statements were compiled for
+    private SQLiteStatement findByUri = null;               // Id of the photo with a uri
+    private SQLiteStatement findThumbnailHash = null;       // Thumbnail hash of the photo with an id
+    private final HashMap<String, SQLiteStatement> statements = new HashMap<>();    // Inserts and updates by columns
+
+    /**
+     * Write made on the writer thread.
+     *
+     * @param <T> Type of result.
+     * @param <E> Type of checked exception thrown, or {@link RuntimeException} if none is.
+     */
+    public interface Task<T, E extends Exception> {
+        /** Makes the write. The database is the writable photo database. */
+        T run(SQLiteDatabase db) throws E;
+    }
+
+    /** Constructor. */
+    private PhotoWriter(PhotoDBHelper dbHelper) {
+        this.dbHelper = dbHelper;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Safely returns PhotoWriter instance.
+     *
+     * @param context Context of PhotoWriter.
+     * @return Instance of PhotoWriter.
+     */
+    synchronized public static PhotoWriter getInstance(Context context) {
+        if (singleton == null) singleton = new PhotoWriter(PhotoDBHelper.getInstance(context));
+        return singleton;
+    }
+
+    /**
+     * Runs a task on the writer thread and waits for it to finish. Interrupting the caller doesn't stop the wait, as
+     * the write can't be taken back, but the interrupt is kept.
+     *
+     * @return Result of the task.
+     * @throws E if the task throws it.
+     */
+    public <T, E extends Exception> T execute(final Task<T, E> task) throws E {
+        if (Thread.currentThread() == thread) return run(task);
+
+        Future<T> future = executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return run(task);
+            }
+        });
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            @SuppressWarnings("unchecked")
+            E checked = (E) cause;                          // Only the task's checked exception can be thrown
+            throw checked;
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the stacks of near-duplicate photos. Must only be used by a task. */
+    public PhotoStacks getStacks() {
+        if (Thread.currentThread() != thread) throw new IllegalStateException("Not on the writer thread");
+        return stacks;
+    }
+
+    /** Runs a task on the writer thread, forgetting the stacks if it fails. */
+    private <T, E extends Exception> T run(Task<T, E> task) throws E {
+        boolean succeeded = false;
+        try {
+            T result = task.run(dbHelper.getWritableDatabase());
+            succeeded = true;
+            return result;
+        } finally {
+            if (!succeeded) stacks.clear();
+        }
+    }
+
+    /**
+     * Inserts a photo, or updates the stored photo with the same uri, keeping its id. Must be run by a task.
+     * <p>
+     * An inserted photo is put into the stack of the near-duplicate it matches, if any, see {@link PhotoStacks}. An
+     * updated photo stays in its stack. Stack columns in the values are ignored.
+     *
+     * @param db Database passed to the task.
+     * @param values Columns of the photo. The thumbnail must already have been replaced by its hash.
+     * @param replaced Hashes of thumbnails which the update replaced are added to this. They may now be unused.
+     * @param changed Ids of other photos changed by the write, i.e. the original of the stack an inserted photo was
+     *                put into, are added to this.
+     * @return Row id of the photo, or -1 if it couldn't be inserted.
+     */
+    public long upsert(SQLiteDatabase db, ContentValues values, List<String> replaced, List<Long> changed) {
+        if (Thread.currentThread() != thread) throw new IllegalStateException("Not on the writer thread");
+        if (db != statementsDb) compile(db);
+
+        values.remove(PhotoEntry.COL_DUPLICATE_OF);
+        values.remove(PhotoEntry.COL_STACK_COUNT);
+        Long perceptualHash = values.getAsLong(PhotoEntry.COL_PERCEPTUAL_HASH);
+
+        String photoUri = values.getAsString(PhotoEntry.COL_URI);
+        if (photoUri != null) {
+            long id;
+            findByUri.bindString(1, photoUri);
+            try {
+                id = findByUri.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                id = -1;                                    // Not stored yet
+            }
+
+            if (id != -1) {
+                findThumbnailHash.bindLong(1, id);
+                String oldHash = findThumbnailHash.simpleQueryForString();
+                Long oldPerceptualHash = null;
+                boolean isOriginal = false;
+                if (perceptualHash != null) {
+                    Cursor c = db.query(PhotoEntry.TABLE_NAME, new String[] { PhotoEntry.COL_PERCEPTUAL_HASH,
+                            PhotoEntry.COL_DUPLICATE_OF }, PhotoEntry._ID + "=" + id, null, null, null, null);
+                    try {
+                        if (c.moveToFirst()) {
+                            oldPerceptualHash = c.isNull(0) ? null : c.getLong(0);
+                            isOriginal = c.isNull(1);
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+
+                ArrayList<String> columns = new ArrayList<>(values.keySet());
+                Collections.sort(columns);                  // Same columns, same statement
+                SQLiteStatement update = getStatement(db, false, columns);
+                bind(update, columns, values);
+                update.bindLong(columns.size() + 1, id);
+                update.executeUpdateDelete();
+                if (oldHash != null && !oldHash.equals(values.getAsString(PhotoEntry.COL_THUMBNAIL_HASH))) {
+                    replaced.add(oldHash);
+                }
+                if (perceptualHash != null && !perceptualHash.equals(oldPerceptualHash)) {
+                    stacks.rehashed(db, id, oldPerceptualHash, perceptualHash, isOriginal);
+                }
+                return id;
+            }
+        }
+
+        /* Put the photo into the stack of its nearest near-duplicate, if it has one */
+        Double latitude = values.getAsDouble(PhotoEntry.COL_GPS_LATITUDE);
+        Double longitude = values.getAsDouble(PhotoEntry.COL_GPS_LONGITUDE);
+        long original = (perceptualHash == null || latitude == null || longitude == null) ? -1 :
+                stacks.findOriginal(db, perceptualHash, latitude, longitude);
+        if (original == -1) values.putNull(PhotoEntry.COL_DUPLICATE_OF);
+        else values.put(PhotoEntry.COL_DUPLICATE_OF, original);
+
+        ArrayList<String> columns = new ArrayList<>(values.keySet());
+        Collections.sort(columns);                          // Same columns, same statement
+        SQLiteStatement insert = getStatement(db, true, columns);
+        bind(insert, columns, values);
+        long id = insert.executeInsert();
+        if (id != -1 && perceptualHash != null) {
+            stacks.added(db, id, perceptualHash, original);
+            if (original != -1) changed.add(original);
+        }
+        return id;
+    }
+
+    /** Compiles the lookup statements for a database, dropping any compiled for a database since closed. */
+    private void compile(SQLiteDatabase db) {
+        closeStatements();
+        findByUri = db.compileStatement("SELECT " + PhotoEntry._ID + " FROM " + PhotoEntry.TABLE_NAME +
+                " WHERE " + PhotoEntry.COL_URI + "=?");
+        findThumbnailHash = db.compileStatement("SELECT " + PhotoEntry.COL_THUMBNAIL_HASH + " FROM " +
+                PhotoEntry.TABLE_NAME + " WHERE " + PhotoEntry._ID + "=?");
+        statementsDb = db;
+    }
+
+    /** Returns the compiled insert, or update by id, of the given columns, compiling it if it hasn't been already. */
+    private SQLiteStatement getStatement(SQLiteDatabase db, boolean insert, List<String> columns) {
+        String key = (insert ? "insert:" : "update:") + columns;
+        SQLiteStatement statement = statements.get(key);
+        if (statement != null) return statement;
+
+        if (statements.size() == MAX_STATEMENTS) {
+            for (SQLiteStatement old : statements.values()) old.close();
+            statements.clear();
+        }
+
+        StringBuilder sql = new StringBuilder();
+        if (insert) {
+            sql.append("INSERT INTO ").append(PhotoEntry.TABLE_NAME).append(" (");
+            for (int i = 0; i < columns.size(); i++) sql.append(i > 0 ? "," : "").append(columns.get(i));
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.size(); i++) sql.append(i > 0 ? ",?" : "?");
+            sql.append(')');
+        } else {
+            sql.append("UPDATE ").append(PhotoEntry.TABLE_NAME).append(" SET ");
+            for (int i = 0; i < columns.size(); i++) sql.append(i > 0 ? "," : "").append(columns.get(i)).append("=?");
+            sql.append(" WHERE ").append(PhotoEntry._ID).append("=?");
+        }
+        statement = db.compileStatement(sql.toString());
+        statements.put(key, statement);
+        return statement;
+    }
+
+    /** Binds values to a statement's parameters in the order of columns. */
+    private static void bind(SQLiteStatement statement, List<String> columns, ContentValues values) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.size(); i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns.get(i)));
+        }
+    }
+
+    /** Closes every compiled statement. */
+    private void closeStatements() {
+        if (findByUri != null) findByUri.close();
+        if (findThumbnailHash != null) findThumbnailHash.close();
+        for (SQLiteStatement statement : statements.values()) statement.close();
+        statements.clear();
+        findByUri = findThumbnailHash = null;
+        statementsDb = null;
+    }
+
+}
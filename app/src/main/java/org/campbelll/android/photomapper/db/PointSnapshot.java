@@ -0,0 +1,435 @@
+package org.campbelll.android.photomapper.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.campbelll.android.photomapper.utility.PhotoIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.campbelll.android.photomapper.db.PhotoContract.PhotoEntry;
+
+/**
+ * Compact binary snapshot of the location and time of every photo, which is memory mapped at startup so the map can
+ * be drawn before the database has been opened. Near-duplicates stacked under another photo, see {@link PhotoStacks},
+ * aren't drawn, so they are left out.
+ * <p>
+ * The file is a header of {@link #HEADER_SIZE} bytes, holding a magic number, a version, the number of records, the
+ * number of those which are removed and a checksum, followed by one {@link #RECORD_SIZE} byte record per photo, sorted
+ * by id: id, latitude and longitude in fixed point units of {@link #FIXED_POINT}th of a degree, and taken at time.
+ * Everything is big endian.
+ * <p>
+ * The database is the source of truth. {@link org.campbelll.android.photomapper.PhotoProvider} reports the ids of
+ * photos it writes, and a background thread updates their records in place shortly afterwards: changed photos are
+ * overwritten, deleted photos are marked removed, and new photos with the highest ids, which is almost all of them,
+ * are appended. The checksum is the sum of a hash of each live record, so it is updated per record too. The header is
+ * written last, so a write interrupted part way leaves a file whose checksum doesn't match, which is never read.
+ * Anything else, i.e. changes to unknown photos, new photos in the middle of the file, too many removed records or an
+ * invalid file, rewrites the whole file from the database.
+ *
+ * @author Campbell Lockley
+ */
+public class PointSnapshot {
+    /** Tag */
+    private static final String TAG = "PointSnapshot";
+
+    /** Name of snapshot file in app storage. */
+    private static final String FILE_NAME = "points.snapshot";
+
+    /* File layout */
+    private static final int MAGIC = 0x504D5053;            // "PMPS"
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;                      // Magic, version, count, removed, checksum
+    static final int RECORD_SIZE = 24;                      // Id, latitude, longitude, taken at
+    static final double FIXED_POINT = 1e7;                  // Fixed point units per degree
+    private static final int REMOVED = Integer.MIN_VALUE;   // Latitude of a removed record
+
+    /* Constants */
+    private static final long WRITE_DELAY_MS = 500;         // Time writes are gathered for before being applied
+    private static final double MAX_REMOVED_FRACTION = 0.25;    // Fraction of removed records before a rewrite
+    private static final int MAX_QUERY_IDS = 500;           // Ids per query of changed photos
+
+    /* Columns of a record */
+    private static final String[] PROJECTION = new String[] {
+            PhotoEntry._ID,
+            PhotoEntry.COL_GPS_LATITUDE,
+            PhotoEntry.COL_GPS_LONGITUDE,
+            PhotoEntry.COL_TAKEN_AT
+    };
+
+    /** Singleton. */
+    private static PointSnapshot singleton = null;
+
+    /* Members */
+    private final File file;
+    private final PhotoDBHelper dbHelper;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Object fileLock = new Object();           // Held while reading or writing the file
+    private final HashSet<Long> changed = new HashSet<>();  // Ids written since the last update, guarded by this
+    private boolean rewrite = false;                        // Whole file must be rewritten, guarded by this
+    private boolean scheduled = false;                      // An update is scheduled, guarded by this
+
+    /** Constructor. */
+    private PointSnapshot(File file, PhotoDBHelper dbHelper) {
+        this.file = file;
+        this.dbHelper = dbHelper;
+    }
+
+    /**
+     * Safely returns PointSnapshot instance.
+     *
+     * @param context Context of PointSnapshot.
+     * @return Instance of PointSnapshot.
+     */
+    synchronized public static PointSnapshot getInstance(Context context) {
+        if (singleton == null) {
+            Context app = context.getApplicationContext();
+            singleton = new PointSnapshot(new File(app.getFilesDir(), FILE_NAME), PhotoDBHelper.getInstance(app));
+        }
+        return singleton;
+    }
+
+    /** Returns every photo in the snapshot, or null if there is no valid snapshot. */
+    public PhotoIndex read() {
+        return read(-90, -180, 90, 180);
+    }
+
+    /**
+     * Returns the photos in the snapshot within a bounding box. Make and model aren't stored, so are null. If there is
+     * no valid snapshot, one is rewritten from the database in the background.
+     *
+     * @param south South edge of box.
+     * @param west West edge of box. Boxes crossing the antimeridian have {@code west > east}.
+     * @param north North edge of box.
+     * @param east East edge of box.
+     * @return Photos in the box, or null if there is no valid snapshot.
+     */
+    public PhotoIndex read(double south, double west, double north, double east) {
+        int minLat = toFixed(south), maxLat = toFixed(north);
+        int minLng = toFixed(west), maxLng = toFixed(east);
+        boolean wraps = minLng > maxLng;
+
+        synchronized (fileLock) {
+            ByteBuffer buffer = map();
+            if (buffer == null) {
+                requestRewrite();
+                return null;
+            }
+
+            int count = buffer.getInt(8);
+            PhotoIndex.Builder builder = new PhotoIndex.Builder(Math.min(count, 1024));
+            long checksum = 0;
+            for (int i = 0, offset = HEADER_SIZE; i < count; i++, offset += RECORD_SIZE) {
+                long id = buffer.getLong(offset);
+                int lat = buffer.getInt(offset + 8), lng = buffer.getInt(offset + 12);
+                if (lat == REMOVED) continue;
+                long takenAt = buffer.getLong(offset + 16);
+                checksum += hash(id, lat, lng, takenAt);
+
+                boolean inLng = wraps ? (lng >= minLng || lng <= maxLng) : (lng >= minLng && lng <= maxLng);
+                if (lat >= minLat && lat <= maxLat && inLng) {
+                    builder.add(id, lat / FIXED_POINT, lng / FIXED_POINT, takenAt, null, null);
+                }
+            }
+
+            if (checksum != buffer.getLong(16)) {
+                Log.w(TAG, "Snapshot checksum doesn't match");
+                requestRewrite();
+                return null;
+            }
+            return builder.build();
+        }
+    }
+
+    /** Updates the records of the given photos shortly, e.g. after they have been inserted or changed. */
+    public synchronized void photosChanged(long[] ids) {
+        for (long id : ids) changed.add(id);
+        schedule();
+    }
+
+    /** Rewrites the whole snapshot shortly, e.g. after photos which aren't known have been changed or deleted. */
+    public synchronized void requestRewrite() {
+        rewrite = true;
+        schedule();
+    }
+
+    /** Schedules an update of the snapshot, unless one is already scheduled. Must hold the lock on this. */
+    private void schedule() {
+        if (scheduled) return;
+        scheduled = true;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() { update(); }
+        }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Applies the changes gathered since the last update. Runs on the executor. */
+    private void update() {
+        HashSet<Long> ids;
+        boolean all;
+        synchronized (this) {
+            ids = new HashSet<>(changed);
+            all = rewrite;
+            changed.clear();
+            rewrite = false;
+            scheduled = false;
+        }
+
+        try {
+            synchronized (fileLock) {
+                if (all || !applyChanges(ids)) rewrite();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Couldn't update snapshot", e);
+            if (file.exists() && !file.delete()) Log.w(TAG, "Couldn't delete " + file);
+        }
+    }
+
+    /**
+     * Updates the records of the given photos in place.
+     *
+     * @return False if the file must be rewritten instead, e.g. if a new photo's id isn't the highest.
+     */
+    private boolean applyChanges(HashSet<Long> ids) throws IOException {
+        if (ids.isEmpty()) return true;
+        HashMap<Long, long[]> rows = queryRows(ids);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (!isValid(channel)) return false;
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            int count = header.getInt(8), removed = header.getInt(12);
+            long checksum = header.getLong(16);
+
+            /* Sort out which ids are new, appending them if they come after every stored id */
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, (long) count * RECORD_SIZE);
+            long lastId = (count == 0) ? Long.MIN_VALUE : records.getLong((count - 1) * RECORD_SIZE);
+            long[] appended = new long[ids.size()];
+            int numAppended = 0;
+            for (Iterator<Long> it = ids.iterator(); it.hasNext(); ) {
+                long id = it.next();
+                if (find(records, count, id) >= 0) continue;
+                if (!rows.containsKey(id)) { it.remove(); continue; }   // Never stored, and already deleted
+                if (id <= lastId) return false;
+                appended[numAppended++] = id;
+                it.remove();
+            }
+            if (count > 0 && removed + countRemovedBy(records, count, ids, rows) > count * MAX_REMOVED_FRACTION) {
+                return false;
+            }
+
+            /* Overwrite or remove the stored records */
+            for (long id : ids) {
+                int offset = find(records, count, id) * RECORD_SIZE;
+                int oldLat = records.getInt(offset + 8);
+                if (oldLat != REMOVED) {
+                    checksum -= hash(id, oldLat, records.getInt(offset + 12), records.getLong(offset + 16));
+                } else {
+                    removed--;
+                }
+
+                long[] row = rows.get(id);
+                if (row == null) {
+                    records.putInt(offset + 8, REMOVED);
+                    removed++;
+                } else {
+                    putRecord(records, offset, row);
+                    checksum += hash(row[0], (int) row[1], (int) row[2], row[3]);
+                }
+            }
+            ((MappedByteBuffer) records).force();
+
+            /* Append the new records, in id order */
+            if (numAppended > 0) {
+                Arrays.sort(appended, 0, numAppended);
+                long start = HEADER_SIZE + (long) count * RECORD_SIZE;
+                raf.setLength(start + (long) numAppended * RECORD_SIZE);
+                ByteBuffer tail = channel.map(FileChannel.MapMode.READ_WRITE, start, (long) numAppended * RECORD_SIZE);
+                for (int i = 0; i < numAppended; i++) {
+                    long[] row = rows.get(appended[i]);
+                    putRecord(tail, i * RECORD_SIZE, row);
+                    checksum += hash(row[0], (int) row[1], (int) row[2], row[3]);
+                }
+                ((MappedByteBuffer) tail).force();
+                count += numAppended;
+            }
+
+            /* Header last, so an interrupted update leaves a checksum which doesn't match */
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            putHeader(out, count, removed, checksum);
+            out.force();
+        } finally {
+            raf.close();
+        }
+        return true;
+    }
+
+    /** Returns the number of the stored photos in ids which are live but no longer in the database. */
+    private static int countRemovedBy(ByteBuffer records, int count, HashSet<Long> ids, HashMap<Long, long[]> rows) {
+        int n = 0;
+        for (long id : ids) {
+            int i = find(records, count, id);
+            if (i >= 0 && !rows.containsKey(id) && records.getInt(i * RECORD_SIZE + 8) != REMOVED) n++;
+        }
+        return n;
+    }
+
+    /** Rewrites the whole file from the database. The new file replaces the old one once it is complete. */
+    private void rewrite() throws IOException {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor c = db.query(PhotoEntry.TABLE_NAME, PROJECTION, PhotoEntry.COL_DUPLICATE_OF + " IS NULL", null, null,
+                null, PhotoEntry._ID);
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            int count = c.getCount();
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(HEADER_SIZE + (long) count * RECORD_SIZE);
+                MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + (long) count * RECORD_SIZE);
+                out.order(ByteOrder.BIG_ENDIAN);
+                long checksum = 0;
+                long[] row = new long[4];
+                for (int offset = HEADER_SIZE; c.moveToNext(); offset += RECORD_SIZE) {
+                    readRow(c, row);
+                    putRecord(out, offset, row);
+                    checksum += hash(row[0], (int) row[1], (int) row[2], row[3]);
+                }
+                putHeader(out, count, 0, checksum);
+                out.force();
+            } finally {
+                raf.close();
+            }
+        } finally {
+            c.close();
+        }
+
+        if (!tmp.renameTo(file)) throw new IOException("Can't rename " + tmp + " to " + file);
+        Log.d(TAG, "Rewrote snapshot");
+    }
+
+    /**
+     * Returns the database rows of the photos with the given ids which still exist and aren't stacked under another
+     * photo, as records, keyed by id.
+     */
+    private HashMap<Long, long[]> queryRows(HashSet<Long> ids) {
+        HashMap<Long, long[]> rows = new HashMap<>(ids.size() * 2);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Iterator<Long> it = ids.iterator();
+        while (it.hasNext()) {
+            StringBuilder selection = new StringBuilder(PhotoEntry._ID).append(" IN (");
+            for (int n = 0; n < MAX_QUERY_IDS && it.hasNext(); n++) {
+                if (n > 0) selection.append(',');
+                selection.append(it.next().longValue());
+            }
+            selection.append(") AND ").append(PhotoEntry.COL_DUPLICATE_OF).append(" IS NULL");
+
+            Cursor c = db.query(PhotoEntry.TABLE_NAME, PROJECTION, selection.toString(), null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    long[] row = new long[4];
+                    readRow(c, row);
+                    rows.put(row[0], row);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return rows;
+    }
+
+    /** Maps the whole file read only if it is a valid snapshot, otherwise returns null. Must hold fileLock. */
+    private MappedByteBuffer map() {
+        if (!file.exists()) return null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (!isValid(channel)) return null;
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());  // Valid after channel is closed
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't map " + file, e);
+            return null;
+        }
+    }
+
+    /** Returns true if the file has a valid header and the right size for its number of records. */
+    private static boolean isValid(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) return false;
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        return header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+                && size == HEADER_SIZE + (long) header.getInt(8) * RECORD_SIZE;
+    }
+
+    /** Returns the index of the record with the given id, or -1 if there isn't one. Records are sorted by id. */
+    static int find(ByteBuffer records, int count, long id) {
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = records.getLong(mid * RECORD_SIZE);
+            if (midId < id) lo = mid + 1;
+            else if (midId > id) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /** Reads the current row of a cursor over {@link #PROJECTION} as a record: id, fixed point lat, lng, taken at. */
+    private static void readRow(Cursor c, long[] row) {
+        row[0] = c.getLong(0);
+        row[1] = toFixed(c.getDouble(1));
+        row[2] = toFixed(c.getDouble(2));
+        row[3] = c.isNull(3) ? PhotoIndex.UNKNOWN_TIME : c.getLong(3);
+    }
+
+    /** Writes a record at an offset. */
+    private static void putRecord(ByteBuffer buffer, int offset, long[] row) {
+        buffer.putLong(offset, row[0]);
+        buffer.putInt(offset + 8, (int) row[1]);
+        buffer.putInt(offset + 12, (int) row[2]);
+        buffer.putLong(offset + 16, row[3]);
+    }
+
+    /** Writes the header. */
+    private static void putHeader(ByteBuffer buffer, int count, int removed, long checksum) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, count);
+        buffer.putInt(12, removed);
+        buffer.putLong(16, checksum);
+    }
+
+    /** Converts degrees to fixed point. */
+    static int toFixed(double degrees) {
+        return (int) Math.round(degrees * FIXED_POINT);
+    }
+
+    /** Returns a well mixed hash of a record, summed over live records to give the file's checksum. */
+    static long hash(long id, int latitude, int longitude, long takenAt) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        h = (h ^ (((long) latitude << 32) | (longitude & 0xFFFFFFFFL))) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ takenAt) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.campbelll.android.photomapper.db;
+
+/**
+ * Settings the photo database is opened with, trading durability and memory for speed. Chosen with
+ * {@link PhotoDBHelper#setStorageProfile(android.content.Context, StorageProfile)}.
+ * <p>
+ * In write-ahead logging mode, writes are appended to a log rather than made to the database file, so queries run
+ * concurrently with a write transaction on their own connections from the pool, reading the last committed state,
+ * rather than waiting for the transaction to finish. With synchronous set to "NORMAL" the log is only synced at
+ * checkpoints, so a power cut may lose the last few transactions but never corrupts the database, which for photos
+ * that can simply be imported again is a good trade. The page cache size applies to the writing connection.
+ *
+ * @author Campbell Lockley
+ */
+public final class StorageProfile {
+    /** Write-ahead logging with a moderate cache. The default. */
+    public static final StorageProfile BALANCED = new StorageProfile("balanced", true, "NORMAL", 2048);
+    /** Write-ahead logging, syncing every commit. */
+    public static final StorageProfile DURABLE = new StorageProfile("durable", true, "FULL", 2048);
+    /** Write-ahead logging with a small cache, for devices short of memory. */
+    public static final StorageProfile LOW_MEMORY = new StorageProfile("low_memory", true, "NORMAL", 256);
+    /** Rollback journal, i.e. SQLite's own defaults, in which queries wait for write transactions. */
+    public static final StorageProfile ROLLBACK = new StorageProfile("rollback", false, "FULL", 0);
+
+    /* Profiles which can be chosen */
+    private static final StorageProfile[] PROFILES = { BALANCED, DURABLE, LOW_MEMORY, ROLLBACK };
+
+    /* Members */
+    public final String name;
+    public final boolean write_ahead_log;       // Use write-ahead logging rather than a rollback journal
+    public final String synchronous;            // Value of PRAGMA synchronous
+    public final int cache_kb;                  // Page cache size in KiB, or 0 for SQLite's default
+
+    /** Constructor. */
+    private StorageProfile(String name, boolean writeAheadLog, String synchronous, int cacheKb) {
+        this.name = name;
+        this.write_ahead_log = writeAheadLog;
+        this.synchronous = synchronous;
+        this.cache_kb = cacheKb;
+    }
+
+    /** Returns the profiles which can be chosen. */
+    public static StorageProfile[] getProfiles() {
+        return PROFILES.clone();
+    }
+
+    /** Returns the profile with the given name, or {@link #BALANCED} if there isn't one. */
+    public static StorageProfile forName(String name) {
+        for (StorageProfile profile : PROFILES) {
+            if (profile.name.equals(name)) return profile;
+        }
+        return BALANCED;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,149 @@
+package org.campbelll.android.photomapper.db;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Content addressed file store for photo thumbnails.
+ * <p>
+ * Each thumbnail is stored once under the SHA-1 hash of its bytes, which is what the photo table records in
+ * {@link PhotoContract.PhotoEntry#COL_THUMBNAIL_HASH}. Files are spread over 256 sub-directories by the first byte of
+ * their hash.
+ *
+ * @see PhotoDBHelper
+ * @author Campbell Lockley
+ */
+public class ThumbnailStore {
+    /** Tag */
+    private static final String TAG = "ThumbnailStore";
+
+    /** Name of directory in app storage holding thumbnails. */
+    private static final String DIRECTORY_NAME = "thumbnails";
+    /** Extension of thumbnail files. */
+    private static final String EXTENSION = ".jpg";
+
+    /* Hex digits */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Singleton. */
+    private static ThumbnailStore singleton = null;
+
+    /* Members */
+    private final File root;
+
+    /** Constructor. */
+    public ThumbnailStore(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Safely returns ThumbnailStore instance.
+     *
+     * @param context Context of ThumbnailStore.
+     * @return Instance of ThumbnailStore.
+     */
+    synchronized public static ThumbnailStore getInstance(Context context) {
+        if (singleton == null) {
+            singleton = new ThumbnailStore(new File(context.getApplicationContext().getFilesDir(), DIRECTORY_NAME));
+        }
+        return singleton;
+    }
+
+    /**
+     * Stores a thumbnail, unless an identical one is already stored.
+     *
+     * @param thumbnail Thumbnail as raw JPEG bytes.
+     * @return Hash the thumbnail is stored under.
+     * @throws IOException if the thumbnail couldn't be written.
+     */
+    public String put(byte[] thumbnail) throws IOException {
+        String hash = hash(thumbnail);
+        File file = getFile(hash);
+        if (file.exists()) return hash;
+
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) throw new IOException("Can't create " + dir);
+
+        /* Write to a temporary file then rename, so a file under a hash is always complete */
+        File tmp = File.createTempFile(hash, null, dir);
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(thumbnail);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file) && !file.exists()) throw new IOException("Can't rename " + tmp + " to " + file);
+        } finally {
+            if (tmp.exists() && !tmp.delete()) Log.w(TAG, "Couldn't delete " + tmp);
+        }
+
+        return hash;
+    }
+
+    /** Returns the file a thumbnail with the given hash is stored in. The file may not exist. */
+    public File getFile(String hash) {
+        return new File(new File(root, hash.substring(0, 2)), hash + EXTENSION);
+    }
+
+    /** Deletes the thumbnail with the given hash. */
+    public void delete(String hash) {
+        File file = getFile(hash);
+        if (file.exists() && !file.delete()) Log.w(TAG, "Couldn't delete " + file);
+    }
+
+    /** Deletes all thumbnails. */
+    public void clear() {
+        clear(Collections.<String>emptySet());
+    }
+
+    /**
+     * Deletes all thumbnails, other than those with the given hashes.
+     *
+     * @param keep Hashes of thumbnails to keep.
+     */
+    public void clear(Set<String> keep) {
+        File[] dirs = root.listFiles();
+        if (dirs == null) return;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    int end = name.length() - EXTENSION.length();
+                    if (name.endsWith(EXTENSION) && keep.contains(name.substring(0, end))) continue;
+                    if (!file.delete()) Log.w(TAG, "Couldn't delete " + file);
+                }
+            }
+            String[] left = dir.list();
+            if (left != null && left.length == 0 && !dir.delete()) Log.w(TAG, "Couldn't delete " + dir);
+        }
+    }
+
+    /** Returns SHA-1 of bytes as a hex string. */
+    static String hash(byte[] bytes) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.campbelll.android.photomapper.utility;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayList;
+
+/**
+ * Small pool of mutable bitmaps which decodes can reuse via {@link BitmapFactory.Options#inBitmap}, rather than
+ * allocating a new buffer for each image.
+ * <p>
+ * Bitmaps can only be reused for images of a different size from KitKat onwards, so on older devices the pool is
+ * always empty. The pool is thread safe.
+ *
+ * @author Campbell Lockley
+ */
+public class BitmapPool {
+    /* Members */
+    private final int maxSize;                              // Max number of pooled bitmaps
+    private final ArrayList<Bitmap> pool = new ArrayList<>();
+
+    /** Constructor. */
+    public BitmapPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /** Returns true if this device supports reusing bitmaps for decodes of any size. */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Removes and returns a pooled bitmap big enough to hold an image of the given size, or null if there isn't one.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isSupported()) return null;
+        int bytes = width * height * bytesPerPixel(config);
+        for (int i = 0; i < pool.size(); i++) {
+            Bitmap bitmap = pool.get(i);
+            if (bitmap.getAllocationByteCount() >= bytes) return pool.remove(i);
+        }
+        return null;
+    }
+
+    /** Returns a bitmap to the pool. If the pool is full, or bitmaps can't be reused, it is recycled instead. */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        if (!isSupported() || !bitmap.isMutable() || pool.size() >= maxSize) {
+            bitmap.recycle();
+            return;
+        }
+        pool.add(bitmap);
+    }
+
+    /** Recycles all pooled bitmaps. */
+    public synchronized void clear() {
+        for (Bitmap bitmap : pool) bitmap.recycle();
+        pool.clear();
+    }
+
+    /** Returns bytes per pixel of a config. */
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565) return 2;
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        return 4;
+    }
+
+}
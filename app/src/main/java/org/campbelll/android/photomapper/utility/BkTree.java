@@ -0,0 +1,189 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * BK-tree of photos' {@link PerceptualHash}es, for finding the photos whose hashes are within a Hamming distance of a
+ * hash.
+ * <p>
+ * Each node holds one distinct hash, and the photos which have it, and its children are keyed by their distance from
+ * it. As Hamming distance is a metric, a search for hashes within d of h only has to visit the children of a node at
+ * distances from k - d to k + d, where k is the distance of h from the node's hash, so for the small distances used to
+ * find near-duplicates a search only visits a small part of the tree. Adding a hash takes one comparison per level of
+ * the tree, which is about log n deep for n random hashes.
+ * <p>
+ * Photos can be removed, but their nodes are kept, even once they hold no photos, as the nodes below them are keyed by
+ * their hash. Not thread safe. This class only depends on the JDK.
+ *
+ * @author Campbell Lockley
+ */
+public class BkTree {
+    /* Members */
+    private Node root = null;
+    private int size = 0;                   // Number of photos
+
+    /** Photos found by a search, nearest first. */
+    public static class Result {
+        /** Number of photos found. */
+        public final int count;
+        /** Ids of the photos found. */
+        public final long[] ids;
+        /** Hashes of the photos found. */
+        public final long[] hashes;
+        /** Hamming distances of the photos' hashes from the hash searched for. */
+        public final int[] distances;
+
+        Result(int count) {
+            this.count = count;
+            ids = new long[count];
+            hashes = new long[count];
+            distances = new int[count];
+        }
+    }
+
+    /** Returns the number of photos in the tree. */
+    public int size() { return size; }
+
+    /** Adds a photo with a hash. */
+    public void add(long hash, long id) {
+        size++;
+        if (root == null) {
+            root = new Node(hash, id);
+            return;
+        }
+
+        Node node = root;
+        while (true) {
+            int distance = PerceptualHash.distance(hash, node.hash);
+            if (distance == 0) {
+                node.addId(id);
+                return;
+            }
+            Node child = node.getChild(distance);
+            if (child == null) {
+                node.addChild(distance, new Node(hash, id));
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /** Removes a photo with a hash. Returns false if it isn't in the tree. */
+    public boolean remove(long hash, long id) {
+        Node node = root;
+        while (node != null) {
+            int distance = PerceptualHash.distance(hash, node.hash);
+            if (distance == 0) {
+                if (!node.removeId(id)) return false;
+                size--;
+                return true;
+            }
+            node = node.getChild(distance);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the photos whose hashes are within a Hamming distance of a hash.
+     *
+     * @param hash Hash to search around.
+     * @param maxDistance Maximum number of bits the hashes may differ in.
+     * @return Photos found, nearest first.
+     */
+    public Result search(long hash, int maxDistance) {
+        if (maxDistance < 0) throw new IllegalArgumentException("Invalid distance " + maxDistance);
+
+        /* Matches are collected by distance, which also sorts them */
+        int buckets = Math.min(maxDistance, Long.SIZE) + 1;
+        Node[][] found = new Node[buckets][];
+        int[] foundCount = new int[buckets];
+        int count = 0;
+
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        if (root != null) stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            int distance = PerceptualHash.distance(hash, node.hash);
+            if (distance <= maxDistance && node.idCount > 0) {
+                if (found[distance] == null) found[distance] = new Node[4];
+                if (foundCount[distance] == found[distance].length) {
+                    found[distance] = Arrays.copyOf(found[distance], foundCount[distance] * 2);
+                }
+                found[distance][foundCount[distance]++] = node;
+                count += node.idCount;
+            }
+            for (int i = 0; i < node.childCount; i++) {
+                if (Math.abs(node.childDistances[i] - distance) <= maxDistance) stack.push(node.children[i]);
+            }
+        }
+
+        Result result = new Result(count);
+        int i = 0;
+        for (int distance = 0; distance < buckets; distance++) {
+            for (int j = 0; j < foundCount[distance]; j++) {
+                Node node = found[distance][j];
+                for (int k = 0; k < node.idCount; k++) {
+                    result.ids[i] = node.ids[k];
+                    result.hashes[i] = node.hash;
+                    result.distances[i] = distance;
+                    i++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** A distinct hash, the photos which have it and the nodes below it. */
+    private static class Node {
+        final long hash;
+        long[] ids = new long[1];           // Photos with the hash
+        int idCount = 0;
+        byte[] childDistances = null;       // Distances of children from the hash, in the order they were added
+        Node[] children = null;
+        int childCount = 0;
+
+        Node(long hash, long id) {
+            this.hash = hash;
+            addId(id);
+        }
+
+        void addId(long id) {
+            if (idCount == ids.length) ids = Arrays.copyOf(ids, idCount * 2);
+            ids[idCount++] = id;
+        }
+
+        boolean removeId(long id) {
+            for (int i = 0; i < idCount; i++) {
+                if (ids[i] != id) continue;
+                ids[i] = ids[--idCount];
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns the child at a distance, or null. A node has at most {@link PerceptualHash#BITS} children, so a scan
+         * is cheap.
+         */
+        Node getChild(int distance) {
+            for (int i = 0; i < childCount; i++) {
+                if (childDistances[i] == distance) return children[i];
+            }
+            return null;
+        }
+
+        void addChild(int distance, Node child) {
+            if (children == null) {
+                childDistances = new byte[2];
+                children = new Node[2];
+            } else if (childCount == children.length) {
+                childDistances = Arrays.copyOf(childDistances, childCount * 2);
+                children = Arrays.copyOf(children, childCount * 2);
+            }
+            childDistances[childCount] = (byte) distance;
+            children[childCount++] = child;
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Grid based marker clustering over photo coordinates.
+ * <p>
+ * Points are projected once into Web Mercator space and then, for every zoom level from {@link #MIN_ZOOM} to
+ * {@link #MAX_ZOOM}, binned into square grid cells of {@link #CELL_PIXELS} screen pixels. Each cell of each level
+ * becomes a {@link Cluster} with a count, centroid and bounding box, so answering a query for a given zoom and visible
+ * region only touches the clusters at that level, rather than every point.
+ * <p>
+ * Building the levels is O(points * levels) and should be done off the UI thread. Once built, an engine is read only
+ * and can be queried from any thread. This class only depends on the JDK.
+ *
+ * @author Campbell Lockley
+ */
+public class ClusterEngine {
+    /** Lowest zoom level clustered. */
+    public static final int MIN_ZOOM = 0;
+    /** Highest zoom level clustered. Queries for higher zoom levels use this level. */
+    public static final int MAX_ZOOM = 18;
+    /** Size of a grid cell in screen pixels. */
+    public static final int CELL_PIXELS = 64;
+
+    /* Number of cells across the world at zoom 0, i.e. 256 pixel tile / cell size */
+    private static final int CELLS_AT_ZOOM_0 = 256 / CELL_PIXELS;
+
+    /* Mercator projection limit */
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /** A cluster of one or more photos at a particular zoom level. */
+    public static class Cluster {
+        /** Key unique within a zoom level. For clusters of one photo this is the photo's id. */
+        public long key;
+        /** Id of the first photo in the cluster. */
+        public final long photoId;
+        /** Number of photos in the cluster. */
+        public int count;
+        /* Sums of coordinates, used to find the centroid */
+        private double sumLatitude, sumLongitude;
+        /** Bounding box of the cluster's photos. */
+        public double south = Double.MAX_VALUE, west = Double.MAX_VALUE,
+                north = -Double.MAX_VALUE, east = -Double.MAX_VALUE;
+        /* Grid coordinates of the cluster's cell */
+        final int cellX, cellY;
+
+        Cluster(long cellKey, long photoId, int cellX, int cellY) {
+            this.key = cellKey;
+            this.photoId = photoId;
+            this.cellX = cellX;
+            this.cellY = cellY;
+        }
+
+        /** Adds a photo's location to the cluster. */
+        void add(double latitude, double longitude) {
+            count++;
+            sumLatitude += latitude;
+            sumLongitude += longitude;
+            if (latitude < south) south = latitude;
+            if (latitude > north) north = latitude;
+            if (longitude < west) west = longitude;
+            if (longitude > east) east = longitude;
+        }
+
+        /** Returns latitude of the cluster's centroid. */
+        public double getLatitude() { return sumLatitude / count; }
+
+        /** Returns longitude of the cluster's centroid. */
+        public double getLongitude() { return sumLongitude / count; }
+    }
+
+    /* Clusters at each zoom level, keyed by cell */
+    private final List<HashMap<Long, Cluster>> levels = new ArrayList<>(MAX_ZOOM - MIN_ZOOM + 1);
+
+    /**
+     * Builds the clusters for every zoom level.
+     *
+     * @param ids Photo ids.
+     * @param latitudes Photo latitudes in degrees.
+     * @param longitudes Photo longitudes in degrees.
+     * @param count Number of photos, i.e. how much of each array to use.
+     */
+    public ClusterEngine(long[] ids, double[] latitudes, double[] longitudes, int count) {
+        /* Project once into [0, 1) mercator space */
+        double[] xs = new double[count];
+        double[] ys = new double[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = mercatorX(longitudes[i]);
+            ys[i] = mercatorY(latitudes[i]);
+        }
+
+        for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+            int cells = cellsAcross(zoom);
+            HashMap<Long, Cluster> level = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int cx = Math.min(cells - 1, (int) (xs[i] * cells));
+                int cy = Math.min(cells - 1, (int) (ys[i] * cells));
+                long cellKey = cellKey(cx, cy);
+                Cluster cluster = level.get(cellKey);
+                if (cluster == null) {
+                    cluster = new Cluster(cellKey, ids[i], cx, cy);
+                    level.put(cellKey, cluster);
+                }
+                cluster.add(latitudes[i], longitudes[i]);
+            }
+
+            /* Key lone photos by their id */
+            for (Cluster cluster : level.values()) {
+                if (cluster.count == 1) cluster.key = cluster.photoId;
+            }
+
+            levels.add(level);
+        }
+    }
+
+    /**
+     * Returns the clusters at a zoom level which lie within a bounding box.
+     * <p>
+     * Clusters of a single photo are keyed by the photo's id, so a photo keeps the same key at every zoom level where
+     * it isn't clustered with others.
+     *
+     * @param zoom Zoom level. Clamped to [{@link #MIN_ZOOM}, {@link #MAX_ZOOM}].
+     * @param south South edge of box.
+     * @param west West edge of box. Boxes crossing the antimeridian have {@code west > east}.
+     * @param north North edge of box.
+     * @param east East edge of box.
+     * @return Clusters whose grid cell overlaps the box.
+     */
+    public List<Cluster> getClusters(int zoom, double south, double west, double north, double east) {
+        zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+        HashMap<Long, Cluster> level = levels.get(zoom - MIN_ZOOM);
+        int cells = cellsAcross(zoom);
+
+        /* Visible cell range. Mercator y increases southwards */
+        int minY = Math.min(cells - 1, (int) (mercatorY(north) * cells));
+        int maxY = Math.min(cells - 1, (int) (mercatorY(south) * cells));
+        int minX = Math.min(cells - 1, (int) (mercatorX(west) * cells));
+        int maxX = Math.min(cells - 1, (int) (mercatorX(east) * cells));
+        boolean wraps = minX > maxX;
+        long width = wraps ? (cells - minX) + maxX + 1 : maxX - minX + 1;
+        long visibleCells = width * (maxY - minY + 1);
+
+        ArrayList<Cluster> result = new ArrayList<>();
+        if (visibleCells < level.size()) {
+            /* Few visible cells, so probe each of them */
+            for (int y = minY; y <= maxY; y++) {
+                for (long i = 0; i < width; i++) {
+                    int x = (int) ((minX + i) % cells);
+                    Cluster cluster = level.get(cellKey(x, y));
+                    if (cluster != null) result.add(cluster);
+                }
+            }
+        } else {
+            /* More visible cells than clusters, so scan the clusters instead */
+            for (Cluster cluster : level.values()) {
+                if (cluster.cellY < minY || cluster.cellY > maxY) continue;
+                boolean inX = wraps ? (cluster.cellX >= minX || cluster.cellX <= maxX)
+                        : (cluster.cellX >= minX && cluster.cellX <= maxX);
+                if (inX) result.add(cluster);
+            }
+        }
+
+        return result;
+    }
+
+    /** Returns the number of zoom levels built. */
+    public int getLevelCount() { return levels.size(); }
+
+    /**
+     * Returns a key for a grid cell. Keys are negative so they never collide with photo ids, which are positive.
+     */
+    static long cellKey(int x, int y) {
+        return -(((long) x << 32) | (y & 0xFFFFFFFFL)) - 1;
+    }
+
+    /** Returns the number of grid cells across the world at a zoom level. */
+    static int cellsAcross(int zoom) {
+        return CELLS_AT_ZOOM_0 << zoom;
+    }
+
+    /** Projects a longitude into [0, 1]. */
+    static double mercatorX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    /** Projects a latitude into [0, 1], with 0 at the north edge of the map. */
+    static double mercatorY(double latitude) {
+        latitude = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+        double sin = Math.sin(Math.toRadians(latitude));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+}
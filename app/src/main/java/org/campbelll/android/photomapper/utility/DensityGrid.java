@@ -0,0 +1,309 @@
+package org.campbelll.android.photomapper.utility;
+
+/**
+ * Photo counts over a grid of small square bins at every zoom level, from which heatmap tiles are drawn.
+ * <p>
+ * Each 256 pixel map tile is split into {@link #BINS} x {@link #BINS} bins of {@link #BIN_PIXELS} pixels. Only bins
+ * holding photos are stored: each level is a sorted array of bin keys with a parallel array of counts. A bin's key
+ * starts with its tile's key, so the bins of one tile are contiguous and are found with a binary search. The finest
+ * level, {@link #MAX_ZOOM}, is built from the points and each coarser level is built by merging the bins of the level
+ * below, so building costs one sort of the points plus one sort of each level's bins.
+ * <p>
+ * Grids are immutable and can be read from any thread. Changes to the photos are applied with
+ * {@link #update(double[], double[], int, double[], double[], int)}, which merges the changed points into a copy of
+ * each level without re-sorting the unchanged bins. This class only depends on the JDK.
+ *
+ * @author Campbell Lockley
+ */
+public class DensityGrid {
+    /** Lowest zoom level with a grid. */
+    public static final int MIN_ZOOM = 0;
+    /** Highest zoom level with a grid. Tiles at higher zoom levels are cut from this level's tiles. */
+    public static final int MAX_ZOOM = 16;
+    /** Size of a tile in pixels. */
+    public static final int TILE_PIXELS = 256;
+    /** Size of a bin in pixels. */
+    public static final int BIN_PIXELS = 8;
+    /** Number of bins across a tile. */
+    public static final int BINS = TILE_PIXELS / BIN_PIXELS;
+
+    /* Bins per tile */
+    private static final int BINS_PER_TILE = BINS * BINS;
+
+    /* Mask of a tile's column or row in a tile id */
+    private static final int TILE_ID_MASK = (1 << 29) - 1;
+
+    /* Levels, indexed by zoom - MIN_ZOOM */
+    private final long[][] keys;        // Sorted keys of the bins holding photos
+    private final int[][] counts;       // Number of photos in each bin
+    private final int[] references;     // Smallest power of two at least the level's largest count
+
+    /**
+     * Builds the grid of every zoom level.
+     *
+     * @param latitudes Photo latitudes in degrees.
+     * @param longitudes Photo longitudes in degrees.
+     * @param count Number of photos, i.e. how much of each array to use.
+     */
+    public DensityGrid(double[] latitudes, double[] longitudes, int count) {
+        this(new long[MAX_ZOOM - MIN_ZOOM + 1][], new int[MAX_ZOOM - MIN_ZOOM + 1][]);
+
+        long[] finest = new long[count];
+        int[] ones = new int[count];
+        for (int i = 0; i < count; i++) {
+            finest[i] = binKey(MAX_ZOOM, latitudes[i], longitudes[i]);
+            ones[i] = 1;
+        }
+        setLevel(MAX_ZOOM, finest, ones, collapse(finest, ones, count));
+        buildCoarserLevels(MAX_ZOOM);
+    }
+
+    /** Constructor for a grid whose levels are filled in by the caller. */
+    private DensityGrid(long[][] keys, int[][] counts) {
+        this.keys = keys;
+        this.counts = counts;
+        this.references = new int[keys.length];
+    }
+
+    /**
+     * Returns a copy of this grid with some photos removed and others added. A photo which has moved is removed from
+     * its old location and added at its new one.
+     *
+     * @param removedLatitudes Latitudes of the photos removed.
+     * @param removedLongitudes Longitudes of the photos removed.
+     * @param removedCount Number of photos removed.
+     * @param addedLatitudes Latitudes of the photos added.
+     * @param addedLongitudes Longitudes of the photos added.
+     * @param addedCount Number of photos added.
+     * @return Updated grid. This grid is unchanged.
+     */
+    public DensityGrid update(double[] removedLatitudes, double[] removedLongitudes, int removedCount,
+                              double[] addedLatitudes, double[] addedLongitudes, int addedCount) {
+        DensityGrid grid = new DensityGrid(new long[keys.length][], new int[keys.length][]);
+        int n = removedCount + addedCount;
+        for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+            long[] deltaKeys = new long[n];
+            int[] deltas = new int[n];
+            for (int i = 0; i < removedCount; i++) {
+                deltaKeys[i] = binKey(zoom, removedLatitudes[i], removedLongitudes[i]);
+                deltas[i] = -1;
+            }
+            for (int i = 0; i < addedCount; i++) {
+                deltaKeys[removedCount + i] = binKey(zoom, addedLatitudes[i], addedLongitudes[i]);
+                deltas[removedCount + i] = 1;
+            }
+            int size = collapse(deltaKeys, deltas, n);
+
+            long[] levelKeys = keys[zoom - MIN_ZOOM];
+            int[] levelCounts = counts[zoom - MIN_ZOOM];
+            long[] mergedKeys = new long[levelKeys.length + size];
+            int[] mergedCounts = new int[levelKeys.length + size];
+            int merged = 0, i = 0, j = 0;
+            while (i < levelKeys.length || j < size) {
+                long key;
+                int count;
+                if (j == size || (i < levelKeys.length && levelKeys[i] < deltaKeys[j])) {
+                    key = levelKeys[i];
+                    count = levelCounts[i++];
+                } else if (i == levelKeys.length || deltaKeys[j] < levelKeys[i]) {
+                    key = deltaKeys[j];
+                    count = deltas[j++];
+                } else {
+                    key = levelKeys[i];
+                    count = levelCounts[i++] + deltas[j++];
+                }
+                if (count > 0) {
+                    mergedKeys[merged] = key;
+                    mergedCounts[merged++] = count;
+                }
+            }
+            grid.setLevel(zoom, mergedKeys, mergedCounts, merged);
+        }
+        return grid;
+    }
+
+    /**
+     * Fills in the photo counts of a tile's bins.
+     * <p>
+     * Tiles above {@link #MAX_ZOOM} are cut from their ancestor at {@link #MAX_ZOOM}, so each of its bins covers
+     * several of the tile's bins.
+     *
+     * @param zoom Zoom level of the tile.
+     * @param x Column of the tile.
+     * @param y Row of the tile.
+     * @param bins Filled with the count of each bin, row by row from the north-west corner. Must hold
+     *             {@link #BINS} * {@link #BINS} counts.
+     * @return Number of photos in the tile, or in the part of its ancestor it covers. 0 if the tile is empty.
+     */
+    public int getBins(int zoom, int x, int y, int[] bins) {
+        for (int i = 0; i < BINS_PER_TILE; i++) bins[i] = 0;
+        if (zoom < MIN_ZOOM) return 0;
+
+        /* Above the finest level, read the part of the ancestor tile this tile covers */
+        int levelZoom = Math.min(zoom, MAX_ZOOM);
+        int depth = zoom - levelZoom;                       // Levels between the tile and its ancestor
+        int shift = Math.min(depth, Integer.numberOfTrailingZeros(BINS));
+        int subBins = BINS >> shift;                        // Ancestor's bins across this tile
+        int subX = ((x >> (depth - shift)) & ((1 << shift) - 1)) * subBins;   // First of the ancestor's bins covered
+        int subY = ((y >> (depth - shift)) & ((1 << shift) - 1)) * subBins;
+        int tileX = x >> depth, tileY = y >> depth;
+
+        long[] levelKeys = keys[levelZoom - MIN_ZOOM];
+        int[] levelCounts = counts[levelZoom - MIN_ZOOM];
+        long first = tileKey(levelZoom, tileX, tileY) * BINS_PER_TILE;
+        int total = 0;
+        long end = first + BINS_PER_TILE;
+        for (int i = lowerBound(levelKeys, first); i < levelKeys.length && levelKeys[i] < end; i++) {
+            int bin = (int) (levelKeys[i] - first);
+            int bx = bin % BINS - subX, by = bin / BINS - subY;
+            if (bx < 0 || by < 0 || bx >= subBins || by >= subBins) continue;
+
+            /* Spread the ancestor's bin over the tile's bins it covers */
+            for (int dy = 0; dy < (1 << shift); dy++) {
+                int row = ((by << shift) + dy) * BINS + (bx << shift);
+                for (int dx = 0; dx < (1 << shift); dx++) bins[row + dx] = levelCounts[i];
+            }
+            total += levelCounts[i];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the count at which a zoom level's bins are drawn at full intensity: the smallest power of two at least as
+     * big as the level's largest count. It only changes when the largest count crosses a power of two, so most changes
+     * to the photos leave the drawing of untouched tiles unchanged.
+     */
+    public int getReference(int zoom) {
+        return references[Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom)) - MIN_ZOOM];
+    }
+
+    /** Returns the number of non-empty bins at a zoom level. */
+    public int getBinCount(int zoom) {
+        return keys[Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom)) - MIN_ZOOM].length;
+    }
+
+    /**
+     * Returns a key unique to a tile across all zoom levels, e.g. for caching.
+     *
+     * @param zoom Zoom level, at most 29.
+     * @param x Column of the tile.
+     * @param y Row of the tile.
+     */
+    public static long getTileId(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    /** Returns the id, as for {@link #getTileId(int, int, int)}, of the tile containing a point at a zoom level. */
+    public static long getTileId(int zoom, double latitude, double longitude) {
+        int tiles = 1 << zoom;
+        int x = Math.min(tiles - 1, (int) (ClusterEngine.mercatorX(longitude) * tiles));
+        int y = Math.min(tiles - 1, (int) (ClusterEngine.mercatorY(latitude) * tiles));
+        return getTileId(zoom, x, y);
+    }
+
+    /** Returns the zoom level of a tile id. */
+    public static int getTileZoom(long tileId) {
+        return (int) (tileId >>> 58);
+    }
+
+    /** Returns the column of a tile id. */
+    public static int getTileX(long tileId) {
+        return (int) ((tileId >>> 29) & TILE_ID_MASK);
+    }
+
+    /** Returns the row of a tile id. */
+    public static int getTileY(long tileId) {
+        return (int) (tileId & TILE_ID_MASK);
+    }
+
+    /** Fills in the coarser levels from a level down to {@link #MIN_ZOOM}. */
+    private void buildCoarserLevels(int fromZoom) {
+        for (int zoom = fromZoom - 1; zoom >= MIN_ZOOM; zoom--) {
+            long[] finer = keys[zoom + 1 - MIN_ZOOM];
+            long[] levelKeys = new long[finer.length];
+            int[] levelCounts = counts[zoom + 1 - MIN_ZOOM].clone();
+            for (int i = 0; i < finer.length; i++) levelKeys[i] = parentBinKey(zoom + 1, finer[i]);
+            setLevel(zoom, levelKeys, levelCounts, collapse(levelKeys, levelCounts, levelKeys.length));
+        }
+    }
+
+    /** Sets a level to the first size keys and counts, trimming the arrays, and works out its reference count. */
+    private void setLevel(int zoom, long[] levelKeys, int[] levelCounts, int size) {
+        if (levelKeys.length != size) {
+            long[] trimmedKeys = new long[size];
+            int[] trimmedCounts = new int[size];
+            System.arraycopy(levelKeys, 0, trimmedKeys, 0, size);
+            System.arraycopy(levelCounts, 0, trimmedCounts, 0, size);
+            levelKeys = trimmedKeys;
+            levelCounts = trimmedCounts;
+        }
+
+        int max = 1;
+        for (int count : levelCounts) max = Math.max(max, count);
+        keys[zoom - MIN_ZOOM] = levelKeys;
+        counts[zoom - MIN_ZOOM] = levelCounts;
+        references[zoom - MIN_ZOOM] = Integer.highestOneBit(max) == max ? max : Integer.highestOneBit(max) << 1;
+    }
+
+    /**
+     * Sorts the first n keys, carrying their values along, and sums the values of equal keys into the first of them.
+     * Keys whose values sum to 0 are dropped.
+     *
+     * @return Number of distinct keys, which are now at the start of the arrays.
+     */
+    static int collapse(long[] keys, int[] values, int n) {
+        if (n == 0) return 0;
+        PhotoIndex.sort(keys, values, 0, n - 1);
+
+        int size = 0;
+        for (int i = 0; i < n; ) {
+            long key = keys[i];
+            int sum = 0;
+            while (i < n && keys[i] == key) sum += values[i++];
+            if (sum != 0) {
+                keys[size] = key;
+                values[size++] = sum;
+            }
+        }
+        return size;
+    }
+
+    /** Returns the key of the bin containing a point at a zoom level. */
+    static long binKey(int zoom, double latitude, double longitude) {
+        int bins = BINS << zoom;
+        int bx = Math.min(bins - 1, (int) (ClusterEngine.mercatorX(longitude) * bins));
+        int by = Math.min(bins - 1, (int) (ClusterEngine.mercatorY(latitude) * bins));
+        return binKey(zoom, bx, by);
+    }
+
+    /** Returns the key of a bin from its column and row across the whole world at a zoom level. */
+    static long binKey(int zoom, int bx, int by) {
+        return tileKey(zoom, bx / BINS, by / BINS) * BINS_PER_TILE + (by % BINS) * BINS + (bx % BINS);
+    }
+
+    /** Returns the key of the bin at the zoom level below which contains a bin. */
+    static long parentBinKey(int zoom, long key) {
+        long tile = key / BINS_PER_TILE;
+        int bin = (int) (key % BINS_PER_TILE);
+        int tileX = (int) (tile >>> zoom), tileY = (int) (tile & ((1L << zoom) - 1));
+        int bx = tileX * BINS + bin % BINS, by = tileY * BINS + bin / BINS;
+        return binKey(zoom - 1, bx >> 1, by >> 1);
+    }
+
+    /** Returns a key for a tile, unique within its zoom level. Keys of tiles in the same column are consecutive. */
+    static long tileKey(int zoom, int x, int y) {
+        return ((long) x << zoom) | y;
+    }
+
+    /** Returns the index of the first key not less than key. */
+    private static int lowerBound(long[] keys, long key) {
+        int lo = 0, hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+}
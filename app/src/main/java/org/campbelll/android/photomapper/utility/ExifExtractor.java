@@ -1,6 +1,5 @@
 package org.campbelll.android.photomapper.utility;
 
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.util.Log;
 
@@ -10,6 +9,8 @@ import java.io.IOException;
 /**
  * Converts the Latitude-Longitude from an Exif tag to the values required by
  * {@link com.google.android.gms.maps.model.LatLng}.
+ * <p>
+ * The EXIF header is read by {@link ExifParser}, which decodes the GPS rationals directly from the file.
  *
  * @author Campbell Lockley
  */
@@ -27,58 +28,31 @@ public class ExifExtractor {
      * @throws IOException e.g. if file doesn't exist.
      */
     public static Photo extract(Uri uri) throws IOException {
-        ExifInterface exif = new ExifInterface(new File(uri.getPath()).getAbsolutePath());
+        ExifParser.Result exif = ExifParser.parse(new File(uri.getPath()).getAbsoluteFile());
+        if ((exif == null) || !exif.hasLocation()) {
+            Log.e(TAG, "Photo " + uri.toString() + " didn't have GPS data");
+            return null;
+        }
 
         Photo photo = new Photo();
         photo.uri = uri.toString();
-        photo.gps_latitude_ref = exif.getAttribute(ExifInterface.TAG_GPS_LATITUDE_REF);
-        photo.gps_longitude_ref = exif.getAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF);
-        try {
-            photo.gps_latitude =
-                    getLatitude(exif.getAttribute(ExifInterface.TAG_GPS_LATITUDE), photo.gps_latitude_ref);
-            photo.gps_longitude =
-                    getLongitude(exif.getAttribute(ExifInterface.TAG_GPS_LONGITUDE), photo.gps_longitude_ref);
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Photo " + uri.toString() + " didn't have GPS data");
-            return null;
+        photo.gps_latitude_ref = exif.gps_latitude_ref;
+        photo.gps_longitude_ref = exif.gps_longitude_ref;
+        photo.gps_latitude = exif.gps_latitude;
+        photo.gps_longitude = exif.gps_longitude;
+        if (exif.datetime != null) {
+            String[] datetime = exif.datetime.split(" ");
+            photo.date = datetime[0];
+            photo.time = (datetime.length > 1) ? datetime[1] : null;
         }
-        String[] datetime = exif.getAttribute(ExifInterface.TAG_DATETIME).split(" ");
-        photo.date = datetime[0];
-        photo.time = datetime[1];
-        photo.make = exif.getAttribute(ExifInterface.TAG_MAKE);
-        photo.model = exif.getAttribute(ExifInterface.TAG_MODEL);
+        long takenAt = ExifParser.toEpochMillis(exif.datetime);
+        photo.taken_at = (takenAt == ExifParser.UNKNOWN_TIME) ? null : takenAt;
+        photo.make = exif.make;
+        photo.model = exif.model;
+        photo.thumbnail_offset = exif.thumbnail_offset;
+        photo.thumbnail_length = exif.thumbnail_length;
 
         return photo;
     }
 
-    /** Returns GPS latitude as a double. Throws {@link java.lang.IllegalArgumentException} if no GPS data present. */
-    private static double getLatitude(String latSrc, String latRef) throws IllegalArgumentException {
-        if ((latSrc == null) || (latRef == null)) throw new IllegalArgumentException();
-        /* Check orientation of coordinates */
-        if(latRef.equals("N")) return convertToDegree(latSrc);
-        else return 0 - convertToDegree(latSrc);
-    }
-
-    /** Returns GPS longitude as a double. Throws {@link java.lang.IllegalArgumentException} if no GPS data present. */
-    private static double getLongitude(String longSrc, String longRef) throws IllegalArgumentException {
-        if ((longSrc == null) || (longRef == null)) throw new IllegalArgumentException();
-        /* Check orientation of coordinates */
-        if(longRef.equals("E")) return convertToDegree(longSrc);
-        else return 0 - convertToDegree(longSrc);
-    }
-
-    /** Converts a gps exif tag to a double format. */
-    private static double convertToDegree(String source) {
-        String[] degMinSec = source.split(",");
-        String[] degSrc = degMinSec[0].split("/");
-        String[] minSrc = degMinSec[1].split("/");
-        String[] secSrc = degMinSec[2].split("/");
-
-        double deg = Double.parseDouble(degSrc[0]) / Double.parseDouble(degSrc[1]);
-        double min = Double.parseDouble(minSrc[0]) / Double.parseDouble(minSrc[1]);
-        double sec = Double.parseDouble(secSrc[0]) / Double.parseDouble(secSrc[1]);
-
-        return deg + (min / 60) + (sec / (60 * 60));    // Fold degrees, minutes and seconds together
-    }
-
 }
@@ -0,0 +1,381 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming EXIF parser which reads GPS, date and camera details straight out of a JPEG's APP1 segment.
+ * <p>
+ * Only the JPEG marker headers are read until the "Exif" APP1 segment is found, at which point just that segment is
+ * mapped into memory and the TIFF IFDs are walked directly to the tags we care about. GPS rationals are decoded as
+ * binary, so no intermediate strings are created for coordinates.
+ * <p>
+ * This class only depends on the JDK so it can be run and tested on a plain JVM.
+ *
+ * @author Campbell Lockley
+ */
+public class ExifParser {
+    /* JPEG markers */
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+
+    /* "Exif\0\0" header at the start of the APP1 segment */
+    private static final int EXIF_HEADER = 0x45786966;
+    private static final int EXIF_HEADER_LENGTH = 6;
+
+    /* TIFF byte order marks */
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;     // "II"
+    private static final short TIFF_BIG_ENDIAN = 0x4D4D;        // "MM"
+
+    /* IFD0 tags */
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_GPS_IFD = 0x8825;
+
+    /* IFD1 (thumbnail) tags */
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    /* GPS IFD tags */
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+
+    /* TIFF field types */
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+
+    /* Size of an IFD entry in bytes */
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    /* Upper bound on IFD entries, guards against corrupt files */
+    private static final int MAX_IFD_ENTRIES = 512;
+
+    /** Returned by {@link #toEpochMillis(String)} for missing or malformed date times. */
+    public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+    /** Result of parsing a file. Coordinates are NaN if the file has no (valid) GPS data. */
+    public static class Result {
+        public double gps_latitude = Double.NaN;    // Signed latitude in degrees
+        public String gps_latitude_ref;             // "N" or "S"
+        public double gps_longitude = Double.NaN;   // Signed longitude in degrees
+        public String gps_longitude_ref;            // "E" or "W"
+        public String datetime;                     // "YYYY:MM:DD HH:MM:SS"
+        public String make;                         // Make of camera
+        public String model;                        // Model of camera
+        public long thumbnail_offset = -1;          // File offset of embedded JPEG thumbnail, or -1 if none
+        public int thumbnail_length;                // Length of embedded JPEG thumbnail
+
+        /** Returns true if both coordinates were found. */
+        public boolean hasLocation() {
+            return !Double.isNaN(gps_latitude) && !Double.isNaN(gps_longitude);
+        }
+    }
+
+    /** Not instantiable. */
+    private ExifParser() {}
+
+    /**
+     * Reads the JPEG thumbnail embedded in a file's EXIF header.
+     *
+     * @param file JPEG file.
+     * @param offset File offset of the thumbnail, i.e. {@link Result#thumbnail_offset}.
+     * @param length Length of the thumbnail, i.e. {@link Result#thumbnail_length}.
+     * @return Thumbnail as raw JPEG bytes, or null if the file has no embedded thumbnail.
+     * @throws IOException if file can't be read.
+     */
+    public static byte[] readThumbnail(File file, long offset, int length) throws IOException {
+        if (offset < 0 || length <= 0) return null;
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            if (!readFully(in.getChannel(), buf, offset, length)) return null;
+            return buf.array();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Converts an EXIF date time, i.e. "YYYY:MM:DD HH:MM:SS", to epoch millis. EXIF date times have no time zone so
+     * they are treated as UTC, which keeps them in order and means they format back to the same local time in UTC.
+     *
+     * @param datetime EXIF date time, e.g. {@link Result#datetime}. The time may be left off.
+     * @return Epoch millis, or {@link #UNKNOWN_TIME} if the date time is missing or malformed.
+     */
+    public static long toEpochMillis(String datetime) {
+        if (datetime == null || datetime.length() < 10) return UNKNOWN_TIME;
+        int year = parseDigits(datetime, 0, 4), month = parseDigits(datetime, 5, 7), day = parseDigits(datetime, 8, 10);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31) return UNKNOWN_TIME;
+
+        int hour = 0, minute = 0, second = 0;
+        if (datetime.length() >= 19) {
+            hour = parseDigits(datetime, 11, 13);
+            minute = parseDigits(datetime, 14, 16);
+            second = parseDigits(datetime, 17, 19);
+            if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) return UNKNOWN_TIME;
+        }
+
+        return ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+    }
+
+    /**
+     * Parses the EXIF header of a JPEG file.
+     *
+     * @param file JPEG file to parse.
+     * @return {@link Result} with whichever fields were present, or null if the file has no EXIF APP1 segment.
+     * @throws IOException e.g. if file doesn't exist.
+     */
+    public static Result parse(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return parse(in.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parses the EXIF header of a JPEG read from the given channel, starting at the channel's current position.
+     *
+     * @param channel Channel positioned at the start of a JPEG.
+     * @return {@link Result} with whichever fields were present, or null if the file has no EXIF APP1 segment.
+     * @throws IOException if the channel can't be read.
+     */
+    public static Result parse(FileChannel channel) throws IOException {
+        long tiffStart = findExifSegment(channel);
+        if (tiffStart < 0) return null;
+
+        /* Map just the TIFF structure, i.e. the rest of the APP1 segment */
+        ByteBuffer header = ByteBuffer.allocate(2).order(ByteOrder.BIG_ENDIAN);
+        if (!readFully(channel, header, tiffStart - EXIF_HEADER_LENGTH - 2, 2)) return null;
+        int tiffLength = (header.getShort(0) & 0xFFFF) - 2 - EXIF_HEADER_LENGTH;
+        ByteBuffer tiff = channel.map(FileChannel.MapMode.READ_ONLY, tiffStart, tiffLength);
+
+        try {
+            Result result = parseTiff(tiff);
+            if (result != null && result.thumbnail_offset >= 0) {
+                result.thumbnail_offset += tiffStart;   // Make offset relative to file rather than TIFF header
+                if (result.thumbnail_offset + result.thumbnail_length > channel.size()) result.thumbnail_offset = -1;
+            }
+            return result;
+        } catch (IndexOutOfBoundsException e) {
+            return null;    // Offsets point outside the segment, i.e. corrupt header
+        }
+    }
+
+    /**
+     * Walks the JPEG marker segments until the EXIF APP1 segment is found.
+     * <p>
+     * Returns the file position of the TIFF header (i.e. after "Exif\0\0"), or -1 if there is none.
+     */
+    private static long findExifSegment(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(EXIF_HEADER_LENGTH).order(ByteOrder.BIG_ENDIAN);
+        long pos = channel.position();
+        long size = channel.size();
+
+        /* Check start of image marker */
+        if (!readFully(channel, header, pos, 2)) return -1;
+        if ((header.get(0) & 0xFF) != MARKER_PREFIX || (header.get(1) & 0xFF) != MARKER_SOI) return -1;
+        pos += 2;
+
+        while (pos + 4 <= size) {
+            if (!readFully(channel, header, pos, 4)) return -1;
+            if ((header.get(0) & 0xFF) != MARKER_PREFIX) return -1;
+            int marker = header.get(1) & 0xFF;
+            if (marker == MARKER_PREFIX) { pos++; continue; }   // Fill byte
+            if (marker == MARKER_SOS || marker == MARKER_EOI) return -1;
+
+            int length = header.getShort(2) & 0xFFFF;           // Includes the two length bytes
+            if (length < 2) return -1;
+            long segmentStart = pos + 4;
+            int segmentLength = length - 2;
+
+            if (marker == MARKER_APP1 && segmentLength > EXIF_HEADER_LENGTH
+                    && segmentStart + segmentLength <= size) {
+                if (!readFully(channel, header, segmentStart, EXIF_HEADER_LENGTH)) return -1;
+                if (header.getInt(0) == EXIF_HEADER && header.getShort(4) == 0) {
+                    return segmentStart + EXIF_HEADER_LENGTH;
+                }
+            }
+            pos = segmentStart + segmentLength;
+        }
+
+        return -1;
+    }
+
+    /** Reads {@code len} bytes at {@code pos} into the start of {@code buf}. Returns false on EOF. */
+    private static boolean readFully(FileChannel channel, ByteBuffer buf, long pos, int len) throws IOException {
+        buf.clear();
+        buf.limit(len);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos + buf.position());
+            if (n < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses a TIFF structure.
+     *
+     * @param tiff Buffer with position 0 at the TIFF header.
+     * @return Parsed result, or null if the TIFF header is invalid. Any thumbnail offset is relative to the TIFF
+     * header.
+     */
+    static Result parseTiff(ByteBuffer tiff) {
+        short order = tiff.getShort(0);
+        if (order == TIFF_LITTLE_ENDIAN) tiff.order(ByteOrder.LITTLE_ENDIAN);
+        else if (order == TIFF_BIG_ENDIAN) tiff.order(ByteOrder.BIG_ENDIAN);
+        else return null;
+
+        Result result = new Result();
+        int gpsIfd = 0;
+
+        /* Walk IFD0 for camera details and the GPS IFD pointer */
+        int ifd0 = tiff.getInt(4);
+        int entries = entryCount(tiff, ifd0);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd0 + 2 + i * IFD_ENTRY_SIZE;
+            switch (tiff.getShort(entry) & 0xFFFF) {
+                case TAG_MAKE:      result.make = readAscii(tiff, entry);       break;
+                case TAG_MODEL:     result.model = readAscii(tiff, entry);      break;
+                case TAG_DATETIME:  result.datetime = readAscii(tiff, entry);   break;
+                case TAG_GPS_IFD:   gpsIfd = readOffset(tiff, entry);           break;
+                default:                                                        break;
+            }
+        }
+
+        /* Walk IFD1, which follows IFD0, for the embedded thumbnail */
+        int ifd1 = (entries > 0) ? tiff.getInt(ifd0 + 2 + entries * IFD_ENTRY_SIZE) : 0;
+        int thumbnailOffset = 0, thumbnailLength = 0;
+        entries = entryCount(tiff, ifd1);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd1 + 2 + i * IFD_ENTRY_SIZE;
+            switch (tiff.getShort(entry) & 0xFFFF) {
+                case TAG_JPEG_INTERCHANGE_FORMAT:           thumbnailOffset = readOffset(tiff, entry);  break;
+                case TAG_JPEG_INTERCHANGE_FORMAT_LENGTH:    thumbnailLength = readOffset(tiff, entry);  break;
+                default:                                                                                break;
+            }
+        }
+        if (thumbnailOffset > 0 && thumbnailLength > 0) {
+            result.thumbnail_offset = thumbnailOffset;
+            result.thumbnail_length = thumbnailLength;
+        }
+
+        /* Walk GPS IFD */
+        if (gpsIfd > 0) {
+            double lat = Double.NaN, lon = Double.NaN;
+            entries = entryCount(tiff, gpsIfd);
+            for (int i = 0; i < entries; i++) {
+                int entry = gpsIfd + 2 + i * IFD_ENTRY_SIZE;
+                switch (tiff.getShort(entry) & 0xFFFF) {
+                    case TAG_GPS_LATITUDE_REF:  result.gps_latitude_ref = readAscii(tiff, entry);   break;
+                    case TAG_GPS_LATITUDE:      lat = readDegrees(tiff, entry);                     break;
+                    case TAG_GPS_LONGITUDE_REF: result.gps_longitude_ref = readAscii(tiff, entry);  break;
+                    case TAG_GPS_LONGITUDE:     lon = readDegrees(tiff, entry);                     break;
+                    default:                                                                        break;
+                }
+            }
+
+            /* Apply orientation of coordinates; both the value and its reference are required */
+            if (result.gps_latitude_ref != null && !Double.isNaN(lat))
+                result.gps_latitude = result.gps_latitude_ref.equals("N") ? lat : 0 - lat;
+            if (result.gps_longitude_ref != null && !Double.isNaN(lon))
+                result.gps_longitude = result.gps_longitude_ref.equals("E") ? lon : 0 - lon;
+        }
+
+        return result;
+    }
+
+    /** Returns number of entries in the IFD at {@code offset}, or 0 if the offset is invalid. */
+    private static int entryCount(ByteBuffer tiff, int offset) {
+        if (offset <= 0 || offset + 2 > tiff.limit()) return 0;
+        int count = tiff.getShort(offset) & 0xFFFF;
+        if (count > MAX_IFD_ENTRIES) return 0;
+        if (offset + 2 + count * IFD_ENTRY_SIZE > tiff.limit()) return 0;
+        return count;
+    }
+
+    /** Returns the LONG (or SHORT) value of an IFD entry, used for offsets and lengths. */
+    private static int readOffset(ByteBuffer tiff, int entry) {
+        int type = tiff.getShort(entry + 2) & 0xFFFF;
+        if (type == TYPE_LONG) return tiff.getInt(entry + 8);
+        if (type == TYPE_SHORT) return tiff.getShort(entry + 8) & 0xFFFF;
+        return 0;
+    }
+
+    /** Returns the ASCII value of an IFD entry, without its NUL terminator, or null if it isn't ASCII. */
+    private static String readAscii(ByteBuffer tiff, int entry) {
+        if ((tiff.getShort(entry + 2) & 0xFFFF) != TYPE_ASCII) return null;
+        int count = tiff.getInt(entry + 4);
+        if (count <= 0) return null;
+        int offset = (count <= 4) ? entry + 8 : tiff.getInt(entry + 8);    // Values of <= 4 bytes are inline
+        if (offset < 0 || offset + count > tiff.limit()) return null;
+
+        /* Trim at first NUL and any trailing padding */
+        int len = 0;
+        while (len < count && tiff.get(offset + len) != 0) len++;
+        while (len > 0 && tiff.get(offset + len - 1) == ' ') len--;
+        if (len == 0) return null;
+
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) chars[i] = (char) (tiff.get(offset + i) & 0x7F);
+        return new String(chars);
+    }
+
+    /** Folds a degrees, minutes, seconds triple of RATIONALs into degrees. Returns NaN if malformed. */
+    private static double readDegrees(ByteBuffer tiff, int entry) {
+        if ((tiff.getShort(entry + 2) & 0xFFFF) != TYPE_RATIONAL) return Double.NaN;
+        if (tiff.getInt(entry + 4) != 3) return Double.NaN;
+        int offset = tiff.getInt(entry + 8);
+        if (offset < 0 || offset + 24 > tiff.limit()) return Double.NaN;
+
+        double deg = readRational(tiff, offset);
+        double min = readRational(tiff, offset + 8);
+        double sec = readRational(tiff, offset + 16);
+
+        return deg + (min / 60) + (sec / (60 * 60));    // Fold degrees, minutes and seconds together
+    }
+
+    /** Reads an unsigned RATIONAL. A zero denominator gives NaN. */
+    private static double readRational(ByteBuffer tiff, int offset) {
+        long num = tiff.getInt(offset) & 0xFFFFFFFFL;
+        long den = tiff.getInt(offset + 4) & 0xFFFFFFFFL;
+        if (den == 0) return Double.NaN;
+        return (double) num / den;
+    }
+
+    /** Returns the decimal number in s[start, end), or -1 if it isn't all digits. */
+    private static int parseDigits(String s, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /** Returns the number of days between 1970-01-01 and the given date in the proleptic Gregorian calendar. */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= (month <= 2) ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+}
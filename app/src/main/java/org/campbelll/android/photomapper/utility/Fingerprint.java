@@ -0,0 +1,94 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identifies the contents of a photo's file, so that files which haven't changed since they were imported can be
+ * skipped when they are imported again.
+ * <p>
+ * The size and last modified time are checked first, as they are free to read. If either differs the content hash is
+ * compared, which catches files which were copied or touched without being changed. Rather than hashing the whole file,
+ * the hash covers its size plus its first and last {@link #SAMPLE_SIZE} bytes, i.e. the EXIF header and the end of the
+ * image data, so it costs at most two small reads whatever the size of the photo.
+ *
+ * @author Campbell Lockley
+ */
+public class Fingerprint {
+    /** Bytes hashed at each end of the file. */
+    public static final int SAMPLE_SIZE = 64 * 1024;
+
+    /* Hex digits */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /* Fields */
+    public final long size;         // Size of file in bytes
+    public final long modified;     // Last modified time of file in epoch millis
+    public final String hash;       // Sampled SHA-1 of file as a hex string
+
+    /** Constructor. */
+    public Fingerprint(long size, long modified, String hash) {
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash;
+    }
+
+    /**
+     * Reads the fingerprint of a file.
+     *
+     * @throws IOException if the file can't be read.
+     */
+    public static Fingerprint of(File file) throws IOException {
+        if (!file.isFile()) throw new FileNotFoundException("No file " + file);
+        return new Fingerprint(file.length(), file.lastModified(), hash(file));
+    }
+
+    /** Returns true if a file of the given size and modified time has the same size and modified time as this. */
+    public boolean sameStat(long size, long modified) {
+        return this.size == size && this.modified == modified;
+    }
+
+    /** Returns the sampled SHA-1 hash of a file as a hex string. */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            for (int i = 0; i < 8; i++) digest.update((byte) (length >>> (8 * i)));
+
+            byte[] buffer = new byte[(int) Math.min(SAMPLE_SIZE, length)];
+            raf.readFully(buffer);
+            digest.update(buffer);
+
+            /* Tail, unless the head already covered the whole file */
+            if (length > SAMPLE_SIZE) {
+                long tail = Math.max(SAMPLE_SIZE, length - SAMPLE_SIZE);
+                buffer = new byte[(int) (length - tail)];
+                raf.seek(tail);
+                raf.readFully(buffer);
+                digest.update(buffer);
+            }
+        } finally {
+            raf.close();
+        }
+
+        byte[] bytes = digest.digest();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+}
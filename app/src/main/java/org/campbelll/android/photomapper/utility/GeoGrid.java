@@ -0,0 +1,76 @@
+package org.campbelll.android.photomapper.utility;
+
+/**
+ * Fixed latitude/longitude grid used to spatially index photos.
+ * <p>
+ * The world is divided into cells of {@link #CELL_DEGREES} square, numbered row by row from the south-west corner.
+ * Cells in the same row are numbered consecutively, so the cells a bounding box covers in any one row form a single
+ * contiguous range of cell numbers. A bounding box can therefore be looked up in an index on the cell number with one
+ * range scan per row.
+ *
+ * @author Campbell Lockley
+ */
+public class GeoGrid {
+    /** Size of a grid cell in degrees. */
+    public static final double CELL_DEGREES = 0.1;
+    /** Number of cells in each row, i.e. around the world. */
+    public static final int COLUMNS = (int) Math.round(360 / CELL_DEGREES);
+    /** Number of rows, i.e. pole to pole. */
+    public static final int ROWS = (int) Math.round(180 / CELL_DEGREES);
+
+    /** Not instantiable. */
+    private GeoGrid() {}
+
+    /** Returns the number of the cell containing the given point. */
+    public static int cell(double latitude, double longitude) {
+        return row(latitude) * COLUMNS + column(longitude);
+    }
+
+    /** Returns the row of the given latitude. */
+    public static int row(double latitude) {
+        int row = (int) Math.floor((latitude + 90) / CELL_DEGREES);
+        return Math.max(0, Math.min(ROWS - 1, row));
+    }
+
+    /** Returns the column of the given longitude. */
+    public static int column(double longitude) {
+        int col = (int) Math.floor((longitude + 180) / CELL_DEGREES);
+        return Math.max(0, Math.min(COLUMNS - 1, col));
+    }
+
+    /**
+     * Returns the ranges of cell numbers covered by a bounding box.
+     * <p>
+     * Boxes crossing the antimeridian, i.e. where {@code west > east}, are split in two.
+     *
+     * @return Flattened array of inclusive {@code [first, last]} cell number pairs, one pair per row per longitude span.
+     */
+    public static int[] ranges(double south, double west, double north, double east) {
+        int firstRow = row(south), lastRow = row(north);
+        int rows = lastRow - firstRow + 1;
+        boolean split = west > east;
+
+        int[] ranges = new int[rows * (split ? 4 : 2)];
+        int i = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            int base = row * COLUMNS;
+            if (split) {
+                ranges[i++] = base + column(west);
+                ranges[i++] = base + COLUMNS - 1;
+                ranges[i++] = base;
+                ranges[i++] = base + column(east);
+            } else {
+                ranges[i++] = base + column(west);
+                ranges[i++] = base + column(east);
+            }
+        }
+
+        return ranges;
+    }
+
+    /** Returns the number of grid rows a bounding box spans. */
+    public static int rowSpan(double south, double north) {
+        return row(north) - row(south) + 1;
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, lock free histogram of non-negative values, e.g. latencies in nanoseconds, from which percentiles can be
+ * read.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two range is split into {@link #SUB_BUCKETS} equal buckets,
+ * so a percentile is accurate to within 1 / {@link #SUB_BUCKETS} of its value whatever its magnitude. Recording a value
+ * is a few arithmetic operations and atomic increments with no allocation, so histograms can be recorded into from any
+ * thread on hot paths. This class only depends on the JDK.
+ *
+ * @author Campbell Lockley
+ */
+public class Histogram {
+    /* Buckets per power of two, a power of two itself */
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /* Enough buckets for any non-negative long */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /* Members */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();      // Values recorded
+    private final AtomicLong sum = new AtomicLong();        // Sum of values recorded
+    private final AtomicLong max = new AtomicLong();        // Largest value recorded
+
+    /** Records a value. Negative values are recorded as 0. */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Lost race with another thread, try again
+        }
+    }
+
+    /** Returns the number of values recorded. */
+    public long getCount() { return count.get(); }
+
+    /** Returns the largest value recorded, or 0 if none have been. */
+    public long getMax() { return max.get(); }
+
+    /** Returns the mean of the values recorded, or 0 if none have been. */
+    public double getMean() {
+        long n = count.get();
+        return (n == 0) ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values fall, rounded up to the top of its bucket
+     * but never more than the largest value recorded. Returns 0 if no values have been recorded.
+     *
+     * @param percentile Percentile, in [0, 100].
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += (snapshot[i] = counts.get(i));
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    /** Forgets all recorded values. Values recorded concurrently may or may not be forgotten. */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /** Returns the bucket of a non-negative value. */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Returns the largest value which falls in a bucket. */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+}
@@ -0,0 +1,319 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.util.Arrays;
+
+/**
+ * KD-tree of photo locations, for finding the photos nearest a point or within a distance of it.
+ * <p>
+ * Locations are held as points on the unit sphere, i.e. 3D unit vectors, rather than as latitudes and longitudes. The
+ * straight line, or chord, distance between two such points grows with the great circle distance between them, so the
+ * tree can be searched with plain Euclidean distances and needs no special cases at the antimeridian or the poles. A
+ * chord of length c is exactly a great circle distance of 2R asin(c / 2), which is the haversine formula.
+ * <p>
+ * Each node splits its photos at the median of whichever of x, y or z they are most spread along, so the tree is
+ * balanced and is held implicitly, as arrays sorted into tree order, rather than as node objects. A search visits the
+ * nearer side of each split first and skips the farther side when the split is further away than the furthest photo
+ * it has kept, so finding the k nearest of n photos takes about O(log n + k) steps.
+ * <p>
+ * Building is O(n log n) and should be done off the UI thread. Once built, a tree is read only and can be queried from
+ * any thread. This class only depends on the JDK.
+ *
+ * @author Campbell Lockley
+ */
+public class KdTree {
+    /** Mean radius of the Earth in metres. */
+    public static final double EARTH_RADIUS_METRES = 6371008.8;
+
+    /* Members */
+    private final int size;                 // Number of photos
+    private final long[] ids;               // Photo ids, in tree order
+    private final double[] points;          // x, y and z of each photo on the unit sphere, in tree order
+    private final byte[] axes;              // Axis each node splits on, by the position of its photo
+
+    /** Photos found by a search, nearest first. */
+    public static class Result {
+        /** Number of photos found. */
+        public final int count;
+        /** Ids of the photos found. */
+        public final long[] ids;
+        /** Great circle distances of the photos found from the point searched around, in metres. */
+        public final double[] distances;
+
+        Result(int count) {
+            this.count = count;
+            ids = new long[count];
+            distances = new double[count];
+        }
+    }
+
+    /**
+     * Builds the tree.
+     *
+     * @param ids Photo ids.
+     * @param latitudes Photo latitudes in degrees.
+     * @param longitudes Photo longitudes in degrees.
+     * @param count Number of photos, i.e. the first count elements of the arrays are used.
+     */
+    public KdTree(long[] ids, double[] latitudes, double[] longitudes, int count) {
+        size = count;
+        this.ids = Arrays.copyOf(ids, count);
+        points = new double[count * 3];
+        axes = new byte[count];
+        for (int i = 0; i < count; i++) toPoint(latitudes[i], longitudes[i], points, i * 3);
+        build(0, count);
+    }
+
+    /** Returns the number of photos in the tree. */
+    public int size() { return size; }
+
+    /** Returns the k photos nearest a point. */
+    public Result nearest(double latitude, double longitude, int k) {
+        return search(latitude, longitude, k, Double.POSITIVE_INFINITY);
+    }
+
+    /** Returns the photos within a distance in metres of a point. */
+    public Result withinRadius(double latitude, double longitude, double metres) {
+        return search(latitude, longitude, Integer.MAX_VALUE, metres);
+    }
+
+    /**
+     * Returns the photos nearest a point, up to a maximum number and distance.
+     *
+     * @param latitude Latitude of point in degrees.
+     * @param longitude Longitude of point in degrees.
+     * @param k Maximum number of photos, or {@link Integer#MAX_VALUE} for no limit.
+     * @param metres Maximum great circle distance in metres, or {@link Double#POSITIVE_INFINITY} for no limit.
+     * @return Photos found, nearest first.
+     */
+    public Result search(double latitude, double longitude, int k, double metres) {
+        return search(latitude, longitude, k, metres, null);
+    }
+
+    /**
+     * Returns the photos nearest a point, up to a maximum number and distance, skipping the photos with the given ids.
+     *
+     * @param excluded Ids of photos to skip, in ascending order, or null.
+     * @see #search(double, double, int, double)
+     */
+    Result search(double latitude, double longitude, int k, double metres, long[] excluded) {
+        if (k < 0 || !(metres >= 0)) throw new IllegalArgumentException("Invalid k " + k + " or distance " + metres);
+
+        Search search = new Search(latitude, longitude, k, toChordSq(metres), excluded);
+        if (k > 0) search.visit(0, size);
+        return search.result();
+    }
+
+    /** Returns the great circle distance in metres between two points. */
+    public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double lat1 = Math.toRadians(latitude1), lng1 = Math.toRadians(longitude1);
+        double lat2 = Math.toRadians(latitude2), lng2 = Math.toRadians(longitude2);
+        double cosLat1 = Math.cos(lat1), cosLat2 = Math.cos(lat2);
+        double dx = cosLat1 * Math.cos(lng1) - cosLat2 * Math.cos(lng2);
+        double dy = cosLat1 * Math.sin(lng1) - cosLat2 * Math.sin(lng2);
+        double dz = Math.sin(lat1) - Math.sin(lat2);
+        return toMetres(dx * dx + dy * dy + dz * dz);
+    }
+
+    /** Converts a location to a point on the unit sphere, stored at points[offset..offset + 2]. */
+    private static void toPoint(double latitude, double longitude, double[] points, int offset) {
+        double lat = Math.toRadians(latitude), lng = Math.toRadians(longitude);
+        double cosLat = Math.cos(lat);
+        points[offset] = cosLat * Math.cos(lng);
+        points[offset + 1] = cosLat * Math.sin(lng);
+        points[offset + 2] = Math.sin(lat);
+    }
+
+    /** Converts a great circle distance in metres to a squared chord length on the unit sphere. */
+    private static double toChordSq(double metres) {
+        double angle = metres / EARTH_RADIUS_METRES;
+        if (angle >= Math.PI) return Double.POSITIVE_INFINITY;  // The whole sphere
+        double chord = 2 * Math.sin(angle / 2);
+        return chord * chord;
+    }
+
+    /** Converts a squared chord length on the unit sphere to a great circle distance in metres. */
+    private static double toMetres(double chordSq) {
+        return 2 * EARTH_RADIUS_METRES * Math.asin(Math.min(1, Math.sqrt(chordSq) / 2));
+    }
+
+    /** Sorts the photos at positions [lo, hi) into tree order. */
+    private void build(int lo, int hi) {
+        while (hi - lo > 1) {
+            /* Split along the axis the photos are most spread along */
+            int axis = 0;
+            double widest = -1;
+            for (int a = 0; a < 3; a++) {
+                double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+                for (int i = lo; i < hi; i++) {
+                    double v = points[i * 3 + a];
+                    if (v < min) min = v;
+                    if (v > max) max = v;
+                }
+                if (max - min > widest) {
+                    widest = max - min;
+                    axis = a;
+                }
+            }
+
+            int mid = (lo + hi) >>> 1;
+            select(lo, hi - 1, mid, axis);
+            axes[mid] = (byte) axis;
+
+            /* Recurse into the smaller side to bound stack depth */
+            if (mid - lo < hi - mid - 1) {
+                build(lo, mid);
+                lo = mid + 1;
+            } else {
+                build(mid + 1, hi);
+                hi = mid;
+            }
+        }
+    }
+
+    /** Partially sorts positions [lo, hi] along an axis, so that position k holds the photo which belongs there. */
+    private void select(int lo, int hi, int k, int axis) {
+        while (lo < hi) {
+            double pivot = points[((lo + hi) >>> 1) * 3 + axis];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (points[i * 3 + axis] < pivot) i++;
+                while (points[j * 3 + axis] > pivot) j--;
+                if (i <= j) swap(i++, j--);
+            }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else return;
+        }
+    }
+
+    /** Swaps the photos at positions i and j. */
+    private void swap(int i, int j) {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        for (int a = 0; a < 3; a++) {
+            double v = points[i * 3 + a];
+            points[i * 3 + a] = points[j * 3 + a];
+            points[j * 3 + a] = v;
+        }
+    }
+
+    /** State of one search: the nearest photos found so far, kept in a max-heap by squared chord length. */
+    private class Search {
+        private final double x, y, z;           // Point searched around
+        private final int k;                    // Maximum number of photos
+        private final double maxChordSq;        // Maximum squared chord length
+        private final long[] excluded;          // Ascending ids of photos to skip, or null
+        private int count = 0;                  // Photos in the heap
+        private int[] heap;                     // Positions of photos, furthest first
+        private double[] heapChordSq;           // Squared chord lengths of photos in the heap
+
+        Search(double latitude, double longitude, int k, double maxChordSq, long[] excluded) {
+            double lat = Math.toRadians(latitude), lng = Math.toRadians(longitude);
+            double cosLat = Math.cos(lat);
+            x = cosLat * Math.cos(lng);
+            y = cosLat * Math.sin(lng);
+            z = Math.sin(lat);
+            this.k = k;
+            this.maxChordSq = maxChordSq;
+            this.excluded = excluded;
+            int capacity = Math.max(1, Math.min(k, Math.min(size, 64)));
+            heap = new int[capacity];
+            heapChordSq = new double[capacity];
+        }
+
+        /** Returns the squared chord length beyond which photos can't be kept. */
+        private double bound() {
+            return (count == k) ? Math.min(maxChordSq, heapChordSq[0]) : maxChordSq;
+        }
+
+        /** Searches the subtree of the photos at positions [lo, hi). */
+        void visit(int lo, int hi) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int offset = mid * 3;
+                double dx = x - points[offset], dy = y - points[offset + 1], dz = z - points[offset + 2];
+                double chordSq = dx * dx + dy * dy + dz * dz;
+                if (chordSq <= bound() && !isExcluded(ids[mid])) offer(mid, chordSq);
+                if (hi - lo == 1) return;
+
+                int axis = axes[mid];
+                double diff = (axis == 0) ? dx : (axis == 1) ? dy : dz;     // Distance to the split plane
+                if (diff < 0) {
+                    visit(lo, mid);
+                    if (diff * diff > bound()) return;
+                    lo = mid + 1;
+                } else {
+                    visit(mid + 1, hi);
+                    if (diff * diff > bound()) return;
+                    hi = mid;
+                }
+            }
+        }
+
+        /** Returns true if the photo with the given id is to be skipped. */
+        private boolean isExcluded(long id) {
+            return excluded != null && Arrays.binarySearch(excluded, id) >= 0;
+        }
+
+        /** Adds a photo to the heap, dropping the furthest if the heap is full. */
+        private void offer(int position, double chordSq) {
+            if (count == k) {
+                if (chordSq >= heapChordSq[0]) return;
+                heap[0] = position;
+                heapChordSq[0] = chordSq;
+                siftDown(0);
+                return;
+            }
+
+            if (count == heap.length) {
+                int capacity = (int) Math.min((long) k, heap.length * 2L);
+                heap = Arrays.copyOf(heap, capacity);
+                heapChordSq = Arrays.copyOf(heapChordSq, capacity);
+            }
+            int i = count++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (heapChordSq[parent] >= chordSq) break;
+                heap[i] = heap[parent];
+                heapChordSq[i] = heapChordSq[parent];
+                i = parent;
+            }
+            heap[i] = position;
+            heapChordSq[i] = chordSq;
+        }
+
+        /** Moves the photo at i of the heap down until it is further than its children. */
+        private void siftDown(int i) {
+            int position = heap[i];
+            double chordSq = heapChordSq[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= count) break;
+                if (child + 1 < count && heapChordSq[child + 1] > heapChordSq[child]) child++;
+                if (heapChordSq[child] <= chordSq) break;
+                heap[i] = heap[child];
+                heapChordSq[i] = heapChordSq[child];
+                i = child;
+            }
+            heap[i] = position;
+            heapChordSq[i] = chordSq;
+        }
+
+        /** Empties the heap into a result, nearest first. */
+        Result result() {
+            Result result = new Result(count);
+            while (count > 0) {
+                int last = count - 1;
+                result.ids[last] = ids[heap[0]];
+                result.distances[last] = toMetres(heapChordSq[0]);
+                count = last;
+                heap[0] = heap[last];
+                heapChordSq[0] = heapChordSq[last];
+                siftDown(0);
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link KdTree} of photo locations which can be kept up to date as photos change, without being rebuilt.
+ * <p>
+ * Photos which have been inserted, moved or deleted since the tree was built are held beside it, by id, with their
+ * current location. A search skips the changed photos in the tree, searches a second, small tree of the changed
+ * photos which still have a location, and merges the two. The small tree is rebuilt by every update, so updates slow
+ * down as changes build up, and the caller should rebuild the tree once {@link #getChangeCount()} grows past a few
+ * hundred.
+ * <p>
+ * Updating returns a new tree which shares the old one's {@link KdTree}, so a tree can be searched from any thread
+ * while it is being updated. This class only depends on the JDK.
+ *
+ * @author Campbell Lockley
+ */
+public class NearTree {
+    /* Members */
+    private final KdTree tree;                          // Photos as they were when built
+    private final HashMap<Long, double[]> changes;      // Latitude and longitude of changed photos, or null if deleted
+    private final long[] changedIds;                    // Ids of changed photos, ascending, skipped in tree
+    private final KdTree changed;                       // Changed photos which have a location
+
+    /**
+     * Builds the tree.
+     *
+     * @param ids Photo ids.
+     * @param latitudes Photo latitudes in degrees.
+     * @param longitudes Photo longitudes in degrees.
+     * @param count Number of photos, i.e. the first count elements of the arrays are used.
+     */
+    public NearTree(long[] ids, double[] latitudes, double[] longitudes, int count) {
+        this(new KdTree(ids, latitudes, longitudes, count), new HashMap<Long, double[]>());
+    }
+
+    /** Constructor. Builds the tree of changed photos. */
+    private NearTree(KdTree tree, HashMap<Long, double[]> changes) {
+        this.tree = tree;
+        this.changes = changes;
+
+        int count = changes.size();
+        changedIds = new long[count];
+        long[] ids = new long[count];
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        int located = 0, i = 0;
+        for (Map.Entry<Long, double[]> change : changes.entrySet()) {
+            changedIds[i++] = change.getKey();
+            double[] location = change.getValue();
+            if (location == null) continue;
+            ids[located] = change.getKey();
+            latitudes[located] = location[0];
+            longitudes[located++] = location[1];
+        }
+        Arrays.sort(changedIds);
+        changed = new KdTree(ids, latitudes, longitudes, located);
+    }
+
+    /**
+     * Returns a tree with the locations of changed photos replaced.
+     *
+     * @param ids Ids of changed photos.
+     * @param latitudes Photo latitudes in degrees, or NaN if the photo has been deleted or has no location.
+     * @param longitudes Photo longitudes in degrees.
+     * @param count Number of photos, i.e. the first count elements of the arrays are used.
+     * @return Updated tree. This tree is unchanged.
+     */
+    public NearTree update(long[] ids, double[] latitudes, double[] longitudes, int count) {
+        HashMap<Long, double[]> updated = new HashMap<>(changes);
+        for (int i = 0; i < count; i++) {
+            boolean located = !Double.isNaN(latitudes[i]) && !Double.isNaN(longitudes[i]);
+            updated.put(ids[i], located ? new double[] { latitudes[i], longitudes[i] } : null);
+        }
+        return new NearTree(tree, updated);
+    }
+
+    /** Returns the number of photos changed since the tree was built. */
+    public int getChangeCount() { return changes.size(); }
+
+    /** Returns the most photos the tree can find. */
+    public int size() { return tree.size() + changes.size(); }
+
+    /**
+     * Returns the photos nearest a point, up to a maximum number and distance.
+     *
+     * @param latitude Latitude of point in degrees.
+     * @param longitude Longitude of point in degrees.
+     * @param k Maximum number of photos, or {@link Integer#MAX_VALUE} for no limit.
+     * @param metres Maximum great circle distance in metres, or {@link Double#POSITIVE_INFINITY} for no limit.
+     * @return Photos found, nearest first.
+     * @see KdTree#search(double, double, int, double)
+     */
+    public KdTree.Result search(double latitude, double longitude, int k, double metres) {
+        if (changedIds.length == 0) return tree.search(latitude, longitude, k, metres);
+
+        /* Both are nearest first, so merge them */
+        KdTree.Result built = tree.search(latitude, longitude, k, metres, changedIds);
+        KdTree.Result moved = changed.search(latitude, longitude, k, metres);
+        KdTree.Result result = new KdTree.Result((int) Math.min(k, (long) built.count + moved.count));
+        int b = 0, m = 0;
+        for (int i = 0; i < result.count; i++) {
+            if (m == moved.count || (b < built.count && built.distances[b] <= moved.distances[m])) {
+                result.ids[i] = built.ids[b];
+                result.distances[i] = built.distances[b++];
+            } else {
+                result.ids[i] = moved.ids[m];
+                result.distances[i] = moved.distances[m++];
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.util.Arrays;
+
+/**
+ * 63 bit perceptual hash of an image, which changes little when the image is re-compressed, resized or slightly
+ * altered. Near-duplicate images, e.g. burst shots or re-shared copies, have hashes which differ in only a few bits,
+ * see {@link #distance(long, long)}.
+ * <p>
+ * The image is reduced to a {@link #SIZE} x {@link #SIZE} grid of luminances, which is transformed with a 2D discrete
+ * cosine transform. The 8 x 8 lowest frequencies hold the image's overall structure rather than its detail, and each
+ * bit of the hash records whether one of them is above their median. The lowest, i.e. the image's mean brightness, is
+ * left out, as it is far larger than the rest and only tells how bright the image is. Only the low frequencies are
+ * computed, so hashing takes about 10,000 multiplications.
+ * <p>
+ * This class only depends on the JDK.
+ *
+ * @author Campbell Lockley
+ */
+public final class PerceptualHash {
+    /** Width and height of the grid of luminances which is hashed. */
+    public static final int SIZE = 32;
+
+    /* Frequencies kept along each axis, giving FREQUENCIES * FREQUENCIES - 1 bits */
+    private static final int FREQUENCIES = 8;
+
+    /** Number of bits of a hash. The top bit is always clear. */
+    public static final int BITS = FREQUENCIES * FREQUENCIES - 1;
+
+    /* Cosines of the transform, by frequency then position */
+    private static final double[][] COSINES = new double[FREQUENCIES][SIZE];
+    static {
+        for (int u = 0; u < FREQUENCIES; u++) {
+            for (int x = 0; x < SIZE; x++) COSINES[u][x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * SIZE));
+        }
+    }
+
+    /** Not instantiable. */
+    private PerceptualHash() {}
+
+    /**
+     * Hashes a grid of luminances.
+     *
+     * @param luminances {@link #SIZE} x {@link #SIZE} luminances, e.g. from 0 to 255, in rows from the top.
+     * @return Hash of the grid.
+     */
+    public static long hash(int[] luminances) {
+        if (luminances.length != SIZE * SIZE) {
+            throw new IllegalArgumentException("Expected " + SIZE * SIZE + " luminances, got " + luminances.length);
+        }
+
+        /* Transform each row, keeping the low frequencies, then each column of those */
+        double[] rows = new double[SIZE * FREQUENCIES];
+        for (int y = 0; y < SIZE; y++) {
+            for (int u = 0; u < FREQUENCIES; u++) {
+                double sum = 0;
+                for (int x = 0; x < SIZE; x++) sum += luminances[y * SIZE + x] * COSINES[u][x];
+                rows[y * FREQUENCIES + u] = sum;
+            }
+        }
+        double[] coefficients = new double[FREQUENCIES * FREQUENCIES];
+        for (int v = 0; v < FREQUENCIES; v++) {
+            for (int u = 0; u < FREQUENCIES; u++) {
+                double sum = 0;
+                for (int y = 0; y < SIZE; y++) sum += rows[y * FREQUENCIES + u] * COSINES[v][y];
+                coefficients[v * FREQUENCIES + u] = sum;
+            }
+        }
+
+        /* One bit per coefficient but the mean, set if it is above the median of the rest */
+        double[] sorted = Arrays.copyOfRange(coefficients, 1, coefficients.length);
+        Arrays.sort(sorted);
+        double median = sorted[sorted.length / 2];
+        long hash = 0;
+        for (int i = 1; i < coefficients.length; i++) {
+            if (coefficients[i] > median) hash |= 1L << (i - 1);
+        }
+        return hash;
+    }
+
+    /** Returns the number of bits two hashes differ in, i.e. their Hamming distance, from 0 to 63. */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+}
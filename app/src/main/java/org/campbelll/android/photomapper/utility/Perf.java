@@ -0,0 +1,207 @@
+package org.campbelll.android.photomapper.utility;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide timing of the app's hot paths.
+ * <p>
+ * Each stage, e.g. {@link #EXIF_READ}, is timed with {@link #begin(String)} and {@link #end(String, long)}, which
+ * record the elapsed time in the stage's {@link Histogram} and, from Jelly Bean MR2, mark the stage as a trace
+ * section so it shows up in systrace. Intervals which span threads, e.g. {@link #SHARE_TO_MARKER}, are recorded
+ * directly with {@link #record(String, long)}. Events such as cache hits are counted with {@link #count(String)}.
+ * <p>
+ * Recording doesn't allocate or lock once a stage's histogram exists, so it is left on in release builds. The results
+ * are shown by {@link org.campbelll.android.photomapper.PerfStatsActivity}, which can also export them as JSON.
+ *
+ * @author Campbell Lockley
+ */
+public class Perf {
+    /* Timed stages */
+    public static final String EXIF_READ = "exif_read";                     // EXIF header parse, per image
+    public static final String BITMAP_DECODE = "bitmap_decode";             // Subsampled decode, per image
+    public static final String THUMBNAIL_COMPRESS = "thumbnail_compress";   // Scale and JPEG compress, per image
+    public static final String PERCEPTUAL_HASH = "perceptual_hash";         // Thumbnail decode and hash, per image
+    public static final String STACK_LOOKUP = "stack_lookup";               // Near-duplicate search, per insert
+    public static final String PROVIDER_INSERT = "provider_insert";         // Insert transaction, per batch
+    public static final String SNAPSHOT_READ = "snapshot_read";             // Points read from snapshot, per load
+    public static final String LOADER_QUERY = "loader_query";               // Query and window fill, per page
+    public static final String CURSOR_MAPPING = "cursor_mapping";           // Rows to PhotoIndex, per page
+    public static final String CLUSTER_BUILD = "cluster_build";             // Clusters of loaded photos
+    public static final String MARKER_BUILD = "marker_build";               // Reconciling markers with clusters
+    public static final String MARKER_ICON = "marker_icon";                 // Thumbnail marker icon render
+    public static final String INFO_WINDOW = "info_window";                 // Info window render
+    public static final String HEATMAP_BUILD = "heatmap_build";             // Heatmap grid build or update
+    public static final String HEATMAP_TILE = "heatmap_tile";               // Heatmap tile draw
+    public static final String NEAR_TREE_BUILD = "near_tree_build";         // KD-tree of every photo's location
+    public static final String NEAR_QUERY = "near_query";                   // KD-tree search, per near query
+    public static final String IMPORT = "import";                           // Image entering pipeline to written
+    public static final String SHARE_TO_MARKER = "share_to_marker";         // Image shared to its marker shown
+
+    /* Counters */
+    public static final String IMPORTED = "imported";                       // Images imported
+    public static final String IMPORT_SKIPPED = "import_skipped";           // Images without GPS data
+    public static final String IMPORT_FAILED = "import_failed";             // Images which couldn't be read
+    public static final String IMPORT_UNCHANGED = "import_unchanged";       // Images already imported
+    public static final String THUMBNAIL_HITS = "thumbnail_hits";           // Thumbnails found in cache
+    public static final String THUMBNAIL_MISSES = "thumbnail_misses";       // Thumbnails decoded
+    public static final String LOADER_PAGES = "loader_pages";               // Pages read by the map's loader
+
+    /* Trace sections are only available from Jelly Bean MR2 */
+    private static final boolean TRACE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    /* Nanoseconds per millisecond */
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    /* Percentiles reported */
+    private static final double[] PERCENTILES = { 50, 90, 99 };
+
+    /* Members */
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    /** Not instantiable. */
+    private Perf() {}
+
+    /**
+     * Starts timing a stage on this thread. Must be followed by {@link #end(String, long)} on the same thread, e.g. in
+     * a finally block, as trace sections nest.
+     *
+     * @return Start time to pass to {@link #end(String, long)}.
+     */
+    public static long begin(String stage) {
+        if (TRACE) beginSection(stage);
+        return System.nanoTime();
+    }
+
+    /**
+     * Stops timing a stage and records its elapsed time.
+     *
+     * @param start Start time returned by {@link #begin(String)}.
+     * @return Elapsed time in nanoseconds.
+     */
+    public static long end(String stage, long start) {
+        long elapsed = System.nanoTime() - start;
+        if (TRACE) endSection();
+        record(stage, elapsed);
+        return elapsed;
+    }
+
+    /** Records an elapsed time in nanoseconds for a stage. */
+    public static void record(String stage, long nanos) {
+        getHistogram(stage).record(nanos);
+    }
+
+    /** Adds one to a counter. */
+    public static void count(String counter) {
+        count(counter, 1);
+    }
+
+    /** Adds to a counter. */
+    public static void count(String counter, long delta) {
+        AtomicLong value = counters.get(counter);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = counters.putIfAbsent(counter, created);
+            if (value == null) value = created;
+        }
+        value.addAndGet(delta);
+    }
+
+    /** Returns the histogram of a stage, creating it if it doesn't exist yet. */
+    public static Histogram getHistogram(String stage) {
+        Histogram histogram = histograms.get(stage);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(stage, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    /** Forgets all recorded times and counts. */
+    public static void reset() {
+        for (Histogram histogram : histograms.values()) histogram.reset();
+        for (AtomicLong counter : counters.values()) counter.set(0);
+    }
+
+    /** Returns a plain text table of the recorded times, in milliseconds, and counts. */
+    public static String toText() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.US, "%-20s %7s %8s %8s %8s %8s\n", "stage (ms)", "count", "p50", "p90", "p99",
+                "max"));
+        for (String stage : sorted(histograms.keySet())) {
+            Histogram histogram = histograms.get(stage);
+            text.append(String.format(Locale.US, "%-20s %7d", stage, histogram.getCount()));
+            for (double percentile : PERCENTILES) {
+                text.append(String.format(Locale.US, " %8.2f", histogram.getPercentile(percentile) / NANOS_PER_MILLI));
+            }
+            text.append(String.format(Locale.US, " %8.2f\n", histogram.getMax() / NANOS_PER_MILLI));
+        }
+
+        text.append('\n');
+        for (String counter : sorted(counters.keySet())) {
+            text.append(String.format(Locale.US, "%-20s %7d\n", counter, counters.get(counter).get()));
+        }
+        return text.toString();
+    }
+
+    /** Returns the recorded times, in milliseconds, and counts as JSON, along with details of the device. */
+    public static JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("time", System.currentTimeMillis());
+        json.put("manufacturer", Build.MANUFACTURER);
+        json.put("model", Build.MODEL);
+        json.put("sdk", Build.VERSION.SDK_INT);
+
+        JSONObject stages = new JSONObject();
+        for (String stage : sorted(histograms.keySet())) {
+            Histogram histogram = histograms.get(stage);
+            JSONObject times = new JSONObject();
+            times.put("count", histogram.getCount());
+            times.put("mean_ms", histogram.getMean() / NANOS_PER_MILLI);
+            for (double percentile : PERCENTILES) {
+                times.put("p" + (int) percentile + "_ms", histogram.getPercentile(percentile) / NANOS_PER_MILLI);
+            }
+            times.put("max_ms", histogram.getMax() / NANOS_PER_MILLI);
+            stages.put(stage, times);
+        }
+        json.put("stages", stages);
+
+        JSONObject counts = new JSONObject();
+        for (String counter : sorted(counters.keySet())) counts.put(counter, counters.get(counter).get());
+        json.put("counters", counts);
+
+        return json;
+    }
+
+    /** Returns the names in alphabetical order. */
+    private static List<String> sorted(Iterable<String> names) {
+        ArrayList<String> list = new ArrayList<>();
+        for (String name : names) list.add(name);
+        Collections.sort(list);
+        return list;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginSection(String stage) {
+        Trace.beginSection(stage);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void endSection() {
+        Trace.endSection();
+    }
+
+}
@@ -7,14 +7,22 @@ package org.campbelll.android.photomapper.utility;
  */
 public class Photo {
     /* Fields */
+    public long id;                     // Row id of photo in the photo database
     public String uri;                  // URI for photo
-    public byte[] thumbnail;            // Thumbnail of photo as raw bytes
+    public byte[] thumbnail;            // Thumbnail of photo as raw bytes, only set while importing
     public Double gps_latitude;         // GPS latitude, i.e. between -90.0 and 90.0
     public String gps_latitude_ref;     // Reference of latitude, i.e. "N" or "S"
     public Double gps_longitude;        // GPS longitude, i.e. between -180.0 and 180.0
     public String gps_longitude_ref;    // Reference of longitude, i.e. "E" or "W"
     public String date;                 // Date of photo, i.e. "YYYY:MM:DD:
     public String time;                 // Time of photo, i.e. "HH:MM:SS"
+    public Long taken_at;               // Date and time of photo in epoch millis, treating it as UTC, or null
     public String make;                 // Make of phone
     public String model;                // Model of phone
+    public long file_size;              // Size of photo's file in bytes
+    public long file_modified;          // Last modified time of photo's file in epoch millis
+    public String content_hash;         // Hash of photo's file, see Fingerprint
+    public Long perceptual_hash;        // Hash of photo's thumbnail, see PerceptualHash, or null
+    public long thumbnail_offset = -1;  // File offset of EXIF embedded thumbnail or -1, only set while importing
+    public int thumbnail_length;        // Length of EXIF embedded thumbnail, only set while importing
 }
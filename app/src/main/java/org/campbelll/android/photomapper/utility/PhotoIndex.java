@@ -0,0 +1,313 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact, read only, column oriented index of the photos shown on the map.
+ * <p>
+ * Rather than one {@link Photo} object per photo, each field is held in its own primitive array: ids as {@code long}s,
+ * coordinates as fixed point {@code int}s of {@link #COORDINATE_SCALE} units per degree (about 1cm), the time the photo
+ * was taken as epoch milliseconds, the number of photos in its stack of near-duplicates, and makes and models as codes
+ * into small dictionaries of distinct strings. A photo is referred to by its position in the index, which can be found
+ * from its id with {@link #indexOf(long)}.
+ * <p>
+ * This takes 36 bytes per photo, plus the dictionaries, compared with several hundred bytes for a {@link Photo}. Fields
+ * which aren't needed to draw the map, such as the photo's URI, aren't held at all and should be queried by id when
+ * needed. Indexes are built with a {@link Builder}, indexes loaded in parts can be combined with
+ * {@link #union(PhotoIndex, PhotoIndex)}, and photos can be dropped with {@link #difference(PhotoIndex, long[])}.
+ * This class only depends on the JDK.
+ *
+ * @author Campbell Lockley
+ */
+public class PhotoIndex {
+    /** Fixed point units per degree of latitude or longitude. */
+    public static final double COORDINATE_SCALE = 1e7;
+    /** Value of {@link #getTakenAt(int)} for photos with no known time. */
+    public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+    /** Index with no photos. */
+    public static final PhotoIndex EMPTY = new Builder(0).build();
+
+    /* Below this many elements, sort() uses insertion sort */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /* Members */
+    private final int size;                 // Number of photos
+    private final long[] ids;               // Photo ids, ascending
+    private final int[] latitudes;          // Latitudes in fixed point
+    private final int[] longitudes;         // Longitudes in fixed point
+    private final long[] taken_at;          // Time taken in epoch millis, or UNKNOWN_TIME
+    private final int[] stack_counts;       // Photos in the photo's stack, including itself
+    private final int[] makes;              // Codes into make_dictionary
+    private final int[] models;             // Codes into model_dictionary
+    private final String[] make_dictionary;     // Distinct makes
+    private final String[] model_dictionary;    // Distinct models
+
+    /**
+     * Constructor. Use {@link Builder}.
+     *
+     * @param order Positions in the builder of the photos in id order, or null if they were added in id order.
+     */
+    private PhotoIndex(Builder builder, int[] order) {
+        size = builder.size;
+        if (order == null) {
+            ids = Arrays.copyOf(builder.ids, size);
+            latitudes = Arrays.copyOf(builder.latitudes, size);
+            longitudes = Arrays.copyOf(builder.longitudes, size);
+            taken_at = Arrays.copyOf(builder.taken_at, size);
+            stack_counts = Arrays.copyOf(builder.stack_counts, size);
+            makes = Arrays.copyOf(builder.makes, size);
+            models = Arrays.copyOf(builder.models, size);
+        } else {
+            ids = new long[size];
+            latitudes = new int[size];
+            longitudes = new int[size];
+            taken_at = new long[size];
+            stack_counts = new int[size];
+            makes = new int[size];
+            models = new int[size];
+            for (int i = 0; i < size; i++) {
+                int j = order[i];
+                ids[i] = builder.ids[j];
+                latitudes[i] = builder.latitudes[j];
+                longitudes[i] = builder.longitudes[j];
+                taken_at[i] = builder.taken_at[j];
+                stack_counts[i] = builder.stack_counts[j];
+                makes[i] = builder.makes[j];
+                models[i] = builder.models[j];
+            }
+        }
+        make_dictionary = builder.make_dictionary.toArray();
+        model_dictionary = builder.model_dictionary.toArray();
+    }
+
+    /**
+     * Returns an index of the photos in either of two indexes, in a single pass over both. Photos in both are taken
+     * from the first.
+     */
+    public static PhotoIndex union(PhotoIndex a, PhotoIndex b) {
+        if (b.size == 0) return a;
+        if (a.size == 0) return b;
+
+        Builder builder = new Builder(a.size + b.size);
+        int i = 0, j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.ids[i] <= b.ids[j])) {
+                if (j < b.size && a.ids[i] == b.ids[j]) j++;    // Same photo, keep a's
+                builder.add(a, i++);
+            } else {
+                builder.add(b, j++);
+            }
+        }
+        return builder.build();
+    }
+
+    /** Returns an index of the photos in an index whose ids aren't given, in a single pass over both. */
+    public static PhotoIndex difference(PhotoIndex a, long[] sortedIds) {
+        if (sortedIds.length == 0) return a;
+
+        Builder builder = new Builder(a.size);
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            while (j < sortedIds.length && sortedIds[j] < a.ids[i]) j++;
+            if (j == sortedIds.length || sortedIds[j] != a.ids[i]) builder.add(a, i);
+        }
+        return builder.build();
+    }
+
+    /** Returns the number of photos in the index. */
+    public int size() { return size; }
+
+    /** Returns the position of the photo with the given id, or -1 if it isn't in the index. */
+    public int indexOf(long id) {
+        int i = Arrays.binarySearch(ids, 0, size, id);
+        return (i < 0) ? -1 : i;
+    }
+
+    /** Returns the id of the photo at a position. */
+    public long getId(int i) { return ids[i]; }
+
+    /** Returns the latitude of the photo at a position. */
+    public double getLatitude(int i) { return latitudes[i] / COORDINATE_SCALE; }
+
+    /** Returns the longitude of the photo at a position. */
+    public double getLongitude(int i) { return longitudes[i] / COORDINATE_SCALE; }
+
+    /** Returns the time the photo at a position was taken in epoch millis, or {@link #UNKNOWN_TIME}. */
+    public long getTakenAt(int i) { return taken_at[i]; }
+
+    /** Returns the number of photos in the stack of near-duplicates the photo at a position is shown for. */
+    public int getStackCount(int i) { return stack_counts[i]; }
+
+    /** Returns the camera make of the photo at a position, or null. */
+    public String getMake(int i) { return make_dictionary[makes[i]]; }
+
+    /** Returns the camera model of the photo at a position, or null. */
+    public String getModel(int i) { return model_dictionary[models[i]]; }
+
+    /**
+     * Builds a {@link PhotoIndex} one photo at a time. Building is cheapest when photos are added in ascending order of
+     * id, e.g. from a query sorted by id, otherwise they are sorted when the index is built.
+     */
+    public static class Builder {
+        private int size = 0;
+        private boolean sorted = true;          // Photos have been added in ascending order of id
+        private long[] ids;
+        private int[] latitudes;
+        private int[] longitudes;
+        private long[] taken_at;
+        private int[] stack_counts;
+        private int[] makes;
+        private int[] models;
+        private final Dictionary make_dictionary = new Dictionary();
+        private final Dictionary model_dictionary = new Dictionary();
+
+        /** Constructor. Capacity is the expected number of photos, the builder grows if more are added. */
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 1);
+            ids = new long[capacity];
+            latitudes = new int[capacity];
+            longitudes = new int[capacity];
+            taken_at = new long[capacity];
+            stack_counts = new int[capacity];
+            makes = new int[capacity];
+            models = new int[capacity];
+        }
+
+        /**
+         * Adds a photo which is alone in its stack.
+         *
+         * @throws IllegalArgumentException if the id is the same as the id of the last photo added.
+         */
+        public Builder add(long id, double latitude, double longitude, long takenAt, String make, String model) {
+            return add(id, latitude, longitude, takenAt, make, model, 1);
+        }
+
+        /**
+         * Adds a photo shown for a stack of near-duplicates.
+         *
+         * @throws IllegalArgumentException if the id is the same as the id of the last photo added.
+         */
+        public Builder add(long id, double latitude, double longitude, long takenAt, String make, String model,
+                           int stackCount) {
+            return add(id, (int) Math.round(latitude * COORDINATE_SCALE),
+                    (int) Math.round(longitude * COORDINATE_SCALE), takenAt, make, model, stackCount);
+        }
+
+        /** Adds the photo at a position in another index. */
+        Builder add(PhotoIndex index, int i) {
+            return add(index.ids[i], index.latitudes[i], index.longitudes[i], index.taken_at[i], index.getMake(i),
+                    index.getModel(i), index.stack_counts[i]);
+        }
+
+        /** Adds a photo with fixed point coordinates. */
+        private Builder add(long id, int latitude, int longitude, long takenAt, String make, String model,
+                            int stackCount) {
+            if (size > 0 && id <= ids[size - 1]) {
+                if (id == ids[size - 1]) throw new IllegalArgumentException("Photo " + id + " added twice");
+                sorted = false;
+            }
+            if (size == ids.length) grow();
+
+            ids[size] = id;
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            taken_at[size] = takenAt;
+            stack_counts[size] = stackCount;
+            makes[size] = make_dictionary.encode(make);
+            models[size] = model_dictionary.encode(model);
+            size++;
+            return this;
+        }
+
+        /**
+         * Returns the index of all photos added so far.
+         *
+         * @throws IllegalArgumentException if a photo was added more than once.
+         */
+        public PhotoIndex build() {
+            if (sorted) return new PhotoIndex(this, null);
+
+            long[] keys = Arrays.copyOf(ids, size);
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            sort(keys, order, 0, size - 1);
+            for (int i = 1; i < size; i++) {
+                if (keys[i] == keys[i - 1]) throw new IllegalArgumentException("Photo " + keys[i] + " added twice");
+            }
+            return new PhotoIndex(this, order);
+        }
+
+        /** Doubles the capacity of the builder. */
+        private void grow() {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            taken_at = Arrays.copyOf(taken_at, capacity);
+            stack_counts = Arrays.copyOf(stack_counts, capacity);
+            makes = Arrays.copyOf(makes, capacity);
+            models = Arrays.copyOf(models, capacity);
+        }
+    }
+
+    /** Sorts keys[lo..hi] ascending, moving values with their keys. */
+    static void sort(long[] keys, int[] values, int lo, int hi) {
+        while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+            /* Partition around the middle key, then recurse into the smaller side to bound stack depth */
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) swap(keys, values, i++, j--);
+            }
+            if (j - lo < hi - i) {
+                sort(keys, values, lo, j);
+                lo = i;
+            } else {
+                sort(keys, values, i, hi);
+                hi = j;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) swap(keys, values, j - 1, j);
+        }
+    }
+
+    /** Swaps elements i and j of keys and values. */
+    private static void swap(long[] keys, int[] values, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    /** Assigns consecutive codes to distinct strings, including null. */
+    private static class Dictionary {
+        private final HashMap<String, Integer> codes = new HashMap<>();
+        private String[] values = new String[8];
+
+        /** Returns the code of a string, adding it to the dictionary if it is new. */
+        int encode(String value) {
+            Integer code = codes.get(value);
+            if (code != null) return code;
+
+            code = codes.size();
+            if (code == values.length) values = Arrays.copyOf(values, code * 2);
+            values[code] = value;
+            codes.put(value, code);
+            return code;
+        }
+
+        /** Returns the distinct strings, indexed by code. */
+        String[] toArray() {
+            return Arrays.copyOf(values, codes.size());
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+package org.campbelll.android.photomapper.utility;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Creates the compressed thumbnails which are stored alongside each photo.
+ * <p>
+ * Full size images are never decoded. If the photo's EXIF header has an embedded thumbnail close to thumbnail size its
+ * bytes are used as is. Otherwise the image is decoded subsampled to the smallest power of two scale which is still at
+ * least thumbnail size, into a pooled bitmap where possible, and then scaled down to fit within
+ * {@link #THUMBNAIL_WIDTH} x {@link #THUMBNAIL_HEIGHT}, keeping its aspect ratio. The pool is kept between images,
+ * until {@link #releasePool()} is called.
+ * <p>
+ * Thumbnails are also used to find near-duplicate photos by their {@link PerceptualHash}, see
+ * {@link #perceptualHash(byte[])}.
+ *
+ * @author Campbell Lockley
+ */
+public class Thumbnailer {
+    /* Tag */
+    private static final String TAG = "Thumbnailer";
+
+    /* Thumbnail dimensions */
+    public static final int THUMBNAIL_WIDTH = 512;
+    public static final int THUMBNAIL_HEIGHT = 384;
+
+    /* Smallest embedded thumbnail used, on its longest edge. Most cameras embed 160x120, which is decoded instead */
+    private static final int MIN_EMBEDDED_SIZE = THUMBNAIL_HEIGHT;
+
+    /* JPEG quality of thumbnails */
+    private static final int THUMBNAIL_QUALITY = 50;
+
+    /* Bitmaps reused by subsampled decodes */
+    private static final BitmapPool pool = new BitmapPool(Runtime.getRuntime().availableProcessors());
+
+    /** Not instantiable. */
+    private Thumbnailer() {}
+
+    /**
+     * Creates a JPEG thumbnail of an image.
+     *
+     * @param resolver Resolver used to open the image.
+     * @param imageUri content// type URI for the image.
+     * @param photo Details extracted from the image's EXIF header, used to find any embedded thumbnail.
+     * @return Thumbnail as raw JPEG bytes.
+     * @throws IOException if the image can't be read.
+     */
+    public static byte[] create(ContentResolver resolver, Uri imageUri, Photo photo) throws IOException {
+        byte[] embedded = getEmbeddedThumbnail(photo);
+        if (embedded != null) return embedded;
+
+        Bitmap bitmap;
+        long start = Perf.begin(Perf.BITMAP_DECODE);
+        try {
+            bitmap = decodeSampled(resolver, imageUri);
+        } finally {
+            Perf.end(Perf.BITMAP_DECODE, start);
+        }
+        if (bitmap == null) throw new IOException("Can't decode " + imageUri);
+
+        /* Scale to fit, keeping aspect ratio */
+        double scale = Math.min(1.0, Math.min((double) THUMBNAIL_WIDTH / bitmap.getWidth(),
+                (double) THUMBNAIL_HEIGHT / bitmap.getHeight()));
+        int width = Math.max(1, (int) Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(bitmap.getHeight() * scale));
+
+        /* Scale and compress */
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        start = Perf.begin(Perf.THUMBNAIL_COMPRESS);
+        try {
+            Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, bout);    // Do a bit of compression
+            if (thumbnail != bitmap) thumbnail.recycle();
+        } finally {
+            Perf.end(Perf.THUMBNAIL_COMPRESS, start);
+        }
+        pool.put(bitmap);
+
+        return bout.toByteArray();
+    }
+
+    /** Recycles the bitmaps pooled for decodes, e.g. once an import has finished. */
+    public static void releasePool() {
+        pool.clear();
+    }
+
+    /**
+     * Returns the {@link PerceptualHash} of a JPEG thumbnail, or null if it can't be decoded. The thumbnail is decoded
+     * subsampled to little more than hash size, so hashing costs much less than creating the thumbnail did.
+     */
+    public static Long perceptualHash(byte[] thumbnail) {
+        if (thumbnail == null) return null;
+
+        long start = Perf.begin(Perf.PERCEPTUAL_HASH);
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = 1;
+            while (Math.min(options.outWidth, options.outHeight) / (options.inSampleSize * 2) >= PerceptualHash.SIZE) {
+                options.inSampleSize *= 2;
+            }
+            Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+            if (bitmap == null) return null;
+
+            /* Scale to the hash's grid, ignoring aspect ratio, and take the luminance of each pixel */
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, PerceptualHash.SIZE, PerceptualHash.SIZE, true);
+            int[] pixels = new int[PerceptualHash.SIZE * PerceptualHash.SIZE];
+            scaled.getPixels(pixels, 0, PerceptualHash.SIZE, 0, 0, PerceptualHash.SIZE, PerceptualHash.SIZE);
+            if (scaled != bitmap) scaled.recycle();
+            bitmap.recycle();
+            for (int i = 0; i < pixels.length; i++) {
+                int pixel = pixels[i];
+                pixels[i] = (Color.red(pixel) * 299 + Color.green(pixel) * 587 + Color.blue(pixel) * 114) / 1000;
+            }
+            return PerceptualHash.hash(pixels);
+        } finally {
+            Perf.end(Perf.PERCEPTUAL_HASH, start);
+        }
+    }
+
+    /** Returns the {@link PerceptualHash} of a JPEG thumbnail file, or null if it can't be decoded. */
+    public static Long perceptualHash(File thumbnail) throws IOException {
+        byte[] bytes = new byte[(int) thumbnail.length()];
+        FileInputStream in = new FileInputStream(thumbnail);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) throw new IOException("Thumbnail truncated: " + thumbnail);
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return perceptualHash(bytes);
+    }
+
+    /**
+     * Returns the largest power of two sample size which still decodes the image at least as big as a thumbnail in
+     * both dimensions, scaled to fit.
+     */
+    static int getSampleSize(int width, int height) {
+        double scale = Math.min((double) THUMBNAIL_WIDTH / width, (double) THUMBNAIL_HEIGHT / height);
+        int sampleSize = 1;
+        while (scale * sampleSize * 2 <= 1) sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /** Returns the photo's embedded EXIF thumbnail if it has one which is big enough, otherwise null. */
+    private static byte[] getEmbeddedThumbnail(Photo photo) {
+        if (photo == null || photo.thumbnail_offset < 0 || photo.uri == null) return null;
+
+        try {
+            byte[] bytes = ExifParser.readThumbnail(new File(Uri.parse(photo.uri).getPath()),
+                    photo.thumbnail_offset, photo.thumbnail_length);
+            if (bytes == null) return null;
+
+            /* Check it's a JPEG we can decode and that it's big enough to be worth using */
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            if (!"image/jpeg".equals(options.outMimeType)) return null;
+            if (Math.max(options.outWidth, options.outHeight) < MIN_EMBEDDED_SIZE) return null;
+
+            return bytes;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read embedded thumbnail of " + photo.uri, e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes an image subsampled to at least thumbnail size, reusing a pooled bitmap if possible. Returns null if it
+     * can't be decoded.
+     */
+    private static Bitmap decodeSampled(ContentResolver resolver, Uri imageUri) throws IOException {
+        /* Decode bounds only */
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(resolver, imageUri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+        /* Decode subsampled, reusing a pooled bitmap if possible */
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight);
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        int sampledWidth = ceilDiv(options.outWidth, options.inSampleSize);
+        int sampledHeight = ceilDiv(options.outHeight, options.inSampleSize);
+        options.inBitmap = pool.get(sampledWidth, sampledHeight, options.inPreferredConfig);
+
+        Bitmap bitmap;
+        try {
+            bitmap = decode(resolver, imageUri, options);
+        } catch (IllegalArgumentException e) {
+            /* Pooled bitmap couldn't be reused */
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decode(resolver, imageUri, options);
+        }
+        return bitmap;
+    }
+
+    /** Decodes an image with the given options. */
+    private static Bitmap decode(ContentResolver resolver, Uri imageUri, BitmapFactory.Options options)
+            throws IOException {
+        InputStream in = resolver.openInputStream(imageUri);
+        if (in == null) throw new FileNotFoundException("Can't open " + imageUri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Returns a / b, rounded up. */
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+}
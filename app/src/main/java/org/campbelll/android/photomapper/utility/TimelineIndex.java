@@ -0,0 +1,151 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Photos sorted by the time they were taken, for clustering just the photos taken within a time range.
+ * <p>
+ * Photos with a known time are copied out of a {@link PhotoIndex} into arrays sorted by time, along with their
+ * coordinates already projected into Web Mercator space. The photos within a time range are then a contiguous run of
+ * the arrays, found with two binary searches, and clustering them for one zoom level is a single pass over that run
+ * with no projection maths. This is cheap enough to redo every frame while a timeline slider is being dragged.
+ * <p>
+ * Clusters are built the same way as by {@link ClusterEngine}, with the same keys, so the two can be used
+ * interchangeably. An index is read only once built and can be queried from any thread. This class only depends on the
+ * JDK.
+ *
+ * @author Campbell Lockley
+ */
+public class TimelineIndex {
+    /* Members */
+    private final int size;                 // Number of photos with a known time
+    private final long[] times;             // Times taken, ascending
+    private final long[] ids;               // Photo ids, in time order
+    private final double[] latitudes;       // Photo latitudes, in time order
+    private final double[] longitudes;      // Photo longitudes, in time order
+    private final double[] xs;              // Mercator x, in time order
+    private final double[] ys;              // Mercator y, in time order
+
+    /** Builds the index of the photos in a {@link PhotoIndex} which have a known time. */
+    public TimelineIndex(PhotoIndex index) {
+        int count = 0;
+        for (int i = 0; i < index.size(); i++) {
+            if (index.getTakenAt(i) != PhotoIndex.UNKNOWN_TIME) count++;
+        }
+
+        /* Sort positions in the photo index by time */
+        long[] keys = new long[count];
+        int[] order = new int[count];
+        for (int i = 0, j = 0; i < index.size(); i++) {
+            long takenAt = index.getTakenAt(i);
+            if (takenAt == PhotoIndex.UNKNOWN_TIME) continue;
+            keys[j] = takenAt;
+            order[j++] = i;
+        }
+        PhotoIndex.sort(keys, order, 0, count - 1);
+
+        size = count;
+        times = keys;
+        ids = new long[count];
+        latitudes = new double[count];
+        longitudes = new double[count];
+        xs = new double[count];
+        ys = new double[count];
+        for (int i = 0; i < count; i++) {
+            int position = order[i];
+            ids[i] = index.getId(position);
+            latitudes[i] = index.getLatitude(position);
+            longitudes[i] = index.getLongitude(position);
+            xs[i] = ClusterEngine.mercatorX(longitudes[i]);
+            ys[i] = ClusterEngine.mercatorY(latitudes[i]);
+        }
+    }
+
+    /** Returns the number of photos with a known time. */
+    public int size() { return size; }
+
+    /** Returns the time the earliest photo was taken, or {@link PhotoIndex#UNKNOWN_TIME} if the index is empty. */
+    public long getMinTime() { return (size == 0) ? PhotoIndex.UNKNOWN_TIME : times[0]; }
+
+    /** Returns the time the latest photo was taken, or {@link PhotoIndex#UNKNOWN_TIME} if the index is empty. */
+    public long getMaxTime() { return (size == 0) ? PhotoIndex.UNKNOWN_TIME : times[size - 1]; }
+
+    /** Returns the number of photos taken within a time range, inclusive. */
+    public int count(long from, long to) {
+        return Math.max(0, upperBound(to) - lowerBound(from));
+    }
+
+    /**
+     * Returns the clusters of the photos taken within a time range which lie within a bounding box.
+     *
+     * @param from Start of time range in epoch millis, inclusive.
+     * @param to End of time range in epoch millis, inclusive.
+     * @param zoom Zoom level. Clamped to [{@link ClusterEngine#MIN_ZOOM}, {@link ClusterEngine#MAX_ZOOM}].
+     * @param south South edge of box.
+     * @param west West edge of box. Boxes crossing the antimeridian have {@code west > east}.
+     * @param north North edge of box.
+     * @param east East edge of box.
+     * @return Clusters whose grid cell overlaps the box, as {@link ClusterEngine#getClusters} would return them.
+     */
+    public List<ClusterEngine.Cluster> getClusters(long from, long to, int zoom, double south, double west,
+                                                   double north, double east) {
+        zoom = Math.max(ClusterEngine.MIN_ZOOM, Math.min(ClusterEngine.MAX_ZOOM, zoom));
+        int cells = ClusterEngine.cellsAcross(zoom);
+
+        /* Visible cell range. Mercator y increases southwards */
+        int minY = Math.min(cells - 1, (int) (ClusterEngine.mercatorY(north) * cells));
+        int maxY = Math.min(cells - 1, (int) (ClusterEngine.mercatorY(south) * cells));
+        int minX = Math.min(cells - 1, (int) (ClusterEngine.mercatorX(west) * cells));
+        int maxX = Math.min(cells - 1, (int) (ClusterEngine.mercatorX(east) * cells));
+        boolean wraps = minX > maxX;
+
+        HashMap<Long, ClusterEngine.Cluster> clusters = new HashMap<>();
+        for (int i = lowerBound(from), end = upperBound(to); i < end; i++) {
+            int cy = Math.min(cells - 1, (int) (ys[i] * cells));
+            if (cy < minY || cy > maxY) continue;
+            int cx = Math.min(cells - 1, (int) (xs[i] * cells));
+            if (wraps ? (cx < minX && cx > maxX) : (cx < minX || cx > maxX)) continue;
+
+            long cellKey = ClusterEngine.cellKey(cx, cy);
+            ClusterEngine.Cluster cluster = clusters.get(cellKey);
+            if (cluster == null) {
+                cluster = new ClusterEngine.Cluster(cellKey, ids[i], cx, cy);
+                clusters.put(cellKey, cluster);
+            }
+            cluster.add(latitudes[i], longitudes[i]);
+        }
+
+        /* Key lone photos by their id */
+        ArrayList<ClusterEngine.Cluster> result = new ArrayList<>(clusters.size());
+        for (ClusterEngine.Cluster cluster : clusters.values()) {
+            if (cluster.count == 1) cluster.key = cluster.photoId;
+            result.add(cluster);
+        }
+        return result;
+    }
+
+    /** Returns the position of the first photo taken at or after a time. */
+    int lowerBound(long time) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Returns the position after the last photo taken at or before a time. */
+    int upperBound(long time) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+}
@@ -0,0 +1,48 @@
+package org.campbelll.android.photomapper.utility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of building the structures the map draws from, which is done in the background every time the loaded
+ * photos change: the {@link ClusterEngine}'s clusters for every zoom level, and the {@link TimelineIndex}.
+ *
+ * @author Campbell Lockley
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ClusteringBenchmark {
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    /* Members */
+    private SyntheticPhotos photos;
+    private PhotoIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        photos = new SyntheticPhotos(size);
+        index = photos.toIndex();
+    }
+
+    @Benchmark
+    public ClusterEngine buildClusterEngine() {
+        return new ClusterEngine(photos.ids, photos.latitudes, photos.longitudes, size);
+    }
+
+    @Benchmark
+    public TimelineIndex buildTimelineIndex() {
+        return new TimelineIndex(index);
+    }
+
+}
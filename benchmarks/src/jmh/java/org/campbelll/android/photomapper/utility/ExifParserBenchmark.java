@@ -0,0 +1,96 @@
+package org.campbelll.android.photomapper.utility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of reading a photo's EXIF GPS, date and camera details, which is done once per imported image.
+ * <p>
+ * {@link #parseFile()} includes opening the file and finding the APP1 segment, and is what the import pipeline runs.
+ * {@link #parseTiff()} is just the IFD walk and GPS rational decoding, on a buffer already in memory.
+ * {@link #toEpochMillis()} is the conversion of the EXIF date time to the indexed taken_at column.
+ *
+ * @author Campbell Lockley
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ExifParserBenchmark {
+    /* Distinct photos cycled through, a power of two */
+    private static final int PHOTOS = 256;
+
+    /* Members */
+    private File dir;                   // Holds the JPEG files
+    private File[] files;               // JPEG files, one per photo
+    private ByteBuffer[] tiffs;         // TIFF structures, one per photo
+    private String[] datetimes;         // EXIF date times, one per photo
+    private int next = 0;               // Photo to use next
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticPhotos photos = new SyntheticPhotos(PHOTOS);
+        dir = File.createTempFile("exif", "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("Can't create " + dir);
+
+        files = new File[PHOTOS];
+        tiffs = new ByteBuffer[PHOTOS];
+        datetimes = new String[PHOTOS];
+        for (int i = 0; i < PHOTOS; i++) {
+            files[i] = new File(dir, i + ".jpg");
+            FileOutputStream out = new FileOutputStream(files[i]);
+            try {
+                out.write(SyntheticJpeg.build(photos, i));
+            } finally {
+                out.close();
+            }
+            datetimes[i] = photos.getDatetime(i);
+            tiffs[i] = ByteBuffer.wrap(SyntheticJpeg.buildTiff(photos.latitudes[i], photos.longitudes[i],
+                    datetimes[i], photos.makes[i], photos.models[i]));
+        }
+
+        /* Fail now rather than benchmark a parser which rejects the files */
+        ExifParser.Result result = ExifParser.parse(files[0]);
+        if (result == null || !result.hasLocation()) throw new IllegalStateException("Synthetic JPEG not parsed");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public ExifParser.Result parseFile() throws IOException {
+        return ExifParser.parse(files[next()]);
+    }
+
+    @Benchmark
+    public ExifParser.Result parseTiff() {
+        return ExifParser.parseTiff(tiffs[next()]);
+    }
+
+    @Benchmark
+    public long toEpochMillis() {
+        return ExifParser.toEpochMillis(datetimes[next()]);
+    }
+
+    /** Returns the next photo to use. */
+    private int next() {
+        next = (next + 1) & (PHOTOS - 1);
+        return next;
+    }
+
+}
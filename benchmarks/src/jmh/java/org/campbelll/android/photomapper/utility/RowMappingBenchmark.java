@@ -0,0 +1,118 @@
+package org.campbelll.android.photomapper.utility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of turning query rows into the photos held by the map.
+ * <p>
+ * The Android {@code Cursor} isn't available on a desktop JVM, so rows are read from a {@link Rows} stand in which,
+ * like a {@code CursorWindow}, returns primitives directly and a new {@link String} for every string read.
+ * {@link #toPhotos()} maps every column to a {@link Photo} per row, as {@code PhotoDBHelper.getAllPhotos()} does, and
+ * {@link #toIndex()} reads just the map's columns into a {@link PhotoIndex}, as {@code PhotoDBHelper.getPhotoIndex()}
+ * does.
+ *
+ * @author Campbell Lockley
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RowMappingBenchmark {
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    /* Members */
+    private Rows rows;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rows = new Rows(new SyntheticPhotos(size));
+    }
+
+    @Benchmark
+    public ArrayList<Photo> toPhotos() {
+        ArrayList<Photo> photos = new ArrayList<>(rows.size);
+        for (int i = 0; i < rows.size; i++) {
+            Photo photo = new Photo();
+            photo.id                = rows.ids[i];
+            photo.uri               = rows.getString(rows.uris, i);
+            photo.gps_latitude      = rows.latitudes[i];
+            photo.gps_latitude_ref  = rows.getString(rows.latitude_refs, i);
+            photo.gps_longitude     = rows.longitudes[i];
+            photo.gps_longitude_ref = rows.getString(rows.longitude_refs, i);
+            photo.date              = rows.getString(rows.dates, i);
+            photo.time              = rows.getString(rows.times, i);
+            photo.make              = rows.getString(rows.makes, i);
+            photo.model             = rows.getString(rows.models, i);
+            photos.add(photo);
+        }
+        return photos;
+    }
+
+    @Benchmark
+    public PhotoIndex toIndex() {
+        PhotoIndex.Builder builder = new PhotoIndex.Builder(rows.size);
+        for (int i = 0; i < rows.size; i++) {
+            builder.add(rows.ids[i], rows.latitudes[i], rows.longitudes[i], rows.taken_at[i],
+                    rows.getString(rows.makes, i), rows.getString(rows.models, i));
+        }
+        return builder.build();
+    }
+
+    /** Columns of a query result, with strings held as characters as a cursor window holds them. */
+    static class Rows {
+        final int size;
+        final long[] ids;
+        final double[] latitudes;
+        final double[] longitudes;
+        final long[] taken_at;
+        final char[][] uris;
+        final char[][] latitude_refs;
+        final char[][] longitude_refs;
+        final char[][] dates;
+        final char[][] times;
+        final char[][] makes;
+        final char[][] models;
+
+        Rows(SyntheticPhotos photos) {
+            size = photos.size;
+            ids = photos.ids;
+            latitudes = photos.latitudes;
+            longitudes = photos.longitudes;
+            taken_at = photos.taken_at;
+            uris = new char[size][];
+            latitude_refs = new char[size][];
+            longitude_refs = new char[size][];
+            dates = new char[size][];
+            times = new char[size][];
+            makes = new char[size][];
+            models = new char[size][];
+            for (int i = 0; i < size; i++) {
+                String datetime = photos.getDatetime(i);
+                uris[i] = ("file:///storage/emulated/0/DCIM/Camera/IMG_" + photos.ids[i] + ".jpg").toCharArray();
+                latitude_refs[i] = (latitudes[i] >= 0 ? "N" : "S").toCharArray();
+                longitude_refs[i] = (longitudes[i] >= 0 ? "E" : "W").toCharArray();
+                dates[i] = datetime.substring(0, 10).toCharArray();
+                times[i] = datetime.substring(11).toCharArray();
+                makes[i] = photos.makes[i].toCharArray();
+                models[i] = photos.models[i].toCharArray();
+            }
+        }
+
+        /** Returns a new string of a row's value, as {@code Cursor.getString()} does. */
+        String getString(char[][] column, int i) {
+            return new String(column[i]);
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package org.campbelll.android.photomapper.utility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the queries run every time the map's camera moves or the timeline is dragged, on libraries which have
+ * already been indexed and clustered.
+ * <p>
+ * Viewports are phone screen sized boxes centred on the library's hotspots at zoom levels from the whole world down to
+ * a street, so queries see a mix of dense and sparse regions.
+ *
+ * @author Campbell Lockley
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SpatialQueryBenchmark {
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    /* Constants */
+    private static final int QUERIES = 256;             // Distinct viewports cycled through, a power of two
+    private static final int[] ZOOMS = { 2, 6, 10, 14, 17 };
+    private static final long YEAR = 365 * 86400000L;
+
+    /* Members */
+    private PhotoIndex index;
+    private ClusterEngine engine;
+    private TimelineIndex timeline;
+    private int[] zooms;                    // Zoom of each viewport
+    private double[][] boxes;               // South, west, north and east of each viewport
+    private long[] ids;                     // Ids looked up by indexOf()
+    private int next = 0;                   // Query to run next
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticPhotos photos = new SyntheticPhotos(size);
+        index = photos.toIndex();
+        engine = new ClusterEngine(photos.ids, photos.latitudes, photos.longitudes, size);
+        timeline = new TimelineIndex(index);
+
+        Random random = new Random(QUERIES);
+        zooms = new int[QUERIES];
+        boxes = new double[QUERIES][];
+        ids = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            int hotspot = random.nextInt(SyntheticPhotos.HOTSPOTS);
+            zooms[i] = ZOOMS[random.nextInt(ZOOMS.length)];
+            double lngSpan = 360.0 / (1 << zooms[i]) * 1080 / 256;     // 1080 pixel wide screen
+            double latSpan = lngSpan * 1920 / 1080 / 2;                 // Roughly, at mid latitudes
+            double lat = photos.hotspot_latitudes[hotspot], lng = photos.hotspot_longitudes[hotspot];
+            boxes[i] = new double[] {
+                    Math.max(-85, lat - latSpan / 2), wrap(lng - lngSpan / 2),
+                    Math.min(85, lat + latSpan / 2), wrap(lng + lngSpan / 2) };
+            if (lngSpan >= 360) { boxes[i][1] = -180; boxes[i][3] = 180; }
+            ids[i] = photos.ids[random.nextInt(size)];
+        }
+    }
+
+    /** Grid cell ranges of a bounding box query, as built by the provider. */
+    @Benchmark
+    public int[] gridRanges() {
+        double[] box = boxes[next()];
+        return GeoGrid.ranges(box[0], box[1], box[2], box[3]);
+    }
+
+    /** Clusters shown for a viewport. */
+    @Benchmark
+    public List<ClusterEngine.Cluster> clusters() {
+        int i = next();
+        double[] box = boxes[i];
+        return engine.getClusters(zooms[i], box[0], box[1], box[2], box[3]);
+    }
+
+    /** Clusters shown for a viewport while the timeline is limited to a year. */
+    @Benchmark
+    public List<ClusterEngine.Cluster> timelineClusters() {
+        int i = next();
+        double[] box = boxes[i];
+        long from = timeline.getMinTime() + (i % 8) * YEAR;
+        return timeline.getClusters(from, from + YEAR, zooms[i], box[0], box[1], box[2], box[3]);
+    }
+
+    /** Position of a photo in the index, as looked up for every info window. */
+    @Benchmark
+    public int indexOf() {
+        return index.indexOf(ids[next()]);
+    }
+
+    /** Returns the next query to run. */
+    private int next() {
+        next = (next + 1) & (QUERIES - 1);
+        return next;
+    }
+
+    /** Wraps a longitude into [-180, 180]. */
+    private static double wrap(double longitude) {
+        if (longitude < -180) return longitude + 360;
+        if (longitude > 180) return longitude - 360;
+        return longitude;
+    }
+
+}
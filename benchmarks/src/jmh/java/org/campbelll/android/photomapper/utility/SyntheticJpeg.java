@@ -0,0 +1,112 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Builds minimal JPEG files whose EXIF header holds a photo's GPS, date and camera details, laid out the way a phone
+ * camera writes them: an APP1 segment with IFD0 pointing at a GPS IFD, followed by the start of the image data.
+ *
+ * @author Campbell Lockley
+ */
+public class SyntheticJpeg {
+    /* TIFF field types */
+    private static final short TYPE_ASCII = 2;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_RATIONAL = 5;
+
+    /* Size of an IFD with four entries: count, entries and next IFD offset */
+    private static final int IFD_SIZE = 2 + 4 * 12 + 4;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** Not instantiable. */
+    private SyntheticJpeg() {}
+
+    /** Returns a JPEG file holding the details of photo i of a library. */
+    public static byte[] build(SyntheticPhotos photos, int i) {
+        byte[] tiff = buildTiff(photos.latitudes[i], photos.longitudes[i], photos.getDatetime(i), photos.makes[i],
+                photos.models[i]);
+
+        ByteBuffer jpeg = ByteBuffer.allocate(2 + 4 + 6 + tiff.length + 4 + 2).order(ByteOrder.BIG_ENDIAN);
+        jpeg.put((byte) 0xFF).put((byte) 0xD8);                             // SOI
+        jpeg.put((byte) 0xFF).put((byte) 0xE1);                             // APP1
+        jpeg.putShort((short) (2 + 6 + tiff.length));
+        jpeg.put("Exif".getBytes(ASCII)).putShort((short) 0);
+        jpeg.put(tiff);
+        jpeg.put((byte) 0xFF).put((byte) 0xDA).putShort((short) 2);         // SOS, the parser stops here
+        jpeg.put((byte) 0xFF).put((byte) 0xD9);                             // EOI
+        return jpeg.array();
+    }
+
+    /** Returns a little endian TIFF structure with IFD0 and a GPS IFD. */
+    public static byte[] buildTiff(double latitude, double longitude, String datetime, String make, String model) {
+        byte[] makeBytes = ascii(make), modelBytes = ascii(model), datetimeBytes = ascii(datetime);
+
+        int ifd0 = 8;
+        int gpsIfd = ifd0 + IFD_SIZE;
+        int data = gpsIfd + IFD_SIZE;
+        int makeOffset = data;
+        int modelOffset = makeOffset + makeBytes.length;
+        int datetimeOffset = modelOffset + modelBytes.length;
+        int latitudeOffset = datetimeOffset + datetimeBytes.length;
+        int longitudeOffset = latitudeOffset + 24;
+        int length = longitudeOffset + 24;
+
+        ByteBuffer tiff = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifd0);
+
+        /* IFD0 */
+        tiff.position(ifd0);
+        tiff.putShort((short) 4);
+        entry(tiff, 0x010F, TYPE_ASCII, makeBytes.length, makeOffset);
+        entry(tiff, 0x0110, TYPE_ASCII, modelBytes.length, modelOffset);
+        entry(tiff, 0x0132, TYPE_ASCII, datetimeBytes.length, datetimeOffset);
+        entry(tiff, 0x8825, TYPE_LONG, 1, gpsIfd);
+        tiff.putInt(0);
+
+        /* GPS IFD. References of two bytes are stored inline */
+        tiff.putShort((short) 4);
+        entry(tiff, 0x0001, TYPE_ASCII, 2, inlineRef(latitude >= 0 ? 'N' : 'S'));
+        entry(tiff, 0x0002, TYPE_RATIONAL, 3, latitudeOffset);
+        entry(tiff, 0x0003, TYPE_ASCII, 2, inlineRef(longitude >= 0 ? 'E' : 'W'));
+        entry(tiff, 0x0004, TYPE_RATIONAL, 3, longitudeOffset);
+        tiff.putInt(0);
+
+        tiff.put(makeBytes).put(modelBytes).put(datetimeBytes);
+        degrees(tiff, Math.abs(latitude));
+        degrees(tiff, Math.abs(longitude));
+        return tiff.array();
+    }
+
+    /** Writes an IFD entry. */
+    private static void entry(ByteBuffer tiff, int tag, short type, int count, int value) {
+        tiff.putShort((short) tag).putShort(type).putInt(count).putInt(value);
+    }
+
+    /** Writes degrees as a degrees, minutes, seconds triple of RATIONALs, with seconds to 1/1000. */
+    private static void degrees(ByteBuffer tiff, double degrees) {
+        int whole = (int) degrees;
+        double minutes = (degrees - whole) * 60;
+        int wholeMinutes = (int) minutes;
+        int milliSeconds = (int) Math.round((minutes - wholeMinutes) * 60 * 1000);
+        tiff.putInt(whole).putInt(1);
+        tiff.putInt(wholeMinutes).putInt(1);
+        tiff.putInt(milliSeconds).putInt(1000);
+    }
+
+    /** Returns the inline value of a one character ASCII reference, e.g. "N\0". */
+    private static int inlineRef(char ref) {
+        return ref & 0xFF;  // Little endian, so the character is the first byte
+    }
+
+    /** Returns a string as NUL terminated ASCII. */
+    private static byte[] ascii(String s) {
+        byte[] chars = s.getBytes(ASCII);
+        byte[] bytes = new byte[chars.length + 1];
+        System.arraycopy(chars, 0, bytes, 0, chars.length);
+        return bytes;
+    }
+
+}
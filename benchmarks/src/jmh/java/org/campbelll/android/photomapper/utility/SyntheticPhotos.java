@@ -0,0 +1,107 @@
+package org.campbelll.android.photomapper.utility;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic photo library for benchmarks.
+ * <p>
+ * Real libraries are far from uniform: most photos are taken around a handful of places (home, work, holidays), by a
+ * few cameras. Photos are scattered around {@link #HOTSPOTS} centres with a spread of a few kilometres, plus a uniform
+ * sprinkle over the whole world, so clustering and spatial queries see both dense and empty regions. The same size
+ * always gives the same photos.
+ *
+ * @author Campbell Lockley
+ */
+public class SyntheticPhotos {
+    /* Constants */
+    public static final int HOTSPOTS = 32;              // Places photos are clustered around
+    private static final double SPREAD_DEGREES = 0.05;  // Standard deviation of photos around a hotspot
+    private static final double SCATTERED = 0.05;       // Fraction of photos placed uniformly over the world
+    private static final long START_TIME = 1262304000000L;          // 2010-01-01 UTC
+    private static final long SPAN_TIME = 10 * 365 * 86400000L;     // About ten years
+    private static final String[] MAKES = { "LGE", "samsung", "Apple", "Canon", "NIKON CORPORATION" };
+    private static final String[] MODELS = { "Nexus 5", "SM-G900F", "iPhone 6", "Canon EOS 600D", "NIKON D3200" };
+
+    /* Fields, one element per photo, ids ascending from 1 */
+    public final int size;
+    public final long[] ids;
+    public final double[] latitudes;
+    public final double[] longitudes;
+    public final long[] taken_at;
+    public final String[] makes;
+    public final String[] models;
+    public final double[] hotspot_latitudes;    // Latitudes of centres photos are clustered around
+    public final double[] hotspot_longitudes;   // Longitudes of centres photos are clustered around
+
+    /** Generates a library of the given number of photos. */
+    public SyntheticPhotos(int size) {
+        Random random = new Random(size);
+        this.size = size;
+        ids = new long[size];
+        latitudes = new double[size];
+        longitudes = new double[size];
+        taken_at = new long[size];
+        makes = new String[size];
+        models = new String[size];
+
+        hotspot_latitudes = new double[HOTSPOTS];
+        hotspot_longitudes = new double[HOTSPOTS];
+        for (int i = 0; i < HOTSPOTS; i++) {
+            hotspot_latitudes[i] = random.nextDouble() * 120 - 60;
+            hotspot_longitudes[i] = random.nextDouble() * 360 - 180;
+        }
+
+        for (int i = 0; i < size; i++) {
+            ids[i] = i + 1;
+            if (random.nextDouble() < SCATTERED) {
+                latitudes[i] = random.nextDouble() * 170 - 85;
+                longitudes[i] = random.nextDouble() * 360 - 180;
+            } else {
+                int hotspot = (int) (Math.abs(random.nextGaussian()) * HOTSPOTS / 3) % HOTSPOTS;    // Skewed to a few
+                latitudes[i] = clamp(hotspot_latitudes[hotspot] + random.nextGaussian() * SPREAD_DEGREES, -85, 85);
+                longitudes[i] = clamp(hotspot_longitudes[hotspot] + random.nextGaussian() * SPREAD_DEGREES,
+                        -180, 180);
+            }
+            taken_at[i] = START_TIME + (long) (random.nextDouble() * SPAN_TIME);
+            int camera = random.nextInt(MAKES.length);
+            makes[i] = MAKES[camera];
+            models[i] = MODELS[camera];
+        }
+    }
+
+    /** Returns an index of the photos. */
+    public PhotoIndex toIndex() {
+        PhotoIndex.Builder builder = new PhotoIndex.Builder(size);
+        for (int i = 0; i < size; i++) {
+            builder.add(ids[i], latitudes[i], longitudes[i], taken_at[i], makes[i], models[i]);
+        }
+        return builder.build();
+    }
+
+    /** Returns the EXIF date time of a photo, i.e. "YYYY:MM:DD HH:MM:SS". */
+    public String getDatetime(int i) {
+        long seconds = taken_at[i] / 1000;
+        long days = seconds / 86400, secondOfDay = seconds % 86400;
+
+        /* Civil date from days since epoch, the inverse of ExifParser.daysFromCivil() */
+        long z = days + 719468;
+        long era = z / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        return String.format(Locale.US, "%04d:%02d:%02d %02d:%02d:%02d", year, month, day,
+                secondOfDay / 3600, (secondOfDay / 60) % 60, secondOfDay % 60);
+    }
+
+    /** Clamps a value to [min, max]. */
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+}
@@ -0,0 +1,213 @@
+package org.campbelll.android.photomapper.utility;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link ClusterEngine}: that every zoom level accounts for every photo, that a tapped cluster splits into
+ * clusters holding the same photos when zoomed in on, and that photos at the antimeridian and the poles are clustered
+ * and found like any other.
+ *
+ * @author Campbell Lockley
+ */
+public class ClusterEngineTest {
+    /* Constants */
+    private static final long SEED = 448;                   // Seed of the random photos
+    private static final int PHOTOS = 5000;                 // Random photos
+    private static final double METRES_PER_DEGREE = 111320;
+
+    @Test
+    public void countsSumToTotalAtEveryZoom() {
+        ClusterEngine engine = randomEngine();
+        assertEquals(ClusterEngine.MAX_ZOOM - ClusterEngine.MIN_ZOOM + 1, engine.getLevelCount());
+
+        for (int zoom = ClusterEngine.MIN_ZOOM; zoom <= ClusterEngine.MAX_ZOOM; zoom++) {
+            List<ClusterEngine.Cluster> clusters = engine.getClusters(zoom, -90, -180, 90, 180);
+            int total = 0;
+            HashSet<Long> keys = new HashSet<>();
+            for (ClusterEngine.Cluster cluster : clusters) {
+                total += cluster.count;
+                assertTrue("Duplicate key at zoom " + zoom, keys.add(cluster.key));
+                if (cluster.count == 1) assertEquals(cluster.photoId, cluster.key);
+                else assertTrue("Cluster key collides with a photo id", cluster.key < 0);
+            }
+            assertEquals("Photos at zoom " + zoom, PHOTOS, total);
+        }
+    }
+
+    /** Every cluster's photos are exactly those of the four cells it splits into at the next zoom level. */
+    @Test
+    public void clustersSplitIntoNextZoom() {
+        ClusterEngine engine = randomEngine();
+        for (int zoom = ClusterEngine.MIN_ZOOM; zoom < ClusterEngine.MAX_ZOOM; zoom++) {
+            HashMap<Long, Integer> children = new HashMap<>();
+            for (ClusterEngine.Cluster child : engine.getClusters(zoom + 1, -90, -180, 90, 180)) {
+                long parent = ClusterEngine.cellKey(child.cellX / 2, child.cellY / 2);
+                Integer count = children.get(parent);
+                children.put(parent, (count == null ? 0 : count) + child.count);
+            }
+
+            List<ClusterEngine.Cluster> clusters = engine.getClusters(zoom, -90, -180, 90, 180);
+            assertEquals(clusters.size(), children.size());
+            for (ClusterEngine.Cluster cluster : clusters) {
+                Integer count = children.get(ClusterEngine.cellKey(cluster.cellX, cluster.cellY));
+                assertEquals("Cluster at zoom " + zoom, (Integer) cluster.count, count);
+            }
+        }
+    }
+
+    /** Tapping a cluster zooms the map to its bounding box, where its photos are shown apart. */
+    @Test
+    public void expandsTappedCluster() {
+        /* Three photos a few hundred metres apart, and one far away */
+        double latitude = -43.5321, longitude = 172.6362;
+        double step = 300 / METRES_PER_DEGREE;
+        long[] ids = { 1, 2, 3, 4 };
+        double[] latitudes = { latitude, latitude + step, latitude - step, -36.8485 };
+        double[] longitudes = { longitude, longitude + step, longitude - step, 174.7633 };
+        ClusterEngine engine = new ClusterEngine(ids, latitudes, longitudes, ids.length);
+
+        ClusterEngine.Cluster tapped = only(engine.getClusters(8, -44, 172, -43, 173));
+        assertEquals(3, tapped.count);
+        assertEquals(latitude - step, tapped.south, 0);
+        assertEquals(latitude + step, tapped.north, 0);
+        assertEquals(longitude - step, tapped.west, 0);
+        assertEquals(longitude + step, tapped.east, 0);
+        assertEquals(latitude, tapped.getLatitude(), 1e-9);
+        assertEquals(longitude, tapped.getLongitude(), 1e-9);
+
+        /* At street level the cluster's box holds its three photos as lone markers keyed by their ids */
+        List<ClusterEngine.Cluster> expanded = engine.getClusters(16, tapped.south, tapped.west, tapped.north,
+                tapped.east);
+        long[] keys = new long[expanded.size()];
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(1, expanded.get(i).count);
+            keys[i] = expanded.get(i).key;
+        }
+        Arrays.sort(keys);
+        assertArrayEquals(new long[] { 1, 2, 3 }, keys);
+    }
+
+    /** Photos which share a location stay clustered at every zoom, so tapping them zooms in instead. */
+    @Test
+    public void keepsPhotosAtOneLocationClustered() {
+        long[] ids = { 1, 2 };
+        double[] latitudes = { 51.5074, 51.5074 };
+        double[] longitudes = { -0.1278, -0.1278 };
+        ClusterEngine engine = new ClusterEngine(ids, latitudes, longitudes, ids.length);
+
+        ClusterEngine.Cluster cluster = only(engine.getClusters(ClusterEngine.MAX_ZOOM + 2, 51, -1, 52, 1));
+        assertEquals(2, cluster.count);
+        assertEquals(cluster.south, cluster.north, 0);
+        assertEquals(cluster.west, cluster.east, 0);
+    }
+
+    /**
+     * Photos either side of the antimeridian, including at exactly 180 and -180, are found by a box which crosses it,
+     * whether the visible cells are probed or the clusters scanned.
+     */
+    @Test
+    public void findsClustersAcrossAntimeridian() {
+        long[] ids = { 1, 2, 3, 4, 5 };
+        double[] latitudes = { -17.7, -17.8, -17.9, -18.0, -17.7 };
+        double[] longitudes = { 179.9, -179.9, 180, -180, 0 };
+
+        /* Few clusters, so they are scanned */
+        ClusterEngine sparse = new ClusterEngine(ids, latitudes, longitudes, ids.length);
+        assertFound(sparse, 10, new long[] { 1, 2, 3, 4 });
+        assertFound(sparse, 2, new long[] { 1, 2, 3, 4 });
+
+        /* Many more clusters than visible cells, so the visible cells are probed */
+        int count = ids.length + PHOTOS;
+        long[] allIds = Arrays.copyOf(ids, count);
+        double[] allLatitudes = Arrays.copyOf(latitudes, count);
+        double[] allLongitudes = Arrays.copyOf(longitudes, count);
+        Random random = new Random(SEED);
+        for (int i = ids.length; i < count; i++) {
+            allIds[i] = i + 1;
+            allLatitudes[i] = 40 + random.nextDouble() * 20;
+            allLongitudes[i] = -60 + random.nextDouble() * 120;
+        }
+        ClusterEngine dense = new ClusterEngine(allIds, allLatitudes, allLongitudes, count);
+        assertFound(dense, 10, new long[] { 1, 2, 3, 4 });
+
+        /* A box on one side only finds that side's photos */
+        assertKeys(new long[] { 1, 3 }, sparse.getClusters(10, -19, 179, -17, 180));
+        assertKeys(new long[] { 2, 4 }, sparse.getClusters(10, -19, -180, -17, -179));
+    }
+
+    /** Photos at and near the poles are clamped to the edge of the map rather than lost. */
+    @Test
+    public void findsClustersAtPoles() {
+        long[] ids = { 1, 2, 3, 4 };
+        double[] latitudes = { 90, 89.9, -90, -89.9 };
+        double[] longitudes = { 0, 0, 45, 45 };
+        ClusterEngine engine = new ClusterEngine(ids, latitudes, longitudes, ids.length);
+
+        for (int zoom = ClusterEngine.MIN_ZOOM; zoom <= ClusterEngine.MAX_ZOOM; zoom++) {
+            int cells = ClusterEngine.cellsAcross(zoom);
+            int total = 0;
+            for (ClusterEngine.Cluster cluster : engine.getClusters(zoom, -90, -180, 90, 180)) {
+                assertTrue(cluster.cellY >= 0 && cluster.cellY < cells);
+                total += cluster.count;
+            }
+            assertEquals(ids.length, total);
+        }
+
+        /* Beyond the projection's limit the poles share the top and bottom rows */
+        assertEquals(2, only(engine.getClusters(ClusterEngine.MAX_ZOOM, 89, -1, 90, 1)).count);
+        assertEquals(2, only(engine.getClusters(ClusterEngine.MAX_ZOOM, -90, 44, -89, 46)).count);
+    }
+
+    /** Asserts a box crossing the antimeridian at a zoom level finds exactly the given photos. */
+    private static void assertFound(ClusterEngine engine, int zoom, long[] expected) {
+        int total = 0;
+        HashSet<Long> photos = new HashSet<>();
+        for (ClusterEngine.Cluster cluster : engine.getClusters(zoom, -19, 179, -17, -179)) {
+            total += cluster.count;
+            photos.add(cluster.photoId);
+        }
+        assertEquals("Photos at zoom " + zoom, expected.length, total);
+        if (zoom >= 10) {
+            for (long id : expected) assertTrue("Photo " + id + " at zoom " + zoom, photos.contains(id));
+        }
+    }
+
+    /** Asserts the keys of a list of clusters, in any order. */
+    private static void assertKeys(long[] expected, List<ClusterEngine.Cluster> clusters) {
+        long[] keys = new long[clusters.size()];
+        for (int i = 0; i < keys.length; i++) keys[i] = clusters.get(i).key;
+        Arrays.sort(keys);
+        assertArrayEquals(expected, keys);
+    }
+
+    /** Asserts a list holds one cluster and returns it. */
+    private static ClusterEngine.Cluster only(List<ClusterEngine.Cluster> clusters) {
+        assertEquals(1, clusters.size());
+        return clusters.get(0);
+    }
+
+    /** Returns an engine of random photos over the whole world. */
+    private static ClusterEngine randomEngine() {
+        Random random = new Random(SEED);
+        long[] ids = new long[PHOTOS];
+        double[] latitudes = new double[PHOTOS];
+        double[] longitudes = new double[PHOTOS];
+        for (int i = 0; i < PHOTOS; i++) {
+            ids[i] = i + 1;
+            latitudes[i] = random.nextDouble() * 180 - 90;
+            longitudes[i] = random.nextDouble() * 360 - 180;
+        }
+        return new ClusterEngine(ids, latitudes, longitudes, PHOTOS);
+    }
+
+}
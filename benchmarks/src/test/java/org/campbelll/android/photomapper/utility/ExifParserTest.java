@@ -0,0 +1,192 @@
+package org.campbelll.android.photomapper.utility;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link ExifParser} against the JPEG files in the "exif" resource directory. Each file is a real JPEG image
+ * with an EXIF APP1 segment laid out as a camera writes it, i.e. IFD0 pointing at a GPS IFD and optionally followed by
+ * an IFD1 with an embedded JPEG thumbnail, and coordinates as degrees, minutes and seconds to 1/100. Some files are
+ * broken in the ways files found on phones are: segments cut short, and offsets pointing outside the segment.
+ *
+ * @author Campbell Lockley
+ */
+public class ExifParserTest {
+    /* Constants */
+    private static final double DEGREES_DELTA = 1e-6;       // Seconds are stored to 1/100, i.e. about 3e-6 degrees
+    private static final int THUMBNAIL_LENGTH = 691;        // Length of the fixtures' embedded thumbnails
+
+    /** Motorola byte order, with an embedded thumbnail, taken in the southern and eastern hemispheres. */
+    @Test
+    public void parsesBigEndian() throws IOException {
+        ExifParser.Result result = parse("big_endian.jpg");
+        assertNotNull(result);
+        assertTrue(result.hasLocation());
+        assertEquals(-43.5321, result.gps_latitude, DEGREES_DELTA);
+        assertEquals("S", result.gps_latitude_ref);
+        assertEquals(172.6362, result.gps_longitude, DEGREES_DELTA);
+        assertEquals("E", result.gps_longitude_ref);
+        assertEquals("2014:03:15 10:20:30", result.datetime);
+        assertEquals("Canon", result.make);
+        assertEquals("Canon EOS 600D", result.model);
+        assertEquals(THUMBNAIL_LENGTH, result.thumbnail_length);
+
+        byte[] thumbnail = ExifParser.readThumbnail(fixture("big_endian.jpg"), result.thumbnail_offset,
+                result.thumbnail_length);
+        assertNotNull(thumbnail);
+        assertEquals(THUMBNAIL_LENGTH, thumbnail.length);
+        assertArrayEquals(new byte[] { (byte) 0xFF, (byte) 0xD8 }, new byte[] { thumbnail[0], thumbnail[1] });
+        assertArrayEquals(new byte[] { (byte) 0xFF, (byte) 0xD9 },
+                new byte[] { thumbnail[thumbnail.length - 2], thumbnail[thumbnail.length - 1] });
+    }
+
+    /** Intel byte order, without a thumbnail, taken in the northern and western hemispheres. */
+    @Test
+    public void parsesLittleEndian() throws IOException {
+        ExifParser.Result result = parse("little_endian.jpg");
+        assertNotNull(result);
+        assertTrue(result.hasLocation());
+        assertEquals(51.5074, result.gps_latitude, DEGREES_DELTA);
+        assertEquals("N", result.gps_latitude_ref);
+        assertEquals(-0.1278, result.gps_longitude, DEGREES_DELTA);
+        assertEquals("W", result.gps_longitude_ref);
+        assertEquals("2015:07:04 18:05:00", result.datetime);
+        assertEquals("samsung", result.make);
+        assertEquals("SM-G920F", result.model);
+        assertEquals(-1, result.thumbnail_offset);
+    }
+
+    /** IFD0 has no GPS IFD pointer. */
+    @Test
+    public void parsesMissingGps() throws IOException {
+        ExifParser.Result result = parse("no_gps.jpg");
+        assertNotNull(result);
+        assertFalse(result.hasLocation());
+        assertNull(result.gps_latitude_ref);
+        assertNull(result.gps_longitude_ref);
+        assertEquals("2013:12:31 23:59:59", result.datetime);
+        assertEquals("Apple", result.make);
+        assertEquals("iPhone 6", result.model);
+    }
+
+    /** IFD0 has no DateTime tag. Its make is short enough to be stored inline in its entry. */
+    @Test
+    public void parsesMissingDateTime() throws IOException {
+        ExifParser.Result result = parse("no_datetime.jpg");
+        assertNotNull(result);
+        assertNull(result.datetime);
+        assertEquals(ExifParser.UNKNOWN_TIME, ExifParser.toEpochMillis(result.datetime));
+        assertEquals(-17.7134, result.gps_latitude, DEGREES_DELTA);
+        assertEquals(178.065, result.gps_longitude, DEGREES_DELTA);
+        assertEquals("LGE", result.make);
+        assertEquals("Nexus 5", result.model);
+    }
+
+    /** The file ends half way through the APP1 segment, so it isn't found. */
+    @Test
+    public void rejectsTruncatedApp1() throws IOException {
+        assertNull(parse("truncated_app1.jpg"));
+    }
+
+    /** The APP1 segment's length cuts its TIFF structure in half, so the GPS IFD and every value are outside it. */
+    @Test
+    public void ignoresValuesPastShortApp1() throws IOException {
+        ExifParser.Result result = parse("short_app1.jpg");
+        assertNotNull(result);
+        assertFalse(result.hasLocation());
+        assertNull(result.datetime);
+        assertNull(result.make);
+        assertNull(result.model);
+    }
+
+    /** The GPS IFD pointer is far past the end of the segment. */
+    @Test
+    public void ignoresBadGpsIfdOffset() throws IOException {
+        ExifParser.Result result = parse("bad_ifd_offsets.jpg");
+        assertNotNull(result);
+        assertFalse(result.hasLocation());
+        assertEquals("2011:05:06 07:08:09", result.datetime);
+        assertEquals("HTC", result.make);
+        assertEquals("HTC One_M8", result.model);
+    }
+
+    /** The IFD1 pointer following IFD0 is past the end of the segment. */
+    @Test
+    public void ignoresBadIfd1Offset() throws IOException {
+        ExifParser.Result result = parse("bad_ifd1_offset.jpg");
+        assertNotNull(result);
+        assertEquals(-1, result.thumbnail_offset);
+        assertEquals("2011:05:06 07:08:09", result.datetime);
+    }
+
+    /**
+     * The make's offset is past the end of the segment, the latitude's rationals run past it and the longitude's
+     * offset is negative. The fields around them are still read.
+     */
+    @Test
+    public void ignoresBadValueOffsets() throws IOException {
+        ExifParser.Result result = parse("bad_value_offsets.jpg");
+        assertNotNull(result);
+        assertNull(result.make);
+        assertEquals("Nexus 6", result.model);
+        assertEquals("2016:02:29 12:00:00", result.datetime);
+        assertFalse(result.hasLocation());
+        assertEquals("N", result.gps_latitude_ref);
+        assertEquals("W", result.gps_longitude_ref);
+        assertEquals(THUMBNAIL_LENGTH, result.thumbnail_length);
+        assertTrue(result.thumbnail_offset > 0);
+    }
+
+    /** The thumbnail's offset is past the end of the file. */
+    @Test
+    public void ignoresBadThumbnailOffset() throws IOException {
+        ExifParser.Result result = parse("bad_thumbnail_offset.jpg");
+        assertNotNull(result);
+        assertEquals(-1, result.thumbnail_offset);
+        assertNull(ExifParser.readThumbnail(fixture("bad_thumbnail_offset.jpg"), result.thumbnail_offset,
+                result.thumbnail_length));
+        assertEquals("NIKON CORPORATION", result.make);
+    }
+
+    /** A JPEG with no APP1 segment. */
+    @Test
+    public void rejectsNoExif() throws IOException {
+        assertNull(parse("no_exif.jpg"));
+    }
+
+    @Test
+    public void convertsDateTimes() {
+        assertEquals(1394878830000L, ExifParser.toEpochMillis("2014:03:15 10:20:30"));
+        assertEquals(1456704000000L, ExifParser.toEpochMillis("2016:02:29"));
+        assertEquals(-1000L, ExifParser.toEpochMillis("1969:12:31 23:59:59"));
+        assertEquals(ExifParser.UNKNOWN_TIME, ExifParser.toEpochMillis(null));
+        assertEquals(ExifParser.UNKNOWN_TIME, ExifParser.toEpochMillis("    :  :     :  :  "));
+        assertEquals(ExifParser.UNKNOWN_TIME, ExifParser.toEpochMillis("2014:13:15 10:20:30"));
+        assertEquals(ExifParser.UNKNOWN_TIME, ExifParser.toEpochMillis("2014:03:15 24:20:30"));
+    }
+
+    /** Parses a fixture. */
+    private static ExifParser.Result parse(String name) throws IOException {
+        return ExifParser.parse(fixture(name));
+    }
+
+    /** Returns a fixture's file. */
+    private static File fixture(String name) {
+        try {
+            return new File(ExifParserTest.class.getResource("exif/" + name).toURI());
+        } catch (URISyntaxException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}